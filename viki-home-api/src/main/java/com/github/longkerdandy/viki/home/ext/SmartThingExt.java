@@ -2,10 +2,17 @@ package com.github.longkerdandy.viki.home.ext;
 
 import com.github.longkerdandy.viki.home.model.Action;
 import com.github.longkerdandy.viki.home.model.Property;
+import com.github.longkerdandy.viki.home.model.Thing;
 import com.github.longkerdandy.viki.home.model.WriteResult;
+import com.github.longkerdandy.viki.home.model.WriteTarget;
 import com.github.longkerdandy.viki.home.schema.ThingSchema;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 /**
  * Extension for smart things
@@ -36,6 +43,36 @@ public interface SmartThingExt {
    */
   Map<String, ThingSchema> getSchemas();
 
+  /**
+   * Read the current state of target Thing
+   *
+   * The state may be served from the latest report received from the Thing, when it is not older
+   * than the max staleness. Otherwise the Thing is read over the network.
+   *
+   * @param thing Thing id
+   * @param schema ThingSchema name
+   * @param maxStaleness Max staleness of the state, {@link Duration#ZERO} to always read
+   * @return {@link Thing} with current {@link Property}s, empty if not exist
+   */
+  CompletableFuture<Optional<Thing>> readThing(String thing, String schema, Duration maxStaleness);
+
+  /**
+   * Read the current value of {@link Property} on target Thing
+   *
+   * Same as {@link #readThing(String, String, Duration)} but only return the named property.
+   *
+   * @param thing Thing id
+   * @param schema ThingSchema name
+   * @param property {@link Property} name
+   * @param maxStaleness Max staleness of the state, {@link Duration#ZERO} to always read
+   * @return {@link Property}, empty if the Thing or property not exist
+   */
+  default CompletableFuture<Optional<Property>> readProperty(String thing, String schema,
+      String property, Duration maxStaleness) {
+    return readThing(thing, schema, maxStaleness).thenApply(t -> t.flatMap(
+        v -> v.getProperties().stream().filter(p -> p.getName().equals(property)).findFirst()));
+  }
+
   /**
    * Perform {@link Action} on target Thing
    *
@@ -60,4 +97,26 @@ public interface SmartThingExt {
    * @return {@link WriteResult}
    */
   CompletableFuture<WriteResult> writeProperty(String thing, String schema, Property property);
+
+  /**
+   * Write {@link Property}s and perform {@link Action}s on multiple Things
+   *
+   * {@link Property}s and {@link Action}s will be validated before calling this method. The
+   * default implementation calls {@link #writeProperty(String, String, Property)} or {@link
+   * #performAction(String, String, Action)} for each target, extensions should override it when
+   * the targets can be written together.
+   *
+   * @param targets List of {@link WriteTarget}
+   * @return List of {@link WriteResult}, in the same order of the targets
+   */
+  default CompletableFuture<List<WriteResult>> writeBatch(List<WriteTarget> targets) {
+    List<CompletableFuture<WriteResult>> futures = new ArrayList<>(targets.size());
+    for (WriteTarget target : targets) {
+      futures.add(target.isAction()
+          ? performAction(target.getThing(), target.getSchema(), target.getAction())
+          : writeProperty(target.getThing(), target.getSchema(), target.getProperty()));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+        .thenApply(v -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+  }
 }
@@ -0,0 +1,71 @@
+package com.github.longkerdandy.viki.home.model;
+
+/**
+ * Target of a batch write, either a {@link Property} to write or an {@link Action} to perform on a
+ * Thing
+ */
+public class WriteTarget {
+
+  protected final String thing;                   // thing id
+  protected final String schema;                  // thing schema name
+  protected final Property property;              // property to write, null if action
+  protected final Action action;                  // action to perform, null if property
+
+  /**
+   * Constructor
+   *
+   * @param thing thing id
+   * @param schema thing schema name
+   * @param property {@link Property} to write
+   */
+  public WriteTarget(String thing, String schema, Property property) {
+    this.thing = thing;
+    this.schema = schema;
+    this.property = property;
+    this.action = null;
+  }
+
+  /**
+   * Constructor
+   *
+   * @param thing thing id
+   * @param schema thing schema name
+   * @param action {@link Action} to perform
+   */
+  public WriteTarget(String thing, String schema, Action action) {
+    this.thing = thing;
+    this.schema = schema;
+    this.property = null;
+    this.action = action;
+  }
+
+  public String getThing() {
+    return thing;
+  }
+
+  public String getSchema() {
+    return schema;
+  }
+
+  public Property getProperty() {
+    return property;
+  }
+
+  public Action getAction() {
+    return action;
+  }
+
+  public boolean isAction() {
+    return action != null;
+  }
+
+  @Override
+  public String toString() {
+    return "WriteTarget{" +
+        "thing='" + thing + '\'' +
+        ", schema='" + schema + '\'' +
+        ", property=" + property +
+        ", action=" + action +
+        '}';
+  }
+}
@@ -3,10 +3,15 @@ package com.github.longkerdandy.viki.home.hap;
 import static com.github.longkerdandy.viki.home.util.Configurations.getPropertiesConfiguration;
 
 import com.github.longkerdandy.viki.home.ext.ControllerExt;
+import com.github.longkerdandy.viki.home.hap.crypto.BuiltinCryptoProvider;
+import com.github.longkerdandy.viki.home.hap.crypto.CryptoProviders;
 import com.github.longkerdandy.viki.home.hap.http.HAPChannelInboundHandler;
+import com.github.longkerdandy.viki.home.hap.http.handler.HandshakeExecutor;
 import com.github.longkerdandy.viki.home.hap.mdns.HAPmDNSAdvertiser;
+import com.github.longkerdandy.viki.home.hap.storage.AsyncHAPStorage;
 import com.github.longkerdandy.viki.home.hap.storage.HAPStorage;
 import com.github.longkerdandy.viki.home.hap.storage.Registry;
+import com.github.longkerdandy.viki.home.hap.util.Ciphers;
 import com.github.longkerdandy.viki.home.storage.SQLiteStorage;
 import com.github.longkerdandy.viki.home.util.Networks;
 import io.netty.bootstrap.ServerBootstrap;
@@ -54,10 +59,13 @@ public class HomeKitProtocolExt implements ControllerExt {
   private final String pinCode;
   // storage
   private final HAPStorage hapStorage;
+  private final AsyncHAPStorage asyncHAPStorage;
   // session registry
   private final Registry registry;
   // mDNS
   private HAPmDNSAdvertiser advertiser;
+  // pairing handshake crypto
+  private HandshakeExecutor handshakeExecutor;
   // netty
   private EventLoopGroup bossGroup;
   private EventLoopGroup workerGroup;
@@ -74,6 +82,7 @@ public class HomeKitProtocolExt implements ControllerExt {
       this.port = config.getInt("hap.port");
       this.pinCode = config.getString("hap.pin");
       this.hapStorage = new HAPStorage(config);
+      this.asyncHAPStorage = new AsyncHAPStorage(this.hapStorage);
       this.registry = new Registry();
     } catch (ConfigurationException | IOException e) {
       throw new IllegalStateException(e);
@@ -96,9 +105,17 @@ public class HomeKitProtocolExt implements ControllerExt {
         .encoding(this.config.getString("storage.migration.encoding", "UTF-8"))
         .load().migrate();
 
+    logger.info("Selecting crypto provider ...");
+    Ciphers.setProvider(CryptoProviders.select(this.config.getString("hap.crypto.provider",
+        BuiltinCryptoProvider.NAME)));
+    logger.info("Using crypto provider {}", Ciphers.getProvider().getName());
+
     logger.info("Initializing HAP storage ...");
     this.hapStorage.init();
 
+    logger.info("Loading accessories ...");
+    this.asyncHAPStorage.refreshAccessories().join();
+
     logger.info("Initializing mDNS discovery service ...");
     initDiscovery();
 
@@ -113,7 +130,7 @@ public class HomeKitProtocolExt implements ControllerExt {
    */
   protected void initDiscovery() throws IOException {
     this.advertiser = new HAPmDNSAdvertiser(
-        this.address, this.hostname, this.macAddress, this.port, this.hapStorage);
+        this.address, this.hostname, this.macAddress, this.port, this.asyncHAPStorage);
 
     // Register the bridge service
     this.advertiser.registerBridgeService();
@@ -123,6 +140,10 @@ public class HomeKitProtocolExt implements ControllerExt {
    * Initialize HTTP service
    */
   protected void initHTTPServer() throws InterruptedException {
+    // Configure the executor for pairing handshake crypto, shared by all the connections
+    this.handshakeExecutor = new HandshakeExecutor(this.config.getInt("hap.crypto.threads", 2),
+        this.config.getInt("hap.crypto.queue.size", 32));
+
     // Configure EventLoopGroup
     this.bossGroup = new NioEventLoopGroup(1);
     this.workerGroup = new NioEventLoopGroup();
@@ -140,7 +161,7 @@ public class HomeKitProtocolExt implements ControllerExt {
             pipeline.addLast("codec", new HttpServerCodec());
             pipeline.addLast("aggregator", new HttpObjectAggregator(1073741824));
             pipeline.addLast("hap", new HAPChannelInboundHandler(
-                hapStorage, macAddress, pinCode, registry, advertiser));
+                asyncHAPStorage, macAddress, pinCode, registry, advertiser, handshakeExecutor));
           }
         })
         .option(ChannelOption.SO_BACKLOG, 128)
@@ -161,6 +182,8 @@ public class HomeKitProtocolExt implements ControllerExt {
     // Gracefully shutdown the EventLoopGroup
     this.bossGroup.shutdownGracefully();
     this.workerGroup.shutdownGracefully();
+    this.handshakeExecutor.shutdown();
+    this.asyncHAPStorage.shutdown();
 
     logger.info("HomeKit Accessory Protocol Extension is destroyed ...");
   }
@@ -0,0 +1,60 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Authenticated Encryption with Associated Data, bound to a key
+ *
+ * The ciphertext has the format {actual_ciphertext || tag}. An instance is created once per key,
+ * typically once per session, and is not thread-safe.
+ */
+public interface Aead {
+
+  /**
+   * Encrypts the {@code plaintext}
+   *
+   * @param plaintext An arbitrary length plaintext
+   * @param nonce A 96-bit nonce -- different for each invocation with the same key
+   * @param additionalData Arbitrary length additional authenticated data (AAD), may be null
+   * @return The ciphertext with the following format {actual_ciphertext || tag}
+   */
+  byte[] encrypt(final byte[] plaintext, final byte[] nonce, final byte[] additionalData);
+
+  /**
+   * Encrypts the remaining bytes of {@code plaintext} into {@code output}, advancing the positions
+   * of both buffers
+   *
+   * @param output The ciphertext with the following format {actual_ciphertext || tag}
+   * @param plaintext An arbitrary length plaintext
+   * @param nonce A 96-bit nonce -- different for each invocation with the same key
+   * @param additionalData Arbitrary length additional authenticated data (AAD), may be null
+   */
+  void encrypt(ByteBuffer output, ByteBuffer plaintext, final byte[] nonce,
+      final byte[] additionalData);
+
+  /**
+   * Decrypts {@code ciphertext} with the following format: {actual_ciphertext || tag}
+   *
+   * @param ciphertext with format {actual_ciphertext || tag}
+   * @param nonce A 96-bit nonce
+   * @param additionalData Arbitrary length additional authenticated data (AAD), may be null
+   * @return plaintext if authentication is successful
+   * @throws GeneralSecurityException when tag verification failed
+   */
+  byte[] decrypt(final byte[] ciphertext, final byte[] nonce, final byte[] additionalData)
+      throws GeneralSecurityException;
+
+  /**
+   * Decrypts the remaining bytes of {@code ciphertext} into {@code output}, advancing the
+   * positions of both buffers. Nothing is written if the tag verification failed.
+   *
+   * @param output The plaintext if authentication is successful
+   * @param ciphertext with format {actual_ciphertext || tag}
+   * @param nonce A 96-bit nonce
+   * @param additionalData Arbitrary length additional authenticated data (AAD), may be null
+   * @throws GeneralSecurityException when tag verification failed
+   */
+  void decrypt(ByteBuffer output, ByteBuffer ciphertext, final byte[] nonce,
+      final byte[] additionalData) throws GeneralSecurityException;
+}
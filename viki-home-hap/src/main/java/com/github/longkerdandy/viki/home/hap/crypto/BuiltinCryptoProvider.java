@@ -0,0 +1,94 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import at.favre.lib.crypto.HKDF;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.KeyPairGenerator;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+import org.whispersystems.curve25519.Curve25519;
+import org.whispersystems.curve25519.Curve25519KeyPair;
+
+/**
+ * {@link CryptoProvider} with the pure Java implementations shipped with the project: {@link
+ * ChaCha20Poly1305}, curve25519-java, EdDSA-Java and HKDF from at.favre.lib
+ *
+ * It works on every supported JDK and is the default provider.
+ */
+public class BuiltinCryptoProvider implements CryptoProvider {
+
+  public static final String NAME = "builtin";
+
+  private static final EdDSAParameterSpec ED_25519 =
+      EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Aead chaCha20Poly1305(byte[] key) {
+    return new ChaCha20Poly1305(key);
+  }
+
+  @Override
+  public OctetKeyPair x25519KeyGen() {
+    Curve25519KeyPair keyPair = Curve25519.getInstance(Curve25519.BEST).generateKeyPair();
+    return new OctetKeyPair(keyPair.getPublicKey(), keyPair.getPrivateKey());
+  }
+
+  /**
+   * curve25519-java expects the private key clamped by its key generation, so a copy is clamped
+   * here as RFC 7748 requires, the same as the JDK does
+   */
+  @Override
+  public byte[] x25519SharedSecret(byte[] publicKey, byte[] privateKey) {
+    byte[] scalar = Arrays.copyOf(privateKey, privateKey.length);
+    scalar[0] &= (byte) 248;
+    scalar[31] &= 127;
+    scalar[31] |= 64;
+    return Curve25519.getInstance(Curve25519.BEST).calculateAgreement(publicKey, scalar);
+  }
+
+  @Override
+  public OctetKeyPair ed25519KeyGen() {
+    KeyPairGenerator keygen = new KeyPairGenerator();
+    keygen.initialize(256, new SecureRandom());
+    KeyPair keyPair = keygen.generateKeyPair();
+    return new OctetKeyPair(((EdDSAPublicKey) keyPair.getPublic()).getAbyte(),
+        ((EdDSAPrivateKey) keyPair.getPrivate()).getSeed());
+  }
+
+  @Override
+  public byte[] ed25519Sign(byte[] privateKey, byte[] message) throws GeneralSecurityException {
+    EdDSAEngine ed25519 = new EdDSAEngine(MessageDigest.getInstance(ED_25519.getHashAlgorithm()));
+    PrivateKey key = new EdDSAPrivateKey(new EdDSAPrivateKeySpec(privateKey, ED_25519));
+    ed25519.initSign(key);
+    return ed25519.signOneShot(message);
+  }
+
+  @Override
+  public boolean ed25519Verify(byte[] publicKey, byte[] message, byte[] signature)
+      throws GeneralSecurityException {
+    EdDSAEngine ed25519 = new EdDSAEngine(MessageDigest.getInstance(ED_25519.getHashAlgorithm()));
+    PublicKey key = new EdDSAPublicKey(new EdDSAPublicKeySpec(publicKey, ED_25519));
+    ed25519.initVerify(key);
+    return ed25519.verifyOneShot(message, signature);
+  }
+
+  @Override
+  public byte[] hkdfSha512(byte[] inputKey, byte[] salt, byte[] info, int outputSize) {
+    return HKDF.fromHmacSha512().extractAndExpand(salt, inputKey, info, outputSize);
+  }
+}
@@ -1,5 +1,7 @@
 package com.github.longkerdandy.viki.home.hap.crypto;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -11,6 +13,12 @@ import java.nio.ByteOrder;
  */
 public class ChaCha20 extends Snuffle {
 
+  private static final VarHandle INT_LE =
+      MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+  // constants and key words of the initial state, computed once per key
+  private final int[] keyState;
+
   /**
    * Create a new instance of {@link ChaCha20}
    *
@@ -19,6 +27,9 @@ public class ChaCha20 extends Snuffle {
    */
   public ChaCha20(final byte[] key, int initialCounter) {
     super(key, initialCounter);
+    this.keyState = new int[Snuffle.BLOCK_SIZE_IN_INTS];
+    setSigma(this.keyState);
+    setKey(this.keyState, key);
   }
 
   private static void setSigma(int[] state) {
@@ -68,11 +79,12 @@ public class ChaCha20 extends Snuffle {
    */
   private int[] createInitialState(final byte[] nonce, int counter) {
     // Set the initial state based on https://tools.ietf.org/html/rfc7539#section-2.3
-    int[] state = new int[Snuffle.BLOCK_SIZE_IN_INTS];
-    setSigma(state);
-    setKey(state, key.getBytes());
+    // The constants and key words are precomputed, only the counter and nonce are set per block
+    int[] state = this.keyState.clone();
     state[12] = counter;
-    System.arraycopy(toIntArray(ByteBuffer.wrap(nonce)), 0, state, 13, nonceSizeInBytes() / 4);
+    state[13] = Bytes.byteArrayToInt(nonce, 0, 4);
+    state[14] = Bytes.byteArrayToInt(nonce, 4, 4);
+    state[15] = Bytes.byteArrayToInt(nonce, 8, 4);
     return state;
   }
 
@@ -104,4 +116,113 @@ public class ChaCha20 extends Snuffle {
     out.asIntBuffer().put(state, 0, BLOCK_SIZE_IN_INTS);
     return out;
   }
+
+  /**
+   * The ChaCha20 block function for consecutive blocks, written into {@code output} without
+   * allocation
+   *
+   * <p>The state is kept in local variables and the quarter rounds are inlined, so the JIT can
+   * keep the whole state in registers. The key stream words are stored in little endian through
+   * a {@link VarHandle} view of the output.
+   */
+  @Override
+  protected void getKeyStream(final byte[] nonce, int counter, byte[] output, int blocks) {
+    final int j0 = this.keyState[0], j1 = this.keyState[1], j2 = this.keyState[2];
+    final int j3 = this.keyState[3], j4 = this.keyState[4], j5 = this.keyState[5];
+    final int j6 = this.keyState[6], j7 = this.keyState[7], j8 = this.keyState[8];
+    final int j9 = this.keyState[9], j10 = this.keyState[10], j11 = this.keyState[11];
+    final int j13 = (int) INT_LE.get(nonce, 0);
+    final int j14 = (int) INT_LE.get(nonce, 4);
+    final int j15 = (int) INT_LE.get(nonce, 8);
+    for (int b = 0; b < blocks; b++) {
+      final int j12 = counter + b;
+      int x0 = j0, x1 = j1, x2 = j2, x3 = j3, x4 = j4, x5 = j5, x6 = j6, x7 = j7;
+      int x8 = j8, x9 = j9, x10 = j10, x11 = j11, x12 = j12, x13 = j13, x14 = j14, x15 = j15;
+      for (int i = 0; i < 10; i++) {
+        // column round
+        x0 += x4;
+        x12 = Integer.rotateLeft(x12 ^ x0, 16);
+        x8 += x12;
+        x4 = Integer.rotateLeft(x4 ^ x8, 12);
+        x0 += x4;
+        x12 = Integer.rotateLeft(x12 ^ x0, 8);
+        x8 += x12;
+        x4 = Integer.rotateLeft(x4 ^ x8, 7);
+        x1 += x5;
+        x13 = Integer.rotateLeft(x13 ^ x1, 16);
+        x9 += x13;
+        x5 = Integer.rotateLeft(x5 ^ x9, 12);
+        x1 += x5;
+        x13 = Integer.rotateLeft(x13 ^ x1, 8);
+        x9 += x13;
+        x5 = Integer.rotateLeft(x5 ^ x9, 7);
+        x2 += x6;
+        x14 = Integer.rotateLeft(x14 ^ x2, 16);
+        x10 += x14;
+        x6 = Integer.rotateLeft(x6 ^ x10, 12);
+        x2 += x6;
+        x14 = Integer.rotateLeft(x14 ^ x2, 8);
+        x10 += x14;
+        x6 = Integer.rotateLeft(x6 ^ x10, 7);
+        x3 += x7;
+        x15 = Integer.rotateLeft(x15 ^ x3, 16);
+        x11 += x15;
+        x7 = Integer.rotateLeft(x7 ^ x11, 12);
+        x3 += x7;
+        x15 = Integer.rotateLeft(x15 ^ x3, 8);
+        x11 += x15;
+        x7 = Integer.rotateLeft(x7 ^ x11, 7);
+        // diagonal round
+        x0 += x5;
+        x15 = Integer.rotateLeft(x15 ^ x0, 16);
+        x10 += x15;
+        x5 = Integer.rotateLeft(x5 ^ x10, 12);
+        x0 += x5;
+        x15 = Integer.rotateLeft(x15 ^ x0, 8);
+        x10 += x15;
+        x5 = Integer.rotateLeft(x5 ^ x10, 7);
+        x1 += x6;
+        x12 = Integer.rotateLeft(x12 ^ x1, 16);
+        x11 += x12;
+        x6 = Integer.rotateLeft(x6 ^ x11, 12);
+        x1 += x6;
+        x12 = Integer.rotateLeft(x12 ^ x1, 8);
+        x11 += x12;
+        x6 = Integer.rotateLeft(x6 ^ x11, 7);
+        x2 += x7;
+        x13 = Integer.rotateLeft(x13 ^ x2, 16);
+        x8 += x13;
+        x7 = Integer.rotateLeft(x7 ^ x8, 12);
+        x2 += x7;
+        x13 = Integer.rotateLeft(x13 ^ x2, 8);
+        x8 += x13;
+        x7 = Integer.rotateLeft(x7 ^ x8, 7);
+        x3 += x4;
+        x14 = Integer.rotateLeft(x14 ^ x3, 16);
+        x9 += x14;
+        x4 = Integer.rotateLeft(x4 ^ x9, 12);
+        x3 += x4;
+        x14 = Integer.rotateLeft(x14 ^ x3, 8);
+        x9 += x14;
+        x4 = Integer.rotateLeft(x4 ^ x9, 7);
+      }
+      int o = b * BLOCK_SIZE_IN_BYTES;
+      INT_LE.set(output, o + 0, x0 + j0);
+      INT_LE.set(output, o + 4, x1 + j1);
+      INT_LE.set(output, o + 8, x2 + j2);
+      INT_LE.set(output, o + 12, x3 + j3);
+      INT_LE.set(output, o + 16, x4 + j4);
+      INT_LE.set(output, o + 20, x5 + j5);
+      INT_LE.set(output, o + 24, x6 + j6);
+      INT_LE.set(output, o + 28, x7 + j7);
+      INT_LE.set(output, o + 32, x8 + j8);
+      INT_LE.set(output, o + 36, x9 + j9);
+      INT_LE.set(output, o + 40, x10 + j10);
+      INT_LE.set(output, o + 44, x11 + j11);
+      INT_LE.set(output, o + 48, x12 + j12);
+      INT_LE.set(output, o + 52, x13 + j13);
+      INT_LE.set(output, o + 56, x14 + j14);
+      INT_LE.set(output, o + 60, x15 + j15);
+    }
+  }
 }
@@ -6,7 +6,7 @@ package com.github.longkerdandy.viki.home.hap.crypto;
  *
  * Inspired by Google Tink Project: https://github.com/google/tink https://github.com/google/tink/blob/master/java/src/main/java/com/google/crypto/tink/subtle/ChaCha20Poly1305.java
  */
-public class ChaCha20Poly1305 extends SnufflePoly1305 {
+public class ChaCha20Poly1305 extends SnufflePoly1305 implements Aead {
 
   /**
    * Create a new instance of {@link ChaCha20Poly1305}
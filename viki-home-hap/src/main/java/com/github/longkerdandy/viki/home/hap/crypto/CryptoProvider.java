@@ -0,0 +1,86 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * The cryptographic primitives used by HomeKit Accessory Protocol
+ *
+ * Implementations must be thread-safe, the returned {@link Aead} instances don't have to be. All
+ * keys are raw byte arrays in the encoding defined by the protocol, so keys created or stored by
+ * one provider can be used by another.
+ */
+public interface CryptoProvider {
+
+  /**
+   * Get the provider name, used by configuration
+   *
+   * @return Name
+   */
+  String getName();
+
+  /**
+   * Create a ChaCha20-Poly1305 AEAD bound to the key
+   *
+   * @param key A 256-bit key
+   * @return {@link Aead}
+   */
+  Aead chaCha20Poly1305(byte[] key);
+
+  /**
+   * Generate X25519 (Curve25519) Private Key and Public Key
+   *
+   * @return {@link OctetKeyPair}
+   */
+  OctetKeyPair x25519KeyGen();
+
+  /**
+   * Generate X25519 (Curve25519) shared secret
+   *
+   * @param publicKey The (typically remote party's) Public Key
+   * @param privateKey The (typically yours) Private Key
+   * @return A 32-byte shared secret
+   * @throws GeneralSecurityException Due to invalid {@code publicKey} or {@code privateKey}
+   */
+  byte[] x25519SharedSecret(byte[] publicKey, byte[] privateKey)
+      throws GeneralSecurityException;
+
+  /**
+   * Generate Ed25519 Private Key (seed) and Public Key
+   *
+   * @return {@link OctetKeyPair}
+   */
+  OctetKeyPair ed25519KeyGen();
+
+  /**
+   * Sign the message with Ed25519
+   *
+   * @param privateKey Private Key (seed)
+   * @param message to be signed
+   * @return The signature of the {@code message}
+   * @throws GeneralSecurityException Due to invalid {@code privateKey} or algorithm
+   */
+  byte[] ed25519Sign(byte[] privateKey, byte[] message) throws GeneralSecurityException;
+
+  /**
+   * Verify the signature with Ed25519
+   *
+   * @param publicKey Public Key
+   * @param message that was signed
+   * @param signature of the {@code message}
+   * @return True if the {@code signature} is valid, False otherwise
+   * @throws GeneralSecurityException Due to invalid {@code publicKey} or algorithm
+   */
+  boolean ed25519Verify(byte[] publicKey, byte[] message, byte[] signature)
+      throws GeneralSecurityException;
+
+  /**
+   * HKDF-SHA-512 extract and expand
+   *
+   * @param inputKey Input Keying Material(IKM)
+   * @param salt Salt Value
+   * @param info Context and Application Specific Information
+   * @param outputSize Length of Output Keying Material in bytes
+   * @return byte array of Output Keying Material (OKM)
+   */
+  byte[] hkdfSha512(byte[] inputKey, byte[] salt, byte[] info, int outputSize);
+}
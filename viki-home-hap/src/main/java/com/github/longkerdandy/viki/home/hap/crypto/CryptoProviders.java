@@ -0,0 +1,147 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Select the {@link CryptoProvider} by name, or by a startup micro-benchmark
+ */
+public final class CryptoProviders {
+
+  public static final String AUTO = "auto";
+
+  private static final Logger logger = LoggerFactory.getLogger(CryptoProviders.class);
+
+  // micro-benchmark, HTTP frames of the maximum length
+  private static final int FRAME_LENGTH = 1024;
+  private static final int WARMUP_FRAMES = 10000;
+  private static final int MEASURE_FRAMES = 2000;
+  private static final int MEASURE_ROUNDS = 5;
+
+  private CryptoProviders() {
+  }
+
+  /**
+   * Get all the providers supported by the running JDK
+   *
+   * @return {@link CryptoProvider}s, the builtin provider first
+   */
+  public static List<CryptoProvider> available() {
+    List<CryptoProvider> providers = new ArrayList<>();
+    providers.add(new BuiltinCryptoProvider());
+    try {
+      providers.add(new JdkCryptoProvider());
+    } catch (GeneralSecurityException e) {
+      logger.warn("JDK crypto provider is not supported: {}", e.getMessage());
+    }
+    return providers;
+  }
+
+  /**
+   * Select the provider
+   *
+   * @param name Provider name, or "auto" to select the fastest
+   * @return {@link CryptoProvider}
+   * @throws IllegalArgumentException If the provider is unknown or not supported
+   */
+  public static CryptoProvider select(String name) {
+    List<CryptoProvider> providers = available();
+    if (AUTO.equalsIgnoreCase(name)) {
+      return fastest(providers);
+    }
+    for (CryptoProvider provider : providers) {
+      if (provider.getName().equalsIgnoreCase(name)) {
+        return provider;
+      }
+    }
+    throw new IllegalArgumentException("Unknown or unsupported crypto provider " + name);
+  }
+
+  /**
+   * Select the fastest provider by encrypting and decrypting HTTP frames with ChaCha20-Poly1305,
+   * which is done for every request and response of a session. Pairing only happens once per
+   * connection, so it is not measured.
+   *
+   * All the providers are warmed up first, then measured in interleaved rounds, keeping the best
+   * round of each, so the JIT state and background noise affect them alike.
+   *
+   * @param providers Candidates
+   * @return The fastest {@link CryptoProvider}, the first if all failed
+   */
+  public static CryptoProvider fastest(List<CryptoProvider> providers) {
+    List<CryptoProvider> candidates = new ArrayList<>();
+    for (CryptoProvider provider : providers) {
+      try {
+        frames(provider, WARMUP_FRAMES);
+        candidates.add(provider);
+      } catch (GeneralSecurityException | RuntimeException e) {
+        logger.warn("Crypto provider {} failed the benchmark", provider.getName(), e);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return providers.get(0);
+    }
+
+    long[] elapsed = new long[candidates.size()];
+    Arrays.fill(elapsed, Long.MAX_VALUE);
+    for (int round = 0; round < MEASURE_ROUNDS; round++) {
+      for (int i = 0; i < candidates.size(); i++) {
+        try {
+          elapsed[i] = Math.min(elapsed[i], frames(candidates.get(i), MEASURE_FRAMES));
+        } catch (GeneralSecurityException | RuntimeException e) {
+          logger.warn("Crypto provider {} failed the benchmark", candidates.get(i).getName(), e);
+        }
+      }
+    }
+
+    int fastest = 0;
+    for (int i = 0; i < candidates.size(); i++) {
+      logger.info("Crypto provider {} processed {} frames in {} us", candidates.get(i).getName(),
+          MEASURE_FRAMES, TimeUnit.NANOSECONDS.toMicros(elapsed[i]));
+      if (elapsed[i] < elapsed[fastest]) {
+        fastest = i;
+      }
+    }
+    return candidates.get(fastest);
+  }
+
+  /**
+   * Encrypt and decrypt frames between direct buffers, like the frame codec
+   *
+   * @return Elapsed nanoseconds
+   */
+  private static long frames(CryptoProvider provider, int count) throws GeneralSecurityException {
+    SecureRandom random = new SecureRandom();
+    byte[] key = new byte[32];
+    random.nextBytes(key);
+    byte[] data = new byte[FRAME_LENGTH];
+    random.nextBytes(data);
+    byte[] nonce = new byte[12];
+    byte[] aad = new byte[]{(byte) FRAME_LENGTH, (byte) (FRAME_LENGTH >>> 8)};
+    ByteBuffer plaintext = ByteBuffer.allocateDirect(FRAME_LENGTH).put(data);
+    ByteBuffer ciphertext = ByteBuffer.allocateDirect(FRAME_LENGTH + 16);
+    Aead encrypt = provider.chaCha20Poly1305(key);
+    Aead decrypt = provider.chaCha20Poly1305(key);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      nonce[4] = (byte) i;
+      nonce[5] = (byte) (i >>> 8);
+      nonce[6] = (byte) (i >>> 16);
+      plaintext.clear();
+      ciphertext.clear();
+      encrypt.encrypt(ciphertext, plaintext, nonce, aad);
+      ciphertext.flip();
+      plaintext.clear();
+      decrypt.decrypt(plaintext, ciphertext, nonce, aad);
+    }
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,79 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ChaCha20-Poly1305 {@link Aead} backed by the JDK's "ChaCha20-Poly1305" {@link Cipher}, which is
+ * available since JDK 11 and uses the platform intrinsics where present
+ *
+ * One {@link Cipher} per direction is kept and re-initialized with the nonce of each message. Like
+ * the JDK, encrypting twice in a row with the same nonce is refused, which a session never does
+ * because the nonce is the frame counter.
+ */
+public class JdkChaCha20Poly1305 implements Aead {
+
+  private static final String ALGORITHM = "ChaCha20-Poly1305";
+
+  private final SecretKeySpec key;
+  private final Cipher encryptCipher;
+  private final Cipher decryptCipher;
+
+  /**
+   * Create a new instance of {@link JdkChaCha20Poly1305}
+   *
+   * @param key A 256-bit key
+   * @throws GeneralSecurityException If the JDK doesn't support ChaCha20-Poly1305
+   */
+  public JdkChaCha20Poly1305(final byte[] key) throws GeneralSecurityException {
+    this.key = new SecretKeySpec(key, "ChaCha20");
+    this.encryptCipher = Cipher.getInstance(ALGORITHM);
+    this.decryptCipher = Cipher.getInstance(ALGORITHM);
+  }
+
+  @Override
+  public byte[] encrypt(final byte[] plaintext, final byte[] nonce, final byte[] additionalData) {
+    try {
+      init(this.encryptCipher, Cipher.ENCRYPT_MODE, nonce, additionalData);
+      return this.encryptCipher.doFinal(plaintext);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  public void encrypt(ByteBuffer output, ByteBuffer plaintext, final byte[] nonce,
+      final byte[] additionalData) {
+    try {
+      init(this.encryptCipher, Cipher.ENCRYPT_MODE, nonce, additionalData);
+      this.encryptCipher.doFinal(plaintext, output);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  public byte[] decrypt(final byte[] ciphertext, final byte[] nonce, final byte[] additionalData)
+      throws GeneralSecurityException {
+    init(this.decryptCipher, Cipher.DECRYPT_MODE, nonce, additionalData);
+    return this.decryptCipher.doFinal(ciphertext);
+  }
+
+  @Override
+  public void decrypt(ByteBuffer output, ByteBuffer ciphertext, final byte[] nonce,
+      final byte[] additionalData) throws GeneralSecurityException {
+    init(this.decryptCipher, Cipher.DECRYPT_MODE, nonce, additionalData);
+    this.decryptCipher.doFinal(ciphertext, output);
+  }
+
+  private void init(Cipher cipher, int mode, byte[] nonce, byte[] additionalData)
+      throws GeneralSecurityException {
+    cipher.init(mode, this.key, new IvParameterSpec(nonce));
+    if (additionalData != null) {
+      cipher.updateAAD(additionalData);
+    }
+  }
+}
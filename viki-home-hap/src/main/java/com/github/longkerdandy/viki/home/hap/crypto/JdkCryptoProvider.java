@@ -0,0 +1,236 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.XECPrivateKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.security.spec.XECPrivateKeySpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * {@link CryptoProvider} backed by the JDK's security providers: "ChaCha20-Poly1305" {@link
+ * Cipher}, "X25519" {@link KeyAgreement}, "Ed25519" {@link Signature} and HKDF over "HmacSHA512"
+ * {@link Mac}
+ *
+ * The JDK 11 target has ChaCha20-Poly1305 and X25519, but Ed25519 only since JDK 15. It is looked
+ * up by name, and if missing, Ed25519 falls back to the {@link BuiltinCryptoProvider}. The raw keys
+ * are converted to and from the JDK key specs, X25519 through {@link XECPublicKeySpec} and {@link
+ * XECPrivateKeySpec}, Ed25519 through the fixed DER prefixes of RFC 8410.
+ */
+public class JdkCryptoProvider implements CryptoProvider {
+
+  public static final String NAME = "jdk";
+
+  private static final int KEY_LENGTH = 32;
+  private static final int HASH_LENGTH = 64;
+
+  // RFC 8410, SubjectPublicKeyInfo and OneAsymmetricKey of Ed25519 without the 32-byte key
+  private static final byte[] ED_25519_PUBLIC_PREFIX = new byte[]{
+      0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+  private static final byte[] ED_25519_PRIVATE_PREFIX = new byte[]{
+      0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x04, 0x22, 0x04,
+      0x20};
+
+  // null if Ed25519 is provided by the JDK
+  private final CryptoProvider ed25519Fallback;
+
+  /**
+   * Constructor
+   *
+   * @throws GeneralSecurityException If the JDK doesn't support ChaCha20-Poly1305 or X25519
+   */
+  public JdkCryptoProvider() throws GeneralSecurityException {
+    Cipher.getInstance("ChaCha20-Poly1305");
+    KeyAgreement.getInstance("X25519");
+    Mac.getInstance("HmacSHA512");
+    CryptoProvider fallback = null;
+    try {
+      Signature.getInstance("Ed25519");
+    } catch (NoSuchAlgorithmException e) {
+      fallback = new BuiltinCryptoProvider();
+    }
+    this.ed25519Fallback = fallback;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  /**
+   * Is Ed25519 provided by the JDK, or by the fallback
+   *
+   * @return True if provided by the JDK
+   */
+  public boolean isNativeEd25519() {
+    return this.ed25519Fallback == null;
+  }
+
+  @Override
+  public Aead chaCha20Poly1305(byte[] key) {
+    try {
+      return new JdkChaCha20Poly1305(key);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public OctetKeyPair x25519KeyGen() {
+    try {
+      KeyPair keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+      byte[] publicKey = toLittleEndian(((XECPublicKey) keyPair.getPublic()).getU());
+      byte[] privateKey = ((XECPrivateKey) keyPair.getPrivate()).getScalar()
+          .orElseThrow(() -> new IllegalStateException("X25519 private key is not extractable"));
+      return new OctetKeyPair(publicKey, privateKey);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public byte[] x25519SharedSecret(byte[] publicKey, byte[] privateKey)
+      throws GeneralSecurityException {
+    if (publicKey.length != KEY_LENGTH || privateKey.length != KEY_LENGTH) {
+      throw new GeneralSecurityException("X25519 keys must be 32 bytes");
+    }
+    KeyFactory factory = KeyFactory.getInstance("X25519");
+    PublicKey pub = factory.generatePublic(
+        new XECPublicKeySpec(NamedParameterSpec.X25519, fromLittleEndian(publicKey)));
+    PrivateKey priv = factory.generatePrivate(
+        new XECPrivateKeySpec(NamedParameterSpec.X25519, privateKey));
+    KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+    agreement.init(priv);
+    agreement.doPhase(pub, true);
+    return agreement.generateSecret();
+  }
+
+  @Override
+  public OctetKeyPair ed25519KeyGen() {
+    if (this.ed25519Fallback != null) {
+      return this.ed25519Fallback.ed25519KeyGen();
+    }
+    try {
+      KeyPair keyPair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+      return new OctetKeyPair(
+          stripPrefix(keyPair.getPublic().getEncoded(), ED_25519_PUBLIC_PREFIX),
+          stripPrefix(keyPair.getPrivate().getEncoded(), ED_25519_PRIVATE_PREFIX));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public byte[] ed25519Sign(byte[] privateKey, byte[] message) throws GeneralSecurityException {
+    if (this.ed25519Fallback != null) {
+      return this.ed25519Fallback.ed25519Sign(privateKey, message);
+    }
+    PrivateKey key = KeyFactory.getInstance("Ed25519")
+        .generatePrivate(new PKCS8EncodedKeySpec(addPrefix(privateKey, ED_25519_PRIVATE_PREFIX)));
+    Signature ed25519 = Signature.getInstance("Ed25519");
+    ed25519.initSign(key);
+    ed25519.update(message);
+    return ed25519.sign();
+  }
+
+  @Override
+  public boolean ed25519Verify(byte[] publicKey, byte[] message, byte[] signature)
+      throws GeneralSecurityException {
+    if (this.ed25519Fallback != null) {
+      return this.ed25519Fallback.ed25519Verify(publicKey, message, signature);
+    }
+    PublicKey key = KeyFactory.getInstance("Ed25519")
+        .generatePublic(new X509EncodedKeySpec(addPrefix(publicKey, ED_25519_PUBLIC_PREFIX)));
+    Signature ed25519 = Signature.getInstance("Ed25519");
+    ed25519.initVerify(key);
+    ed25519.update(message);
+    return ed25519.verify(signature);
+  }
+
+  /**
+   * HKDF as described in <a href="https://tools.ietf.org/html/rfc5869">RFC 5869</a>
+   */
+  @Override
+  public byte[] hkdfSha512(byte[] inputKey, byte[] salt, byte[] info, int outputSize) {
+    if (outputSize > 255 * HASH_LENGTH) {
+      throw new IllegalArgumentException("HKDF output size too large");
+    }
+    try {
+      // Extract, an empty salt is a string of HashLen zeros
+      Mac mac = Mac.getInstance("HmacSHA512");
+      mac.init(new SecretKeySpec(
+          salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt, "HmacSHA512"));
+      byte[] prk = mac.doFinal(inputKey);
+
+      // Expand
+      mac.init(new SecretKeySpec(prk, "HmacSHA512"));
+      byte[] okm = new byte[outputSize];
+      byte[] t = new byte[0];
+      for (int offset = 0, i = 1; offset < outputSize; offset += t.length, i++) {
+        mac.update(t);
+        if (info != null) {
+          mac.update(info);
+        }
+        mac.update((byte) i);
+        t = mac.doFinal();
+        System.arraycopy(t, 0, okm, offset, Math.min(t.length, outputSize - offset));
+      }
+      return okm;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Decode the u-coordinate, masking the most significant bit as RFC 7748 requires
+   */
+  private static BigInteger fromLittleEndian(byte[] bytes) {
+    byte[] reversed = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      reversed[i] = bytes[bytes.length - 1 - i];
+    }
+    reversed[0] &= 0x7f;
+    return new BigInteger(1, reversed);
+  }
+
+  private static byte[] toLittleEndian(BigInteger n) {
+    byte[] bigEndian = n.toByteArray();
+    byte[] bytes = new byte[KEY_LENGTH];
+    for (int i = 0; i < Math.min(bigEndian.length, KEY_LENGTH); i++) {
+      bytes[i] = bigEndian[bigEndian.length - 1 - i];
+    }
+    return bytes;
+  }
+
+  private static byte[] addPrefix(byte[] key, byte[] prefix) throws GeneralSecurityException {
+    if (key.length != KEY_LENGTH) {
+      throw new GeneralSecurityException("Ed25519 keys must be 32 bytes");
+    }
+    byte[] encoded = Arrays.copyOf(prefix, prefix.length + KEY_LENGTH);
+    System.arraycopy(key, 0, encoded, prefix.length, KEY_LENGTH);
+    return encoded;
+  }
+
+  private static byte[] stripPrefix(byte[] encoded, byte[] prefix) {
+    if (encoded.length != prefix.length + KEY_LENGTH
+        || !Arrays.equals(prefix, Arrays.copyOf(encoded, prefix.length))) {
+      throw new IllegalStateException("Unexpected Ed25519 key encoding");
+    }
+    return Arrays.copyOfRange(encoded, prefix.length, encoded.length);
+  }
+}
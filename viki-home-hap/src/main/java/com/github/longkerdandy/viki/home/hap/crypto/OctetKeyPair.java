@@ -0,0 +1,33 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+/**
+ * Raw 32-byte key pair of Ed25519 or X25519, the encoding used by HomeKit Accessory Protocol and
+ * by storage
+ *
+ * For Ed25519 the private key is the 32-byte seed, for X25519 it is the 32-byte scalar. The public
+ * key is the 32-byte little endian point encoding.
+ */
+public final class OctetKeyPair {
+
+  private final byte[] publicKey;
+  private final byte[] privateKey;
+
+  /**
+   * Constructor
+   *
+   * @param publicKey Public Key
+   * @param privateKey Private Key
+   */
+  public OctetKeyPair(byte[] publicKey, byte[] privateKey) {
+    this.publicKey = publicKey;
+    this.privateKey = privateKey;
+  }
+
+  public byte[] getPublicKey() {
+    return this.publicKey;
+  }
+
+  public byte[] getPrivateKey() {
+    return this.privateKey;
+  }
+}
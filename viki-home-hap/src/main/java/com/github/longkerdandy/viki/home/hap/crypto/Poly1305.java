@@ -1,7 +1,10 @@
 package com.github.longkerdandy.viki.home.hap.crypto;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.GeneralSecurityException;
-import java.util.Arrays;
 
 /**
  * Poly1305 one-time MAC based on RFC 7539.
@@ -9,198 +12,325 @@ import java.util.Arrays;
  * <p>This is not an implementation of the MAC interface on purpose and it is not equivalent to
  * HMAC.
  *
+ * <p>The MAC is computed incrementally with {@link #init}, {@link #update} and {@link #finish}, so
+ * a message split across buffers is authenticated without being copied. The accumulator uses
+ * 44/44/42-bit limbs in {@code long}s, the 128-bit products are computed with {@link
+ * Math#multiplyHigh(long, long)}. An instance is reusable after {@link #init}, but not
+ * thread-safe.
+ *
  * Inspired by Google Tink Project: https://github.com/google/tink https://github.com/google/tink/blob/master/java/src/main/java/com/google/crypto/tink/subtle/Poly1305.java
+ * and poly1305-donna: https://github.com/floodyberry/poly1305-donna
  */
 public class Poly1305 {
 
   public static final int MAC_TAG_SIZE_IN_BYTES = 16;
   public static final int MAC_KEY_SIZE_IN_BYTES = 32;
 
-  private Poly1305() {
+  private static final VarHandle LONG_LE =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long MASK_44 = 0xfffffffffffL;
+  private static final long MASK_42 = 0x3ffffffffffL;
+
+  // r, and s = r * 5 * 4 for the limbs reduced mod 2^130-5
+  private long r0, r1, r2, s1, s2;
+  // accumulator
+  private long h0, h1, h2;
+  // s, the second half of the key
+  private long pad0, pad1;
+  // partial block
+  private final byte[] buffer = new byte[MAC_TAG_SIZE_IN_BYTES];
+  private int buffered;
+
+  /**
+   * Poly1305 is a one-time authenticator Poly1305 takes a 32-byte one-time key and a message and
+   * produces a 16-byte tag. This tag is used to authenticate the message.
+   *
+   * @param key A 256-bit one-time key
+   * @param data An arbitrary length message
+   * @return The output is a 128-bit tag.
+   */
+  public static byte[] computeMac(final byte[] key, byte[] data) {
+    if (key.length != MAC_KEY_SIZE_IN_BYTES) {
+      throw new IllegalArgumentException("The key length in bytes must be 32.");
+    }
+    Poly1305 poly1305 = new Poly1305();
+    poly1305.init(key, 0);
+    poly1305.update(data, 0, data.length);
+    byte[] mac = new byte[MAC_TAG_SIZE_IN_BYTES];
+    poly1305.finish(mac, 0);
+    return mac;
   }
 
-  private static long load32(byte[] in, int idx) {
-    return ((in[idx] & 0xff)
-        | ((in[idx + 1] & 0xff) << 8)
-        | ((in[idx + 2] & 0xff) << 16)
-        | ((in[idx + 3] & 0xff) << 24))
-        & 0xffffffffL;
+  /**
+   * Poly1305 is a one-time authenticator Verity the tag with key and message.
+   *
+   * @param key A 256-bit one-time key
+   * @param data An arbitrary length message
+   * @param mac A 128-bit tag.
+   * @throws GeneralSecurityException when tag verification failed
+   */
+  public static void verifyMac(final byte[] key, byte[] data, byte[] mac)
+      throws GeneralSecurityException {
+    if (!Bytes.equal(computeMac(key, data), mac)) {
+      throw new GeneralSecurityException("invalid MAC");
+    }
   }
 
-  private static long load26(byte[] in, int idx, int shift) {
-    return (load32(in, idx) >> shift) & 0x3ffffff;
+  private static long load64(ByteBuffer in, int idx) {
+    long v = in.getLong(idx);
+    return in.order() == ByteOrder.LITTLE_ENDIAN ? v : Long.reverseBytes(v);
   }
 
-  private static void toByteArray(byte[] output, long num, int idx) {
-    for (int i = 0; i < 4; i++, num >>= 8) {
-      output[idx + i] = (byte) (num & 0xff);
+  /**
+   * Start a new MAC with the one-time key
+   *
+   * @param key Array contains the 256-bit one-time key
+   * @param offset Offset of the key in the array
+   */
+  public void init(final byte[] key, int offset) {
+    if (key.length - offset < MAC_KEY_SIZE_IN_BYTES) {
+      throw new IllegalArgumentException("The key length in bytes must be 32.");
     }
+    long t0 = (long) LONG_LE.get(key, offset);
+    long t1 = (long) LONG_LE.get(key, offset + 8);
+
+    // r &= 0xffffffc0ffffffc0ffffffc0fffffff
+    this.r0 = t0 & 0xffc0fffffffL;
+    this.r1 = ((t0 >>> 44) | (t1 << 20)) & 0xfffffc0ffffL;
+    this.r2 = (t1 >>> 24) & 0x00ffffffc0fL;
+    this.s1 = this.r1 * (5 << 2);
+    this.s2 = this.r2 * (5 << 2);
+
+    this.h0 = 0;
+    this.h1 = 0;
+    this.h2 = 0;
+    this.pad0 = (long) LONG_LE.get(key, offset + 16);
+    this.pad1 = (long) LONG_LE.get(key, offset + 24);
+    this.buffered = 0;
   }
 
-  private static void copyBlockSize(byte[] output, byte[] in, int idx) {
-    int copyCount = Math.min(MAC_TAG_SIZE_IN_BYTES, in.length - idx);
-    System.arraycopy(in, idx, output, 0, copyCount);
-    output[copyCount] = 1;
-    if (copyCount != MAC_TAG_SIZE_IN_BYTES) {
-      Arrays.fill(output, copyCount + 1, output.length, (byte) 0);
+  /**
+   * Authenticate a part of the message
+   *
+   * @param data Array contains the message part
+   * @param offset Offset of the message part in the array
+   * @param length Length of the message part
+   */
+  public void update(final byte[] data, int offset, int length) {
+    if (length < 0 || offset < 0 || data.length - length < offset) {
+      throw new IllegalArgumentException("That combination of offset and length is out-of-bond.");
+    }
+    int end = offset + length;
+    if (this.buffered > 0) {
+      int n = Math.min(MAC_TAG_SIZE_IN_BYTES - this.buffered, length);
+      System.arraycopy(data, offset, this.buffer, this.buffered, n);
+      this.buffered += n;
+      offset += n;
+      if (this.buffered < MAC_TAG_SIZE_IN_BYTES) {
+        return;
+      }
+      bufferedBlock();
+    }
+    for (; end - offset >= MAC_TAG_SIZE_IN_BYTES; offset += MAC_TAG_SIZE_IN_BYTES) {
+      block((long) LONG_LE.get(data, offset), (long) LONG_LE.get(data, offset + 8), 1L << 40);
     }
+    System.arraycopy(data, offset, this.buffer, 0, end - offset);
+    this.buffered = end - offset;
   }
 
   /**
-   * Poly1305 is a one-time authenticator Poly1305 takes a 32-byte one-time key and a message and
-   * produces a 16-byte tag. This tag is used to authenticate the message.
+   * Authenticate a part of the message in a buffer, the buffer's position is not changed
    *
-   * @param key A 256-bit one-time key
-   * @param data An arbitrary length message
-   * @return The output is a 128-bit tag.
+   * @param data Buffer contains the message part, heap or direct
+   * @param offset Absolute index of the message part in the buffer
+   * @param length Length of the message part
    */
-  public static byte[] computeMac(final byte[] key, byte[] data) {
-    if (key.length != MAC_KEY_SIZE_IN_BYTES) {
-      throw new IllegalArgumentException("The key length in bytes must be 32.");
+  public void update(ByteBuffer data, int offset, int length) {
+    if (length < 0 || offset < 0 || data.limit() - length < offset) {
+      throw new IllegalArgumentException("That combination of offset and length is out-of-bond.");
+    }
+    int end = offset + length;
+    while (this.buffered > 0 && offset < end) {
+      this.buffer[this.buffered++] = data.get(offset++);
+      if (this.buffered == MAC_TAG_SIZE_IN_BYTES) {
+        bufferedBlock();
+      }
+    }
+    for (; end - offset >= MAC_TAG_SIZE_IN_BYTES; offset += MAC_TAG_SIZE_IN_BYTES) {
+      block(load64(data, offset), load64(data, offset + 8), 1L << 40);
+    }
+    while (offset < end) {
+      this.buffer[this.buffered++] = data.get(offset++);
     }
-    long h0 = 0;
-    long h1 = 0;
-    long h2 = 0;
-    long h3 = 0;
-    long h4 = 0;
-    long d0;
-    long d1;
-    long d2;
-    long d3;
-    long d4;
-    long c;
+  }
 
-    // r &= 0xffffffc0ffffffc0ffffffc0fffffff
-    long r0 = load26(key, 0, 0) & 0x3ffffff;
-    long r1 = load26(key, 3, 2) & 0x3ffff03;
-    long r2 = load26(key, 6, 4) & 0x3ffc0ff;
-    long r3 = load26(key, 9, 6) & 0x3f03fff;
-    long r4 = load26(key, 12, 8) & 0x00fffff;
-
-    long s1 = r1 * 5;
-    long s2 = r2 * 5;
-    long s3 = r3 * 5;
-    long s4 = r4 * 5;
-
-    byte[] buf = new byte[MAC_TAG_SIZE_IN_BYTES + 1];
-    for (int i = 0; i < data.length; i += MAC_TAG_SIZE_IN_BYTES) {
-      copyBlockSize(buf, data, i);
-      h0 += load26(buf, 0, 0);
-      h1 += load26(buf, 3, 2);
-      h2 += load26(buf, 6, 4);
-      h3 += load26(buf, 9, 6);
-      h4 += load26(buf, 12, 8) | (buf[MAC_TAG_SIZE_IN_BYTES] << 24);
-
-      // d = r * h
-      d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
-      d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
-      d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
-      d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
-      d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
-
-      // Partial reduction mod 2^130-5, resulting h1 might not be 26bits.
-      c = d0 >> 26;
-      h0 = d0 & 0x3ffffff;
-      d1 += c;
-      c = d1 >> 26;
-      h1 = d1 & 0x3ffffff;
-      d2 += c;
-      c = d2 >> 26;
-      h2 = d2 & 0x3ffffff;
-      d3 += c;
-      c = d3 >> 26;
-      h3 = d3 & 0x3ffffff;
-      d4 += c;
-      c = d4 >> 26;
-      h4 = d4 & 0x3ffffff;
-      h0 += c * 5;
-      c = h0 >> 26;
-      h0 = h0 & 0x3ffffff;
-      h1 += c;
+  /**
+   * Authenticate the two little endian 64-bit integers as a 16-byte block, such as the lengths at
+   * the end of the RFC 7539 AEAD construction. The message must be at a block boundary.
+   *
+   * @param lo First 8 bytes
+   * @param hi Last 8 bytes
+   */
+  public void update(long lo, long hi) {
+    if (this.buffered != 0) {
+      throw new IllegalStateException("Not at a block boundary");
+    }
+    block(lo, hi, 1L << 40);
+  }
+
+  /**
+   * Pad the message with zeros to a multiple of 16 bytes, as the RFC 7539 AEAD construction
+   * requires between the additional data and the ciphertext
+   */
+  public void pad() {
+    if (this.buffered > 0) {
+      for (int i = this.buffered; i < MAC_TAG_SIZE_IN_BYTES; i++) {
+        this.buffer[i] = 0;
+      }
+      bufferedBlock();
+    }
+  }
+
+  /**
+   * Finish the MAC and write the 128-bit tag
+   *
+   * @param mac Array to write the tag into
+   * @param offset Offset of the tag in the array
+   */
+  public void finish(byte[] mac, int offset) {
+    // Process the last partial block, padded with 1 then zeros
+    if (this.buffered > 0) {
+      this.buffer[this.buffered] = 1;
+      for (int i = this.buffered + 1; i < MAC_TAG_SIZE_IN_BYTES; i++) {
+        this.buffer[i] = 0;
+      }
+      block((long) LONG_LE.get(this.buffer, 0), (long) LONG_LE.get(this.buffer, 8), 0);
+      this.buffered = 0;
     }
+
     // Do final reduction mod 2^130-5
-    c = h1 >> 26;
-    h1 = h1 & 0x3ffffff;
+    long h0 = this.h0, h1 = this.h1, h2 = this.h2;
+    long c = h1 >>> 44;
+    h1 &= MASK_44;
     h2 += c;
-    c = h2 >> 26;
-    h2 = h2 & 0x3ffffff;
-    h3 += c;
-    c = h3 >> 26;
-    h3 = h3 & 0x3ffffff;
-    h4 += c;
-    c = h4 >> 26;
-    h4 = h4 & 0x3ffffff;
-    h0 += c * 5; // c * 5 can be at most 5
-    c = h0 >> 26;
-    h0 = h0 & 0x3ffffff;
+    c = h2 >>> 42;
+    h2 &= MASK_42;
+    h0 += c * 5;
+    c = h0 >>> 44;
+    h0 &= MASK_44;
+    h1 += c;
+    c = h1 >>> 44;
+    h1 &= MASK_44;
+    h2 += c;
+    c = h2 >>> 42;
+    h2 &= MASK_42;
+    h0 += c * 5;
+    c = h0 >>> 44;
+    h0 &= MASK_44;
     h1 += c;
 
     // Compute h - p
     long g0 = h0 + 5;
-    c = g0 >> 26;
-    g0 &= 0x3ffffff;
+    c = g0 >>> 44;
+    g0 &= MASK_44;
     long g1 = h1 + c;
-    c = g1 >> 26;
-    g1 &= 0x3ffffff;
-    long g2 = h2 + c;
-    c = g2 >> 26;
-    g2 &= 0x3ffffff;
-    long g3 = h3 + c;
-    c = g3 >> 26;
-    g3 &= 0x3ffffff;
-    long g4 = h4 + c - (1 << 26);
+    c = g1 >>> 44;
+    g1 &= MASK_44;
+    long g2 = h2 + c - (1L << 42);
 
     // Select h if h < p, or h - p if h >= p
-    long mask = g4 >> 63; // mask is either 0 (h >= p) or -1 (h < p)
+    long mask = g2 >> 63; // mask is either 0 (h >= p) or -1 (h < p)
     h0 &= mask;
     h1 &= mask;
     h2 &= mask;
-    h3 &= mask;
-    h4 &= mask;
     mask = ~mask;
     h0 |= g0 & mask;
     h1 |= g1 & mask;
     h2 |= g2 & mask;
-    h3 |= g3 & mask;
-    h4 |= g4 & mask;
-
-    // h = h % (2^128)
-    h0 = (h0 | (h1 << 26)) & 0xffffffffL;
-    h1 = ((h1 >> 6) | (h2 << 20)) & 0xffffffffL;
-    h2 = ((h2 >> 12) | (h3 << 14)) & 0xffffffffL;
-    h3 = ((h3 >> 18) | (h4 << 8)) & 0xffffffffL;
 
     // mac = (h + pad) % (2^128)
-    c = h0 + load32(key, 16);
-    h0 = c & 0xffffffffL;
-    c = h1 + load32(key, 20) + (c >> 32);
-    h1 = c & 0xffffffffL;
-    c = h2 + load32(key, 24) + (c >> 32);
-    h2 = c & 0xffffffffL;
-    c = h3 + load32(key, 28) + (c >> 32);
-    h3 = c & 0xffffffffL;
+    h0 += this.pad0 & MASK_44;
+    c = h0 >>> 44;
+    h0 &= MASK_44;
+    h1 += (((this.pad0 >>> 44) | (this.pad1 << 20)) & MASK_44) + c;
+    c = h1 >>> 44;
+    h1 &= MASK_44;
+    h2 += (this.pad1 >>> 24) + c;
+    h2 &= MASK_42;
 
-    byte[] mac = new byte[MAC_TAG_SIZE_IN_BYTES];
-    toByteArray(mac, h0, 0);
-    toByteArray(mac, h1, 4);
-    toByteArray(mac, h2, 8);
-    toByteArray(mac, h3, 12);
+    LONG_LE.set(mac, offset, h0 | (h1 << 44));
+    LONG_LE.set(mac, offset + 8, (h1 >>> 20) | (h2 << 24));
+  }
 
-    return mac;
+  private void bufferedBlock() {
+    block((long) LONG_LE.get(this.buffer, 0), (long) LONG_LE.get(this.buffer, 8), 1L << 40);
+    this.buffered = 0;
   }
 
   /**
-   * Poly1305 is a one-time authenticator Verity the tag with key and message.
+   * h = (h + block) * r mod 2^130-5, partially reduced
    *
-   * @param key A 256-bit one-time key
-   * @param data An arbitrary length message
-   * @param mac A 128-bit tag.
-   * @throws GeneralSecurityException when tag verification failed
+   * @param t0 First 8 bytes of the block in little endian
+   * @param t1 Last 8 bytes of the block in little endian
+   * @param hibit 2^128 in limb 2 for a full block, 0 for the padded last block
    */
-  public static void verifyMac(final byte[] key, byte[] data, byte[] mac)
-      throws GeneralSecurityException {
-    if (!Bytes.equal(computeMac(key, data), mac)) {
-      throw new GeneralSecurityException("invalid MAC");
-    }
+  private void block(long t0, long t1, long hibit) {
+    long h0 = this.h0 + (t0 & MASK_44);
+    long h1 = this.h1 + (((t0 >>> 44) | (t1 << 20)) & MASK_44);
+    long h2 = this.h2 + (((t1 >>> 24) & MASK_42) | hibit);
+
+    // d = h * r, each as a 128-bit (hi, lo) pair, all the products are less than 2^94
+    long lo0 = h0 * this.r0;
+    long hi0 = Math.multiplyHigh(h0, this.r0);
+    long lo1 = h0 * this.r1;
+    long hi1 = Math.multiplyHigh(h0, this.r1);
+    long lo2 = h0 * this.r2;
+    long hi2 = Math.multiplyHigh(h0, this.r2);
+    long p = h1 * this.s2;
+    hi0 += Math.multiplyHigh(h1, this.s2) + carry(lo0, p);
+    lo0 += p;
+    p = h2 * this.s1;
+    hi0 += Math.multiplyHigh(h2, this.s1) + carry(lo0, p);
+    lo0 += p;
+    p = h1 * this.r0;
+    hi1 += Math.multiplyHigh(h1, this.r0) + carry(lo1, p);
+    lo1 += p;
+    p = h2 * this.s2;
+    hi1 += Math.multiplyHigh(h2, this.s2) + carry(lo1, p);
+    lo1 += p;
+    p = h1 * this.r1;
+    hi2 += Math.multiplyHigh(h1, this.r1) + carry(lo2, p);
+    lo2 += p;
+    p = h2 * this.r0;
+    hi2 += Math.multiplyHigh(h2, this.r0) + carry(lo2, p);
+    lo2 += p;
+
+    // Partial reduction mod 2^130-5
+    long c = (lo0 >>> 44) | (hi0 << 20);
+    h0 = lo0 & MASK_44;
+    hi1 += carry(lo1, c);
+    lo1 += c;
+    c = (lo1 >>> 44) | (hi1 << 20);
+    h1 = lo1 & MASK_44;
+    hi2 += carry(lo2, c);
+    lo2 += c;
+    c = (lo2 >>> 42) | (hi2 << 22);
+    h2 = lo2 & MASK_42;
+    h0 += c * 5;
+    c = h0 >>> 44;
+    h0 &= MASK_44;
+    h1 += c;
+
+    this.h0 = h0;
+    this.h1 = h1;
+    this.h2 = h2;
+  }
+
+  /**
+   * Carry out of the unsigned 64-bit addition a + b, without branches
+   */
+  private static long carry(long a, long b) {
+    long sum = a + b;
+    return ((a & b) | ((a | b) & ~sum)) >>> 63;
   }
 }
@@ -1,5 +1,7 @@
 package com.github.longkerdandy.viki.home.hap.crypto;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
@@ -12,6 +14,8 @@ import java.nio.IntBuffer;
  * specifying these two information by overriding {@link #nonceSizeInBytes} and {@link
  * #getKeyStreamBlock}.
  *
+ * <p>Instances reuse a key stream buffer, they are not thread-safe.
+ *
  * Inspired by Google Tink Project: https://github.com/google/tink https://github.com/google/tink/blob/master/java/src/main/java/com/google/crypto/tink/subtle/Snuffle.java
  */
 public abstract class Snuffle {
@@ -22,8 +26,16 @@ public abstract class Snuffle {
   public static final int KEY_SIZE_IN_BYTES = KEY_SIZE_IN_INTS * 4;
   public static final int[] SIGMA = toIntArray(ByteBuffer.wrap(
       new byte[]{'e', 'x', 'p', 'a', 'n', 'd', ' ', '3', '2', '-', 'b', 'y', 't', 'e', ' ', 'k'}));
+  // Number of key stream blocks generated at once, covers a HomeKit frame
+  public static final int KEY_STREAM_BLOCKS = 16;
+  private static final VarHandle LONG_LE =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle LONG_BE =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
   protected final ImmutableByteArray key;
   protected final int initialCounter;
+  // reused key stream buffer
+  private final byte[] keyStream = new byte[KEY_STREAM_BLOCKS * BLOCK_SIZE_IN_BYTES];
 
   /**
    * Create a new instance of {@link Snuffle}
@@ -60,6 +72,20 @@ public abstract class Snuffle {
    */
   protected abstract ByteBuffer getKeyStreamBlock(final byte[] nonce, int counter);
 
+  /**
+   * Writes {@code blocks} consecutive key stream blocks from {@code nonce} and {@code counter} into
+   * {@code output}.
+   *
+   * <p>The default implementation calls {@link #getKeyStreamBlock} for each block, subclasses
+   * should override it with an implementation that does not allocate.
+   */
+  protected void getKeyStream(final byte[] nonce, int counter, byte[] output, int blocks) {
+    for (int i = 0; i < blocks; i++) {
+      getKeyStreamBlock(nonce, counter + i)
+          .get(output, i * BLOCK_SIZE_IN_BYTES, BLOCK_SIZE_IN_BYTES);
+    }
+  }
+
   /**
    * The size of the nonces.
    *
@@ -99,6 +125,24 @@ public abstract class Snuffle {
     process(nonce, output, ByteBuffer.wrap(plaintext));
   }
 
+  /**
+   * Encryption from a buffer to a buffer, the positions of both buffers are advanced by the length
+   * of the plaintext
+   *
+   * @param output The output is an encrypted message, or "ciphertext", of the same length.
+   * @param plaintext The remaining bytes are an arbitrary-length plaintext
+   * @param nonce A {@link Snuffle#nonceSizeInBytes} nonce.
+   */
+  public void encrypt(ByteBuffer output, ByteBuffer plaintext, final byte[] nonce) {
+    if (nonce.length != nonceSizeInBytes()) {
+      throw new IllegalArgumentException("nonce's length must be " + nonceSizeInBytes());
+    }
+    if (output.remaining() < plaintext.remaining()) {
+      throw new IllegalArgumentException("Given ByteBuffer output is too small");
+    }
+    process(nonce, output, plaintext);
+  }
+
   /**
    * Decryption
    *
@@ -123,27 +167,41 @@ public abstract class Snuffle {
     return plaintext.array();
   }
 
+  /**
+   * Decryption from a buffer to a buffer, the positions of both buffers are advanced by the length
+   * of the ciphertext
+   *
+   * @param output The output is plaintext of the same length.
+   * @param ciphertext The remaining bytes are an arbitrary-length encrypted message
+   * @param nonce A {@link Snuffle#nonceSizeInBytes} nonce.
+   */
+  public void decrypt(ByteBuffer output, ByteBuffer ciphertext, final byte[] nonce) {
+    encrypt(output, ciphertext, nonce);
+  }
+
   /**
    * Algorithm
+   *
+   * <p>The key stream is generated for up to {@link #KEY_STREAM_BLOCKS} blocks at once into the
+   * reused buffer, and xor-ed with the input 8 bytes at a time.
    */
   private void process(final byte[] nonce, ByteBuffer output, ByteBuffer input) {
-    int length = input.remaining();
-    int numBlocks = (length / BLOCK_SIZE_IN_BYTES) + 1;
-    for (int i = 0; i < numBlocks; i++) {
-      ByteBuffer keyStreamBlock = getKeyStreamBlock(nonce, i + initialCounter);
-      if (i == numBlocks - 1) {
-        // last block
-        Bytes.xor(
-            output,
-            input,
-            keyStreamBlock,
-            length % BLOCK_SIZE_IN_BYTES);
-      } else {
-        Bytes.xor(
-            output,
-            input,
-            keyStreamBlock,
-            BLOCK_SIZE_IN_BYTES);
+    // Read the key stream in the input's byte order, and swap if the output's order is different
+    VarHandle view = input.order() == ByteOrder.LITTLE_ENDIAN ? LONG_LE : LONG_BE;
+    boolean swap = input.order() != output.order();
+    int counter = this.initialCounter;
+    while (input.hasRemaining()) {
+      int length = Math.min(input.remaining(), this.keyStream.length);
+      int blocks = (length + BLOCK_SIZE_IN_BYTES - 1) / BLOCK_SIZE_IN_BYTES;
+      getKeyStream(nonce, counter, this.keyStream, blocks);
+      counter += blocks;
+      int i = 0;
+      for (; i <= length - 8; i += 8) {
+        long x = input.getLong() ^ (long) view.get(this.keyStream, i);
+        output.putLong(swap ? Long.reverseBytes(x) : x);
+      }
+      for (; i < length; i++) {
+        output.put((byte) (input.get() ^ this.keyStream[i]));
       }
     }
   }
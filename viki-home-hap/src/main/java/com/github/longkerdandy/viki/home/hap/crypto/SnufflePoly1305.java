@@ -1,10 +1,8 @@
 package com.github.longkerdandy.viki.home.hap.crypto;
 
-import static com.github.longkerdandy.viki.home.hap.crypto.Poly1305.MAC_KEY_SIZE_IN_BYTES;
 import static com.github.longkerdandy.viki.home.hap.crypto.Poly1305.MAC_TAG_SIZE_IN_BYTES;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.security.GeneralSecurityException;
 
 /**
@@ -14,12 +12,20 @@ import java.security.GeneralSecurityException;
  * <p>This implementation produces ciphertext with the following format:
  * {actual_ciphertext || tag} and only decrypts the same format.
  *
+ * <p>The MAC is computed incrementally over the additional data, the ciphertext in place and the
+ * length block, the padded MAC input is never assembled. Instances reuse the MAC state and scratch
+ * arrays, they are not thread-safe.
+ *
  * Inspired by Google Tink Project: https://github.com/google/tink https://github.com/google/tink/blob/master/java/src/main/java/com/google/crypto/tink/subtle/SnufflePoly1305.java
  */
 public abstract class SnufflePoly1305 {
 
   private final Snuffle snuffle;
   private final Snuffle macKeysnuffle;
+  // reused MAC state and scratch
+  private final Poly1305 poly1305 = new Poly1305();
+  private final byte[] macKeyBlock = new byte[Snuffle.BLOCK_SIZE_IN_BYTES];
+  private final byte[] tag = new byte[MAC_TAG_SIZE_IN_BYTES];
 
   /**
    * Create a new instance of {@link SnufflePoly1305}
@@ -33,25 +39,6 @@ public abstract class SnufflePoly1305 {
     this.macKeysnuffle = createSnuffleInstance(key, 0);
   }
 
-  /**
-   * Prepares the input to MAC, following RFC 7539, section 2.8.
-   */
-  private static byte[] macDataRfc7539(final byte[] aad, ByteBuffer ciphertext) {
-    int aadPaddedLen = (aad.length % 16 == 0) ? aad.length : (aad.length + 16 - aad.length % 16);
-    int ciphertextLen = ciphertext.remaining();
-    int ciphertextPaddedLen =
-        (ciphertextLen % 16 == 0) ? ciphertextLen : (ciphertextLen + 16 - ciphertextLen % 16);
-    ByteBuffer macData =
-        ByteBuffer.allocate(aadPaddedLen + ciphertextPaddedLen + 16).order(ByteOrder.LITTLE_ENDIAN);
-    macData.put(aad);
-    macData.position(aadPaddedLen);
-    macData.put(ciphertext);
-    macData.position(aadPaddedLen + ciphertextPaddedLen);
-    macData.putLong(aad.length);
-    macData.putLong(ciphertextLen);
-    return macData.array();
-  }
-
   /**
    * Create a new instance of {@link Snuffle}
    *
@@ -90,20 +77,74 @@ public abstract class SnufflePoly1305 {
    */
   protected void encrypt(ByteBuffer output, final byte[] plaintext, final byte[] nonce,
       final byte[] additionalData) {
-    if (output.remaining() < plaintext.length + MAC_TAG_SIZE_IN_BYTES) {
+    encrypt(output, ByteBuffer.wrap(plaintext), nonce, additionalData);
+  }
+
+  /**
+   * Encrypts the remaining bytes of {@code plaintext} with Poly1305 authentication based on {@code
+   * nonce} and {@code additionalData}, without intermediate copies of the message.
+   *
+   * <p>The positions of both buffers are advanced, {@code output} by the length of the plaintext
+   * plus the tag. The buffers may be heap or direct buffers, but must not overlap.
+   *
+   * @param output The ciphertext with the following format {actual_ciphertext || tag}
+   * @param plaintext An arbitrary length plaintext
+   * @param nonce A 96-bit nonce
+   * @param additionalData Arbitrary length additional authenticated data (AAD)
+   */
+  public void encrypt(ByteBuffer output, ByteBuffer plaintext, final byte[] nonce,
+      final byte[] additionalData) {
+    int length = plaintext.remaining();
+    if (output.remaining() < length + MAC_TAG_SIZE_IN_BYTES) {
       throw new IllegalArgumentException("Given ByteBuffer output is too small");
     }
     int firstPosition = output.position();
     this.snuffle.encrypt(output, plaintext, nonce);
-    output.position(firstPosition);
-    output.limit(output.limit() - MAC_TAG_SIZE_IN_BYTES);
-    byte[] aad = additionalData;
-    if (aad == null) {
-      aad = new byte[0];
+    computeTag(nonce, additionalData, output, firstPosition, length);
+    output.put(this.tag);
+  }
+
+  /**
+   * Decrypts the remaining bytes of {@code ciphertext} with the following format:
+   * {actual_ciphertext || tag}, without intermediate copies of the message.
+   *
+   * <p>The tag is verified in constant time before anything is written to {@code output}. The
+   * positions of both buffers are advanced, {@code output} by the length of the plaintext. The
+   * buffers may be heap or direct buffers, but must not overlap.
+   *
+   * @param output The plaintext if authentication is successful
+   * @param ciphertext with format {actual_ciphertext || tag}
+   * @param nonce A 96-bit nonce
+   * @param additionalData Arbitrary length additional authenticated data (AAD)
+   * @throws GeneralSecurityException when tag verification failed
+   */
+  public void decrypt(ByteBuffer output, ByteBuffer ciphertext, final byte[] nonce,
+      final byte[] additionalData) throws GeneralSecurityException {
+    if (ciphertext.remaining() < MAC_TAG_SIZE_IN_BYTES) {
+      throw new IllegalArgumentException("ciphertext too short");
     }
-    byte[] tag = Poly1305.computeMac(getMacKey(nonce), macDataRfc7539(aad, output));
-    output.limit(output.limit() + MAC_TAG_SIZE_IN_BYTES);
-    output.put(tag);
+    int firstPosition = ciphertext.position();
+    int length = ciphertext.remaining() - MAC_TAG_SIZE_IN_BYTES;
+    if (output.remaining() < length) {
+      throw new IllegalArgumentException("Given ByteBuffer output is too small");
+    }
+
+    // verify tag
+    computeTag(nonce, additionalData, ciphertext, firstPosition, length);
+    int diff = 0;
+    for (int i = 0; i < MAC_TAG_SIZE_IN_BYTES; i++) {
+      diff |= this.tag[i] ^ ciphertext.get(firstPosition + length + i);
+    }
+    if (diff != 0) {
+      throw new GeneralSecurityException("invalid MAC");
+    }
+
+    // decrypt the ciphertext, then skip the tag
+    int limit = ciphertext.limit();
+    ciphertext.limit(firstPosition + length);
+    this.snuffle.decrypt(output, ciphertext, nonce);
+    ciphertext.limit(limit);
+    ciphertext.position(limit);
   }
 
   /**
@@ -119,50 +160,33 @@ public abstract class SnufflePoly1305 {
    */
   public byte[] decrypt(final byte[] ciphertext, final byte[] nonce, final byte[] additionalData)
       throws GeneralSecurityException {
-    return decrypt(ByteBuffer.wrap(ciphertext), nonce, additionalData);
-  }
-
-  /**
-   * Decrypts {@code ciphertext} with the following format: {ctual_ciphertext || tag}
-   *
-   * @param ciphertext with format {actual_ciphertext || tag}
-   * @param nonce nonce
-   * @param associatedData associated authenticated data
-   * @return plaintext if authentication is successful
-   * @throws GeneralSecurityException when tag verification failed
-   */
-  private byte[] decrypt(ByteBuffer ciphertext, final byte[] nonce, final byte[] associatedData)
-      throws GeneralSecurityException {
-    if (ciphertext.remaining() < MAC_TAG_SIZE_IN_BYTES) {
+    if (ciphertext.length < MAC_TAG_SIZE_IN_BYTES) {
       throw new IllegalArgumentException("ciphertext too short");
     }
-    int firstPosition = ciphertext.position();
-    byte[] tag = new byte[MAC_TAG_SIZE_IN_BYTES];
-    ciphertext.position(ciphertext.limit() - MAC_TAG_SIZE_IN_BYTES);
-    ciphertext.get(tag);
-    // rewind to read ciphertext and compute tag.
-    ciphertext.position(firstPosition);
-    ciphertext.limit(ciphertext.limit() - MAC_TAG_SIZE_IN_BYTES);
-    byte[] aad = associatedData;
-    if (aad == null) {
-      aad = new byte[0];
-    }
-
-    // verify tag
-    Poly1305.verifyMac(getMacKey(nonce), macDataRfc7539(aad, ciphertext), tag);
-
-    // rewind to decrypt the ciphertext.
-    ciphertext.position(firstPosition);
-    return this.snuffle.decrypt(ciphertext, nonce);
+    ByteBuffer plaintext = ByteBuffer.allocate(ciphertext.length - MAC_TAG_SIZE_IN_BYTES);
+    decrypt(plaintext, ByteBuffer.wrap(ciphertext), nonce, additionalData);
+    return plaintext.array();
   }
 
   /**
-   * The MAC key is the first 32 bytes of the first key stream block
+   * Computes the tag into the scratch array, following RFC 7539, section 2.8. The MAC input is
+   * {aad || pad16 || ciphertext || pad16 || aad length || ciphertext length}.
+   *
+   * <p>The MAC key is the first 32 bytes of the first key stream block.
    */
-  private byte[] getMacKey(final byte[] nonce) {
-    ByteBuffer firstBlock = macKeysnuffle.getKeyStreamBlock(nonce, 0 /* counter */);
-    byte[] result = new byte[MAC_KEY_SIZE_IN_BYTES];
-    firstBlock.get(result);
-    return result;
+  private void computeTag(final byte[] nonce, final byte[] aad, ByteBuffer ciphertext,
+      int offset, int length) {
+    this.macKeysnuffle.getKeyStream(nonce, 0 /* counter */, this.macKeyBlock, 1);
+    this.poly1305.init(this.macKeyBlock, 0);
+    int aadLength = 0;
+    if (aad != null) {
+      aadLength = aad.length;
+      this.poly1305.update(aad, 0, aadLength);
+      this.poly1305.pad();
+    }
+    this.poly1305.update(ciphertext, offset, length);
+    this.poly1305.pad();
+    this.poly1305.update(aadLength, length);
+    this.poly1305.finish(this.tag, 0);
   }
 }
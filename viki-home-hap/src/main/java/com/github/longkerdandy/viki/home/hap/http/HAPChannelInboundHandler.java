@@ -8,11 +8,12 @@ import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.github.longkerdandy.viki.home.hap.http.handler.AttributesHandler;
+import com.github.longkerdandy.viki.home.hap.http.handler.HandshakeExecutor;
 import com.github.longkerdandy.viki.home.hap.http.handler.PairSetupHandler;
 import com.github.longkerdandy.viki.home.hap.http.handler.PairVerifyHandler;
 import com.github.longkerdandy.viki.home.hap.http.handler.PairingsHandler;
 import com.github.longkerdandy.viki.home.hap.mdns.HAPmDNSAdvertiser;
-import com.github.longkerdandy.viki.home.hap.storage.HAPStorage;
+import com.github.longkerdandy.viki.home.hap.storage.AsyncHAPStorage;
 import com.github.longkerdandy.viki.home.hap.storage.Registry;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -43,16 +44,21 @@ public class HAPChannelInboundHandler extends SimpleChannelInboundHandler<FullHt
   /**
    * Constructor
    *
-   * @param hapStorage {@link HAPStorage}
+   * Pair setup and pair verify run on the {@link HandshakeExecutor}, and use the storage directly.
+   *
+   * @param hapStorage {@link AsyncHAPStorage}
    * @param macAddress MAC Address
    * @param pinCode Password (aka Setup Code, PIN Code)
    * @param registry {@link Registry}
    * @param advertiser {@link HAPmDNSAdvertiser}
+   * @param handshakeExecutor {@link HandshakeExecutor}
    */
-  public HAPChannelInboundHandler(HAPStorage hapStorage, String macAddress, String pinCode,
-      Registry registry, HAPmDNSAdvertiser advertiser) {
-    this.pairSetupHandler = new PairSetupHandler(hapStorage, macAddress, pinCode, advertiser);
-    this.pairVerifyHandler = new PairVerifyHandler(hapStorage, macAddress, registry);
+  public HAPChannelInboundHandler(AsyncHAPStorage hapStorage, String macAddress, String pinCode,
+      Registry registry, HAPmDNSAdvertiser advertiser, HandshakeExecutor handshakeExecutor) {
+    this.pairSetupHandler = new PairSetupHandler(hapStorage.getStorage(), macAddress, pinCode,
+        advertiser, handshakeExecutor);
+    this.pairVerifyHandler = new PairVerifyHandler(hapStorage.getStorage(), macAddress, registry,
+        handshakeExecutor);
     this.pairingsHandler = new PairingsHandler(hapStorage, registry, advertiser);
     this.attributesHandler = new AttributesHandler(hapStorage);
     this.registry = registry;
@@ -1,11 +1,8 @@
 package com.github.longkerdandy.viki.home.hap.http.frame;
 
-import static com.github.longkerdandy.viki.home.hap.util.Ciphers.chaCha20Poly1305Decrypt;
-import static com.github.longkerdandy.viki.home.hap.util.Ciphers.chaCha20Poly1305Encrypt;
-import static com.github.longkerdandy.viki.home.hap.util.Ciphers.chaCha20Poly1305Nonce;
 import static com.github.longkerdandy.viki.home.hap.util.Ciphers.longToLittleEndian;
-import static io.netty.buffer.Unpooled.buffer;
 
+import com.github.longkerdandy.viki.home.hap.crypto.Aead;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageCodec;
@@ -21,17 +18,29 @@ import org.slf4j.LoggerFactory;
  * Each HTTP message is split into frames no larger than 1024 bytes. Each frame has the following
  * format: <2:AAD for little endian length of encrypted data (n) in bytes> <n:encrypted data
  * according to AEAD algorithm, up to 1024 bytes> <16:authTag according to AEAD algorithm>
+ *
+ * Frames are encrypted and decrypted directly between the {@link ByteBuf}s, which are allocated
+ * from the channel's allocator (pooled direct buffers by default). The nonce and AAD are scratch
+ * arrays reused for every frame, the codec is used by a single channel so no synchronization is
+ * needed. The ciphers are created once per session by pair verify with their key schedules, and
+ * stored as channel attributes alongside the session keys.
  */
 public class FrameCodec extends ByteToMessageCodec<ByteBuf> {
 
   private static final Logger logger = LoggerFactory.getLogger(FrameCodec.class);
 
+  // frame layout
+  private static final int MAX_LENGTH = 1024;
+  private static final int AAD_LENGTH = 2;
+  private static final int TAG_LENGTH = 16;
+
   // count
   private long inboundFrameCount = 0;
   private long outboundFrameCount = 0;
 
-  // previous decrypted frames
-  private ByteBuf frames = buffer(1024);
+  // reused scratch, 96-bit nonce with the first 32 bits always 0, and little endian length
+  private final byte[] nonce = new byte[12];
+  private final byte[] additionalData = new byte[AAD_LENGTH];
 
   /**
    * Constructor
@@ -57,37 +66,37 @@ public class FrameCodec extends ByteToMessageCodec<ByteBuf> {
     logger.debug("Encoding http frame to {}", ctx.channel().remoteAddress());
 
     // Check AccessoryToControllerKey
-    AttributeKey<byte[]> k = AttributeKey.valueOf("AccessoryToControllerKey");
-    byte[] AccessoryToControllerKey = ctx.channel().attr(k).get();
-    if (AccessoryToControllerKey == null) {
+    AttributeKey<Aead> k = AttributeKey.valueOf("AccessoryToControllerCipher");
+    Aead AccessoryToControllerCipher = ctx.channel().attr(k).get();
+    if (AccessoryToControllerCipher == null) {
       logger.error("Sent http frame without AccessoryToControllerKey, closing the connection.");
       ctx.close();
+      return;
     }
 
     // Must received some inbound frames first
     if (this.inboundFrameCount == 0) {
       out.writeBytes(msg);
+      return;
     }
 
     // Because each HTTP message is split into frames no larger than 1024 bytes,
-    // Loop to encrypt each frame, save encrypted frame into buffer.
-    while (msg.readableBytes() > 0) {
-      // Encrypt the message data
-      int length = Math.min(msg.readableBytes(), 1024);
-      byte[] additionalData = new byte[2];
-      buffer(2).writeShortLE(length).readBytes(additionalData);
-      byte[] nonce = chaCha20Poly1305Nonce(longToLittleEndian(this.outboundFrameCount++));
-      byte[] plainText = new byte[length];
-      msg.readBytes(plainText);
-      byte[] cipherText = chaCha20Poly1305Encrypt(AccessoryToControllerKey, plainText, nonce,
-          additionalData);
-
-      // Write to the output buffer
-      if (out.writableBytes() < 2 + length + 16) {
-        out.capacity(out.readableBytes() + 2 + length + 16);
-      }
+    // Loop to encrypt each frame from the message into the output buffer, which is a pooled
+    // direct buffer from the encoder, expanded once to the size of all the frames.
+    int frames = (msg.readableBytes() + MAX_LENGTH - 1) / MAX_LENGTH;
+    out.ensureWritable(msg.readableBytes() + frames * (AAD_LENGTH + TAG_LENGTH));
+    while (msg.isReadable()) {
+      int length = Math.min(msg.readableBytes(), MAX_LENGTH);
+      nextNonce(this.outboundFrameCount++);
+      this.additionalData[0] = (byte) length;
+      this.additionalData[1] = (byte) (length >>> 8);
       out.writeShortLE(length);
-      out.writeBytes(cipherText);
+
+      // Encrypt the frame, the tag is appended after the encrypted data
+      AccessoryToControllerCipher.encrypt(out.nioBuffer(out.writerIndex(), length + TAG_LENGTH),
+          msg.nioBuffer(msg.readerIndex(), length), this.nonce, this.additionalData);
+      msg.skipBytes(length);
+      out.writerIndex(out.writerIndex() + length + TAG_LENGTH);
     }
   }
 
@@ -97,47 +106,58 @@ public class FrameCodec extends ByteToMessageCodec<ByteBuf> {
     logger.debug("Decoding http frame from {}", ctx.channel().remoteAddress());
 
     // Check ControllerToAccessoryKey
-    AttributeKey<byte[]> k = AttributeKey.valueOf("ControllerToAccessoryKey");
-    byte[] ControllerToAccessoryKey = ctx.channel().attr(k).get();
-    if (ControllerToAccessoryKey == null) {
+    AttributeKey<Aead> k = AttributeKey.valueOf("ControllerToAccessoryCipher");
+    Aead ControllerToAccessoryCipher = ctx.channel().attr(k).get();
+    if (ControllerToAccessoryCipher == null) {
       logger.error("Received http frame without ControllerToAccessoryKey, closing the connection.");
       ctx.close();
+      return;
     }
 
     // Because each HTTP message is split into frames no larger than 1024 bytes,
-    // Loop to check and decrypt each frame, save decrypted frame into buffer.
-    // If there is any incomplete frame, wait for further incoming data.
-    // If decrypt or verify fails, exception will be thrown and connection will be closed.
-    while (in.readableBytes() >= 2 + 16) {
-      // Check the frame integrity without messing its readerIndex
-      int length = in.getShortLE(in.readerIndex());
-      int availableLength = in.readableBytes() - 2 - 16;
-
-      // Not enough data
-      if (availableLength < length) {
-        return;
+    // Check the frames integrity without messing its readerIndex, and sum up the length of the
+    // complete frames. If there is any incomplete frame, wait for further incoming data.
+    int plainLength = 0;
+    int index = in.readerIndex();
+    while (in.writerIndex() - index >= AAD_LENGTH + TAG_LENGTH) {
+      int length = in.getUnsignedShortLE(index);
+      if (in.writerIndex() - index - AAD_LENGTH - TAG_LENGTH < length) {
+        break;
       }
+      plainLength += length;
+      index += AAD_LENGTH + length + TAG_LENGTH;
+    }
+    if (index == in.readerIndex()) {
+      return;
+    }
 
-      // Decrypt the encrypted data
-      byte[] nonce = chaCha20Poly1305Nonce(longToLittleEndian(this.inboundFrameCount++));
-      byte[] additionalData = new byte[2];
-      in.readBytes(additionalData);
-      byte[] cipherText = new byte[length + 16];
-      in.readBytes(cipherText, 0, length + 16);
-      byte[] plainText = chaCha20Poly1305Decrypt(ControllerToAccessoryKey, cipherText, nonce,
-          additionalData);
-
-      // Save the decrypted frame, expand if needed
-      if (this.frames.writableBytes() < length) {
-        this.frames.capacity(this.frames.readableBytes() + length);
+    // Decrypt the complete frames into one buffer.
+    // If decrypt or verify fails, exception will be thrown and connection will be closed.
+    ByteBuf frames = ctx.alloc().buffer(plainLength);
+    try {
+      while (in.readerIndex() < index) {
+        int length = in.readUnsignedShortLE();
+        nextNonce(this.inboundFrameCount++);
+        this.additionalData[0] = (byte) length;
+        this.additionalData[1] = (byte) (length >>> 8);
+        ControllerToAccessoryCipher.decrypt(frames.nioBuffer(frames.writerIndex(), length),
+            in.nioBuffer(in.readerIndex(), length + TAG_LENGTH), this.nonce, this.additionalData);
+        in.skipBytes(length + TAG_LENGTH);
+        frames.writerIndex(frames.writerIndex() + length);
       }
-      this.frames.writeBytes(plainText);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      frames.release();
+      throw e;
     }
 
     // Add the combined frames to the result
-    out.add(this.frames);
+    out.add(frames);
+  }
 
-    // Create new buffer for decrypted frames
-    this.frames = buffer(1024);
+  /**
+   * Set the frame count as the last 64 bits of the nonce, in little endian
+   */
+  private void nextNonce(long count) {
+    longToLittleEndian(count, this.nonce, 4);
   }
 }
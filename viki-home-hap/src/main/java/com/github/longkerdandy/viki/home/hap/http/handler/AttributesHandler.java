@@ -1,9 +1,12 @@
 package com.github.longkerdandy.viki.home.hap.http.handler;
 
 import static com.github.longkerdandy.viki.home.hap.util.Handlers.MIME_JSON;
+import static com.github.longkerdandy.viki.home.hap.util.Handlers.bytesToBuffer;
 import static com.github.longkerdandy.viki.home.hap.util.Handlers.errorJSONResponse;
 import static com.github.longkerdandy.viki.home.hap.util.Handlers.extractLocalURL;
+import static com.github.longkerdandy.viki.home.hap.util.Handlers.respondOnCompletion;
 import static com.github.longkerdandy.viki.home.hap.util.Handlers.successJSONResponse;
+import static com.github.longkerdandy.viki.home.hap.util.Handlers.writeResponse;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
 import static io.netty.handler.codec.http.HttpMethod.GET;
 import static io.netty.handler.codec.http.HttpMethod.POST;
@@ -16,71 +19,46 @@ import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicsWriteRequest;
-import com.github.longkerdandy.viki.home.hap.http.response.AccessoriesResponse;
-import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicReadResponseTarget;
-import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicWriteResponseTarget;
-import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicsReadResponse;
+import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicsReadResponseWriter;
 import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicsWriteResponse;
 import com.github.longkerdandy.viki.home.hap.http.response.Status;
-import com.github.longkerdandy.viki.home.hap.model.Accessory;
-import com.github.longkerdandy.viki.home.hap.model.Characteristic;
-import com.github.longkerdandy.viki.home.hap.storage.HAPStorage;
+import com.github.longkerdandy.viki.home.hap.storage.AccessoryDatabase;
+import com.github.longkerdandy.viki.home.hap.storage.AsyncHAPStorage;
+import com.github.longkerdandy.viki.home.hap.storage.CharacteristicEntry;
 import com.github.longkerdandy.viki.home.util.Jacksons;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.util.AttributeKey;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URLEncodedUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Handles Accessory Attributes
+ *
+ * Requests are parsed and validated on the event loop. Reads are answered from the in-memory
+ * {@link AccessoryDatabase}, writes go through {@link AsyncHAPStorage} and the response is written
+ * once the storage operation completed.
  */
 public class AttributesHandler {
 
   private static final Logger logger = LoggerFactory.getLogger(AttributesHandler.class);
 
-  // Regexp for read characteristics id parameter
-  private static final Pattern ID_PATTERN = Pattern.compile("^(\\d+.\\d+)(,\\d+.\\d+)*$");
-
   // HomeKit Accessory Protocol related storage
-  private final HAPStorage hapStorage;
+  private final AsyncHAPStorage hapStorage;
 
   /**
    * Constructor
    *
-   * @param hapStorage {@link HAPStorage}
+   * @param hapStorage {@link AsyncHAPStorage}
    */
-  public AttributesHandler(HAPStorage hapStorage) {
+  public AttributesHandler(AsyncHAPStorage hapStorage) {
     this.hapStorage = hapStorage;
   }
 
-  /**
-   * Lookup Value by Name in List of {@link NameValuePair}
-   *
-   * @param pairs List of {@link NameValuePair}
-   * @param name Name wanted
-   * @return Value if present
-   */
-  protected static Optional<String> lookupNameValuePairs(List<NameValuePair> pairs, String name) {
-    return pairs.stream()
-        .filter(pair -> pair.getName().equals(name))
-        .map(NameValuePair::getValue)
-        .findFirst();
-  }
-
   /**
    * The method is called once we have received the complete {@link FullHttpRequest}
    *
@@ -150,8 +128,13 @@ public class AttributesHandler {
       return;
     }
 
-    // Get all the Accessories
-    List<Accessory> accessories = this.hapStorage.getAccessories();
+    // Get all the Accessories, serialized in memory
+    byte[] json = this.hapStorage.getAccessoryDatabase().getAccessoriesJson();
+    if (json == null) {
+      respondOnCompletion(ctx, this.hapStorage.refreshAccessories(),
+          configNum -> handleReadAccessories(ctx));
+      return;
+    }
 
 //    // Remove Characteristic without PAIRED_READ Permission
 //    for (Accessory accessory : accessories) {
@@ -162,8 +145,7 @@ public class AttributesHandler {
 
     logger.debug("Send back read accessories message response");
     // Send the response to the iOS device
-    AccessoriesResponse response = new AccessoriesResponse(accessories);
-    successJSONResponse(ctx, OK, response);
+    writeResponse(ctx, MIME_JSON, OK, bytesToBuffer(json), true);
   }
 
   /**
@@ -190,118 +172,154 @@ public class AttributesHandler {
     }
 
     // Parse URL parameters
-    List<CharacteristicReadResponseTarget> characteristics = new ArrayList<>();
-    boolean fail = false;
-    Optional<String> id;
-    Optional<String> meta;
-    Optional<String> perms;
-    Optional<String> type;
-    Optional<String> ev;
+    String uri = request.uri();
+    String id = lookupQueryParameter(uri, "id");
+
+    // The identifiers for the characteristics to be read must be formatted as <Accessory
+    // Instance ID>.<Characteristic Instance ID>, as a comma-separated list. For
+    // example, to read the values of characteristics with instance ID "4" and "8" on an accessory
+    // with an instanceID of "1" the URL parameter would be id=1.4,1.8. id is required for
+    // all GET requests.
+    if (id == null) {
+      logger.warn("Missing id from URL parameters");
+      errorJSONResponse(ctx, BAD_REQUEST, Status.INVALID_VALUE);
+      return;
+    }
+    long[] keys = parseIds(id);
+    if (keys == null) {
+      logger.warn("Invalid id URL parameter {}", id);
+      errorJSONResponse(ctx, BAD_REQUEST, Status.INVALID_VALUE);
+      return;
+    }
+    boolean meta = "1".equals(lookupQueryParameter(uri, "meta"));
+    boolean perms = "1".equals(lookupQueryParameter(uri, "perms"));
+    boolean type = "1".equals(lookupQueryParameter(uri, "type"));
+    boolean ev = "1".equals(lookupQueryParameter(uri, "ev"));
+
+    // Read Characteristics from memory
+    if (this.hapStorage.getAccessoryDatabase().getAccessoriesJson() == null) {
+      respondOnCompletion(ctx, this.hapStorage.refreshAccessories(),
+          configNum -> respondReadCharacteristics(ctx, keys, meta, perms, type, ev));
+      return;
+    }
+    respondReadCharacteristics(ctx, keys, meta, perms, type, ev);
+  }
 
-    try {
-      String uri = request.uri();
-      List<NameValuePair> params = URLEncodedUtils.parse(new URI(uri), StandardCharsets.UTF_8);
-      id = lookupNameValuePairs(params, "id");
-      meta = lookupNameValuePairs(params, "meta");
-      perms = lookupNameValuePairs(params, "perms");
-      type = lookupNameValuePairs(params, "type");
-      ev = lookupNameValuePairs(params, "ev");
-
-      // The identifiers for the characteristics to be read must be formatted as <Accessory
-      // Instance ID>.<Characteristic Instance ID>, as a comma-separated list. For
-      // example, to read the values of characteristics with instance ID "4" and "8" on an accessory
-      // with an instanceID of "1" the URL parameter would be id=1.4,1.8. id is required for
-      // all GET requests.
-      if (id.isEmpty()) {
-        logger.warn("Missing id from URL parameters");
-        errorJSONResponse(ctx, BAD_REQUEST, Status.INVALID_VALUE);
-        return;
+  /**
+   * Lookup the query parameter in the request URI
+   *
+   * @param uri Request URI
+   * @param name Name wanted
+   * @return Decoded value of the first parameter with the name, or null if not present
+   */
+  protected static String lookupQueryParameter(String uri, String name) {
+    int start = uri.indexOf('?') + 1;
+    if (start == 0) {
+      return null;
+    }
+    int end = uri.indexOf('#', start);
+    if (end < 0) {
+      end = uri.length();
+    }
+    while (start < end) {
+      int next = uri.indexOf('&', start);
+      if (next < 0 || next > end) {
+        next = end;
       }
-      Matcher matcher = ID_PATTERN.matcher(id.get());
-      if (!matcher.find()) {
-        logger.warn("Invalid id URL parameter {}", id.get());
-        errorJSONResponse(ctx, BAD_REQUEST, Status.INVALID_VALUE);
-        return;
+      int equals = uri.indexOf('=', start);
+      if (equals >= 0 && equals < next && equals - start == name.length()
+          && uri.startsWith(name, start)) {
+        return QueryStringDecoder.decodeComponent(uri.substring(equals + 1, next));
       }
-    } catch (URISyntaxException e) {
-      logger.error("Error when parsing request url", e);
-      errorJSONResponse(ctx, BAD_REQUEST, Status.INVALID_VALUE);
-      return;
+      start = next + 1;
     }
+    return null;
+  }
 
-    // Read Characteristics from storage
-    for (String pair : id.get().split(",")) {
-      long accessoryId = Long.parseLong(pair.split(".")[0]);
-      long instanceId = Long.parseLong(pair.split(".")[1]);
-      Optional<Characteristic> characteristic = this.hapStorage
-          .getCharacteristicById(accessoryId, instanceId);
-
-      if (characteristic.isPresent()) {
-        CharacteristicReadResponseTarget target = new CharacteristicReadResponseTarget(
-            accessoryId, instanceId, characteristic.get().getValue());
-
-        // Boolean value that determines whether or not the response should include metadata. If
-        // meta is not present it must be assumed to be "0". If meta is "1", then the response must
-        // include the following properties if they exist for the characteristic: "format", "unit",
-        // "minValue", "maxValue", "minStep", and "maxLen"
-        if (meta.isPresent() && meta.get().equals("1")) {
-          target.setFormat(characteristic.get().getFormat());
-          target.setUnit(characteristic.get().getUnit());
-          target.setMinValue(characteristic.get().getMinValue());
-          target.setMaxValue(characteristic.get().getMaxValue());
-          target.setMinStep(characteristic.get().getMinStep());
-          target.setMaxLength(characteristic.get().getMaxLength());
-        }
-
-        // Boolean value that determines whether or not the response should include the
-        // permissions of the characteristic. If perms is not present it must be assumed to be "0"
-        if (perms.isPresent() && perms.get().equals("1")) {
-          //noinspection unchecked
-          target.setPermissions(characteristic.get().getPermissions());
-        }
-
-        // Boolean value that determines whether or not the response should include the type of
-        // characteristic. If type is not present it must be assumed to be "0".
-        if (type.isPresent() && type.get().equals("1")) {
-          target.setType(characteristic.get().getType());
-        }
-
-        // Boolean value that determines whether or not the "ev" property of the characteristic
-        // should be included in the response. If ev is not present it must be assumed to be "0".
-        if (ev.isPresent() && ev.get().equals("1")) {
-          target.setEnableEvent(characteristic.get().getEnableEvent());
-        }
-
-        // Add to results
-        characteristics.add(target);
-
-      } else {
-        // Mark as failed
-        fail = true;
-
-        CharacteristicReadResponseTarget target = new CharacteristicReadResponseTarget(
-            accessoryId, instanceId, Status.RESOURCE_NOT_EXIST);
-
-        // Add to results
-        characteristics.add(target);
+  /**
+   * Parse the id URL parameter, e.g. 1.4,1.8
+   *
+   * @param id Comma-separated list of Accessory Instance Id and Characteristic Instance Id pairs
+   * @return Pairs packed as aid << 32 | iid, or null if the format is invalid
+   */
+  protected static long[] parseIds(String id) {
+    int count = 1;
+    for (int i = 0; i < id.length(); i++) {
+      if (id.charAt(i) == ',') {
+        count++;
       }
     }
 
-    // Clear Status field if no failure
-    if (!fail) {
-      for (CharacteristicReadResponseTarget target : characteristics) {
-        target.setStatus(null);
+    long[] keys = new long[count];
+    int position = 0;
+    for (int i = 0; i < count; i++) {
+      // <Accessory Instance ID>.<Characteristic Instance ID>
+      long aid = 0;
+      long iid = 0;
+      int digits = 0;
+      for (; position < id.length() && id.charAt(position) != '.'; position++, digits++) {
+        aid = digit(aid, id.charAt(position));
       }
+      if (digits == 0 || aid < 0 || position++ == id.length()) {
+        return null;
+      }
+      digits = 0;
+      for (; position < id.length() && id.charAt(position) != ','; position++, digits++) {
+        iid = digit(iid, id.charAt(position));
+      }
+      if (digits == 0 || iid < 0) {
+        return null;
+      }
+      position++;
+      keys[i] = AccessoryDatabase.key(aid, iid);
     }
+    return keys;
+  }
+
+  /**
+   * Append the decimal digit to the instance id
+   *
+   * @return Instance id, or -1 if not a digit or out of the 32 bits range
+   */
+  private static long digit(long instanceId, char c) {
+    if (instanceId < 0 || c < '0' || c > '9') {
+      return -1;
+    }
+    instanceId = instanceId * 10 + (c - '0');
+    return instanceId > 0xFFFFFFFFL ? -1 : instanceId;
+  }
+
+  /**
+   * Send back the read characteristics response, written directly from the {@link
+   * AccessoryDatabase}
+   *
+   * @param ctx {@link ChannelHandlerContext}
+   * @param keys Accessory and Characteristic Instance Id pairs, packed as aid << 32 | iid
+   * @param meta Whether to include the metadata
+   * @param perms Whether to include the permissions
+   * @param type Whether to include the type
+   * @param ev Whether to include the "ev" property
+   */
+  protected void respondReadCharacteristics(ChannelHandlerContext ctx, long[] keys, boolean meta,
+      boolean perms, boolean type, boolean ev) {
+    AccessoryDatabase database = this.hapStorage.getAccessoryDatabase();
+    CharacteristicEntry[] entries = new CharacteristicEntry[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      entries[i] = database.getCharacteristic(keys[i]);
+    }
+
+    // Boolean value that determines whether or not the response should include metadata. If
+    // meta is not present it must be assumed to be "0". If meta is "1", then the response must
+    // include the following properties if they exist for the characteristic: "format", "unit",
+    // "minValue", "maxValue", "minStep", and "maxLen". Same for the "perms", "type" and "ev"
+    // properties. The Status field is only included if any characteristic failed.
+    ByteBuf content = ctx.alloc().buffer(keys.length * 64);
+    boolean success = CharacteristicsReadResponseWriter.write(content, keys, entries,
+        meta, perms, type, ev);
 
     logger.debug("Send back read characteristics message response");
     // Send the response to the iOS device
-    CharacteristicsReadResponse response = new CharacteristicsReadResponse(characteristics);
-    if (fail) {
-      successJSONResponse(ctx, MULTI_STATUS, response);
-    } else {
-      successJSONResponse(ctx, OK, response);
-    }
+    writeResponse(ctx, MIME_JSON, success ? OK : MULTI_STATUS, content, true);
   }
 
   /**
@@ -352,17 +370,17 @@ public class AttributesHandler {
       }
 
       // Save characteristics to storage
-      List<CharacteristicWriteResponseTarget> results = this.hapStorage
-          .saveCharacteristics(request.getCharacteristics());
-
-      logger.debug("Send back write characteristics message response");
-      // Send the response to the iOS device
-      if (results != null) {
-        CharacteristicsWriteResponse response = new CharacteristicsWriteResponse(results);
-        successJSONResponse(ctx, MULTI_STATUS, response);
-      } else {
-        successJSONResponse(ctx, NO_CONTENT, null);
-      }
+      respondOnCompletion(ctx, this.hapStorage.saveCharacteristics(request.getCharacteristics()),
+          results -> {
+            logger.debug("Send back write characteristics message response");
+            // Send the response to the iOS device
+            if (results != null) {
+              CharacteristicsWriteResponse response = new CharacteristicsWriteResponse(results);
+              successJSONResponse(ctx, MULTI_STATUS, response);
+            } else {
+              successJSONResponse(ctx, NO_CONTENT, null);
+            }
+          });
     } catch (IOException e) {
       logger.error("Error when decoding HAP JSON");
       errorJSONResponse(ctx, BAD_REQUEST, Status.INVALID_VALUE);
@@ -0,0 +1,102 @@
+package com.github.longkerdandy.viki.home.hap.http.handler;
+
+import static com.github.longkerdandy.viki.home.hap.util.Handlers.errorTLVResponse;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+
+import com.github.longkerdandy.viki.home.hap.http.handler.HandshakeMetrics.Phase;
+import com.github.longkerdandy.viki.home.hap.http.tlv.TLVError;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run the crypto heavy pairing handshake steps off the Netty event loop
+ *
+ * Pair setup does 3072-bit SRP modular exponentiation, pair verify does Curve25519, Ed25519 and
+ * HKDF. On the event loop one handshake would stall every other connection sharing the loop, so
+ * the steps run on a bounded executor, shared by all the connections.
+ *
+ * The channel stops reading while its step runs, so the next request is never handled before the
+ * response to this one. Responses written by the step are handed to the event loop (see {@link
+ * com.github.longkerdandy.viki.home.hap.util.Handlers#writeResponse}), and flushed there once the
+ * step completed. If the executor is full the request is answered with kTLVError_Busy.
+ */
+public class HandshakeExecutor {
+
+  private static final Logger logger = LoggerFactory.getLogger(HandshakeExecutor.class);
+
+  private final ThreadPoolExecutor executor;
+  private final HandshakeMetrics metrics;
+
+  /**
+   * Constructor
+   *
+   * @param threads Number of crypto threads
+   * @param queueSize Maximum handshake steps waiting for a thread, more are rejected
+   */
+  public HandshakeExecutor(int threads, int queueSize) {
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize), new DefaultThreadFactory("hap-crypto", true));
+    this.metrics = new HandshakeMetrics();
+  }
+
+  /**
+   * Get the handshake latency metrics
+   *
+   * @return {@link HandshakeMetrics}
+   */
+  public HandshakeMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Run the handshake step for the request, must be called on the channel's event loop
+   *
+   * @param ctx {@link ChannelHandlerContext}
+   * @param phase {@link Phase}
+   * @param state TLV State of the response, used if the step is rejected
+   * @param step Handles the request and writes the response
+   */
+  public void execute(ChannelHandlerContext ctx, Phase phase, int state, Runnable step) {
+    long dispatched = System.nanoTime();
+    ctx.channel().config().setAutoRead(false);
+    try {
+      this.executor.execute(() -> {
+        long started = System.nanoTime();
+        try {
+          step.run();
+        } catch (RuntimeException e) {
+          logger.error("Unhandled exception in {}: {}", phase, ExceptionUtils.getMessage(e), e);
+          ctx.close();
+        } finally {
+          ctx.executor().execute(() -> {
+            ctx.flush();
+            ctx.channel().config().setAutoRead(true);
+            long latency = System.nanoTime() - dispatched;
+            this.metrics.record(phase, started - dispatched, latency);
+            logger.debug("Handled {} in {} us", phase, TimeUnit.NANOSECONDS.toMicros(latency));
+          });
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      ctx.channel().config().setAutoRead(true);
+      this.metrics.reject(phase);
+      logger.warn("Too many pairing handshakes in progress, rejected {}", phase);
+      errorTLVResponse(ctx, SERVICE_UNAVAILABLE, state, TLVError.BUSY);
+    }
+  }
+
+  /**
+   * Shutdown the executor, the running steps are completed
+   */
+  public void shutdown() {
+    this.executor.shutdown();
+    logger.info("Pairing handshakes: {}", this.metrics);
+  }
+}
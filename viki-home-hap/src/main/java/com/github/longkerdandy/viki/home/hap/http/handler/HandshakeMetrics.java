@@ -0,0 +1,115 @@
+package com.github.longkerdandy.viki.home.hap.http.handler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of the pairing handshake phases
+ *
+ * Each phase is one request and its response, measured from the request being dispatched on the
+ * event loop until the response is flushed back on it. The time spent waiting for a crypto thread
+ * is recorded separately, so a saturated executor can be told apart from slow crypto.
+ */
+public class HandshakeMetrics {
+
+  /**
+   * Handshake phases, named by the request and its response
+   */
+  public enum Phase {
+    PAIR_SETUP_M1("pair-setup M1/M2"),
+    PAIR_SETUP_M3("pair-setup M3/M4"),
+    PAIR_SETUP_M5("pair-setup M5/M6"),
+    PAIR_VERIFY_M1("pair-verify M1/M2"),
+    PAIR_VERIFY_M3("pair-verify M3/M4");
+
+    private final String description;
+
+    Phase(String description) {
+      this.description = description;
+    }
+
+    @Override
+    public String toString() {
+      return this.description;
+    }
+  }
+
+  private static final int PHASES = Phase.values().length;
+
+  private final AtomicLongArray count = new AtomicLongArray(PHASES);
+  private final AtomicLongArray rejected = new AtomicLongArray(PHASES);
+  private final AtomicLongArray totalNanos = new AtomicLongArray(PHASES);
+  private final AtomicLongArray maxNanos = new AtomicLongArray(PHASES);
+  private final AtomicLongArray queuedNanos = new AtomicLongArray(PHASES);
+
+  /**
+   * Record a completed phase
+   *
+   * @param phase {@link Phase}
+   * @param queued Nanoseconds waiting for a crypto thread
+   * @param latency Nanoseconds from dispatch to response
+   */
+  public void record(Phase phase, long queued, long latency) {
+    int i = phase.ordinal();
+    this.count.incrementAndGet(i);
+    this.totalNanos.addAndGet(i, latency);
+    this.queuedNanos.addAndGet(i, queued);
+    this.maxNanos.accumulateAndGet(i, latency, Math::max);
+  }
+
+  /**
+   * Record a phase rejected because the crypto executor was full
+   *
+   * @param phase {@link Phase}
+   */
+  public void reject(Phase phase) {
+    this.rejected.incrementAndGet(phase.ordinal());
+  }
+
+  public long getCount(Phase phase) {
+    return this.count.get(phase.ordinal());
+  }
+
+  public long getRejected(Phase phase) {
+    return this.rejected.get(phase.ordinal());
+  }
+
+  public long getTotalNanos(Phase phase) {
+    return this.totalNanos.get(phase.ordinal());
+  }
+
+  public long getMaxNanos(Phase phase) {
+    return this.maxNanos.get(phase.ordinal());
+  }
+
+  public long getQueuedNanos(Phase phase) {
+    return this.queuedNanos.get(phase.ordinal());
+  }
+
+  /**
+   * Get the average latency
+   *
+   * @param phase {@link Phase}
+   * @return Average nanoseconds from dispatch to response, 0 if never completed
+   */
+  public long getAverageNanos(Phase phase) {
+    long n = getCount(phase);
+    return n == 0 ? 0 : getTotalNanos(phase) / n;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("HandshakeMetrics{");
+    for (Phase phase : Phase.values()) {
+      if (phase.ordinal() > 0) {
+        sb.append(", ");
+      }
+      sb.append(phase).append(": count=").append(getCount(phase))
+          .append(" rejected=").append(getRejected(phase))
+          .append(" avg=").append(TimeUnit.NANOSECONDS.toMicros(getAverageNanos(phase)))
+          .append("us max=").append(TimeUnit.NANOSECONDS.toMicros(getMaxNanos(phase)))
+          .append("us");
+    }
+    return sb.append('}').toString();
+  }
+}
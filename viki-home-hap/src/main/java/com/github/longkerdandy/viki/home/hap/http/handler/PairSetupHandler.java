@@ -27,6 +27,7 @@ import com.github.longkerdandy.viki.home.hap.crypto.HAPClientEvidenceRoutine;
 import com.github.longkerdandy.viki.home.hap.crypto.HAPSRP6Routines;
 import com.github.longkerdandy.viki.home.hap.crypto.HAPSRP6ServerSession;
 import com.github.longkerdandy.viki.home.hap.crypto.HAPServerEvidenceRoutine;
+import com.github.longkerdandy.viki.home.hap.http.handler.HandshakeMetrics.Phase;
 import com.github.longkerdandy.viki.home.hap.http.tlv.TLVDecoder;
 import com.github.longkerdandy.viki.home.hap.http.tlv.TLVEncoder;
 import com.github.longkerdandy.viki.home.hap.http.tlv.TLVError;
@@ -79,6 +80,9 @@ public class PairSetupHandler {
   // mDNS
   private final HAPmDNSAdvertiser advertiser;
 
+  // runs the SRP and crypto off the event loop
+  private final HandshakeExecutor handshakeExecutor;
+
   /**
    * Constructor
    *
@@ -86,20 +90,23 @@ public class PairSetupHandler {
    * @param macAddress MAC Address
    * @param P Password (aka Setup Code, PIN Code)
    * @param advertiser {@link HAPmDNSAdvertiser}
+   * @param handshakeExecutor {@link HandshakeExecutor}
    */
   public PairSetupHandler(HAPStorage hapStorage, String macAddress, String P,
-      HAPmDNSAdvertiser advertiser) {
+      HAPmDNSAdvertiser advertiser, HandshakeExecutor handshakeExecutor) {
     this.hapStorage = hapStorage;
     this.macAddress = macAddress;
     this.P = P;
     this.advertiser = advertiser;
+    this.handshakeExecutor = handshakeExecutor;
   }
 
   /**
    * The method is called once we have received the complete {@link FullHttpRequest}, and the local
    * url is <code>"/pair-setup"</code>.
    *
-   * Used for Pair Setup.
+   * Used for Pair Setup. The request is parsed on the event loop, each state is then handled by the
+   * {@link HandshakeExecutor}.
    *
    * @param ctx {@link ChannelHandlerContext}
    * @param request {@link FullHttpRequest}
@@ -131,13 +138,13 @@ public class PairSetupHandler {
     int state = (Integer) tlv.get(TLVType.STATE);
     switch (state) {
       case 1:
-        handleM1State(ctx);
+        this.handshakeExecutor.execute(ctx, Phase.PAIR_SETUP_M1, 2, () -> handleM1State(ctx));
         break;
       case 3:
-        handleM3State(ctx, tlv);
+        this.handshakeExecutor.execute(ctx, Phase.PAIR_SETUP_M3, 4, () -> handleM3State(ctx, tlv));
         break;
       case 5:
-        handleM5State(ctx, tlv);
+        this.handshakeExecutor.execute(ctx, Phase.PAIR_SETUP_M5, 6, () -> handleM5State(ctx, tlv));
         break;
       default:
         logger.warn("Pair setup message with unknown TLV State {}", state);
@@ -1,5 +1,6 @@
 package com.github.longkerdandy.viki.home.hap.http.handler;
 
+import static com.github.longkerdandy.viki.home.hap.util.Ciphers.chaCha20Poly1305;
 import static com.github.longkerdandy.viki.home.hap.util.Ciphers.chaCha20Poly1305Decrypt;
 import static com.github.longkerdandy.viki.home.hap.util.Ciphers.chaCha20Poly1305Encrypt;
 import static com.github.longkerdandy.viki.home.hap.util.Ciphers.chaCha20Poly1305Nonce;
@@ -18,7 +19,9 @@ import static io.netty.handler.codec.http.HttpMethod.POST;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
 
+import com.github.longkerdandy.viki.home.hap.crypto.OctetKeyPair;
 import com.github.longkerdandy.viki.home.hap.http.frame.FrameCodec;
+import com.github.longkerdandy.viki.home.hap.http.handler.HandshakeMetrics.Phase;
 import com.github.longkerdandy.viki.home.hap.http.tlv.TLVDecoder;
 import com.github.longkerdandy.viki.home.hap.http.tlv.TLVEncoder;
 import com.github.longkerdandy.viki.home.hap.http.tlv.TLVError;
@@ -40,7 +43,6 @@ import java.util.Optional;
 import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.whispersystems.curve25519.Curve25519KeyPair;
 
 /**
  * Handles Pair Verify
@@ -58,24 +60,31 @@ public class PairVerifyHandler {
   // session registry
   private Registry registry;
 
+  // runs the crypto off the event loop
+  private final HandshakeExecutor handshakeExecutor;
+
   /**
    * Constructor
    *
    * @param hapStorage {@link HAPStorage}
    * @param macAddress MAC Address
    * @param registry {@link Registry}
+   * @param handshakeExecutor {@link HandshakeExecutor}
    */
-  public PairVerifyHandler(HAPStorage hapStorage, String macAddress, Registry registry) {
+  public PairVerifyHandler(HAPStorage hapStorage, String macAddress, Registry registry,
+      HandshakeExecutor handshakeExecutor) {
     this.hapStorage = hapStorage;
     this.macAddress = macAddress;
     this.registry = registry;
+    this.handshakeExecutor = handshakeExecutor;
   }
 
   /**
    * The method is called once we have received the complete {@link FullHttpRequest}, and the local
    * url is <code>"/pair-verify"</code>.
    *
-   * Used for Pair Verify.
+   * Used for Pair Verify. The request is parsed on the event loop, each state is then handled by
+   * the {@link HandshakeExecutor}.
    *
    * @param ctx {@link ChannelHandlerContext}
    * @param request {@link FullHttpRequest}
@@ -107,10 +116,10 @@ public class PairVerifyHandler {
     int state = (Integer) tlv.get(TLVType.STATE);
     switch (state) {
       case 1:
-        handleM1State(ctx, tlv);
+        this.handshakeExecutor.execute(ctx, Phase.PAIR_VERIFY_M1, 2, () -> handleM1State(ctx, tlv));
         break;
       case 3:
-        handleM3State(ctx, tlv);
+        this.handshakeExecutor.execute(ctx, Phase.PAIR_VERIFY_M3, 4, () -> handleM3State(ctx, tlv));
         break;
       default:
         logger.warn("Pair verify message with unknown TLV State {}", state);
@@ -162,8 +171,15 @@ public class PairVerifyHandler {
     byte[] iOSDevicePK = (byte[]) tlv.get(TLVType.PUBLIC_KEY);
 
     // Generate SharedSecret
-    Curve25519KeyPair AccessoryKeyPair = curve25519KeyGen();
-    byte[] SharedSecret = curve25519SharedSecret(iOSDevicePK, AccessoryKeyPair.getPrivateKey());
+    OctetKeyPair AccessoryKeyPair = curve25519KeyGen();
+    byte[] SharedSecret;
+    try {
+      SharedSecret = curve25519SharedSecret(iOSDevicePK, AccessoryKeyPair.getPrivateKey());
+    } catch (GeneralSecurityException e) {
+      logger.warn("Error when generating SharedSecret", e);
+      errorTLVResponse(ctx, BAD_REQUEST, 2, TLVError.UNKNOWN);
+      return;
+    }
 
     // Concatenate AccessoryInfo
     String AccessoryPairingID = this.macAddress;
@@ -350,8 +366,11 @@ public class PairVerifyHandler {
     ctx.channel().attr(AttributeKey.valueOf("ControllerToAccessoryKey"))
         .set(ControllerToAccessoryKey);
 
-    // Save session
-    this.registry.saveSession(iOSDevicePairingID, ctx);
+    // Create the session ciphers once, so the key schedules are reused by every frame
+    ctx.channel().attr(AttributeKey.valueOf("AccessoryToControllerCipher"))
+        .set(chaCha20Poly1305(AccessoryToControllerKey));
+    ctx.channel().attr(AttributeKey.valueOf("ControllerToAccessoryCipher"))
+        .set(chaCha20Poly1305(ControllerToAccessoryKey));
 
     // Construct the response
     LinkedHashMap<TLVType, Object> result = new LinkedHashMap<>(1);
@@ -361,7 +380,11 @@ public class PairVerifyHandler {
     // Send the response to the iOS device
     successTLVResponse(ctx, result);
 
-    // Finished pair stage and http frame codec
-    ctx.pipeline().addAfter("log", "frame", new FrameCodec());
+    // Finished pair stage and http frame codec, then save session
+    // On the event loop after the response, so the response is not encrypted
+    ctx.executor().execute(() -> {
+      ctx.pipeline().addAfter("log", "frame", new FrameCodec());
+      this.registry.saveSession(iOSDevicePairingID, ctx);
+    });
   }
 }
@@ -2,6 +2,7 @@ package com.github.longkerdandy.viki.home.hap.http.handler;
 
 import static com.github.longkerdandy.viki.home.hap.util.Handlers.MIME_TLV8;
 import static com.github.longkerdandy.viki.home.hap.util.Handlers.errorTLVResponse;
+import static com.github.longkerdandy.viki.home.hap.util.Handlers.respondOnCompletion;
 import static com.github.longkerdandy.viki.home.hap.util.Handlers.successTLVResponse;
 import static com.github.longkerdandy.viki.home.hap.util.Handlers.writeResponse;
 import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
@@ -17,6 +18,7 @@ import com.github.longkerdandy.viki.home.hap.http.tlv.TLVMethod;
 import com.github.longkerdandy.viki.home.hap.http.tlv.TLVType;
 import com.github.longkerdandy.viki.home.hap.mdns.HAPmDNSAdvertiser;
 import com.github.longkerdandy.viki.home.hap.model.Pairing;
+import com.github.longkerdandy.viki.home.hap.storage.AsyncHAPStorage;
 import com.github.longkerdandy.viki.home.hap.storage.HAPStorage;
 import com.github.longkerdandy.viki.home.hap.storage.Registry;
 import io.netty.buffer.ByteBuf;
@@ -33,13 +35,16 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Handles Pairings Management
+ *
+ * The permission check and the changes of each request run as one operation on the storage
+ * thread of {@link AsyncHAPStorage}, the response is written once it completed.
  */
 public class PairingsHandler {
 
   private static final Logger logger = LoggerFactory.getLogger(PairingsHandler.class);
 
   // HomeKit Accessory Protocol related storage
-  private final HAPStorage hapStorage;
+  private final AsyncHAPStorage hapStorage;
   // mDNS
   private final HAPmDNSAdvertiser advertiser;
   // session registry
@@ -48,11 +53,12 @@ public class PairingsHandler {
   /**
    * Constructor
    *
-   * @param hapStorage {@link HAPStorage}
+   * @param hapStorage {@link AsyncHAPStorage}
    * @param registry {@link Registry}
    * @param advertiser {@link HAPmDNSAdvertiser}
    */
-  public PairingsHandler(HAPStorage hapStorage, Registry registry, HAPmDNSAdvertiser advertiser) {
+  public PairingsHandler(AsyncHAPStorage hapStorage, Registry registry,
+      HAPmDNSAdvertiser advertiser) {
     this.hapStorage = hapStorage;
     this.registry = registry;
     this.advertiser = advertiser;
@@ -175,33 +181,39 @@ public class PairingsHandler {
       return;
     }
 
-    // Check iOSDevice has admin permission
-    Optional<Pairing> pairing = this.hapStorage.getPairingById(iOSDevicePairingID);
-    if (pairing.isEmpty() || pairing.get().getPermissions() != 1) {
-      logger.warn("The iOSDevice does not have administrator permission");
-      errorTLVResponse(ctx, BAD_REQUEST, 2, TLVError.AUTHENTICATION);
-      return;
-    }
-
-    // Save additional controller's pairing
     String AdditionalControllerPairingIdentifier = (String) tlv.get(TLVType.IDENTIFIER);
     byte[] AdditionalControllerLTPK = (byte[]) tlv.get(TLVType.PUBLIC_KEY);
     int AdditionalControllerPermissions = (Integer) tlv.get(TLVType.PERMISSIONS);
     Pairing additionalPairing = new Pairing(AdditionalControllerPairingIdentifier,
         AdditionalControllerLTPK, AdditionalControllerPermissions);
-    if (!this.hapStorage.savePairing(additionalPairing)) {
-      logger.warn("Fail to add AdditionalControllerPairingIdentifier and AdditionalControllerLTPK");
-      errorTLVResponse(ctx, BAD_REQUEST, 2, TLVError.UNKNOWN);
-      return;
-    }
+    respondOnCompletion(ctx, this.hapStorage.submit(storage -> {
+      // Check iOSDevice has admin permission
+      if (!isAdmin(storage, iOSDevicePairingID)) {
+        logger.warn("The iOSDevice does not have administrator permission");
+        return TLVError.AUTHENTICATION;
+      }
 
-    // Construct the response
-    LinkedHashMap<TLVType, Object> result = new LinkedHashMap<>(1);
-    result.put(TLVType.STATE, 2);
+      // Save additional controller's pairing
+      if (!storage.savePairing(additionalPairing)) {
+        logger.warn(
+            "Fail to add AdditionalControllerPairingIdentifier and AdditionalControllerLTPK");
+        return TLVError.UNKNOWN;
+      }
+      return null;
+    }), error -> {
+      if (error != null) {
+        errorTLVResponse(ctx, BAD_REQUEST, 2, error);
+        return;
+      }
 
-    logger.debug("Send back add pairing message with M2 state");
-    // Send the response to the iOS device
-    successTLVResponse(ctx, result);
+      // Construct the response
+      LinkedHashMap<TLVType, Object> result = new LinkedHashMap<>(1);
+      result.put(TLVType.STATE, 2);
+
+      logger.debug("Send back add pairing message with M2 state");
+      // Send the response to the iOS device
+      successTLVResponse(ctx, result);
+    });
   }
 
   /**
@@ -268,58 +280,64 @@ public class PairingsHandler {
       return;
     }
 
-    // Check iOSDevice has admin permission
-    Optional<Pairing> pairing = this.hapStorage.getPairingById(iOSDevicePairingID);
-    if (pairing.isEmpty() || pairing.get().getPermissions() != 1) {
-      logger.warn("The iOSDevice does not have administrator permission");
-      errorTLVResponse(ctx, BAD_REQUEST, 2, TLVError.AUTHENTICATION);
-      return;
-    }
-
-    // Remove remote controller's pairing
     String RemovedControllerPairingIdentifier = (String) tlv.get(TLVType.IDENTIFIER);
-    this.hapStorage.removePairingById(RemovedControllerPairingIdentifier);
-
-    logger.debug("Send back remove pairing message with M2 state");
-    // Construct the response
-    LinkedHashMap<TLVType, Object> result = new LinkedHashMap<>(1);
-    result.put(TLVType.STATE, 2);
-
-    // Send the response to the iOS device
-    ByteBuf content = TLVEncoder.encode(result);
-    if (iOSDevicePairingID.equals(RemovedControllerPairingIdentifier)) {
-      writeResponse(ctx, MIME_TLV8, OK, content, false);
-    } else {
-      writeResponse(ctx, MIME_TLV8, OK, content, true);
-
-      // Tear down RemovedControllerPairingIdentifier's connection
-      ChannelHandlerContext c = this.registry.getSession(RemovedControllerPairingIdentifier);
-      if (c != null) {
-        logger.debug("Disconnecting required controller {}", RemovedControllerPairingIdentifier);
-        c.close();
+    respondOnCompletion(ctx, this.hapStorage.submit(storage -> {
+      // Check iOSDevice has admin permission
+      if (!isAdmin(storage, iOSDevicePairingID)) {
+        logger.warn("The iOSDevice does not have administrator permission");
+        return Optional.<List<Pairing>>empty();
       }
-    }
 
-    // Clear parings is no admin controller exist
-    List<Pairing> pairings = this.hapStorage.clearPairingsIfNoAdmin();
+      // Remove remote controller's pairing
+      storage.removePairingById(RemovedControllerPairingIdentifier);
+
+      // Clear parings is no admin controller exist
+      List<Pairing> pairings = storage.clearPairingsIfNoAdmin();
+
+      if (storage.getPairings().isEmpty()) {
+        // Mark the bridge as unpaired if necessary
+        storage.changeBridgeStatus(1);
 
-    // Tear down any exist connections
-    for (Pairing p : pairings) {
-      ChannelHandlerContext c = this.registry.getSession(p.getParingId());
-      if (c != null) {
-        logger.debug("Disconnecting {} due to no administrator controller exist", p.getParingId());
-        c.close();
+        // Reload mDNS service
+        this.advertiser.reloadBridgeServiceAsync();
+      }
+      return Optional.of(pairings);
+    }), cleared -> {
+      if (cleared.isEmpty()) {
+        errorTLVResponse(ctx, BAD_REQUEST, 2, TLVError.AUTHENTICATION);
+        return;
       }
-    }
 
-    pairings = this.hapStorage.getPairings();
-    if (pairings.isEmpty()) {
-      // Mark the bridge as unpaired if necessary
-      this.hapStorage.changeBridgeStatus(1);
+      logger.debug("Send back remove pairing message with M2 state");
+      // Construct the response
+      LinkedHashMap<TLVType, Object> result = new LinkedHashMap<>(1);
+      result.put(TLVType.STATE, 2);
+
+      // Send the response to the iOS device
+      ByteBuf content = TLVEncoder.encode(result);
+      if (iOSDevicePairingID.equals(RemovedControllerPairingIdentifier)) {
+        writeResponse(ctx, MIME_TLV8, OK, content, false);
+      } else {
+        writeResponse(ctx, MIME_TLV8, OK, content, true);
+
+        // Tear down RemovedControllerPairingIdentifier's connection
+        ChannelHandlerContext c = this.registry.getSession(RemovedControllerPairingIdentifier);
+        if (c != null) {
+          logger.debug("Disconnecting required controller {}", RemovedControllerPairingIdentifier);
+          c.close();
+        }
+      }
 
-      // Reload mDNS service
-      this.advertiser.reloadBridgeServiceAsync();
-    }
+      // Tear down any exist connections
+      for (Pairing p : cleared.get()) {
+        ChannelHandlerContext c = this.registry.getSession(p.getParingId());
+        if (c != null) {
+          logger.debug("Disconnecting {} due to no administrator controller exist",
+              p.getParingId());
+          c.close();
+        }
+      }
+    });
   }
 
   /**
@@ -386,31 +404,48 @@ public class PairingsHandler {
       return;
     }
 
-    // Check iOSDevice has admin permission
-    Optional<Pairing> pairing = this.hapStorage.getPairingById(iOSDevicePairingID);
-    if (pairing.isEmpty() || pairing.get().getPermissions() != 1) {
-      logger.warn("The iOSDevice does not have administrator permission");
-      errorTLVResponse(ctx, BAD_REQUEST, 2, TLVError.AUTHENTICATION);
-      return;
-    }
+    respondOnCompletion(ctx, this.hapStorage.submit(storage -> {
+      // Check iOSDevice has admin permission
+      if (!isAdmin(storage, iOSDevicePairingID)) {
+        logger.warn("The iOSDevice does not have administrator permission");
+        return Optional.<List<Pairing>>empty();
+      }
 
-    // Load all the pairings
-    List<Pairing> pairings = this.hapStorage.getPairings();
+      // Load all the pairings
+      return Optional.of(storage.getPairings());
+    }), pairings -> {
+      if (pairings.isEmpty()) {
+        errorTLVResponse(ctx, BAD_REQUEST, 2, TLVError.AUTHENTICATION);
+        return;
+      }
 
-    // Construct the response
-    LinkedHashMap<TLVType, Object> result = new LinkedHashMap<>(pairings.size() * 4);
-    result.put(TLVType.STATE, 2);
-    for (Pairing p : pairings) {
-      if (result.size() > 1) {
-        result.put(TLVType.SEPARATOR, null);
+      // Construct the response
+      LinkedHashMap<TLVType, Object> result = new LinkedHashMap<>(pairings.get().size() * 4);
+      result.put(TLVType.STATE, 2);
+      for (Pairing p : pairings.get()) {
+        if (result.size() > 1) {
+          result.put(TLVType.SEPARATOR, null);
+        }
+        result.put(TLVType.IDENTIFIER, p.getParingId());
+        result.put(TLVType.PUBLIC_KEY, p.getPublicKey());
+        result.put(TLVType.PERMISSIONS, p.getPermissions());
       }
-      result.put(TLVType.IDENTIFIER, p.getParingId());
-      result.put(TLVType.PUBLIC_KEY, p.getPublicKey());
-      result.put(TLVType.PERMISSIONS, p.getPermissions());
-    }
 
-    logger.debug("Send back list pairing message with M2 state");
-    // Send the response to the iOS device
-    successTLVResponse(ctx, result);
+      logger.debug("Send back list pairing message with M2 state");
+      // Send the response to the iOS device
+      successTLVResponse(ctx, result);
+    });
+  }
+
+  /**
+   * Check the controller has admin permission, called on the storage thread
+   *
+   * @param storage {@link HAPStorage}
+   * @param pairingId Pairing Id of the controller
+   * @return True if the controller is paired as admin
+   */
+  protected static boolean isAdmin(HAPStorage storage, String pairingId) {
+    Optional<Pairing> pairing = storage.getPairingById(pairingId);
+    return pairing.isPresent() && pairing.get().getPermissions() == 1;
   }
 }
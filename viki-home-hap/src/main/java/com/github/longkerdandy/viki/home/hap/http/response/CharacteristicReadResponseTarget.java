@@ -66,6 +66,9 @@ public class CharacteristicReadResponseTarget {
 
   @JsonProperty("type")
   public String getShortType() {
+    if (type == null) {
+      return null;
+    }
     String s = type.toString().toUpperCase();
     if (s.length() == 36 && s.endsWith(Type.BASE_UUID_SUFFIX)) {
       return StringUtils.stripStart(s.substring(0, 8), "0");
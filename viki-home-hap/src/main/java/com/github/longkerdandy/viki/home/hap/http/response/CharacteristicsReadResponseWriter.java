@@ -0,0 +1,112 @@
+package com.github.longkerdandy.viki.home.hap.http.response;
+
+import com.github.longkerdandy.viki.home.hap.storage.CharacteristicEntry;
+import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Write the read response for /characteristics directly from the pre-serialized {@link
+ * CharacteristicEntry}
+ *
+ * The output is the same as {@link CharacteristicsReadResponse} serialized by Jackson, without
+ * creating the response objects on the event loop.
+ */
+public class CharacteristicsReadResponseWriter {
+
+  private static final byte[] PREFIX = bytes("{\"characteristics\":[");
+  private static final byte[] SUFFIX = bytes("]}");
+  private static final byte[] AID = bytes("{\"aid\":");
+  private static final byte[] IID = bytes(",\"iid\":");
+  private static final byte[] VALUE = bytes(",\"value\":");
+  private static final byte[] EV_TRUE = bytes(",\"ev\":true");
+  private static final byte[] EV_FALSE = bytes(",\"ev\":false");
+  private static final byte[] STATUS = bytes(",\"status\":");
+
+  private CharacteristicsReadResponseWriter() {
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write the read response
+   *
+   * @param out {@link ByteBuf}
+   * @param keys Accessory and Characteristic Instance Id pairs, packed as aid << 32 | iid
+   * @param entries {@link CharacteristicEntry} for each key, null if not exist
+   * @param meta Whether to include the metadata
+   * @param perms Whether to include the permissions
+   * @param type Whether to include the type
+   * @param ev Whether to include the "ev" property
+   * @return True if all characteristics exist, false if the status is included (207 Multi-Status)
+   */
+  public static boolean write(ByteBuf out, long[] keys, CharacteristicEntry[] entries,
+      boolean meta, boolean perms, boolean type, boolean ev) {
+    // Status field only if any failure
+    boolean fail = false;
+    for (CharacteristicEntry entry : entries) {
+      if (entry == null) {
+        fail = true;
+        break;
+      }
+    }
+
+    out.writeBytes(PREFIX);
+    for (int i = 0; i < keys.length; i++) {
+      CharacteristicEntry entry = entries[i];
+      if (i > 0) {
+        out.writeByte(',');
+      }
+      out.writeBytes(AID);
+      writeNumber(out, keys[i] >>> 32);
+      if (entry != null && type) {
+        out.writeBytes(entry.getType());
+      }
+      out.writeBytes(IID);
+      writeNumber(out, keys[i] & 0xFFFFFFFFL);
+      if (entry != null) {
+        byte[] value = entry.getValue();
+        if (value != null) {
+          out.writeBytes(VALUE);
+          out.writeBytes(value);
+        }
+        if (perms) {
+          out.writeBytes(entry.getPerms());
+        }
+        Boolean enableEvent = entry.getEnableEvent();
+        if (ev && enableEvent != null) {
+          out.writeBytes(enableEvent ? EV_TRUE : EV_FALSE);
+        }
+        if (meta) {
+          out.writeBytes(entry.getMeta());
+        }
+      }
+      if (fail) {
+        out.writeBytes(STATUS);
+        Status status = entry != null ? Status.SUCCESS : Status.RESOURCE_NOT_EXIST;
+        writeNumber(out, status.value());
+      }
+      out.writeByte('}');
+    }
+    out.writeBytes(SUFFIX);
+    return !fail;
+  }
+
+  /**
+   * Write the decimal digits of the number
+   */
+  private static void writeNumber(ByteBuf out, long number) {
+    if (number < 0) {
+      out.writeByte('-');
+      number = -number;
+    }
+    long divisor = 1;
+    while (divisor <= number / 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      out.writeByte((int) ('0' + number / divisor % 10));
+    }
+  }
+}
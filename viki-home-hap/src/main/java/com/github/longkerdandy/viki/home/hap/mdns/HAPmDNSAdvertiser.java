@@ -2,18 +2,23 @@ package com.github.longkerdandy.viki.home.hap.mdns;
 
 import com.github.longkerdandy.viki.home.hap.model.Bridge;
 import com.github.longkerdandy.viki.home.hap.model.Characteristic;
-import com.github.longkerdandy.viki.home.hap.storage.HAPStorage;
+import com.github.longkerdandy.viki.home.hap.storage.AccessoryDatabase;
+import com.github.longkerdandy.viki.home.hap.storage.AsyncHAPStorage;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.HashMap;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
 
 /**
  * mDNS advertiser for HomeKit Accessory Protocol Bridge
+ *
+ * The bridge properties are loaded on the storage thread, after the changes submitted before the
+ * reload, and announced from the advertiser's own thread.
  */
 public class HAPmDNSAdvertiser {
 
@@ -22,9 +27,11 @@ public class HAPmDNSAdvertiser {
   // http server port
   private final int port;
   // storage
-  private final HAPStorage hapStorage;
+  private final AsyncHAPStorage hapStorage;
   // mDNS
   private final JmDNS jmDNS;
+  // announce thread
+  private final ExecutorService executor;
 
   /**
    * Constructor
@@ -33,15 +40,16 @@ public class HAPmDNSAdvertiser {
    * @param hostname Hostname
    * @param macAddress Mac Address
    * @param port HTTP Server Port
-   * @param hapStorage {@link HAPStorage}
+   * @param hapStorage {@link AsyncHAPStorage}
    * @throws IOException if an exception occurs during the socket creation
    */
   public HAPmDNSAdvertiser(InetAddress address, String hostname, String macAddress, int port,
-      HAPStorage hapStorage) throws IOException {
+      AsyncHAPStorage hapStorage) throws IOException {
     this.macAddress = macAddress;
     this.port = port;
     this.hapStorage = hapStorage;
     this.jmDNS = JmDNS.create(address, hostname);
+    this.executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("hap-mdns", true));
   }
 
   /**
@@ -50,17 +58,18 @@ public class HAPmDNSAdvertiser {
    * @throws IOException if there is an error in the underlying protocol, such as a TCP error.
    */
   public void registerBridgeService() throws IOException {
-    this.jmDNS.registerService(getBridgeServiceInfo());
+    this.jmDNS.registerService(this.hapStorage.submit(storage -> getBridgeServiceInfo()).join());
   }
 
   /**
    * Re-announce the HomeKit Accessory Protocol Bridge service to mDNS asynchronously.
    */
   public void reloadBridgeServiceAsync() {
-    CompletableFuture.runAsync(() -> {
-      ServiceInfo[] services = this.jmDNS.list("_hap._tcp.local.");
-      services[0].setText(getBridgeProperties());
-    }, Executors.newSingleThreadExecutor());
+    this.hapStorage.submit(storage -> getBridgeProperties())
+        .thenAcceptAsync(props -> {
+          ServiceInfo[] services = this.jmDNS.list("_hap._tcp.local.");
+          services[0].setText(props);
+        }, this.executor);
   }
 
   /**
@@ -69,12 +78,13 @@ public class HAPmDNSAdvertiser {
    * @throws IOException if an I/O error occurs
    */
   public void shutdown() throws IOException {
+    this.executor.shutdown();
     this.jmDNS.unregisterAllServices();
     this.jmDNS.close();
   }
 
   /**
-   * Build the HomeKit Accessory Protocol Bridge ServiceInfo from storage
+   * Build the HomeKit Accessory Protocol Bridge ServiceInfo from storage, on the storage thread
    *
    * @return {@link ServiceInfo}
    */
@@ -85,7 +95,7 @@ public class HAPmDNSAdvertiser {
     // The name of the Bonjour service is the user-visible name of the accessory, e.g. "LED Bulb M123", and must
     // match the name provided in the Accessory Information Service of the HAP Accessory object that has an
     // instanceID of 1.
-    Optional<Characteristic> name = this.hapStorage
+    Optional<Characteristic> name = this.hapStorage.getStorage()
         .getCharacteristicByType(1, "00000023-0000-1000-8000-0026BB765291");
     if (name.isEmpty()) {
       throw new IllegalStateException("Bridge's name characteristic not exist.");
@@ -96,13 +106,19 @@ public class HAPmDNSAdvertiser {
   }
 
   /**
-   * Build the HomeKit Accessory Protocol Bridge properties from storage
+   * Build the HomeKit Accessory Protocol Bridge properties from storage, on the storage thread
+   *
+   * The {@link AccessoryDatabase} is refreshed first, so the accessories served always match the
+   * configuration number advertised.
    *
    * @return Properties
    */
   protected HashMap<String, String> getBridgeProperties() {
+    // Reload the accessories if the configuration number changed
+    this.hapStorage.getAccessoryDatabase().refresh(this.hapStorage.getStorage());
+
     // Get bridge information from storage
-    Bridge bridge = this.hapStorage.getBridgeInformation();
+    Bridge bridge = this.hapStorage.getStorage().getBridgeInformation();
 
     // Current configuration number. Required.
     // Must update when an accessory, service, or characteristic is added or removed on the accessory
@@ -116,7 +132,7 @@ public class HAPmDNSAdvertiser {
     int featureFlag = 0;
 
     // Model name of the accessory (e.g. "Device1,1"). Required.
-    Optional<Characteristic> model = this.hapStorage
+    Optional<Characteristic> model = this.hapStorage.getStorage()
         .getCharacteristicByType(1, "00000021-0000-1000-8000-0026BB765291");
     if (model.isEmpty()) {
       throw new IllegalStateException("Bridge's model characteristic not exist.");
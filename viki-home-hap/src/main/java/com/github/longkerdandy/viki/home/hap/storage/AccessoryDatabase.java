@@ -0,0 +1,222 @@
+package com.github.longkerdandy.viki.home.hap.storage;
+
+import static com.github.longkerdandy.viki.home.hap.storage.mapper.CharacteristicMapper.toValue;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicWriteRequestTarget;
+import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicWriteResponseTarget;
+import com.github.longkerdandy.viki.home.hap.http.response.Status;
+import com.github.longkerdandy.viki.home.hap.model.Accessory;
+import com.github.longkerdandy.viki.home.hap.model.Characteristic;
+import com.github.longkerdandy.viki.home.hap.model.Service;
+import com.github.longkerdandy.viki.home.util.Jacksons;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory accessory attribute database
+ *
+ * The accessories, services and characteristics are loaded once per bridge configuration number
+ * (c#) and kept with the serialized /accessories response. Each accessory is serialized separately,
+ * so a characteristic value change only serializes its own accessory again, and the response is
+ * concatenated from the cached fragments.
+ *
+ * The characteristics are indexed by {@link #key(long, long)} in a primitive map of {@link
+ * CharacteristicEntry}, so a read of many characteristics is a map probe for each of them.
+ *
+ * The model is only changed on the storage thread, right after the storage. The response and the
+ * characteristic table are published as immutable objects, and the entries as snapshots, read from
+ * the event loops without locking.
+ */
+public class AccessoryDatabase {
+
+  private static final Logger logger = LoggerFactory.getLogger(AccessoryDatabase.class);
+
+  private static final byte[] PREFIX = "{\"accessories\":[".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] SUFFIX = "]}".getBytes(StandardCharsets.UTF_8);
+
+  // model, on the storage thread
+  private final Map<Long, Accessory> accessories = new LinkedHashMap<>(); // aid
+  private final Map<Long, byte[]> fragments = new LinkedHashMap<>();      // aid -> json
+  private int configNum;
+  // characteristic table, aid << 32 | iid, not modified once published
+  private volatile LongObjectMap<CharacteristicEntry> characteristics = new LongObjectHashMap<>();
+  // serialized /accessories response
+  private volatile byte[] json;
+
+  /**
+   * Get the key of a characteristic, instance ids are assigned from 1 and stay below 2^32
+   *
+   * @param accessoryId Accessory Instance Id
+   * @param instanceId Characteristic Instance Id
+   * @return Key
+   */
+  public static long key(long accessoryId, long instanceId) {
+    return accessoryId << 32 | instanceId;
+  }
+
+  /**
+   * Whether the instance id can be packed into a {@link #key(long, long)}, ids out of the range
+   * would alias another characteristic
+   *
+   * @param instanceId Accessory or Characteristic Instance Id
+   * @return True if within 1 to 2^32 - 1
+   */
+  public static boolean isValidId(long instanceId) {
+    return instanceId >= 1 && instanceId <= 0xFFFFFFFFL;
+  }
+
+  /**
+   * Load the accessories if not loaded yet, or the configuration number changed, on the storage
+   * thread
+   *
+   * Must be called after accessories, services or characteristics are added or removed, which
+   * increments the configuration number.
+   *
+   * @param storage {@link HAPStorage}
+   */
+  public void refresh(HAPStorage storage) {
+    int current = storage.getBridgeInformation().getConfigNum();
+    if (this.json != null && current == this.configNum) {
+      return;
+    }
+
+    LongObjectMap<CharacteristicEntry> characteristics = new LongObjectHashMap<>();
+    this.accessories.clear();
+    this.fragments.clear();
+    for (Accessory accessory : storage.getAccessories()) {
+      long aid = accessory.getInstanceId();
+      this.accessories.put(aid, accessory);
+      for (Service service : accessory.getServices()) {
+        for (Characteristic characteristic : service.getCharacteristics()) {
+          characteristics.put(key(aid, characteristic.getInstanceId()),
+              new CharacteristicEntry(characteristic));
+        }
+      }
+      this.fragments.put(aid, serialize(accessory));
+    }
+    this.configNum = current;
+    this.characteristics = characteristics;
+    publish();
+    logger.info("Loaded {} accessories with {} characteristics, configuration number {}",
+        this.accessories.size(), this.characteristics.size(), current);
+  }
+
+  /**
+   * Apply the saved characteristics, on the storage thread
+   *
+   * The values are converted as if loaded from storage, "value" and "ev" only changed if present
+   * in the target. The accessories changed are serialized again, once for all the targets.
+   *
+   * @param targets List of {@link CharacteristicWriteRequestTarget}
+   * @param results Null if all saved, or List of {@link CharacteristicWriteResponseTarget} in the
+   * order of the targets
+   */
+  @SuppressWarnings("unchecked")
+  public void update(List<CharacteristicWriteRequestTarget> targets,
+      List<CharacteristicWriteResponseTarget> results) {
+    Map<Long, Accessory> changed = new LinkedHashMap<>();
+    for (int i = 0; i < targets.size(); i++) {
+      if (results != null && results.get(i).getStatus() != Status.SUCCESS) {
+        continue;
+      }
+      CharacteristicWriteRequestTarget target = targets.get(i);
+      long aid = target.getAccessoryId();
+      if (!isValidId(aid) || !isValidId(target.getInstanceId())) {
+        continue;
+      }
+      CharacteristicEntry entry = this.characteristics.get(key(aid, target.getInstanceId()));
+      if (entry == null) {
+        continue;
+      }
+      Characteristic characteristic = entry.getCharacteristic();
+
+      // same as the stored columns
+      if (target.getValue() != null) {
+        String value = target.getValue().toString();
+        try {
+          characteristic.setValue(toValue(characteristic.getFormat(), value));
+        } catch (NumberFormatException e) {
+          logger.warn("Invalid value {} for characteristic {}.{}", value, aid,
+              target.getInstanceId());
+        }
+      }
+      if (target.getEnableEvent() != null) {
+        characteristic.setEnableEvent(target.getEnableEvent());
+      }
+      entry.snapshot();
+      changed.put(aid, this.accessories.get(aid));
+    }
+
+    if (!changed.isEmpty()) {
+      for (Map.Entry<Long, Accessory> entry : changed.entrySet()) {
+        this.fragments.put(entry.getKey(), serialize(entry.getValue()));
+      }
+      publish();
+    }
+  }
+
+  /**
+   * Get the configuration number of the loaded accessories
+   *
+   * @return Configuration Number
+   */
+  public int getConfigNum() {
+    return this.configNum;
+  }
+
+  /**
+   * Get the characteristic
+   *
+   * @param key {@link #key(long, long)} of the characteristic
+   * @return {@link CharacteristicEntry}, or null if not exist or not loaded yet
+   */
+  public CharacteristicEntry getCharacteristic(long key) {
+    return this.characteristics.get(key);
+  }
+
+  /**
+   * Get the serialized /accessories response, must not be modified
+   *
+   * @return JSON bytes, or null if not loaded yet
+   */
+  public byte[] getAccessoriesJson() {
+    return this.json;
+  }
+
+  /**
+   * Concatenate the fragments into a new response
+   */
+  private void publish() {
+    int length = PREFIX.length + SUFFIX.length + Math.max(this.fragments.size() - 1, 0);
+    for (byte[] fragment : this.fragments.values()) {
+      length += fragment.length;
+    }
+    byte[] bytes = new byte[length];
+    System.arraycopy(PREFIX, 0, bytes, 0, PREFIX.length);
+    int position = PREFIX.length;
+    for (byte[] fragment : this.fragments.values()) {
+      if (position > PREFIX.length) {
+        bytes[position++] = ',';
+      }
+      System.arraycopy(fragment, 0, bytes, position, fragment.length);
+      position += fragment.length;
+    }
+    System.arraycopy(SUFFIX, 0, bytes, position, SUFFIX.length);
+    this.json = bytes;
+  }
+
+  static byte[] serialize(Object value) {
+    try {
+      return Jacksons.getWriter().writeValueAsBytes(value);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.longkerdandy.viki.home.hap.storage;
+
+import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicWriteRequestTarget;
+import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicWriteResponseTarget;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Asynchronous facade of {@link HAPStorage} for the Netty event loops
+ *
+ * JDBC calls block, and SQLite may wait for a fsync on every write, so the HTTP handlers never
+ * call {@link HAPStorage} on the event loop. The operations are submitted to a single storage
+ * thread instead, which also applies the writes in the order they were requested. The returned
+ * {@link CompletableFuture} is completed on the storage thread, with the result or the exception.
+ *
+ * The {@link AccessoryDatabase} is kept up to date on the storage thread, after the writes.
+ */
+public class AsyncHAPStorage {
+
+  // storage
+  private final HAPStorage storage;
+  // storage thread
+  private final ExecutorService executor;
+  // in-memory accessories
+  private final AccessoryDatabase accessories;
+
+  /**
+   * Constructor
+   *
+   * @param storage {@link HAPStorage}
+   */
+  public AsyncHAPStorage(HAPStorage storage) {
+    this.storage = storage;
+    this.executor = Executors.newSingleThreadExecutor(
+        new DefaultThreadFactory("hap-storage", true));
+    this.accessories = new AccessoryDatabase();
+  }
+
+  /**
+   * Get the underlying {@link HAPStorage}, for callers not on the event loop
+   *
+   * @return {@link HAPStorage}
+   */
+  public HAPStorage getStorage() {
+    return this.storage;
+  }
+
+  /**
+   * Get the in-memory {@link AccessoryDatabase}
+   *
+   * @return {@link AccessoryDatabase}
+   */
+  public AccessoryDatabase getAccessoryDatabase() {
+    return this.accessories;
+  }
+
+  /**
+   * Run the operation on the storage thread
+   *
+   * Several calls in one operation are not interleaved with other operations.
+   *
+   * @param operation Operation on {@link HAPStorage}
+   * @param <T> Result type
+   * @return {@link CompletableFuture} of the result
+   */
+  public <T> CompletableFuture<T> submit(Function<HAPStorage, T> operation) {
+    return CompletableFuture.supplyAsync(() -> operation.apply(this.storage), this.executor);
+  }
+
+  /**
+   * Load the {@link AccessoryDatabase} if the configuration number changed
+   *
+   * @return {@link CompletableFuture} of the configuration number
+   */
+  public CompletableFuture<Integer> refreshAccessories() {
+    return submit(storage -> {
+      this.accessories.refresh(storage);
+      return this.accessories.getConfigNum();
+    });
+  }
+
+  /**
+   * Save bunch of {@link CharacteristicWriteRequestTarget} to storage
+   *
+   * The targets are validated against the {@link AccessoryDatabase} and saved in one transaction.
+   * The future is completed once committed and applied to the {@link AccessoryDatabase}.
+   *
+   * @param targets List of {@link CharacteristicWriteRequestTarget}
+   * @return {@link CompletableFuture} of null if operation succeed or List of {@link
+   * CharacteristicWriteResponseTarget} contain error code
+   */
+  public CompletableFuture<List<CharacteristicWriteResponseTarget>> saveCharacteristics(
+      List<CharacteristicWriteRequestTarget> targets) {
+    return submit(storage -> {
+      // Validated against the current configuration
+      this.accessories.refresh(storage);
+      List<CharacteristicWriteResponseTarget> results = storage.saveCharacteristics(targets,
+          key -> this.accessories.getCharacteristic(key) != null);
+      this.accessories.update(targets, results);
+      return results;
+    });
+  }
+
+  /**
+   * Shutdown the storage thread, the submitted operations are completed
+   */
+  public void shutdown() {
+    this.executor.shutdown();
+  }
+}
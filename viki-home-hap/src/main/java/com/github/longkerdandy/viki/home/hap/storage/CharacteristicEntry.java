@@ -0,0 +1,126 @@
+package com.github.longkerdandy.viki.home.hap.storage;
+
+import static com.github.longkerdandy.viki.home.hap.storage.AccessoryDatabase.serialize;
+
+import com.github.longkerdandy.viki.home.hap.model.Characteristic;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Characteristic in the {@link AccessoryDatabase}, pre-serialized for the read responses
+ *
+ * The properties are serialized once when loaded, each with a leading comma, so the response is
+ * written by copying bytes. The value and the "ev" property are snapshots replaced on the storage
+ * thread after a write, and read from the event loops without locking.
+ */
+public class CharacteristicEntry {
+
+  // model, on the storage thread
+  private final Characteristic characteristic;
+  // serialized properties
+  private final byte[] type;
+  private final byte[] perms;
+  private final byte[] meta;
+  // snapshots
+  private volatile byte[] value;
+  private volatile Boolean enableEvent;
+
+  /**
+   * Constructor, on the storage thread
+   *
+   * @param characteristic {@link Characteristic}
+   */
+  CharacteristicEntry(Characteristic characteristic) {
+    this.characteristic = characteristic;
+    this.type = property(new ByteArrayOutputStream(), "type", characteristic.getShortType())
+        .toByteArray();
+    this.perms = property(new ByteArrayOutputStream(), "perms", characteristic.getPermissions())
+        .toByteArray();
+    ByteArrayOutputStream meta = new ByteArrayOutputStream();
+    property(meta, "format", characteristic.getFormat());
+    property(meta, "unit", characteristic.getUnit());
+    property(meta, "minValue", characteristic.getMinValue());
+    property(meta, "maxValue", characteristic.getMaxValue());
+    property(meta, "minStep", characteristic.getMinStep());
+    property(meta, "maxLen", characteristic.getMaxLength());
+    this.meta = meta.toByteArray();
+    snapshot();
+  }
+
+  /**
+   * Append ,"name":value to the stream, nothing if the value is null
+   */
+  private static ByteArrayOutputStream property(ByteArrayOutputStream out, String name,
+      Object value) {
+    if (value != null) {
+      out.writeBytes((",\"" + name + "\":").getBytes(StandardCharsets.UTF_8));
+      out.writeBytes(serialize(value));
+    }
+    return out;
+  }
+
+  /**
+   * Take the snapshots of the value and the "ev" property, on the storage thread, after the model
+   * changed
+   */
+  void snapshot() {
+    Object value = this.characteristic.getValue();
+    this.value = value == null ? null : serialize(value);
+    this.enableEvent = this.characteristic.getEnableEvent();
+  }
+
+  /**
+   * Get the model, on the storage thread
+   *
+   * @return {@link Characteristic}
+   */
+  Characteristic getCharacteristic() {
+    return this.characteristic;
+  }
+
+  /**
+   * Get the serialized "type" property
+   *
+   * @return JSON bytes with a leading comma, must not be modified
+   */
+  public byte[] getType() {
+    return this.type;
+  }
+
+  /**
+   * Get the serialized "perms" property
+   *
+   * @return JSON bytes with a leading comma, must not be modified
+   */
+  public byte[] getPerms() {
+    return this.perms;
+  }
+
+  /**
+   * Get the serialized metadata properties: "format", "unit", "minValue", "maxValue", "minStep"
+   * and "maxLen" if they exist
+   *
+   * @return JSON bytes with a leading comma, or empty, must not be modified
+   */
+  public byte[] getMeta() {
+    return this.meta;
+  }
+
+  /**
+   * Get the serialized value snapshot
+   *
+   * @return JSON bytes, or null if no value, must not be modified
+   */
+  public byte[] getValue() {
+    return this.value;
+  }
+
+  /**
+   * Get the "ev" property snapshot
+   *
+   * @return Enable Event, may be null
+   */
+  public Boolean getEnableEvent() {
+    return this.enableEvent;
+  }
+}
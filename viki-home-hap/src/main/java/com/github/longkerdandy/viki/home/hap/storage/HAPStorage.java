@@ -3,6 +3,7 @@ package com.github.longkerdandy.viki.home.hap.storage;
 import static com.github.longkerdandy.viki.home.hap.util.Ciphers.ed25519KeyGen;
 import static com.github.longkerdandy.viki.home.util.SQLites.parseSQLitePragma;
 
+import com.github.longkerdandy.viki.home.hap.crypto.OctetKeyPair;
 import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicWriteRequestTarget;
 import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicWriteResponseTarget;
 import com.github.longkerdandy.viki.home.hap.http.response.Status;
@@ -16,17 +17,18 @@ import com.github.longkerdandy.viki.home.hap.storage.mapper.BridgeMapper;
 import com.github.longkerdandy.viki.home.hap.storage.mapper.CharacteristicMapper;
 import com.github.longkerdandy.viki.home.hap.storage.mapper.PairingMapper;
 import com.github.longkerdandy.viki.home.hap.storage.mapper.ServiceMapper;
-import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.LongPredicate;
+import java.util.stream.Collectors;
 import javax.sql.DataSource;
-import net.i2p.crypto.eddsa.EdDSAPrivateKey;
-import net.i2p.crypto.eddsa.EdDSAPublicKey;
 import org.apache.commons.configuration2.AbstractConfiguration;
 import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.statement.PreparedBatch;
 import org.jdbi.v3.sqlite3.SQLitePlugin;
 import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteDataSource;
@@ -83,9 +85,9 @@ public class HAPStorage {
    */
   public void init() {
     // Bridge
-    KeyPair keyPair = ed25519KeyGen();
-    byte[] privateKey = ((EdDSAPrivateKey) keyPair.getPrivate()).getSeed();
-    byte[] publicKey = ((EdDSAPublicKey) keyPair.getPublic()).getAbyte();
+    OctetKeyPair keyPair = ed25519KeyGen();
+    byte[] privateKey = keyPair.getPrivateKey();
+    byte[] publicKey = keyPair.getPublicKey();
     this.jdbi.useHandle(handle ->
         handle.createUpdate(
             "INSERT OR IGNORE INTO ext_hap_bridge (aid, aid_counter, config_num, protocol_version, state_num, status_flag, category_id, private_key, public_key) "
@@ -267,14 +269,38 @@ public class HAPStorage {
   /**
    * Save bunch of {@link CharacteristicWriteRequestTarget} to storage
    *
+   * The targets are validated against the characteristics in storage.
+   *
    * @param targets List of {@link CharacteristicWriteRequestTarget}
    * @return Null if operation succeed or List of {@link CharacteristicWriteResponseTarget} contain
    * error code
    */
   public List<CharacteristicWriteResponseTarget> saveCharacteristics(
       List<CharacteristicWriteRequestTarget> targets) {
+    Set<Long> keys = this.jdbi.withHandle(handle ->
+        handle.createQuery("SELECT aid, cid FROM ext_hap_characteristic")
+            .map((rs, ctx) -> AccessoryDatabase.key(rs.getLong("aid"), rs.getLong("cid")))
+            .collect(Collectors.toSet()));
+    return saveCharacteristics(targets, keys::contains);
+  }
+
+  /**
+   * Save bunch of {@link CharacteristicWriteRequestTarget} to storage
+   *
+   * The targets are validated against the index, e.g. the {@link AccessoryDatabase}, then all the
+   * valid targets are saved in one transaction, as a batch in the order of the targets. "value"
+   * and "ev" are only saved if present in the target.
+   *
+   * @param targets List of {@link CharacteristicWriteRequestTarget}
+   * @param index Whether the characteristic exists, by {@link AccessoryDatabase#key(long, long)}
+   * @return Null if operation succeed or List of {@link CharacteristicWriteResponseTarget} contain
+   * error code
+   */
+  public List<CharacteristicWriteResponseTarget> saveCharacteristics(
+      List<CharacteristicWriteRequestTarget> targets, LongPredicate index) {
     boolean fail = false;
-    List<CharacteristicWriteResponseTarget> results = new ArrayList<>();
+    List<CharacteristicWriteResponseTarget> results = new ArrayList<>(targets.size());
+    List<CharacteristicWriteRequestTarget> valid = new ArrayList<>(targets.size());
 
     for (CharacteristicWriteRequestTarget target : targets) {
       long aid = target.getAccessoryId();
@@ -287,28 +313,34 @@ public class HAPStorage {
         continue;
       }
 
-      // Check characteristic's existence and format
-      Optional<Characteristic> characteristic = getCharacteristicById(aid, iid);
-      if (characteristic.isEmpty()) {
+      // Check characteristic's existence, ids out of the key range never exist
+      if (!AccessoryDatabase.isValidId(aid) || !AccessoryDatabase.isValidId(iid)
+          || !index.test(AccessoryDatabase.key(aid, iid))) {
         results.add(new CharacteristicWriteResponseTarget(aid, iid, Status.RESOURCE_NOT_EXIST));
         fail = true;
         continue;
       }
 
-      // Save characteristic to storage
-      String _value = target.getValue() == null ? null : target.getValue().toString();
-      Boolean enable_event = target.getEnableEvent();
-      this.jdbi.withHandle(handle ->
-          handle.createUpdate(
-              "UPDATE ext_hap_characteristic SET _value = :_value, enable_event = :enable_event WHERE aid = :aid AND cid = :cid")
-              .bind("_value", _value)
-              .bind("enable_event", enable_event)
-              .bind("aid", aid)
-              .bind("cid", iid)
-              .execute());
+      valid.add(target);
       results.add(new CharacteristicWriteResponseTarget(aid, iid, Status.SUCCESS));
     }
 
+    // Save characteristics to storage, committed once
+    if (!valid.isEmpty()) {
+      this.jdbi.useTransaction(handle -> {
+        PreparedBatch batch = handle.prepareBatch(
+            "UPDATE ext_hap_characteristic SET _value = COALESCE(:_value, _value), enable_event = COALESCE(:enable_event, enable_event) WHERE aid = :aid AND cid = :cid");
+        for (CharacteristicWriteRequestTarget target : valid) {
+          batch.bind("_value", target.getValue() == null ? null : target.getValue().toString())
+              .bind("enable_event", target.getEnableEvent())
+              .bind("aid", target.getAccessoryId())
+              .bind("cid", target.getInstanceId())
+              .add();
+        }
+        batch.execute();
+      });
+    }
+
     return fail ? results : null;
   }
 
@@ -81,6 +81,28 @@ public class CharacteristicMapper implements RowMapper<Characteristic> {
         .build();
   }
 
+  /**
+   * Convert the stored value to the value type of the format, as {@link #map} does
+   *
+   * @param format {@link Format}
+   * @param value Stored value
+   * @return Value, or null
+   * @throws NumberFormatException if the value does not match a numeric format
+   */
+  public static Object toValue(Format format, String value) {
+    if (format == Format.BOOL) {
+      return toBoolean(value);
+    } else if (format == Format.UINT8 || format == Format.UINT16 || format == Format.INT) {
+      return toInteger(value);
+    } else if (format == Format.UINT32 || format == Format.UINT64) {
+      return toLong(value);
+    } else if (format == Format.FLOAT) {
+      return toDouble(value);
+    } else {
+      return value;
+    }
+  }
+
   protected List<Permission> toPermissions(String value) {
     if (value != null) {
       return Arrays.stream(toArray(value)).map(Permission::fromValue).collect(Collectors.toList());
@@ -2,30 +2,20 @@ package com.github.longkerdandy.viki.home.hap.util;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
-import at.favre.lib.crypto.HKDF;
-import com.github.longkerdandy.viki.home.hap.crypto.ChaCha20Poly1305;
+import com.github.longkerdandy.viki.home.hap.crypto.Aead;
+import com.github.longkerdandy.viki.home.hap.crypto.BuiltinCryptoProvider;
+import com.github.longkerdandy.viki.home.hap.crypto.CryptoProvider;
+import com.github.longkerdandy.viki.home.hap.crypto.OctetKeyPair;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
-import java.security.KeyPair;
-import java.security.MessageDigest;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.SecureRandom;
-import net.i2p.crypto.eddsa.EdDSAEngine;
-import net.i2p.crypto.eddsa.EdDSAPrivateKey;
-import net.i2p.crypto.eddsa.EdDSAPublicKey;
-import net.i2p.crypto.eddsa.KeyPairGenerator;
-import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
-import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
-import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
-import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.RegExUtils;
-import org.whispersystems.curve25519.Curve25519;
-import org.whispersystems.curve25519.Curve25519KeyPair;
 
 /**
  * Cipher Util
+ *
+ * The primitives are delegated to the {@link CryptoProvider} selected at startup, the builtin pure
+ * Java implementations by default.
  */
 public final class Ciphers {
 
@@ -55,16 +45,35 @@ public final class Ciphers {
   // SRP SHA-512 is used as the hash function, replacing SHA-1.
   public static final String H = "SHA-512";
 
+  // selected provider
+  private static volatile CryptoProvider provider = new BuiltinCryptoProvider();
+
   private Ciphers() {
   }
 
   /**
-   * Generate Ed25519 Private Key and Public Key
+   * Get the {@link CryptoProvider} in use
+   *
+   * @return {@link CryptoProvider}
+   */
+  public static CryptoProvider getProvider() {
+    return provider;
+  }
+
+  /**
+   * Set the {@link CryptoProvider}, should be done once at startup before any session is created
+   *
+   * @param cryptoProvider {@link CryptoProvider}
+   */
+  public static void setProvider(CryptoProvider cryptoProvider) {
+    provider = cryptoProvider;
+  }
+
+  /**
+   * Generate Ed25519 Private Key (seed) and Public Key
    */
-  public static KeyPair ed25519KeyGen() {
-    KeyPairGenerator keygen = new KeyPairGenerator();
-    keygen.initialize(256, new SecureRandom());
-    return keygen.generateKeyPair();
+  public static OctetKeyPair ed25519KeyGen() {
+    return provider.ed25519KeyGen();
   }
 
   /**
@@ -77,11 +86,7 @@ public final class Ciphers {
    */
   public static byte[] ed25519Sign(byte[] privateKey, byte[] message)
       throws GeneralSecurityException {
-    EdDSAParameterSpec spec = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
-    EdDSAEngine ed25519 = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
-    PrivateKey key = new EdDSAPrivateKey(new EdDSAPrivateKeySpec(privateKey, spec));
-    ed25519.initSign(key);
-    return ed25519.signOneShot(message);
+    return provider.ed25519Sign(privateKey, message);
   }
 
   /**
@@ -95,19 +100,14 @@ public final class Ciphers {
    */
   public static boolean ed25519Verify(byte[] publicKey, byte[] message, byte[] signature)
       throws GeneralSecurityException {
-    EdDSAParameterSpec spec = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
-    EdDSAEngine ed25519 = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
-    PublicKey key = new EdDSAPublicKey(new EdDSAPublicKeySpec(publicKey, spec));
-    ed25519.initVerify(key);
-    return ed25519.verifyOneShot(message, signature);
+    return provider.ed25519Verify(publicKey, message, signature);
   }
 
   /**
    * Generate Curve25519 Private Key and Public Key
    */
-  public static Curve25519KeyPair curve25519KeyGen() {
-    Curve25519 cipher = Curve25519.getInstance(Curve25519.BEST);
-    return cipher.generateKeyPair();
+  public static OctetKeyPair curve25519KeyGen() {
+    return provider.x25519KeyGen();
   }
 
   /**
@@ -116,10 +116,11 @@ public final class Ciphers {
    * @param publicKey The Curve25519 (typically remote party's) Public Key
    * @param privateKey The Curve25519 (typically yours) Private Key
    * @return A 32-byte shared secret
+   * @throws GeneralSecurityException Due to invalid {@code publicKey} or {@code privateKey}
    */
-  public static byte[] curve25519SharedSecret(byte[] publicKey, byte[] privateKey) {
-    Curve25519 cipher = Curve25519.getInstance(Curve25519.BEST);
-    return cipher.calculateAgreement(publicKey, privateKey);
+  public static byte[] curve25519SharedSecret(byte[] publicKey, byte[] privateKey)
+      throws GeneralSecurityException {
+    return provider.x25519SharedSecret(publicKey, privateKey);
   }
 
   /**
@@ -132,8 +133,17 @@ public final class Ciphers {
    * @return byte array of Output Keying Material (OKM)
    */
   public static byte[] hkdf(byte[] inputKey, String salt, String info, int outputSize) {
-    HKDF hkdf = HKDF.fromHmacSha512();
-    return hkdf.extractAndExpand(salt.getBytes(UTF_8), inputKey, info.getBytes(UTF_8), outputSize);
+    return provider.hkdfSha512(inputKey, salt.getBytes(UTF_8), info.getBytes(UTF_8), outputSize);
+  }
+
+  /**
+   * Create a ChaCha20Poly1305 AEAD bound to the key, to be reused by a session
+   *
+   * @param key A 256-bit key
+   * @return {@link Aead}
+   */
+  public static Aead chaCha20Poly1305(byte[] key) {
+    return provider.chaCha20Poly1305(key);
   }
 
   /**
@@ -167,7 +177,7 @@ public final class Ciphers {
    * @return cipherText with format {actual_ciphertext || tag}
    */
   public static byte[] chaCha20Poly1305Encrypt(byte[] key, byte[] plaintext, byte[] nonce) {
-    ChaCha20Poly1305 cp = new ChaCha20Poly1305(key);
+    Aead cp = provider.chaCha20Poly1305(key);
     return cp.encrypt(plaintext, nonce, null);
   }
 
@@ -182,7 +192,7 @@ public final class Ciphers {
    */
   public static byte[] chaCha20Poly1305Encrypt(byte[] key, byte[] plaintext, byte[] nonce,
       byte[] additionalData) {
-    ChaCha20Poly1305 cp = new ChaCha20Poly1305(key);
+    Aead cp = provider.chaCha20Poly1305(key);
     return cp.encrypt(plaintext, nonce, additionalData);
   }
 
@@ -197,7 +207,7 @@ public final class Ciphers {
    */
   public static byte[] chaCha20Poly1305Decrypt(byte[] key, byte[] cipherText, byte[] nonce)
       throws GeneralSecurityException {
-    ChaCha20Poly1305 cp = new ChaCha20Poly1305(key);
+    Aead cp = provider.chaCha20Poly1305(key);
     return cp.decrypt(cipherText, nonce, null);
   }
 
@@ -213,7 +223,7 @@ public final class Ciphers {
    */
   public static byte[] chaCha20Poly1305Decrypt(byte[] key, byte[] cipherText, byte[] nonce,
       byte[] additionalData) throws GeneralSecurityException {
-    ChaCha20Poly1305 cp = new ChaCha20Poly1305(key);
+    Aead cp = provider.chaCha20Poly1305(key);
     return cp.decrypt(cipherText, nonce, additionalData);
   }
 
@@ -24,6 +24,10 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * HTTP Handler Util
@@ -33,6 +37,8 @@ public final class Handlers {
   public static final String MIME_TLV8 = "application/pairing+tlv8";
   public static final String MIME_JSON = "application/hap+json";
 
+  private static final Logger logger = LoggerFactory.getLogger(Handlers.class);
+
   private Handlers() {
   }
 
@@ -100,6 +106,9 @@ public final class Handlers {
   /**
    * Write response to the {@link ChannelHandlerContext}
    *
+   * If called outside of the channel's event loop, e.g. by a handshake step, the response is
+   * handed to the event loop and written there in order. The caller is responsible for the flush.
+   *
    * @param ctx {@link ChannelHandlerContext}
    * @param contentType HTTP Content Type
    * @param status {@link HttpResponseStatus}
@@ -107,6 +116,10 @@ public final class Handlers {
    */
   public static void writeResponse(ChannelHandlerContext ctx, String contentType,
       HttpResponseStatus status, ByteBuf content, boolean keepAlive) {
+    if (!ctx.executor().inEventLoop()) {
+      ctx.executor().execute(() -> writeResponse(ctx, contentType, status, content, keepAlive));
+      return;
+    }
     FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status, content);
     if (contentType != null) {
       response.headers().set(CONTENT_TYPE, contentType);
@@ -120,6 +133,39 @@ public final class Handlers {
     }
   }
 
+  /**
+   * Write the response once the asynchronous operation, e.g. a storage access, is completed
+   *
+   * The channel stops reading until then, so the next request is never handled before the response
+   * to this one. The responder is called on the channel's event loop with the result, and the
+   * response is flushed after it. If the operation failed, the connection is closed.
+   *
+   * @param ctx {@link ChannelHandlerContext}
+   * @param future {@link CompletableFuture} of the operation
+   * @param responder Writes the response with the result
+   * @param <T> Result type
+   */
+  public static <T> void respondOnCompletion(ChannelHandlerContext ctx,
+      CompletableFuture<T> future, Responder<T> responder) {
+    ctx.channel().config().setAutoRead(false);
+    future.whenCompleteAsync((result, cause) -> {
+      try {
+        if (cause != null) {
+          logger.error("Operation failed: {}", ExceptionUtils.getRootCauseMessage(cause), cause);
+          ctx.close();
+        } else {
+          responder.respond(result);
+        }
+      } catch (JsonProcessingException | RuntimeException e) {
+        logger.error("Unhandled exception: {}", ExceptionUtils.getMessage(e), e);
+        ctx.close();
+      } finally {
+        ctx.flush();
+        ctx.channel().config().setAutoRead(true);
+      }
+    }, ctx.executor());
+  }
+
   /**
    * Wrap byte array to {@link ByteBuf}
    *
@@ -165,4 +211,15 @@ public final class Handlers {
 
     return url;
   }
+
+  /**
+   * Writes the response with the result of an asynchronous operation
+   *
+   * @param <T> Result type
+   */
+  @FunctionalInterface
+  public interface Responder<T> {
+
+    void respond(T result) throws JsonProcessingException;
+  }
 }
@@ -0,0 +1,88 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compare the multi-block {@link ChaCha20} encryption with the per-block key stream and byte by
+ * byte xor it replaced
+ *
+ * Run with main method from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChaCha20Benchmark {
+
+  // Message sizes, a small response, a full HomeKit frame, and a large /accessories response
+  @Param({"64", "1024", "16384"})
+  public int size;
+
+  private ChaCha20 chacha;
+  private byte[] nonce;
+  private ByteBuffer input;
+  private ByteBuffer output;
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(ChaCha20Benchmark.class.getSimpleName())
+        .addProfiler("gc")
+        .build();
+    new Runner(options).run();
+  }
+
+  @Setup
+  public void setup() {
+    Random random = new Random(7539);
+    byte[] key = new byte[32];
+    random.nextBytes(key);
+    this.nonce = new byte[12];
+    random.nextBytes(this.nonce);
+    byte[] plainText = new byte[this.size];
+    random.nextBytes(plainText);
+    this.chacha = new ChaCha20(key, 1);
+    this.input = ByteBuffer.wrap(plainText);
+    this.output = ByteBuffer.allocate(this.size);
+  }
+
+  @Benchmark
+  public ByteBuffer perBlock() {
+    this.input.clear();
+    this.output.clear();
+    int length = this.input.remaining();
+    int numBlocks = (length / Snuffle.BLOCK_SIZE_IN_BYTES) + 1;
+    for (int i = 0; i < numBlocks; i++) {
+      ByteBuffer keyStreamBlock = this.chacha.getKeyStreamBlock(this.nonce, i + 1);
+      Bytes.xor(this.output, this.input, keyStreamBlock, i == numBlocks - 1
+          ? length % Snuffle.BLOCK_SIZE_IN_BYTES : Snuffle.BLOCK_SIZE_IN_BYTES);
+    }
+    return this.output;
+  }
+
+  @Benchmark
+  public ByteBuffer multiBlock() {
+    this.input.clear();
+    this.output.clear();
+    this.chacha.encrypt(this.output, this.input, this.nonce);
+    return this.output;
+  }
+}
@@ -2,6 +2,8 @@ package com.github.longkerdandy.viki.home.hap.crypto;
 
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.junit.Test;
@@ -154,4 +156,23 @@ public class ChaCha20Poly1305Test {
         + "1c9240a5eb55d38af333888604f6b5f0"
         + "473917c1402b80099dca5cbc207075c0");
   }
+
+  /**
+   * One instance is reused by a session for every frame, with a new nonce each time
+   */
+  @Test
+  public void reuseTest() throws GeneralSecurityException {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    byte[] nonce = new byte[12];
+    byte[] aad = new byte[]{0x10, 0x00};
+    ChaCha20Poly1305 session = new ChaCha20Poly1305(key);
+    for (int i = 0; i < 3; i++) {
+      nonce[4] = (byte) i;
+      byte[] plainText = ("frame " + i).getBytes(StandardCharsets.UTF_8);
+      byte[] cipherText = session.encrypt(plainText, nonce, aad);
+      assert Arrays.equals(cipherText, new ChaCha20Poly1305(key).encrypt(plainText, nonce, aad));
+      assert Arrays.equals(plainText, session.decrypt(cipherText, nonce, aad));
+    }
+  }
 }
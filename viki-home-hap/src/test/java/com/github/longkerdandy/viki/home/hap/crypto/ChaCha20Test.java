@@ -1,7 +1,10 @@
 package com.github.longkerdandy.viki.home.hap.crypto;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.junit.Test;
@@ -363,4 +366,63 @@ public class ChaCha20Test {
         + "All mimsy were the borogoves,\n"
         + "And the mome raths outgrabe.");
   }
+
+  /**
+   * Multi-block key stream must match the single block function
+   */
+  @Test
+  public void keyStreamTest() throws DecoderException {
+    byte[] key = Hex.decodeHex(""
+        + "000102030405060708090a0b0c0d0e0f"
+        + "101112131415161718191a1b1c1d1e1f");
+    byte[] nonce = Hex.decodeHex("000000090000004a00000000");
+    ChaCha20 chacha = new ChaCha20(key, 1);
+    byte[] out = new byte[Snuffle.KEY_STREAM_BLOCKS * Snuffle.BLOCK_SIZE_IN_BYTES];
+    chacha.getKeyStream(nonce, 1, out, Snuffle.KEY_STREAM_BLOCKS);
+    for (int i = 0; i < Snuffle.KEY_STREAM_BLOCKS; i++) {
+      ByteBuffer block = chacha.getKeyStreamBlock(nonce, 1 + i);
+      assert block.equals(ByteBuffer.wrap(out, i * Snuffle.BLOCK_SIZE_IN_BYTES,
+          Snuffle.BLOCK_SIZE_IN_BYTES));
+    }
+  }
+
+  /**
+   * Buffer encryption across multiple key stream batches, with direct buffers and mixed byte
+   * orders
+   */
+  @Test
+  public void bufferTest() {
+    byte[] key = new byte[32];
+    byte[] nonce = new byte[12];
+    Random random = new Random(7539);
+    random.nextBytes(key);
+    random.nextBytes(nonce);
+    ChaCha20 chacha = new ChaCha20(key, 1);
+    for (int length : new int[]{0, 7, 64, 1023, 1024, 1025, 3000}) {
+      byte[] plainText = new byte[length];
+      random.nextBytes(plainText);
+      byte[] expected = Bytes.xor(plainText, keyStream(chacha, nonce, length));
+
+      ByteBuffer output = ByteBuffer.allocateDirect(length + 3).order(ByteOrder.LITTLE_ENDIAN);
+      output.position(3);
+      chacha.encrypt(output, ByteBuffer.wrap(plainText), nonce);
+      assert !output.hasRemaining();
+      byte[] cipherText = new byte[length];
+      output.position(3);
+      output.get(cipherText);
+      assert Arrays.equals(expected, cipherText);
+
+      ByteBuffer decrypted = ByteBuffer.allocate(length);
+      chacha.decrypt(decrypted, ByteBuffer.wrap(cipherText), nonce);
+      assert Arrays.equals(plainText, decrypted.array());
+    }
+  }
+
+  private static byte[] keyStream(ChaCha20 chacha, byte[] nonce, int length) {
+    ByteBuffer stream = ByteBuffer.allocate(length + Snuffle.BLOCK_SIZE_IN_BYTES);
+    for (int i = 0; stream.position() < length; i++) {
+      stream.put(chacha.getKeyStreamBlock(nonce, 1 + i));
+    }
+    return Arrays.copyOf(stream.array(), length);
+  }
 }
@@ -0,0 +1,198 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Conformance of every {@link CryptoProvider} supported by the running JDK, against the test
+ * vectors and against each other
+ */
+@RunWith(Parameterized.class)
+public class CryptoProviderTest {
+
+  private static final List<CryptoProvider> providers = CryptoProviders.available();
+
+  @Parameter
+  public String name;
+
+  @Parameters(name = "{0}")
+  public static List<String> names() {
+    return providers.stream().map(CryptoProvider::getName).collect(Collectors.toList());
+  }
+
+  private CryptoProvider provider() {
+    return CryptoProviders.select(this.name);
+  }
+
+  /**
+   * RFC 7539 - ChaCha20 and Poly1305 for IETF Protocols 2.8.2. Example and Test Vector for
+   * AEAD_CHACHA20_POLY1305
+   */
+  @Test
+  public void chaCha20Poly1305TestVector() throws DecoderException, GeneralSecurityException {
+    byte[] key = Hex.decodeHex(""
+        + "808182838485868788898a8b8c8d8e8f"
+        + "909192939495969798999a9b9c9d9e9f");
+    byte[] nonce = Hex.decodeHex("070000004041424344454647");
+    byte[] aad = Hex.decodeHex("50515253c0c1c2c3c4c5c6c7");
+    byte[] plainText = ("Ladies and Gentlemen of the class of '99: "
+        + "If I could offer you only one tip for the future, sunscreen would be it.")
+        .getBytes(StandardCharsets.UTF_8);
+    byte[] cipherText = Hex.decodeHex(""
+        + "d31a8d34648e60db7b86afbc53ef7ec2"    // actual ciphertext
+        + "a4aded51296e08fea9e2b5a736ee62d6"
+        + "3dbea45e8ca9671282fafb69da92728b"
+        + "1a71de0a9e060b2905d6a5b67ecd3b36"
+        + "92ddbd7f2d778b8c9803aee328091b58"
+        + "fab324e4fad675945585808b4831d7bc"
+        + "3ff4def08e4b7a9de576d26586cec64b"
+        + "6116"
+        + "1ae10b594f09e26a7e902ecbd0600691");  // tag
+    Aead aead = provider().chaCha20Poly1305(key);
+    assert Arrays.equals(cipherText, aead.encrypt(plainText, nonce, aad));
+    assert Arrays.equals(plainText, aead.decrypt(cipherText, nonce, aad));
+
+    // Between direct buffers
+    ByteBuffer in = ByteBuffer.allocateDirect(plainText.length).put(plainText).flip();
+    ByteBuffer out = ByteBuffer.allocateDirect(cipherText.length);
+    provider().chaCha20Poly1305(key).encrypt(out, in, nonce, aad);
+    assert !in.hasRemaining() && !out.hasRemaining();
+    byte[] bytes = new byte[cipherText.length];
+    out.flip().get(bytes);
+    assert Arrays.equals(cipherText, bytes);
+    ByteBuffer plain = ByteBuffer.allocateDirect(plainText.length);
+    provider().chaCha20Poly1305(key).decrypt(plain, out.flip(), nonce, aad);
+    assert !out.hasRemaining() && !plain.hasRemaining();
+    bytes = new byte[plainText.length];
+    plain.flip().get(bytes);
+    assert Arrays.equals(plainText, bytes);
+
+    // Tampered
+    cipherText[0] ^= 1;
+    try {
+      provider().chaCha20Poly1305(key).decrypt(cipherText, nonce, aad);
+      assert false;
+    } catch (GeneralSecurityException ignore) {
+    }
+  }
+
+  /**
+   * https://tools.ietf.org/html/rfc7748#section-6.1 6.1.  Curve25519
+   */
+  @Test
+  public void x25519TestVector() throws DecoderException, GeneralSecurityException {
+    byte[] alicePrivate = Hex.decodeHex(""
+        + "77076d0a7318a57d3c16c17251b26645"
+        + "df4c2f87ebc0992ab177fba51db92c2a");
+    byte[] alicePublic = Hex.decodeHex(""
+        + "8520f0098930a754748b7ddcb43ef75a"
+        + "0dbf3a0d26381af4eba4a98eaa9b4e6a");
+    byte[] bobPrivate = Hex.decodeHex(""
+        + "5dab087e624a8a4b79e17f8b83800ee6"
+        + "6f3bb1292618b6fd1c2f8b27ff88e0eb");
+    byte[] bobPublic = Hex.decodeHex(""
+        + "de9edb7d7b7dc1b4d35b61c2ece43537"
+        + "3f8343c85b78674dadfc7e146f882b4f");
+    byte[] sharedSecret = Hex.decodeHex(""
+        + "4a5d9d5ba4ce2de1728e3bf480350f25"
+        + "e07e21c947d19e3376f09b3c1e161742");
+    assert Arrays.equals(sharedSecret, provider().x25519SharedSecret(bobPublic, alicePrivate));
+    assert Arrays.equals(sharedSecret, provider().x25519SharedSecret(alicePublic, bobPrivate));
+  }
+
+  /**
+   * https://tools.ietf.org/html/rfc8032#section-7.1 7.1.  Test Vectors for Ed25519, Test 1 to 3
+   */
+  @Test
+  public void ed25519TestVector() throws DecoderException, GeneralSecurityException {
+    String[][] vectors = new String[][]{
+        {"9d61b19deffd5a60ba844af492ec2cc44449c5697b326919703bac031cae7f60",
+            "d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a",
+            "",
+            "e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e06522490155"
+                + "5fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b"},
+        {"4ccd089b28ff96da9db6c346ec114e0f5b8a319f35aba624da8cf6ed4fb8a6fb",
+            "3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c",
+            "72",
+            "92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da"
+                + "085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00"},
+        {"c5aa8df43f9f837bedb7442f31dcb7b166d38535076f094b85ce3a2e0b4458f7",
+            "fc51cd8e6218a1a38da47ed00230f0580816ed13ba3303ac5deb911548908025",
+            "af82",
+            "6291d657deec24024827e69c3abe01a30ce548a284743a445e3680d7db5ac3ac"
+                + "18ff9b538d16f290ae67f760984dc6594a7c15e9716ed28dc027beceea1ec40a"}};
+    for (String[] vector : vectors) {
+      byte[] privateKey = Hex.decodeHex(vector[0]);
+      byte[] publicKey = Hex.decodeHex(vector[1]);
+      byte[] message = Hex.decodeHex(vector[2]);
+      byte[] signature = Hex.decodeHex(vector[3]);
+      assert Arrays.equals(signature, provider().ed25519Sign(privateKey, message));
+      assert provider().ed25519Verify(publicKey, message, signature);
+      assert !provider().ed25519Verify(publicKey, Hex.decodeHex("00"), signature);
+    }
+  }
+
+  /**
+   * RFC 5869 A.1 and A.3 inputs, with HMAC-SHA-512
+   */
+  @Test
+  public void hkdfSha512TestVector() throws DecoderException {
+    byte[] ikm = Hex.decodeHex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b");
+    byte[] salt = Hex.decodeHex("000102030405060708090a0b0c");
+    byte[] info = Hex.decodeHex("f0f1f2f3f4f5f6f7f8f9");
+    assert Hex.encodeHexString(provider().hkdfSha512(ikm, salt, info, 42)).equalsIgnoreCase(""
+        + "832390086cda71fb47625bb5ceb168e4"
+        + "c8e26a1a16ed34d9fc7fe92c14815793"
+        + "38da362cb8d9f925d7cb");
+    assert Hex.encodeHexString(provider().hkdfSha512(ikm, new byte[0], new byte[0], 42))
+        .equalsIgnoreCase(""
+            + "f5fa02b18298a72a8c23898a8703472c"
+            + "6eb179dc204c03425c970e3b164bf90f"
+            + "ff22d04836d0e2343bac");
+  }
+
+  /**
+   * Keys, signatures and ciphertexts of this provider are accepted by every other provider
+   */
+  @Test
+  public void interoperabilityTest() throws GeneralSecurityException {
+    CryptoProvider provider = provider();
+    byte[] message = "Pair-Verify-Encrypt-Info".getBytes(StandardCharsets.UTF_8);
+    for (CryptoProvider other : providers) {
+      // X25519
+      OctetKeyPair accessory = provider.x25519KeyGen();
+      OctetKeyPair controller = other.x25519KeyGen();
+      byte[] sharedSecret = provider.x25519SharedSecret(controller.getPublicKey(),
+          accessory.getPrivateKey());
+      assert Arrays.equals(sharedSecret,
+          other.x25519SharedSecret(accessory.getPublicKey(), controller.getPrivateKey()));
+
+      // HKDF
+      byte[] salt = "Control-Salt".getBytes(StandardCharsets.UTF_8);
+      byte[] key = provider.hkdfSha512(sharedSecret, salt, message, 32);
+      assert Arrays.equals(key, other.hkdfSha512(sharedSecret, salt, message, 32));
+
+      // Ed25519
+      OctetKeyPair longTerm = provider.ed25519KeyGen();
+      byte[] signature = provider.ed25519Sign(longTerm.getPrivateKey(), message);
+      assert Arrays.equals(signature, other.ed25519Sign(longTerm.getPrivateKey(), message));
+      assert other.ed25519Verify(longTerm.getPublicKey(), message, signature);
+
+      // ChaCha20-Poly1305
+      byte[] nonce = new byte[12];
+      byte[] cipherText = provider.chaCha20Poly1305(key).encrypt(message, nonce, null);
+      assert Arrays.equals(message, other.chaCha20Poly1305(key).decrypt(cipherText, nonce, null));
+    }
+  }
+}
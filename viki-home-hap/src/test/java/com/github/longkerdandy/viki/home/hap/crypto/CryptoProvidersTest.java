@@ -0,0 +1,20 @@
+package com.github.longkerdandy.viki.home.hap.crypto;
+
+import org.junit.Test;
+
+public class CryptoProvidersTest {
+
+  @Test
+  public void selectTest() {
+    assert CryptoProviders.select("builtin") instanceof BuiltinCryptoProvider;
+    assert CryptoProviders.select("JDK") instanceof JdkCryptoProvider;
+    CryptoProvider fastest = CryptoProviders.select("auto");
+    assert fastest.getName().equals(BuiltinCryptoProvider.NAME)
+        || fastest.getName().equals(JdkCryptoProvider.NAME);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownTest() {
+    CryptoProviders.select("bouncycastle");
+  }
+}
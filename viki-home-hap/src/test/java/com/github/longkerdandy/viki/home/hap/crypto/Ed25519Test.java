@@ -2,9 +2,6 @@ package com.github.longkerdandy.viki.home.hap.crypto;
 
 import com.github.longkerdandy.viki.home.hap.util.Ciphers;
 import java.security.GeneralSecurityException;
-import java.security.KeyPair;
-import net.i2p.crypto.eddsa.EdDSAPrivateKey;
-import net.i2p.crypto.eddsa.EdDSAPublicKey;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.junit.Test;
@@ -14,9 +11,9 @@ public class Ed25519Test {
   @Test
   public void ed25519KeyGenTest() throws DecoderException, GeneralSecurityException {
     // Keygen
-    KeyPair keyPair = Ciphers.ed25519KeyGen();
-    byte[] privateKey = ((EdDSAPrivateKey) keyPair.getPrivate()).getSeed();
-    byte[] publicKey = ((EdDSAPublicKey) keyPair.getPublic()).getAbyte();
+    OctetKeyPair keyPair = Ciphers.ed25519KeyGen();
+    byte[] privateKey = keyPair.getPrivateKey();
+    byte[] publicKey = keyPair.getPublicKey();
 
     // Sign
     byte[] message = Hex.decodeHex(""
@@ -1,7 +1,10 @@
 package com.github.longkerdandy.viki.home.hap.crypto;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.junit.Test;
@@ -236,4 +239,55 @@ public class Poly1305Test {
     assert Hex.encodeHexString(tag).equalsIgnoreCase("13000000000000000000000000000000");
     Poly1305.verifyMac(key, data, tag);
   }
+
+  /**
+   * The message split into parts of every size, from heap and direct buffers, must produce the
+   * same tag as the whole message
+   */
+  @Test
+  public void incrementalTest() {
+    Random random = new Random(1305);
+    byte[] key = new byte[32];
+    byte[] data = new byte[100];
+    random.nextBytes(key);
+    random.nextBytes(data);
+    byte[] expected = Poly1305.computeMac(key, data);
+
+    Poly1305 poly1305 = new Poly1305();
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data);
+    byte[] tag = new byte[16];
+    for (int split = 0; split <= data.length; split++) {
+      poly1305.init(key, 0);
+      poly1305.update(data, 0, split);
+      poly1305.update(data, split, data.length - split);
+      poly1305.finish(tag, 0);
+      assert Arrays.equals(expected, tag);
+
+      poly1305.init(key, 0);
+      poly1305.update(direct, 0, split);
+      poly1305.update(direct, split, data.length - split);
+      poly1305.finish(tag, 0);
+      assert Arrays.equals(expected, tag);
+    }
+  }
+
+  /**
+   * Limb carries with the largest accumulator and r values
+   */
+  @Test
+  public void carryTest() throws DecoderException {
+    byte[] key = Hex.decodeHex(""
+        + "ffffffffffffffffffffffffffffffff"
+        + "ffffffffffffffffffffffffffffffff");
+    byte[] data = new byte[16 * 64];
+    Arrays.fill(data, (byte) 0xff);
+    Poly1305 poly1305 = new Poly1305();
+    poly1305.init(key, 0);
+    for (int i = 0; i < 64; i++) {
+      poly1305.update(data, i * 16, 16);
+    }
+    byte[] tag = new byte[16];
+    poly1305.finish(tag, 0);
+    assert Arrays.equals(Poly1305.computeMac(key, data), tag);
+  }
 }
@@ -3,11 +3,15 @@ package com.github.longkerdandy.viki.home.hap.http.frame;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import com.github.longkerdandy.viki.home.hap.crypto.Aead;
+import com.github.longkerdandy.viki.home.hap.crypto.ChaCha20Poly1305;
+import com.github.longkerdandy.viki.home.hap.crypto.OctetKeyPair;
 import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicWriteRequestTarget;
 import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicsWriteRequest;
 import com.github.longkerdandy.viki.home.hap.util.Ciphers;
 import com.github.longkerdandy.viki.home.util.Jacksons;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
@@ -16,11 +20,12 @@ import io.netty.util.AttributeKey;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
 import org.junit.BeforeClass;
 import org.junit.Test;
-import org.whispersystems.curve25519.Curve25519KeyPair;
 
 public class FrameCodecTest {
 
@@ -28,9 +33,9 @@ public class FrameCodecTest {
   private static byte[] ControllerToAccessoryKey;
 
   @BeforeClass
-  public static void init() {
-    Curve25519KeyPair iOSDeviceKeyPair = Ciphers.curve25519KeyGen();
-    Curve25519KeyPair AccessoryKeyPair = Ciphers.curve25519KeyGen();
+  public static void init() throws GeneralSecurityException {
+    OctetKeyPair iOSDeviceKeyPair = Ciphers.curve25519KeyGen();
+    OctetKeyPair AccessoryKeyPair = Ciphers.curve25519KeyGen();
     byte[] SharedSecret = Ciphers.curve25519SharedSecret(
         iOSDeviceKeyPair.getPublicKey(), AccessoryKeyPair.getPrivateKey());
     AccessoryToControllerKey = Ciphers
@@ -41,22 +46,23 @@ public class FrameCodecTest {
 
   @Test
   public void writingCharacteristicsTest() throws IOException, GeneralSecurityException {
-    AttributeKey<byte[]> k1 = AttributeKey.valueOf("AccessoryToControllerKey");
-    AttributeKey<byte[]> k2 = AttributeKey.valueOf("ControllerToAccessoryKey");
+    AttributeKey<Aead> k1 = AttributeKey.valueOf("AccessoryToControllerCipher");
+    AttributeKey<Aead> k2 = AttributeKey.valueOf("ControllerToAccessoryCipher");
     AttributeKey<Long> k3 = AttributeKey.valueOf("outboundFrameCount");
     AttributeKey<Long> k4 = AttributeKey.valueOf("inboundFrameCount");
     ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
     Channel ch = mock(Channel.class);
     @SuppressWarnings("unchecked")
-    Attribute<byte[]> attr1 = mock(Attribute.class);
+    Attribute<Aead> attr1 = mock(Attribute.class);
     @SuppressWarnings("unchecked")
     Attribute<Long> attr2 = mock(Attribute.class);
     when(ctx.channel()).thenReturn(ch);
+    when(ctx.alloc()).thenReturn(PooledByteBufAllocator.DEFAULT);
     when(ch.attr(k1)).thenReturn(attr1);
     when(ch.attr(k2)).thenReturn(attr1);
     when(ch.attr(k3)).thenReturn(attr2);
     when(ch.attr(k4)).thenReturn(attr2);
-    when(attr1.get()).thenReturn(ControllerToAccessoryKey);
+    when(attr1.get()).thenReturn(new ChaCha20Poly1305(ControllerToAccessoryKey));
     when(attr2.get()).thenReturn(null);
 
     List<CharacteristicWriteRequestTarget> list = new ArrayList<>();
@@ -82,4 +88,70 @@ public class FrameCodecTest {
     assert l.size() == 1;
     assert Objects.deepEquals(jsonEncode, jsonDecode);
   }
+
+  @Test
+  public void multipleFramesTest() throws GeneralSecurityException {
+    ChannelHandlerContext ctx = mockContext();
+    FrameCodec codec = new FrameCodec(1, 1);
+
+    // 2 full frames and a partial one, encrypted into a pooled direct buffer
+    byte[] plain = new byte[2 * 1024 + 500];
+    new Random(42).nextBytes(plain);
+    ByteBuf msg = Unpooled.wrappedBuffer(plain);
+    ByteBuf encrypted = ctx.alloc().ioBuffer();
+    codec.encode(ctx, msg, encrypted);
+    assert encrypted.isDirect();
+    assert encrypted.readableBytes() == plain.length + 3 * (2 + 16);
+    assert encrypted.getUnsignedShortLE(0) == 1024;
+    assert !msg.isReadable();
+
+    // deliver the first frame and a half, then the rest
+    List<Object> l = new ArrayList<>();
+    ByteBuf first = encrypted.readRetainedSlice(2 + 1024 + 16 + 600);
+    codec.decode(ctx, first, l);
+    assert l.size() == 1;
+    assert first.readableBytes() == 600;
+    codec.decode(ctx, Unpooled.wrappedBuffer(first, encrypted), l);
+    assert l.size() == 2;
+
+    byte[] decrypted = new byte[plain.length];
+    ByteBuf frame1 = (ByteBuf) l.get(0);
+    ByteBuf frame2 = (ByteBuf) l.get(1);
+    assert frame1.readableBytes() == 1024;
+    frame1.readBytes(decrypted, 0, 1024);
+    frame2.readBytes(decrypted, 1024, plain.length - 1024);
+    assert Arrays.equals(plain, decrypted);
+    frame1.release();
+    frame2.release();
+
+    // incomplete frame only, nothing decoded
+    codec.decode(ctx, Unpooled.wrappedBuffer(new byte[]{10, 0, 1, 2}), l);
+    assert l.size() == 2;
+  }
+
+  @Test(expected = GeneralSecurityException.class)
+  public void tamperedFrameTest() throws GeneralSecurityException {
+    ChannelHandlerContext ctx = mockContext();
+    FrameCodec codec = new FrameCodec(1, 1);
+
+    ByteBuf encrypted = Unpooled.buffer(0);
+    codec.encode(ctx, Unpooled.wrappedBuffer(new byte[100]), encrypted);
+    encrypted.setByte(10, encrypted.getByte(10) ^ 1);
+    codec.decode(ctx, encrypted, new ArrayList<>());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ChannelHandlerContext mockContext() {
+    ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    Channel ch = mock(Channel.class);
+    Attribute<Aead> attr = mock(Attribute.class);
+    when(ctx.channel()).thenReturn(ch);
+    when(ctx.alloc()).thenReturn(PooledByteBufAllocator.DEFAULT);
+    when(ch.attr(AttributeKey.<Aead>valueOf("AccessoryToControllerCipher")))
+        .thenReturn(attr);
+    when(ch.attr(AttributeKey.<Aead>valueOf("ControllerToAccessoryCipher")))
+        .thenReturn(attr);
+    when(attr.get()).thenReturn(new ChaCha20Poly1305(ControllerToAccessoryKey));
+    return ctx;
+  }
 }
@@ -1,32 +1,215 @@
 package com.github.longkerdandy.viki.home.hap.http.handler;
 
-import static com.github.longkerdandy.viki.home.hap.http.handler.AttributesHandler.lookupNameValuePairs;
+import static com.github.longkerdandy.viki.home.hap.http.handler.AttributesHandler.lookupQueryParameter;
+import static com.github.longkerdandy.viki.home.hap.http.handler.AttributesHandler.parseIds;
+import static com.github.longkerdandy.viki.home.hap.util.Handlers.MIME_JSON;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.charset.Charset;
+import com.github.longkerdandy.viki.home.hap.storage.AccessoryDatabase;
+import com.github.longkerdandy.viki.home.hap.storage.AsyncHAPStorage;
+import com.github.longkerdandy.viki.home.hap.storage.EventLoopBlockingDetector;
+import com.github.longkerdandy.viki.home.hap.storage.HAPStorage;
+import com.github.longkerdandy.viki.home.hap.storage.HAPStorageTest;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.Attribute;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URLEncodedUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 public class AttributesHandlerTest {
 
+  private static EventLoop loop;
+  private static EventLoopBlockingDetector detector;
+  private static HAPStorage storage;
+  private static AsyncHAPStorage asyncStorage;
+
+  private ChannelConfig config;
+  private ChannelHandlerContext ctx;
+
+  @BeforeClass
+  public static void init() throws IOException {
+    loop = new DefaultEventLoop();
+    detector = new EventLoopBlockingDetector(loop);
+    storage = HAPStorageTest.createStorage();
+    asyncStorage = new AsyncHAPStorage(detector.watch(storage));
+    asyncStorage.refreshAccessories().join();
+  }
+
+  @AfterClass
+  public static void destroy() {
+    asyncStorage.shutdown();
+    loop.shutdownGracefully();
+  }
+
+  @Before
+  public void initContext() {
+    Attribute<?> pairingId = mock(Attribute.class);
+    doReturn("Device 1").when(pairingId).get();
+    this.config = mock(ChannelConfig.class);
+    Channel ch = mock(Channel.class);
+    when(ch.config()).thenReturn(this.config);
+    doReturn(pairingId).when(ch).attr(any());
+    this.ctx = mock(ChannelHandlerContext.class);
+    when(this.ctx.channel()).thenReturn(ch);
+    when(this.ctx.executor()).thenReturn(loop);
+    when(this.ctx.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+    when(this.ctx.write(any())).thenReturn(mock(ChannelFuture.class));
+  }
+
+  private FullHttpResponse handle(HttpMethod method, String uri, String body)
+      throws InterruptedException {
+    FullHttpRequest request = new DefaultFullHttpRequest(HTTP_1_1, method, uri,
+        Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+    if (!body.isEmpty()) {
+      request.headers().set(CONTENT_TYPE, MIME_JSON);
+    }
+    AttributesHandler handler = new AttributesHandler(asyncStorage);
+    loop.submit(() -> {
+      handler.handle(this.ctx, request);
+      return null;
+    }).sync();
+
+    ArgumentCaptor<FullHttpResponse> response = ArgumentCaptor.forClass(FullHttpResponse.class);
+    verify(this.ctx, timeout(1000)).write(response.capture());
+    request.release();
+    return response.getValue();
+  }
+
+  private void verifyPausedUntilFlushed() {
+    // not reading until the response is flushed on the event loop
+    InOrder order = inOrder(this.config, this.ctx);
+    order.verify(this.config).setAutoRead(false);
+    order.verify(this.ctx).write(any());
+    order.verify(this.ctx, timeout(1000)).flush();
+    order.verify(this.config, timeout(1000)).setAutoRead(true);
+  }
+
+  @Test
+  public void lookupQueryParameterTest() {
+    String uri = "/characteristics?id=1.4,1.8&meta=1&type=1&x=a%20b";
+    assert lookupQueryParameter(uri, "id").equals("1.4,1.8");
+    assert lookupQueryParameter(uri, "meta").equals("1");
+    assert lookupQueryParameter(uri, "perms") == null;
+    assert lookupQueryParameter(uri, "type").equals("1");
+    assert lookupQueryParameter(uri, "ev") == null;
+    assert lookupQueryParameter(uri, "x").equals("a b");
+    assert lookupQueryParameter("/characteristics?id=1.4%2C1.8", "id").equals("1.4,1.8");
+    assert lookupQueryParameter("/characteristics", "id") == null;
+    assert lookupQueryParameter("/characteristics?ids=1.4&d=1.8", "id") == null;
+  }
+
+  @Test
+  public void parseIdsTest() {
+    assert Arrays.equals(parseIds("1.4"), new long[]{AccessoryDatabase.key(1, 4)});
+    assert Arrays.equals(parseIds("1.4,2.10,4294967295.4294967295"), new long[]{
+        AccessoryDatabase.key(1, 4), AccessoryDatabase.key(2, 10),
+        AccessoryDatabase.key(4294967295L, 4294967295L)});
+    for (String invalid : List.of("", "1", "1.", ".4", "1.4,", ",1.4", "1,4", "1.4.8", "1x4",
+        "1.-4", "4294967296.1", "1.99999999999999999999")) {
+      assert parseIds(invalid) == null : invalid;
+    }
+  }
+
   @Test
-  public void lookupNameValuePairsTest() throws URISyntaxException {
-    URI uri = new URI("http://127.0.0.1:8080/characteristics?id=1.4,1.8&meta=1&type=1");
-    List<NameValuePair> params = URLEncodedUtils.parse(uri, Charset.forName("UTF-8"));
-    Optional<String> id = lookupNameValuePairs(params, "id");
-    Optional<String> meta = lookupNameValuePairs(params, "meta");
-    Optional<String> perms = lookupNameValuePairs(params, "perms");
-    Optional<String> type = lookupNameValuePairs(params, "type");
-    Optional<String> ev = lookupNameValuePairs(params, "ev");
-
-    assert id.isPresent() && id.get().equals("1.4,1.8");
-    assert meta.isPresent() && meta.get().equals("1");
-    assert perms.isEmpty();
-    assert type.isPresent() && type.get().equals("1");
-    assert ev.isEmpty();
+  public void readAccessoriesTest() throws InterruptedException {
+    FullHttpResponse response = handle(HttpMethod.GET, "/accessories", "");
+    assert response.status().equals(HttpResponseStatus.OK);
+    byte[] json = asyncStorage.getAccessoryDatabase().getAccessoriesJson();
+    assert response.content().equals(Unpooled.wrappedBuffer(json));
+    response.release();
+
+    // served from memory on the event loop
+    verify(this.config, never()).setAutoRead(anyBoolean());
+    assert detector.getViolations().isEmpty() : detector.getViolations();
+  }
+
+  @Test
+  public void readCharacteristicsTest() throws InterruptedException {
+    FullHttpResponse response = handle(HttpMethod.GET, "/characteristics?id=1.4,1.9", "");
+    assert response.status().equals(HttpResponseStatus.MULTI_STATUS);
+    String json = response.content().toString(StandardCharsets.UTF_8);
+    assert json.contains("V.I.K.I Home Open Source Project");
+    assert json.contains("-70409");
+    response.release();
+
+    // served from memory on the event loop
+    verify(this.config, never()).setAutoRead(anyBoolean());
+    assert detector.getViolations().isEmpty() : detector.getViolations();
+  }
+
+  @Test
+  public void writeCharacteristicsTest() throws InterruptedException {
+    FullHttpResponse response = handle(HttpMethod.PUT, "/characteristics",
+        "{\"characteristics\":[{\"aid\":1,\"iid\":7,\"value\":\"1.0.1\"}]}");
+    assert response.status().equals(HttpResponseStatus.NO_CONTENT);
+    response.release();
+    verifyPausedUntilFlushed();
+    assert storage.getCharacteristicById(1, 7).get().getValue().equals("1.0.1");
+    assert new String(asyncStorage.getAccessoryDatabase().getAccessoriesJson(),
+        StandardCharsets.UTF_8).contains("\"1.0.1\"");
+    assert detector.getViolations().isEmpty() : detector.getViolations();
+  }
+
+  @Test
+  public void detectorTest() throws InterruptedException {
+    EventLoopBlockingDetector d = new EventLoopBlockingDetector(loop);
+    HAPStorage watched = d.watch(storage);
+    watched.getPairings();
+    assert d.getViolations().isEmpty();
+    loop.submit(watched::getPairings).sync();
+    assert d.getViolations().size() == 1;
+    assert d.getViolations().get(0).startsWith("HAPStorage.getPairings on ");
+  }
+
+  @Test
+  public void failureTest() throws InterruptedException {
+    FullHttpRequest request = new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.PUT,
+        "/characteristics", Unpooled.copiedBuffer(
+        "{\"characteristics\":[{\"aid\":1,\"iid\":7,\"value\":\"1.0.1\"}]}",
+        StandardCharsets.UTF_8));
+    request.headers().set(CONTENT_TYPE, MIME_JSON);
+    AsyncHAPStorage failing = new AsyncHAPStorage(mock(HAPStorage.class, invocation -> {
+      throw new IllegalStateException("database is locked");
+    }));
+    loop.submit(() -> {
+      new AttributesHandler(failing).handle(this.ctx, request);
+      return null;
+    }).sync();
+
+    // the connection is closed, reading resumed for the close to complete
+    verify(this.ctx, timeout(1000)).close();
+    verify(this.config, timeout(1000)).setAutoRead(true);
+    verify(this.ctx, never()).write(any());
+    request.release();
+    failing.shutdown();
   }
 }
@@ -0,0 +1,105 @@
+package com.github.longkerdandy.viki.home.hap.http.handler;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.longkerdandy.viki.home.hap.http.handler.HandshakeMetrics.Phase;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+public class HandshakeExecutorTest {
+
+  private EventLoop loop;
+  private ChannelConfig config;
+  private ChannelHandlerContext ctx;
+
+  @Before
+  public void init() {
+    this.loop = new DefaultEventLoop();
+    this.config = mock(ChannelConfig.class);
+    Channel ch = mock(Channel.class);
+    when(ch.config()).thenReturn(this.config);
+    this.ctx = mock(ChannelHandlerContext.class);
+    when(this.ctx.channel()).thenReturn(ch);
+    when(this.ctx.executor()).thenReturn(this.loop);
+    when(this.ctx.write(any())).thenReturn(mock(ChannelFuture.class));
+  }
+
+  @After
+  public void destroy() {
+    this.loop.shutdownGracefully();
+  }
+
+  @Test
+  public void offloadTest() throws InterruptedException {
+    HandshakeExecutor executor = new HandshakeExecutor(1, 1);
+    AtomicBoolean onEventLoop = new AtomicBoolean(true);
+    this.loop.submit(() -> executor.execute(this.ctx, Phase.PAIR_VERIFY_M1, 2,
+        () -> onEventLoop.set(this.loop.inEventLoop()))).sync();
+
+    // not reading until the response is flushed on the event loop
+    InOrder order = inOrder(this.config, this.ctx);
+    order.verify(this.config).setAutoRead(false);
+    order.verify(this.ctx, timeout(1000)).flush();
+    order.verify(this.config, timeout(1000)).setAutoRead(true);
+    assert !onEventLoop.get();
+
+    this.loop.submit(() -> {
+    }).sync();
+    assert executor.getMetrics().getCount(Phase.PAIR_VERIFY_M1) == 1;
+    assert executor.getMetrics().getCount(Phase.PAIR_VERIFY_M3) == 0;
+    assert executor.getMetrics().getMaxNanos(Phase.PAIR_VERIFY_M1) > 0;
+    executor.shutdown();
+  }
+
+  @Test
+  public void busyTest() throws InterruptedException {
+    HandshakeExecutor executor = new HandshakeExecutor(1, 1);
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Runnable step = () -> {
+      running.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ignore) {
+      }
+    };
+
+    // one running, one queued, the third is rejected
+    this.loop.submit(() -> executor.execute(this.ctx, Phase.PAIR_SETUP_M1, 2, step)).sync();
+    assert running.await(1, TimeUnit.SECONDS);
+    this.loop.submit(() -> executor.execute(this.ctx, Phase.PAIR_SETUP_M1, 2, step)).sync();
+    this.loop.submit(() -> executor.execute(this.ctx, Phase.PAIR_SETUP_M1, 2, step)).sync();
+    assert executor.getMetrics().getRejected(Phase.PAIR_SETUP_M1) == 1;
+
+    ArgumentCaptor<FullHttpResponse> response = ArgumentCaptor.forClass(FullHttpResponse.class);
+    verify(this.ctx).write(response.capture());
+    assert response.getValue().status().equals(HttpResponseStatus.SERVICE_UNAVAILABLE);
+    response.getValue().release();
+
+    release.countDown();
+    verify(this.ctx, timeout(1000).times(2)).flush();
+    this.loop.submit(() -> {
+    }).sync();
+    assert executor.getMetrics().getCount(Phase.PAIR_SETUP_M1) == 2;
+    executor.shutdown();
+  }
+}
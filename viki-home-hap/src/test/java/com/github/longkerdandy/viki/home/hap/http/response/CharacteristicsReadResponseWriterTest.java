@@ -0,0 +1,124 @@
+package com.github.longkerdandy.viki.home.hap.http.response;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicWriteRequestTarget;
+import com.github.longkerdandy.viki.home.hap.model.Accessory;
+import com.github.longkerdandy.viki.home.hap.model.Characteristic;
+import com.github.longkerdandy.viki.home.hap.model.Service;
+import com.github.longkerdandy.viki.home.hap.storage.AccessoryDatabase;
+import com.github.longkerdandy.viki.home.hap.storage.AccessoryDatabaseTest;
+import com.github.longkerdandy.viki.home.hap.storage.CharacteristicEntry;
+import com.github.longkerdandy.viki.home.hap.storage.HAPStorage;
+import com.github.longkerdandy.viki.home.hap.storage.HAPStorageTest;
+import com.github.longkerdandy.viki.home.util.Jacksons;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Test;
+
+public class CharacteristicsReadResponseWriterTest {
+
+  // response objects serialized by Jackson
+  @SuppressWarnings("unchecked")
+  private static String serialize(HAPStorage storage, long[] keys, boolean meta, boolean perms,
+      boolean type, boolean ev) throws JsonProcessingException {
+    List<CharacteristicReadResponseTarget> targets = new ArrayList<>();
+    boolean fail = false;
+    for (long key : keys) {
+      long aid = key >>> 32;
+      long iid = key & 0xFFFFFFFFL;
+      Optional<Characteristic> c = storage.getCharacteristicById(aid, iid);
+      if (c.isEmpty()) {
+        targets.add(new CharacteristicReadResponseTarget(aid, iid, Status.RESOURCE_NOT_EXIST));
+        fail = true;
+        continue;
+      }
+      CharacteristicReadResponseTarget target =
+          new CharacteristicReadResponseTarget(aid, iid, c.get().getValue());
+      if (meta) {
+        target.setFormat(c.get().getFormat());
+        target.setUnit(c.get().getUnit());
+        target.setMinValue(c.get().getMinValue());
+        target.setMaxValue(c.get().getMaxValue());
+        target.setMinStep(c.get().getMinStep());
+        target.setMaxLength(c.get().getMaxLength());
+      }
+      if (perms) {
+        target.setPermissions(c.get().getPermissions());
+      }
+      if (type) {
+        target.setType(c.get().getType());
+      }
+      if (ev) {
+        target.setEnableEvent(c.get().getEnableEvent());
+      }
+      targets.add(target);
+    }
+    if (!fail) {
+      targets.forEach(target -> target.setStatus(null));
+    }
+    return Jacksons.getWriter().writeValueAsString(new CharacteristicsReadResponse(targets));
+  }
+
+  private static String write(AccessoryDatabase database, long[] keys, boolean meta,
+      boolean perms, boolean type, boolean ev) {
+    CharacteristicEntry[] entries = new CharacteristicEntry[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      entries[i] = database.getCharacteristic(keys[i]);
+    }
+    ByteBuf out = Unpooled.buffer();
+    boolean success = CharacteristicsReadResponseWriter.write(out, keys, entries,
+        meta, perms, type, ev);
+    String json = out.toString(StandardCharsets.UTF_8);
+    out.release();
+    assert success == !json.contains("\"status\"");
+    return json;
+  }
+
+  @Test
+  public void writeTest() throws IOException {
+    HAPStorage storage = HAPStorageTest.createStorage();
+    AccessoryDatabaseTest.addLightbulbs(storage, 2);
+    AccessoryDatabase database = new AccessoryDatabase();
+    database.refresh(storage);
+
+    // with the "ev" property
+    CharacteristicWriteRequestTarget target = new CharacteristicWriteRequestTarget(2L, 3L, 80);
+    target.setEnableEvent(true);
+    List<CharacteristicWriteRequestTarget> targets = List.of(target);
+    database.update(targets, storage.saveCharacteristics(targets));
+
+    // all the characteristics, then with missing ones
+    List<Long> all = new ArrayList<>();
+    for (Accessory accessory : storage.getAccessories()) {
+      for (Service service : accessory.getServices()) {
+        for (Characteristic c : service.getCharacteristics()) {
+          all.add(AccessoryDatabase.key(accessory.getInstanceId(), c.getInstanceId()));
+        }
+      }
+    }
+    long[] found = all.stream().mapToLong(Long::longValue).toArray();
+    long[] missing = {AccessoryDatabase.key(1, 4), AccessoryDatabase.key(1, 99),
+        AccessoryDatabase.key(4294967295L, 4294967295L)};
+
+    for (long[] keys : List.of(found, missing)) {
+      for (int flags = 0; flags < 16; flags++) {
+        boolean meta = (flags & 1) != 0;
+        boolean perms = (flags & 2) != 0;
+        boolean type = (flags & 4) != 0;
+        boolean ev = (flags & 8) != 0;
+        // properties may be in another order
+        assert Jacksons.getMapper().readTree(write(database, keys, meta, perms, type, ev))
+            .equals(Jacksons.getMapper().readTree(serialize(storage, keys, meta, perms, type, ev)));
+      }
+    }
+    assert write(database, found, true, true, true, true)
+        .contains("{\"aid\":2,\"type\":\"8\",\"iid\":3,\"value\":80,"
+            + "\"perms\":[\"pr\",\"pw\",\"ev\"],\"ev\":true,"
+            + "\"format\":\"int\",\"minValue\":0,\"maxValue\":100,\"minStep\":1}");
+  }
+}
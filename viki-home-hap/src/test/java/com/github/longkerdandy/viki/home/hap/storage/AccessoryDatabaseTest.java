@@ -0,0 +1,119 @@
+package com.github.longkerdandy.viki.home.hap.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicWriteRequestTarget;
+import com.github.longkerdandy.viki.home.hap.http.response.AccessoriesResponse;
+import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicWriteResponseTarget;
+import com.github.longkerdandy.viki.home.util.Jacksons;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class AccessoryDatabaseTest {
+
+  private static byte[] serialize(HAPStorage storage) throws JsonProcessingException {
+    return Jacksons.getWriter().writeValueAsBytes(
+        new AccessoriesResponse(storage.getAccessories()));
+  }
+
+  private static void save(HAPStorage storage, AccessoryDatabase database,
+      List<CharacteristicWriteRequestTarget> targets) {
+    List<CharacteristicWriteResponseTarget> results = storage.saveCharacteristics(targets);
+    database.update(targets, results);
+  }
+
+  public static void addLightbulbs(HAPStorage storage, int count) {
+    storage.getJdbi().useTransaction(handle -> {
+      for (int aid = 2; aid < count + 2; aid++) {
+        handle.execute("INSERT INTO ext_hap_accessory (aid, iid_counter) VALUES (?, 3)", aid);
+        handle.execute("INSERT INTO ext_hap_service (aid, sid, type) "
+            + "VALUES (?, 1, '00000043-0000-1000-8000-0026BB765291')", aid);
+        handle.execute("INSERT INTO ext_hap_characteristic "
+            + "(aid, cid, sid, type, _value, permissions, format) "
+            + "VALUES (?, 2, 1, '00000025-0000-1000-8000-0026BB765291', 'false', 'pr,pw,ev', "
+            + "'bool')", aid);
+        handle.execute("INSERT INTO ext_hap_characteristic "
+            + "(aid, cid, sid, type, _value, permissions, format, min_value, max_value, min_step) "
+            + "VALUES (?, 3, 1, '00000008-0000-1000-8000-0026BB765291', '50', 'pr,pw,ev', 'int', "
+            + "0, 100, 1)", aid);
+      }
+      handle.execute("UPDATE ext_hap_bridge SET config_num = config_num + 1 WHERE aid = 1");
+    });
+  }
+
+  @Test
+  public void refreshTest() throws IOException {
+    HAPStorage storage = HAPStorageTest.createStorage();
+    AccessoryDatabase database = new AccessoryDatabase();
+    assert database.getAccessoriesJson() == null;
+
+    database.refresh(storage);
+    byte[] json = database.getAccessoriesJson();
+    assert database.getConfigNum() == 1;
+    assert Arrays.equals(json, serialize(storage));
+
+    // same configuration number, not loaded again
+    database.refresh(storage);
+    assert database.getAccessoriesJson() == json;
+
+    // accessories added
+    addLightbulbs(storage, 150);
+    database.refresh(storage);
+    assert database.getConfigNum() == 2;
+    assert Arrays.equals(database.getAccessoriesJson(), serialize(storage));
+  }
+
+  @Test
+  public void updateTest() throws IOException {
+    HAPStorage storage = HAPStorageTest.createStorage();
+    addLightbulbs(storage, 150);
+    AccessoryDatabase database = new AccessoryDatabase();
+    database.refresh(storage);
+
+    // values are converted as loaded from storage
+    CharacteristicWriteRequestTarget on = new CharacteristicWriteRequestTarget(2L, 2L, true);
+    CharacteristicWriteRequestTarget brightness = new CharacteristicWriteRequestTarget(2L, 3L, 80);
+    CharacteristicWriteRequestTarget name = new CharacteristicWriteRequestTarget(1L, 5L,
+        "LongkerDandy's Bridge");
+    CharacteristicWriteRequestTarget last = new CharacteristicWriteRequestTarget(151L, 2L, true);
+    save(storage, database, List.of(on, brightness, name, last));
+    assert Arrays.equals(database.getAccessoriesJson(), serialize(storage));
+
+    // failed targets are skipped
+    CharacteristicWriteRequestTarget missing = new CharacteristicWriteRequestTarget(152L, 2L, true);
+    CharacteristicWriteRequestTarget off = new CharacteristicWriteRequestTarget(2L, 2L, false);
+    save(storage, database, List.of(missing, off));
+    assert Arrays.equals(database.getAccessoriesJson(), serialize(storage));
+
+    // "ev" only
+    CharacteristicWriteRequestTarget ev = new CharacteristicWriteRequestTarget(2L, 3L, null);
+    ev.setEnableEvent(true);
+    save(storage, database, List.of(ev));
+    assert Arrays.equals(database.getAccessoriesJson(), serialize(storage));
+
+    // nothing changed
+    byte[] json = database.getAccessoriesJson();
+    save(storage, database, List.of(missing));
+    assert database.getAccessoriesJson() == json;
+
+    // ids aliasing 2.2 when packed
+    database.update(List.of(new CharacteristicWriteRequestTarget(1L, 4294967298L, true)), null);
+    assert database.getAccessoriesJson() == json;
+  }
+
+  @Test
+  public void configNumTest() throws IOException {
+    HAPStorage storage = HAPStorageTest.createStorage();
+    AsyncHAPStorage async = new AsyncHAPStorage(storage);
+    assert async.refreshAccessories().join() == 1;
+
+    // accessories added after loaded, the writes are validated against them
+    addLightbulbs(storage, 1);
+    CharacteristicWriteRequestTarget on = new CharacteristicWriteRequestTarget(2L, 2L, true);
+    assert async.saveCharacteristics(List.of(on)).join() == null;
+    assert async.getAccessoryDatabase().getConfigNum() == 2;
+    assert Arrays.equals(async.getAccessoryDatabase().getAccessoriesJson(), serialize(storage));
+    async.shutdown();
+  }
+}
@@ -0,0 +1,67 @@
+package com.github.longkerdandy.viki.home.hap.storage;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Detect blocking {@link HAPStorage} calls on the Netty event loops in tests
+ *
+ * The watched storage records a violation for every call made from a thread of the event loop
+ * group, then calls the real method. Tests drive the handlers on the event loop and assert no
+ * violation was recorded.
+ */
+public class EventLoopBlockingDetector {
+
+  private final EventExecutorGroup group;
+  private final List<String> violations = new CopyOnWriteArrayList<>();
+
+  /**
+   * Constructor
+   *
+   * @param group {@link EventExecutorGroup} which must not block
+   */
+  public EventLoopBlockingDetector(EventExecutorGroup group) {
+    this.group = group;
+  }
+
+  /**
+   * Watch the storage calls
+   *
+   * @param storage {@link HAPStorage}
+   * @return {@link HAPStorage} which records the calls made on the event loops
+   */
+  public HAPStorage watch(HAPStorage storage) {
+    return mock(HAPStorage.class, withSettings().spiedInstance(storage)
+        .defaultAnswer(invocation -> {
+          check("HAPStorage." + invocation.getMethod().getName());
+          return invocation.callRealMethod();
+        }));
+  }
+
+  /**
+   * Record a violation if called on the event loops
+   *
+   * @param operation Blocking operation
+   */
+  public void check(String operation) {
+    for (EventExecutor executor : this.group) {
+      if (executor.inEventLoop()) {
+        this.violations.add(operation + " on " + Thread.currentThread().getName());
+      }
+    }
+  }
+
+  /**
+   * Get the blocking operations called on the event loops
+   *
+   * @return Violations
+   */
+  public List<String> getViolations() {
+    return this.violations;
+  }
+}
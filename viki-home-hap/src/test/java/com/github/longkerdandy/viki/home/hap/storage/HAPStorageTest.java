@@ -1,5 +1,6 @@
 package com.github.longkerdandy.viki.home.hap.storage;
 
+import com.github.longkerdandy.viki.home.hap.crypto.OctetKeyPair;
 import com.github.longkerdandy.viki.home.hap.http.request.CharacteristicWriteRequestTarget;
 import com.github.longkerdandy.viki.home.hap.http.response.CharacteristicWriteResponseTarget;
 import com.github.longkerdandy.viki.home.hap.http.response.Status;
@@ -13,12 +14,10 @@ import com.github.longkerdandy.viki.home.hap.model.property.Permission;
 import com.github.longkerdandy.viki.home.hap.util.Ciphers;
 import java.io.File;
 import java.io.IOException;
-import java.security.KeyPair;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import net.i2p.crypto.eddsa.EdDSAPublicKey;
 import org.apache.commons.configuration2.MapConfiguration;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -29,8 +28,15 @@ public class HAPStorageTest {
 
   @BeforeClass
   public static void init() throws IOException {
+    storage = createStorage();
+  }
+
+  /**
+   * Create a {@link HAPStorage} with the bridge initialized, in a new temporary database
+   */
+  public static HAPStorage createStorage() throws IOException {
     String path = File.createTempFile("viki-home-hap-", ".db").getAbsolutePath();
-    storage = new HAPStorage(new MapConfiguration(
+    HAPStorage storage = new HAPStorage(new MapConfiguration(
         Map.of("storage.jdbc.url", "jdbc:sqlite:" + path,
             "storage.sqlite.pragma.foreign_keys", "true")));
 
@@ -120,6 +126,7 @@ public class HAPStorageTest {
     });
 
     storage.init();
+    return storage;
   }
 
   @Test
@@ -251,11 +258,51 @@ public class HAPStorageTest {
     assert r.get(1).getStatus() == Status.SUCCESS;
   }
 
+  @Test
+  public void saveCharacteristicsBatchTest() throws IOException {
+    HAPStorage storage = createStorage();
+    AccessoryDatabaseTest.addLightbulbs(storage, 1);
+
+    // applied in order, "value" and "ev" only if present
+    CharacteristicWriteRequestTarget t1 = new CharacteristicWriteRequestTarget(2L, 3L, 10);
+    CharacteristicWriteRequestTarget t2 = new CharacteristicWriteRequestTarget(2L, 3L, null);
+    t2.setEnableEvent(true);
+    CharacteristicWriteRequestTarget t3 = new CharacteristicWriteRequestTarget(2L, 3L, 20);
+    CharacteristicWriteRequestTarget t4 = new CharacteristicWriteRequestTarget(2L, 2L, true);
+    assert storage.saveCharacteristics(List.of(t1, t2, t3, t4)) == null;
+    Characteristic c = storage.getCharacteristicById(2, 3).get();
+    assert c.getValue().equals(20);
+    assert c.getEnableEvent();
+    assert storage.getCharacteristicById(2, 2).get().getValue().equals(true);
+
+    // validated against the index, the others are saved
+    CharacteristicWriteRequestTarget t5 = new CharacteristicWriteRequestTarget(2L, 3L, 30);
+    CharacteristicWriteRequestTarget t6 = new CharacteristicWriteRequestTarget(2L, 2L, null);
+    List<CharacteristicWriteResponseTarget> r = storage.saveCharacteristics(List.of(t4, t5, t6),
+        key -> key != AccessoryDatabase.key(2, 2));
+    assert r.get(0).getStatus() == Status.RESOURCE_NOT_EXIST;
+    assert r.get(1).getStatus() == Status.SUCCESS;
+    assert r.get(2).getStatus() == Status.INVALID_VALUE;
+    assert storage.getCharacteristicById(2, 3).get().getValue().equals(30);
+
+    // ids aliasing 2.2 when packed
+    CharacteristicWriteRequestTarget t7 = new CharacteristicWriteRequestTarget(1L, 4294967298L,
+        false);
+    CharacteristicWriteRequestTarget t8 = new CharacteristicWriteRequestTarget(4294967298L, 2L,
+        false);
+    CharacteristicWriteRequestTarget t9 = new CharacteristicWriteRequestTarget(0L, 2L, false);
+    r = storage.saveCharacteristics(List.of(t7, t8, t9));
+    assert r.stream().allMatch(t -> t.getStatus() == Status.RESOURCE_NOT_EXIST);
+    r = storage.saveCharacteristics(List.of(t7), key -> key == AccessoryDatabase.key(2, 2));
+    assert r.get(0).getStatus() == Status.RESOURCE_NOT_EXIST;
+    assert storage.getCharacteristicById(2, 2).get().getValue().equals(true);
+  }
+
   @Test
   public void pairingTest() {
     // insert new pairing
-    KeyPair keyPair = Ciphers.ed25519KeyGen();
-    byte[] publicKey = ((EdDSAPublicKey) keyPair.getPublic()).getAbyte();
+    OctetKeyPair keyPair = Ciphers.ed25519KeyGen();
+    byte[] publicKey = keyPair.getPublicKey();
     Pairing pairing = new Pairing("Device 1", publicKey, 1);
     assert storage.savePairing(pairing);
     Optional<Pairing> opt = storage.getPairingById("Device 1");
@@ -265,7 +312,7 @@ public class HAPStorageTest {
     assert opt.get().getPermissions() == 1;
     assert storage.getPairings().size() == 1;
     keyPair = Ciphers.ed25519KeyGen();
-    publicKey = ((EdDSAPublicKey) keyPair.getPublic()).getAbyte();
+    publicKey = keyPair.getPublicKey();
     pairing = new Pairing("Device 2", publicKey, 0);
     assert storage.savePairing(pairing);
     opt = storage.getPairingById("Device 2");
@@ -298,7 +345,7 @@ public class HAPStorageTest {
 
     // public key conflict
     keyPair = Ciphers.ed25519KeyGen();
-    publicKey = ((EdDSAPublicKey) keyPair.getPublic()).getAbyte();
+    publicKey = keyPair.getPublicKey();
     pairing = new Pairing("Device 2", publicKey, 1);
     assert !storage.savePairing(pairing);
     opt = storage.getPairingById("Device 2");
@@ -320,7 +367,7 @@ public class HAPStorageTest {
     // clear success
     assert storage.clearPairingsIfNoAdmin().size() == 0;
     keyPair = Ciphers.ed25519KeyGen();
-    publicKey = ((EdDSAPublicKey) keyPair.getPublic()).getAbyte();
+    publicKey = keyPair.getPublicKey();
     pairing = new Pairing("Device 2", publicKey, 0);
     assert storage.savePairing(pairing);
     assert storage.clearPairingsIfNoAdmin().size() == 1;
@@ -1,28 +1,47 @@
 package com.github.longkerdandy.viki.home.mi;
 
-import static com.github.longkerdandy.viki.home.mi.schema.SchemaMapping.actionToParam;
-import static com.github.longkerdandy.viki.home.mi.schema.SchemaMapping.propToParam;
-import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.encryptKey;
-import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.write;
+import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.pipeline;
+import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.unicast;
 import static com.github.longkerdandy.viki.home.util.Configurations.getPropertiesConfiguration;
 
 import com.github.longkerdandy.viki.home.ext.SmartThingExt;
 import com.github.longkerdandy.viki.home.mi.model.Gateway;
 import com.github.longkerdandy.viki.home.mi.model.ZigbeeThing;
+import com.github.longkerdandy.viki.home.mi.schema.SchemaMapping;
 import com.github.longkerdandy.viki.home.mi.schema.SchemaRepository;
 import com.github.longkerdandy.viki.home.mi.service.GatewayDiscoveryService;
 import com.github.longkerdandy.viki.home.mi.service.GatewayMulticastService;
+import com.github.longkerdandy.viki.home.mi.service.ReportStateCache;
 import com.github.longkerdandy.viki.home.mi.storage.MiStorage;
+import com.github.longkerdandy.viki.home.mi.udp.DatagramBufferPool;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayKeyring;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayRequest;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec;
+import com.github.longkerdandy.viki.home.mi.udp.RttTable;
 import com.github.longkerdandy.viki.home.model.Action;
 import com.github.longkerdandy.viki.home.model.Property;
+import com.github.longkerdandy.viki.home.model.Thing;
 import com.github.longkerdandy.viki.home.model.WriteResult;
+import com.github.longkerdandy.viki.home.model.WriteTarget;
 import com.github.longkerdandy.viki.home.schema.ThingSchema;
 import com.github.longkerdandy.viki.home.storage.SQLiteStorage;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.flywaydb.core.Flyway;
@@ -43,10 +62,18 @@ public class MiProtocolExt implements SmartThingExt {
   protected final SQLiteStorage storage;
   // configuration
   private final PropertiesConfiguration config;
-  // socket timeout
-  protected final int timeout;
+  // adaptive socket timeouts and retries
+  protected final RttTable rtts;
+  // udp receive buffers
+  protected final DatagramBufferPool buffers;
   // ext storage
   protected final MiStorage miStorage;
+  // precomputed gateway write keys
+  protected final GatewayKeyring keyring;
+  // last reported zigbee thing states
+  protected final ReportStateCache states;
+  // read requests in flight, by sid
+  protected final ConcurrentMap<String, CompletableFuture<Map<String, Object>>> reads;
   // schemas
   protected final SchemaRepository schemas;
   // discovery service
@@ -58,19 +85,54 @@ public class MiProtocolExt implements SmartThingExt {
    * Constructor
    */
   public MiProtocolExt(Locale locale, SQLiteStorage storage) {
+    this(locale, storage, loadConfiguration());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param locale {@link Locale}
+   * @param storage {@link SQLiteStorage}
+   * @param config Mi extension configuration
+   */
+  protected MiProtocolExt(Locale locale, SQLiteStorage storage, PropertiesConfiguration config) {
+    this.locale = locale;
+    this.storage = storage;
+    this.config = config;
+    this.rtts = new RttTable(config.getInt("udp.timeout.initial", 1000),
+        config.getInt("udp.timeout.min", 50), config.getInt("udp.timeout", 5000),
+        config.getInt("udp.retries", 3));
+    this.buffers = new DatagramBufferPool(config.getInt("udp.buffer.size", 8192),
+        config.getInt("udp.buffer.pool", 16));
+    int receiveBufferSize = config.getInt("udp.socket.receive_buffer", 0);
+    this.miStorage = new MiStorage(config);
+    this.keyring = new GatewayKeyring();
+    this.states = new ReportStateCache();
+    this.reads = new ConcurrentHashMap<>();
+    this.schemas = new SchemaRepository(this.locale,
+        config.getString("path.schema", "schema"),
+        config.getString("path.i18n", "i18n"));
+    this.discovery = new GatewayDiscoveryService(this.storage, this.miStorage, this.schemas,
+        config.getInt("discovery.period", 300 * 1000),
+        config.getInt("discovery.duration", 5000), this.rtts,
+        config.getInt("discovery.concurrency", 4),
+        config.getLong("discovery.deadline", 60 * 1000),
+        config.getLong("discovery.full_scan.period", 24 * 3600 * 1000),
+        config.getLong("discovery.targeted.interval", 60 * 1000), this.buffers,
+        receiveBufferSize);
+    String capture = config.getString("multicast.capture.file", "");
+    this.multicast = new GatewayMulticastService(this.storage, this.miStorage, this.schemas,
+        this.discovery, this.keyring, this.states, this.buffers, receiveBufferSize,
+        capture.isEmpty() ? null : Paths.get(capture),
+        Arrays.stream(config.getString("multicast.interfaces", "").split(","))
+            .map(String::trim).filter(name -> !name.isEmpty()).collect(Collectors.toList()),
+        config.getInt("multicast.queue.size", 1024),
+        config.getLong("multicast.duplicate.window", 1000));
+  }
+
+  private static PropertiesConfiguration loadConfiguration() {
     try {
-      this.locale = locale;
-      this.storage = storage;
-      this.config = getPropertiesConfiguration("config/viki-home-mi.properties");
-      this.timeout = config.getInt("udp.timeout", 5000);
-      this.miStorage = new MiStorage(config);
-      this.schemas = new SchemaRepository(this.locale,
-          config.getString("path.schema", "schema"),
-          config.getString("path.i18n", "i18n"));
-      this.discovery = new GatewayDiscoveryService(this.storage, this.miStorage, this.schemas,
-          config.getInt("discovery.period", 300 * 1000),
-          config.getInt("discovery.duration", 5000), this.timeout);
-      this.multicast = new GatewayMulticastService(this.storage, this.miStorage, this.schemas);
+      return getPropertiesConfiguration("config/viki-home-mi.properties");
     } catch (ConfigurationException e) {
       throw new IllegalStateException(e);
     }
@@ -95,6 +157,7 @@ public class MiProtocolExt implements SmartThingExt {
 
     logger.debug("Initializing Mi storage ...");
     this.miStorage.init();
+    this.miStorage.listGateway().forEach(this.keyring::rotate);
 
     logger.debug("Loading thing schemas from path ...");
     this.schemas.load();
@@ -126,63 +189,99 @@ public class MiProtocolExt implements SmartThingExt {
     return this.schemas.getSchemas();
   }
 
+  @Override
+  public CompletableFuture<Optional<Thing>> readThing(String thingId, String schemaName,
+      Duration maxStaleness) {
+    // Determine network protocol based on schema name
+    if (!schemaName.contains("zigbee")) {
+      logger.error("Unknown network protocol in schema name {}", schemaName);
+      return CompletableFuture.failedFuture(
+          new IllegalArgumentException("unknown network protocol " + schemaName));
+    }
+    // Get ZigbeeThing and Gateway from storage
+    Optional<ZigbeeThing> z = this.miStorage.getZigbeeThingByTid(thingId);
+    if (z.isEmpty()) {
+      logger.debug("ZigbeeThing with thing id {} not exist in storage", thingId);
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
+    SchemaMapping mapping = this.schemas.getMappingByModel(z.get().getModel());
+    if (mapping == null) {
+      logger.error("Unknown model of ZigbeeThing {}", z.get());
+      return CompletableFuture.failedFuture(
+          new IllegalStateException("unknown model " + z.get().getModel()));
+    }
+    // Serve from the last reported state if fresh enough
+    String sid = z.get().getSid();
+    if (this.states.isFresh(sid, maxStaleness)) {
+      logger.debug("Read thing {} served from reported state", thingId);
+      return CompletableFuture.completedFuture(
+          Optional.of(z.get().toThing(mapping, this.states.get(sid))));
+    }
+    return read(z.get(), mapping)
+        .thenApply(params -> Optional.of(z.get().toThing(mapping, params)));
+  }
+
+  /**
+   * Read the ZigbeeThing from its gateway, concurrent reads of the same thing share one request
+   *
+   * Changed parameters are stored and recorded as the last reported state.
+   *
+   * @param z {@link ZigbeeThing}
+   * @param mapping {@link SchemaMapping} of the model
+   * @return Parameters
+   */
+  private CompletableFuture<Map<String, Object>> read(ZigbeeThing z, SchemaMapping mapping) {
+    CompletableFuture<Map<String, Object>> f = new CompletableFuture<>();
+    CompletableFuture<Map<String, Object>> inflight = this.reads.putIfAbsent(z.getSid(), f);
+    if (inflight != null) {
+      return inflight;
+    }
+    CompletableFuture.runAsync(() -> {
+      try {
+        Optional<Gateway> g = this.miStorage.getGatewayById(z.getGid());
+        if (g.isEmpty()) {
+          throw new IOException("Gateway not exist associate with ZigbeeThing " + z);
+        }
+        Map<String, Object> r = GatewayUDPCodec.read(z.getSid(), g.get().getAddress(),
+            g.get().getPort(), this.rtts, this.buffers);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> params = (Map<String, Object>) r.getOrDefault("data",
+            r.getOrDefault("params", Map.of()));
+        Map<String, Object> changed = this.states.diff(z.getSid(), params);
+        if (!changed.isEmpty() && !this.storage
+            .updateThingWithProperties(z.toThing(mapping, changed, false))) {
+          throw new IOException("Failed to update Thing " + z.getTid());
+        }
+        this.states.update(z.getSid(), changed, true);
+        logger.debug("Read thing {} from gateway {} succeeded", z.getTid(), g.get().getGid());
+        this.reads.remove(z.getSid(), f);
+        f.complete(params);
+      } catch (Exception e) {
+        logger.warn("Read thing {} failed with exception: ", z.getTid(), e);
+        this.reads.remove(z.getSid(), f);
+        f.completeExceptionally(e);
+      }
+    });
+    return f;
+  }
+
   @Override
   public CompletableFuture<WriteResult> performAction(String thingId, String schemaName,
       Action action) {
     return CompletableFuture.supplyAsync(() -> {
       try {
-        // Determine network protocol based on schema name
-        if (schemaName.contains("zigbee")) {
-          // Get ZigbeeThing and Gateway from storage
-          Optional<ZigbeeThing> z = this.miStorage.getZigbeeThingByTid(thingId);
-          if (z.isEmpty()) {
-            logger.debug("ZigbeeThing with thing id {} not exist in storage", thingId);
-            return WriteResult.NOT_EXIST;
-          }
-          Optional<Gateway> g = this.miStorage.getGatewayById(z.get().getGid());
-          if (g.isEmpty()) {
-            logger.error("Gateway not exist associate with ZigbeeThing {}", z.get());
-            return WriteResult.INTERNAL_ERROR;
-          }
-          if (g.get().getPassword() == null) {
-            logger.error("Gateway {} password is not configured", g.get());
-            return WriteResult.NOT_CONFIGURED;
-          }
-          // Convert action to parameters
-          Map<String, Object> params = actionToParam(z.get().getModel(), action);
-          // Write message requires key validation based on AES encryption
-          String encryptedKey = encryptKey(g.get().getPassword(), g.get().getToken());
-          // Gateway's protocol version is 1.x
-          if (g.get().isProtocolV1()) {
-            Map<String, Object> r = write(z.get().getModel(), z.get().getSid(),
-                z.get().getShortId(), encryptedKey, params, g.get().getAddress(),
-                g.get().getPort(), this.timeout);
-            if (r == null || r.isEmpty()) {
-              logger.warn("Write to {} failed with empty response", z.get());
-              return WriteResult.INTERNAL_ERROR;
-            }
-          }
-          // Gateway's protocol version is 2.x
-          else if (g.get().isProtocolV2()) {
-            Map<String, Object> r = write(z.get().getModel(), z.get().getSid(),
-                encryptedKey, params, g.get().getAddress(), g.get().getPort(), this.timeout);
-            if (r == null || r.isEmpty()) {
-              logger.warn("Write to {} failed with empty response", z.get());
-              return WriteResult.INTERNAL_ERROR;
-            }
-          }
-          // Gateway's protocol version is unknown
-          else {
-            logger.warn("Unsupported gateway protocol version {}", g.get());
-            return WriteResult.INTERNAL_ERROR;
-          }
-
-          logger.debug("Perform action {} to thing {} succeeded", action, thingId);
-          return WriteResult.SUCCESS;
-        } else {
-          logger.error("Unknown network protocol in schema name {}", schemaName);
+        PreparedWrite w = prepare(thingId, schemaName, m -> m.actionToParam(action));
+        if (w.result != null) {
+          return w.result;
+        }
+        Map<String, Object> r = unicast(w.request, w.remote, this.rtts, this.buffers);
+        if (r == null || r.isEmpty()) {
+          logger.warn("Write to {} failed with empty response", w.thing);
           return WriteResult.INTERNAL_ERROR;
         }
+
+        logger.debug("Perform action {} to thing {} succeeded", action, thingId);
+        return WriteResult.SUCCESS;
       } catch (IOException e) {
         logger.warn("Perform action {} to thing {} failed with exception: ", action, thingId, e);
         return WriteResult.INTERNAL_ERROR;
@@ -195,62 +294,153 @@ public class MiProtocolExt implements SmartThingExt {
       Property property) {
     return CompletableFuture.supplyAsync(() -> {
       try {
-        // Determine network protocol based on schema name
-        if (schemaName.contains("zigbee")) {
-          // Get ZigbeeThing and Gateway from storage
-          Optional<ZigbeeThing> z = this.miStorage.getZigbeeThingByTid(thingId);
-          if (z.isEmpty()) {
-            logger.debug("ZigbeeThing with thing id {} not exist in storage", thingId);
-            return WriteResult.NOT_EXIST;
-          }
-          Optional<Gateway> g = this.miStorage.getGatewayById(z.get().getGid());
-          if (g.isEmpty()) {
-            logger.error("Gateway not exist associate with ZigbeeThing {}", z.get());
-            return WriteResult.INTERNAL_ERROR;
-          }
-          if (g.get().getPassword() == null) {
-            logger.error("Gateway {} password is not configured", g.get());
-            return WriteResult.NOT_CONFIGURED;
-          }
-          // Convert action to parameters
-          Map<String, Object> params = propToParam(z.get().getModel(), property);
-          // Write message requires key validation based on AES encryption
-          String encryptedKey = encryptKey(g.get().getPassword(), g.get().getToken());
-          // Gateway's protocol version is 1.x
-          if (g.get().isProtocolV1()) {
-            Map<String, Object> r = write(z.get().getModel(), z.get().getSid(),
-                z.get().getShortId(), encryptedKey, params, g.get().getAddress(),
-                g.get().getPort(), this.timeout);
-            if (r == null || r.isEmpty()) {
-              logger.warn("Write to {} failed with empty response", z.get());
-              return WriteResult.INTERNAL_ERROR;
-            }
-          }
-          // Gateway's protocol version is 2.x
-          else if (g.get().isProtocolV2()) {
-            Map<String, Object> r = write(z.get().getModel(), z.get().getSid(),
-                encryptedKey, params, g.get().getAddress(), g.get().getPort(), this.timeout);
-            if (r == null || r.isEmpty()) {
-              logger.warn("Write to {} failed with empty response", z.get());
-              return WriteResult.INTERNAL_ERROR;
-            }
-          }
-          // Gateway's protocol version is unknown
-          else {
-            logger.warn("Unsupported gateway protocol version {}", g.get());
-            return WriteResult.INTERNAL_ERROR;
-          }
-
-          logger.debug("Write property {} to thing {} succeeded", property, thingId);
-          return WriteResult.SUCCESS;
-        } else {
-          logger.error("Unknown network protocol in schema name {}", schemaName);
+        PreparedWrite w = prepare(thingId, schemaName, m -> m.propToParam(property));
+        if (w.result != null) {
+          return w.result;
+        }
+        Map<String, Object> r = unicast(w.request, w.remote, this.rtts, this.buffers);
+        if (r == null || r.isEmpty()) {
+          logger.warn("Write to {} failed with empty response", w.thing);
           return WriteResult.INTERNAL_ERROR;
         }
+
+        logger.debug("Write property {} to thing {} succeeded", property, thingId);
+        return WriteResult.SUCCESS;
       } catch (IOException e) {
         logger.warn("Write property {} to thing {} failed with exception: ", property, thingId, e);
         return WriteResult.INTERNAL_ERROR;
       }
     });
   }
+
+  /**
+   * Targets are grouped by gateway, the write messages of each gateway are pipelined through a
+   * single socket and the gateways are written in parallel.
+   */
+  @Override
+  public CompletableFuture<List<WriteResult>> writeBatch(List<WriteTarget> targets) {
+    WriteResult[] results = new WriteResult[targets.size()];
+    return CompletableFuture.supplyAsync(() -> {
+      // resolve the targets and group them by gateway
+      Map<SocketAddress, List<PreparedWrite>> groups = new LinkedHashMap<>();
+      for (int i = 0; i < targets.size(); i++) {
+        WriteTarget t = targets.get(i);
+        PreparedWrite w = prepare(t.getThing(), t.getSchema(), t.isAction()
+            ? m -> m.actionToParam(t.getAction()) : m -> m.propToParam(t.getProperty()));
+        if (w.result != null) {
+          results[i] = w.result;
+        } else {
+          w.index = i;
+          groups.computeIfAbsent(w.remote, k -> new ArrayList<>()).add(w);
+        }
+      }
+      return groups;
+    }).thenCompose(groups -> CompletableFuture.allOf(groups.entrySet().stream()
+        .map(e -> CompletableFuture.runAsync(() -> writeGroup(e.getKey(), e.getValue(), results)))
+        .toArray(CompletableFuture[]::new)))
+        .thenApply(v -> List.of(results));
+  }
+
+  /**
+   * Pipeline the write messages to the same gateway and fill the results
+   */
+  private void writeGroup(SocketAddress remote, List<PreparedWrite> writes,
+      WriteResult[] results) {
+    List<GatewayRequest> requests = new ArrayList<>(writes.size());
+    writes.forEach(w -> requests.add(w.request));
+    try {
+      List<Map<String, Object>> responses = pipeline(requests, remote, this.rtts, this.buffers);
+      for (int i = 0; i < writes.size(); i++) {
+        Map<String, Object> r = responses.get(i);
+        if (r == null || r.isEmpty()) {
+          logger.warn("Write to {} failed with empty response", writes.get(i).thing);
+          results[writes.get(i).index] = WriteResult.INTERNAL_ERROR;
+        } else {
+          results[writes.get(i).index] = WriteResult.SUCCESS;
+        }
+      }
+      logger.debug("Write {} messages to gateway {} completed", writes.size(), remote);
+    } catch (IOException e) {
+      logger.warn("Write {} messages to gateway {} failed with exception: ", writes.size(),
+          remote, e);
+      writes.forEach(w -> results[w.index] = WriteResult.INTERNAL_ERROR);
+    }
+  }
+
+  /**
+   * Resolve the thing and its gateway from storage, and build the write message
+   *
+   * @param thingId Thing id
+   * @param schemaName ThingSchema name
+   * @param toParams Convert the value to parameters with the thing's {@link SchemaMapping}
+   * @return {@link PreparedWrite}, with the result set if the message can not be built
+   */
+  private PreparedWrite prepare(String thingId, String schemaName,
+      Function<SchemaMapping, Map<String, Object>> toParams) {
+    PreparedWrite w = new PreparedWrite();
+    // Determine network protocol based on schema name
+    if (!schemaName.contains("zigbee")) {
+      logger.error("Unknown network protocol in schema name {}", schemaName);
+      w.result = WriteResult.INTERNAL_ERROR;
+      return w;
+    }
+    // Get ZigbeeThing and Gateway from storage
+    Optional<ZigbeeThing> z = this.miStorage.getZigbeeThingByTid(thingId);
+    if (z.isEmpty()) {
+      logger.debug("ZigbeeThing with thing id {} not exist in storage", thingId);
+      w.result = WriteResult.NOT_EXIST;
+      return w;
+    }
+    w.thing = z.get();
+    Optional<Gateway> g = this.miStorage.getGatewayById(z.get().getGid());
+    if (g.isEmpty()) {
+      logger.error("Gateway not exist associate with ZigbeeThing {}", z.get());
+      w.result = WriteResult.INTERNAL_ERROR;
+      return w;
+    }
+    if (g.get().getPassword() == null) {
+      logger.error("Gateway {} password is not configured", g.get());
+      w.result = WriteResult.NOT_CONFIGURED;
+      return w;
+    }
+    // Convert to parameters
+    SchemaMapping mapping = this.schemas.getMappingByModel(z.get().getModel());
+    if (mapping == null) {
+      logger.error("Unknown model of ZigbeeThing {}", z.get());
+      w.result = WriteResult.INTERNAL_ERROR;
+      return w;
+    }
+    Map<String, Object> params = toParams.apply(mapping);
+    // Write message requires key validation based on AES encryption, precomputed per token
+    String encryptedKey = this.keyring.getKey(g.get());
+    // Gateway's protocol version is 1.x
+    if (g.get().isProtocolV1()) {
+      w.request = GatewayRequest.write(z.get().getModel(), z.get().getSid(), z.get().getShortId());
+    }
+    // Gateway's protocol version is 2.x
+    else if (g.get().isProtocolV2()) {
+      w.request = GatewayRequest.write(z.get().getModel(), z.get().getSid());
+    }
+    // Gateway's protocol version is unknown
+    else {
+      logger.warn("Unsupported gateway protocol version {}", g.get());
+      w.result = WriteResult.INTERNAL_ERROR;
+      return w;
+    }
+    w.request.params(params).key(encryptedKey);
+    w.remote = new InetSocketAddress(g.get().getAddress(), g.get().getPort());
+    return w;
+  }
+
+  /**
+   * Write message ready to be sent, or the result if it can not be sent
+   */
+  private static class PreparedWrite {
+
+    private WriteResult result;               // null if the message is ready
+    private ZigbeeThing thing;                // target thing
+    private GatewayRequest request;           // write message
+    private SocketAddress remote;             // gateway address
+    private int index;                        // index of the batch target
+  }
 }
@@ -1,183 +1,221 @@
 package com.github.longkerdandy.viki.home.mi.schema;
 
+import static com.github.longkerdandy.viki.home.model.DataType.STRING;
+
+import com.fasterxml.jackson.databind.JsonNode;
 import com.github.longkerdandy.viki.home.model.Action;
+import com.github.longkerdandy.viki.home.model.DataType;
 import com.github.longkerdandy.viki.home.model.Property;
+import com.github.longkerdandy.viki.home.schema.PropertySchema;
 import com.github.longkerdandy.viki.home.schema.ThingSchema;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import org.apache.commons.collections4.BidiMap;
-import org.apache.commons.collections4.bidimap.DualHashBidiMap;
+import java.util.Map.Entry;
+import java.util.Optional;
 
 /**
  * Mapping between {@link ThingSchema} definition and MiJia Gateway Protocol
+ *
+ * The mapping is defined in the 'mi' section of the schema file and compiled at load into
+ * array-indexed slots, each slot holds a parameter name, its property name, the property's {@link
+ * DataType} and a {@link ValueTransform}:
+ * <pre>
+ *   "mi": {
+ *     "models": ["gateway"],
+ *     "mappings": [
+ *       {"param": "rgb", "property": "rgb", "transform": "rgb"},
+ *       {"param": "mid", "property": "channel"}
+ *     ]
+ *   }
+ * </pre>
+ * Parameters or properties without a mapping are ignored. The mapping is immutable and
+ * thread-safe.
  */
 public class SchemaMapping {
 
-  private static BidiMap<String, String> MIJIA_GATEWAY = new DualHashBidiMap<>(Map.of(
-      "channel", "mid"
-  ));
-
-  private static BidiMap<String, String> AQARA_WALLSWITCH1 = new DualHashBidiMap<>(Map.of(
-      "status", "channel_0"
-  ));
-
-  private static BidiMap<String, String> AQARA_WALLSWITCH2 = new DualHashBidiMap<>(Map.of(
-      "status_left", "channel_0",
-      "status_right", "channel_1"
-  ));
-
-  private static Map<String, BidiMap<String, String>> MODEL = Map.of(
-      "gateway", MIJIA_GATEWAY,
-      "ctrl_neutral1", AQARA_WALLSWITCH1,
-      "ctrl_neutral2", AQARA_WALLSWITCH2,
-      "ctrl_ln1", AQARA_WALLSWITCH1,
-      "ctrl_ln1.aq1", AQARA_WALLSWITCH1,
-      "ctrl_ln2", AQARA_WALLSWITCH2,
-      "ctrl_ln2.aq1", AQARA_WALLSWITCH2
-  );
+  private final ThingSchema schema;
+  private final List<String> models;
+  // slots
+  private final String[] params;
+  private final String[] props;
+  private final DataType[] types;             // null if the property is not in the schema
+  private final ValueTransform[] transforms;
 
   /**
-   * Decode MIJIA_GATEWAY
+   * Constructor
    */
-  protected static Map<String, Object> decodeMiJiaGateway(String model,
-      Map<String, Object> params) {
-    Map<String, Object> properties = new HashMap<>();
-    for (String paramName : params.keySet()) {
-      String propName = MODEL.get(model).getKey(paramName);
-      propName = propName != null ? propName : paramName;
-      if (paramName.equals("rgb")) {
-        long value = (long) params.get(paramName);
-        long R = (0x00FF0000 & value) >> 16;
-        long G = (0x0000FF00 & value) >> 8;
-        long B = 0x000000FF & value;
-        properties.put(propName, new long[]{R, G, B});
-      }
-    }
-    return properties;
+  protected SchemaMapping(ThingSchema schema, List<String> models, String[] params,
+      String[] props, DataType[] types, ValueTransform[] transforms) {
+    this.schema = schema;
+    this.models = models;
+    this.params = params;
+    this.props = props;
+    this.types = types;
+    this.transforms = transforms;
   }
 
   /**
-   * Encode MIJIA_GATEWAY
+   * Compile the 'mi' section of the schema file
+   *
+   * @param schema {@link ThingSchema}
+   * @param node 'mi' section
+   * @return {@link SchemaMapping}
+   * @throws IOException when the section is invalid
    */
-  protected static Map<String, Object> encodeMiJiaGateway(String model,
-      Map<String, Object> properties) {
-    Map<String, Object> params = new HashMap<>();
-    for (String propName : properties.keySet()) {
-      String paramName = MODEL.get(model).getOrDefault(propName, propName);
-      if (propName.equals("rgb")) {
-        long[] RGB = (long[]) properties.get(propName);
-        long value = 0xFF000000L | (RGB[0] << 16) | (RGB[1] << 8) | RGB[2];
-        params.put(paramName, value == 0xFF000000L ? 0L : value);
-      } else if (propName.equals("channel")) {
-        params.put(paramName, properties.get(propName));
+  public static SchemaMapping compile(ThingSchema schema, JsonNode node) throws IOException {
+    if (!node.path("models").isArray() || !node.path("mappings").isArray()) {
+      throw new IOException("Schema " + schema.getName() + " has invalid 'mi' section");
+    }
+    List<String> models = new ArrayList<>();
+    for (JsonNode model : node.path("models")) {
+      models.add(model.asText());
+    }
+    JsonNode mappings = node.path("mappings");
+    int size = mappings.size();
+    String[] params = new String[size];
+    String[] props = new String[size];
+    DataType[] types = new DataType[size];
+    ValueTransform[] transforms = new ValueTransform[size];
+    for (int i = 0; i < size; i++) {
+      JsonNode mapping = mappings.get(i);
+      if (!mapping.hasNonNull("param") || !mapping.hasNonNull("property")) {
+        throw new IOException("Schema " + schema.getName() + " has invalid mapping " + mapping);
+      }
+      params[i] = mapping.path("param").asText();
+      props[i] = mapping.path("property").asText();
+      Optional<PropertySchema> propertySchema = schema.getPropertyByName(props[i]);
+      types[i] = propertySchema.map(PropertySchema::getType).orElse(null);
+      try {
+        transforms[i] = ValueTransform.fromValue(mapping.path("transform").textValue());
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Schema " + schema.getName() + " has " + e.getMessage());
       }
     }
-    return params;
+    return new SchemaMapping(schema, List.copyOf(models), params, props, types, transforms);
   }
 
-  /**
-   * Decode AQARA_WALLSWITCH1 & AQARA_WALLSWITCH2
-   */
-  protected static Map<String, Object> decodeAqaraWallSwitch(String model,
-      Map<String, Object> params) {
-    Map<String, Object> properties = new HashMap<>();
-    for (String paramName : params.keySet()) {
-      String propName = MODEL.get(model).getKey(paramName);
-      propName = propName != null ? propName : paramName;
-      if (List.of("channel_0", "channel_1").contains(paramName)) {
-        properties.put(propName, params.get(paramName));
+  public ThingSchema getSchema() {
+    return schema;
+  }
+
+  public List<String> getModels() {
+    return models;
+  }
+
+  private int slotOfParam(String param) {
+    for (int i = 0; i < this.params.length; i++) {
+      if (this.params[i].equals(param)) {
+        return i;
       }
     }
-    return properties;
+    return -1;
   }
 
-  /**
-   * Encode AQARA_WALLSWITCH1 & AQARA_WALLSWITCH2
-   */
-  protected static Map<String, Object> encodeAqaraWallSwitch(String model,
-      Map<String, Object> properties) {
-    Map<String, Object> params = new HashMap<>();
-    for (String propName : properties.keySet()) {
-      String paramName = MODEL.get(model).getOrDefault(propName, propName);
-      if (List.of("status", "status_left", "status_right").contains(propName)) {
-        params.put(paramName, properties.get(propName));
+  private int slotOfProp(String prop) {
+    for (int i = 0; i < this.props.length; i++) {
+      if (this.props[i].equals(prop)) {
+        return i;
       }
     }
-    return params;
+    return -1;
   }
 
   /**
-   * Convert parameters to properties
+   * Convert parameters to {@link Property}s of the schema in a single pass
    *
-   * @param model name
    * @param params name value pairs
-   * @return properties
+   * @param updatedAt timestamp of the properties
+   * @return properties, parameters which are not mapped to schema properties are ignored
    */
-  public static Map<String, Object> paramToProp(String model, Map<String, Object> params) {
-    switch (model) {
-      case "gateway":
-        return decodeMiJiaGateway(model, params);
-      case "ctrl_neutral1":
-      case "ctrl_neutral2":
-      case "ctrl_ln1":
-      case "ctrl_ln1.aq1":
-      case "ctrl_ln2":
-      case "ctrl_ln2.aq1":
-        return decodeAqaraWallSwitch(model, params);
-      default:
-        throw new IllegalArgumentException("unknown model " + model);
+  public List<Property> paramToProp(Map<String, Object> params, LocalDateTime updatedAt) {
+    List<Property> properties = new ArrayList<>(params.size());
+    for (Entry<String, Object> entry : params.entrySet()) {
+      int slot = slotOfParam(entry.getKey());
+      if (slot < 0 || this.types[slot] == null) {
+        continue;
+      }
+      Object value = this.transforms[slot].decode(entry.getValue());
+      properties.add(toProperty(this.props[slot], this.types[slot], value, updatedAt));
     }
+    return properties;
   }
 
   /**
    * Convert properties to parameters
    *
-   * @param model name
    * @param properties name value pairs
-   * @return parameters
+   * @return parameters, properties which are not mapped are ignored
    */
-  public static Map<String, Object> propToParam(String model, Map<String, Object> properties) {
-    switch (model) {
-      case "gateway":
-        return encodeMiJiaGateway(model, properties);
-      case "ctrl_neutral1":
-      case "ctrl_neutral2":
-      case "ctrl_ln1":
-      case "ctrl_ln1.aq1":
-      case "ctrl_ln2":
-      case "ctrl_ln2.aq1":
-        return encodeAqaraWallSwitch(model, properties);
-      default:
-        throw new IllegalArgumentException("unknown model " + model);
+  public Map<String, Object> propToParam(Map<String, Object> properties) {
+    Map<String, Object> params = new HashMap<>();
+    for (Entry<String, Object> entry : properties.entrySet()) {
+      int slot = slotOfProp(entry.getKey());
+      if (slot >= 0) {
+        params.put(this.params[slot], this.transforms[slot].encode(entry.getValue()));
+      }
     }
+    return params;
   }
 
   /**
    * Convert action to parameters
    *
-   * @param model name
    * @param action {@link Action}
    * @return parameters
    */
-  public static Map<String, Object> actionToParam(String model, Action action) {
-    Map<String, Object> properties = new HashMap<>();
+  public Map<String, Object> actionToParam(Action action) {
+    Map<String, Object> params = new HashMap<>();
     for (Property property : action.getInputs()) {
-      properties.put(property.getName(), property.getValue());
+      int slot = slotOfProp(property.getName());
+      if (slot >= 0) {
+        params.put(this.params[slot], this.transforms[slot].encode(property.getValue()));
+      }
     }
-    return propToParam(model, properties);
+    return params;
   }
 
   /**
    * Convert property to parameter
    *
-   * @param model name
    * @param property {@link Property}
    * @return parameters
    */
-  public static Map<String, Object> propToParam(String model, Property property) {
-    Map<String, Object> properties = new HashMap<>();
-    properties.put(property.getName(), property.getValue());
-    return propToParam(model, properties);
+  public Map<String, Object> propToParam(Property property) {
+    int slot = slotOfProp(property.getName());
+    if (slot < 0) {
+      return Map.of();
+    }
+    return Map.of(this.params[slot], this.transforms[slot].encode(property.getValue()));
+  }
+
+  /**
+   * Create typed {@link Property}, string values are parsed
+   */
+  @SuppressWarnings("unchecked")
+  private static Property toProperty(String name, DataType type, Object value,
+      LocalDateTime updatedAt) {
+    switch (type) {
+      case INTEGER:
+        return new Property<>(name, type, value instanceof String ?
+            Long.parseLong((String) value) : (Long) value, updatedAt);
+      case NUMBER:
+        return new Property<>(name, type, value instanceof String ?
+            Double.parseDouble((String) value) : ((Number) value).doubleValue(), updatedAt);
+      case BOOLEAN:
+        return new Property<>(name, type, value instanceof String ?
+            Boolean.parseBoolean((String) value) : (Boolean) value, updatedAt);
+      case DATETIME:
+        return new Property<>(name, type, value instanceof String ?
+            LocalDateTime.parse((String) value) : (LocalDateTime) value, updatedAt);
+      case STRING:
+        return new Property<>(name, STRING, (String) value, updatedAt);
+      default:
+        // array and blob values are produced by transforms with the right java type
+        return new Property<>(name, type, value, updatedAt);
+    }
   }
 }
@@ -1,5 +1,6 @@
 package com.github.longkerdandy.viki.home.mi.schema;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.github.longkerdandy.viki.home.schema.ThingSchema;
 import com.github.longkerdandy.viki.home.util.Jacksons;
 import java.io.File;
@@ -8,7 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
@@ -16,30 +17,17 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * {@link ThingSchema} definitions repository
+ *
+ * Every '*.json' file under the schema path is loaded, its 'mi' section is compiled into a {@link
+ * SchemaMapping} for the listed models. The i18n resource bundle shares the file's base name.
  */
 public class SchemaRepository {
 
-  // List of resource name
-  private static final List<String> NAMES = List.of(
-      "MiJiaGateway",
-      "AqaraWallSwitch1",
-      "AqaraWallSwitch2"
-  );
-
-  private static Map<String, String> MODEL = Map.of(
-      "gateway", "mi:gateway:multifunction_gateway",
-      "ctrl_neutral1", "aqara:zigbee:1_button_wall_switch",
-      "ctrl_neutral2", "aqara:zigbee:2_button_wall_switch",
-      "ctrl_ln1", "aqara:zigbee:1_button_wall_switch",
-      "ctrl_ln1.aq1", "aqara:zigbee:1_button_wall_switch",
-      "ctrl_ln2", "aqara:zigbee:2_button_wall_switch",
-      "ctrl_ln2.aq1", "aqara:zigbee:2_button_wall_switch"
-  );
-
   private final Locale locale;
   private final String schemaPath;
   private final String i18nPath;
   private final Map<String, ThingSchema> repository;
+  private final Map<String, SchemaMapping> mappings;
 
   /**
    * Constructor
@@ -51,10 +39,11 @@ public class SchemaRepository {
     this.schemaPath = schemaPath.endsWith("/") ? schemaPath : schemaPath + "/";
     this.i18nPath = i18nPath.endsWith("/") ? i18nPath : i18nPath + "/";
     this.repository = new ConcurrentHashMap<>();
+    this.mappings = new ConcurrentHashMap<>();
   }
 
   /**
-   * Load {@link ThingSchema} from resources
+   * Load {@link ThingSchema} and compile {@link SchemaMapping} from resources
    *
    * @throws IOException when failed to parse definition files
    */
@@ -62,11 +51,24 @@ public class SchemaRepository {
     File i18n = new File(this.i18nPath);
     URL[] urls = {i18n.toURI().toURL()};
     ClassLoader classLoader = new URLClassLoader(urls);
-    for (String name : NAMES) {
-      try (InputStream stream = new FileInputStream(this.schemaPath + name + ".json")) {
-        ThingSchema schema = Jacksons.getReader(ThingSchema.class).readValue(stream);
+    File[] files = new File(this.schemaPath).listFiles((dir, name) -> name.endsWith(".json"));
+    if (files == null) {
+      throw new IOException("Schema path " + this.schemaPath + " is not a directory");
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName().substring(0, file.getName().length() - ".json".length());
+      try (InputStream stream = new FileInputStream(file)) {
+        JsonNode node = Jacksons.getMapper().readTree(stream);
+        ThingSchema schema = Jacksons.getMapper().treeToValue(node, ThingSchema.class);
         ResourceBundle bundle = ResourceBundle.getBundle(name, this.locale, classLoader);
         this.repository.put(schema.getName(), schema.resourceBundle(bundle));
+        if (node.has("mi")) {
+          SchemaMapping mapping = SchemaMapping.compile(schema, node.path("mi"));
+          for (String model : mapping.getModels()) {
+            this.mappings.put(model, mapping);
+          }
+        }
       }
     }
   }
@@ -94,9 +96,20 @@ public class SchemaRepository {
    * Get {@link ThingSchema} by its model
    *
    * @param model Model
-   * @return {@link ThingSchema}
+   * @return {@link ThingSchema}, null if the model is unknown
    */
   public ThingSchema getSchemaByModel(String model) {
-    return this.repository.get(MODEL.get(model));
+    SchemaMapping mapping = this.mappings.get(model);
+    return mapping != null ? mapping.getSchema() : null;
+  }
+
+  /**
+   * Get {@link SchemaMapping} by its model
+   *
+   * @param model Model
+   * @return {@link SchemaMapping}, null if the model is unknown
+   */
+  public SchemaMapping getMappingByModel(String model) {
+    return this.mappings.get(model);
   }
 }
@@ -0,0 +1,80 @@
+package com.github.longkerdandy.viki.home.mi.schema;
+
+/**
+ * Value transform between Mi gateway parameter and {@link com.github.longkerdandy.viki.home.model.Property}
+ *
+ * Referenced by name from the 'transform' field of the schema file's 'mi' mappings.
+ */
+public enum ValueTransform {
+
+  /**
+   * Value is passed through unchanged
+   */
+  NONE("none") {
+    @Override
+    public Object decode(Object param) {
+      return param;
+    }
+
+    @Override
+    public Object encode(Object property) {
+      return property;
+    }
+  },
+
+  /**
+   * 0xAARRGGBB integer parameter to [R, G, B] integer array property, 0 means light off
+   */
+  RGB("rgb") {
+    @Override
+    public Object decode(Object param) {
+      long value = param instanceof String ? Long.parseLong((String) param) : (Long) param;
+      return new long[]{(0x00FF0000 & value) >> 16, (0x0000FF00 & value) >> 8, 0x000000FF & value};
+    }
+
+    @Override
+    public Object encode(Object property) {
+      long[] rgb = (long[]) property;
+      long value = 0xFF000000L | (rgb[0] << 16) | (rgb[1] << 8) | rgb[2];
+      return value == 0xFF000000L ? 0L : value;
+    }
+  };
+
+  private final String value;
+
+  ValueTransform(String value) {
+    this.value = value;
+  }
+
+  /**
+   * Get {@link ValueTransform} based on its name
+   *
+   * @param value Name, null means {@link #NONE}
+   * @return {@link ValueTransform}
+   */
+  public static ValueTransform fromValue(String value) {
+    if (value == null) {
+      return NONE;
+    }
+    for (ValueTransform transform : ValueTransform.values()) {
+      if (transform.value.equals(value)) {
+        return transform;
+      }
+    }
+    throw new IllegalArgumentException("invalid value transform: " + value);
+  }
+
+  public String value() {
+    return value;
+  }
+
+  /**
+   * Transform parameter value to property value
+   */
+  public abstract Object decode(Object param);
+
+  /**
+   * Transform property value to parameter value
+   */
+  public abstract Object encode(Object property);
+}
@@ -0,0 +1,86 @@
+package com.github.longkerdandy.viki.home.mi.service;
+
+import com.github.longkerdandy.viki.home.mi.udp.DatagramBufferPool;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessage;
+import com.github.longkerdandy.viki.home.mi.udp.PacketCaptureReader;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replay a capture recorded by {@link GatewayMulticastService} through its decode and processing
+ * pipeline
+ *
+ * Packets are replayed in the recorded order, either paced by their receive timestamps at a
+ * speed factor or as fast as they can be processed. A repeatable replay of real-world traffic can
+ * be used to benchmark decoder and storage changes.
+ */
+public class CaptureReplayer {
+
+  private static final Logger logger = LoggerFactory.getLogger(CaptureReplayer.class);
+
+  private final GatewayMulticastService multicast;
+  private final DatagramBufferPool buffers;
+
+  /**
+   * Constructor
+   *
+   * @param multicast {@link GatewayMulticastService} to process the packets
+   * @param buffers {@link DatagramBufferPool}
+   */
+  public CaptureReplayer(GatewayMulticastService multicast, DatagramBufferPool buffers) {
+    this.multicast = multicast;
+    this.buffers = buffers;
+  }
+
+  /**
+   * Replay the capture file, this will block until the whole capture is replayed
+   *
+   * @param capture Capture file
+   * @param speed Speed factor, 1 for the recorded pace, 0 or infinity for maximum speed
+   * @return Number of replayed packets, including the ones failed to be processed
+   * @throws IOException when the capture can not be read
+   * @throws InterruptedException when interrupted while waiting for the next packet
+   */
+  public long replay(Path capture, double speed) throws IOException, InterruptedException {
+    boolean paced = speed > 0 && !Double.isInfinite(speed);
+    byte[] buf = this.buffers.acquire();
+    GatewayMessage msg = new GatewayMessage();
+    long count = 0, failed = 0, first = 0;
+    long start = System.nanoTime();
+    try (PacketCaptureReader reader = new PacketCaptureReader(capture)) {
+      DatagramPacket packet;
+      while ((packet = reader.next(buf)) != null) {
+        // Wait until the packet is due relative to the first one
+        if (count == 0) {
+          first = reader.getTimestamp();
+        } else if (paced) {
+          long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(reader.getTimestamp() - first)
+              / speed);
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+        }
+        count++;
+        try {
+          this.multicast.handle(packet, msg);
+        } catch (IOException e) {
+          failed++;
+          logger.debug("Replayed packet {} failed: {}", count, e.getMessage());
+        }
+      }
+    } finally {
+      this.buffers.release(buf);
+    }
+
+    long elapsed = System.nanoTime() - start;
+    logger.info("Replayed {} packets ({} failed) from {} in {} ms, {} packets/s", count, failed,
+        capture, TimeUnit.NANOSECONDS.toMillis(elapsed),
+        elapsed > 0 ? (long) (count * 1e9 / elapsed) : count);
+    return count;
+  }
+}
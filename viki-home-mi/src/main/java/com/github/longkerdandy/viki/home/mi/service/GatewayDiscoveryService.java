@@ -2,7 +2,6 @@ package com.github.longkerdandy.viki.home.mi.service;
 
 import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.decodeResponse;
 import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.discovery;
-import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.encodeRequest;
 import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.list;
 import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.read;
 import static com.github.longkerdandy.viki.home.util.Networks.getIPAddress;
@@ -11,6 +10,10 @@ import com.github.longkerdandy.viki.home.mi.model.Gateway;
 import com.github.longkerdandy.viki.home.mi.model.ZigbeeThing;
 import com.github.longkerdandy.viki.home.mi.schema.SchemaRepository;
 import com.github.longkerdandy.viki.home.mi.storage.MiStorage;
+import com.github.longkerdandy.viki.home.mi.udp.DatagramBufferPool;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessageEncoder;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayRequest;
+import com.github.longkerdandy.viki.home.mi.udp.RttTable;
 import com.github.longkerdandy.viki.home.model.Thing;
 import com.github.longkerdandy.viki.home.storage.SQLiteStorage;
 import com.github.longkerdandy.viki.home.util.IdGenerator;
@@ -23,32 +26,67 @@ import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * {@link Gateway} discovery service
+ *
+ * Each discovered gateway is enumerated by a worker, which reads the associated zigbee things in
+ * parallel with at most 'concurrency' outstanding reads per gateway. Enumeration stops at the
+ * deadline, things read so far are stored and the rest are left to the next execution.
+ *
+ * Rediscovery is incremental: the listed sids are compared with the {@link MiStorage} directory
+ * and only unknown things are read. A full scan, which reads every listed thing, runs once per
+ * 'fullScanPeriod' as a safety net. Reports or heartbeats from unknown sids trigger a targeted
+ * discovery through {@link #discover(String, InetAddress)}.
  */
 public class GatewayDiscoveryService {
 
   private static final Logger logger = LoggerFactory.getLogger(GatewayDiscoveryService.class);
 
+  // number of gateways enumerated at the same time
+  private static final int WORKER_THREADS = 4;
+
   private final SQLiteStorage storage;
   private final MiStorage miStorage;
   private final SchemaRepository schemas;
   private final IdGenerator idGen;
   private final long period;
   private final int duration;
-  private final int timeout;
+  private final RttTable rtts;
+  private final int concurrency;
+  private final long deadline;
+  private final long fullScanPeriod;
+  private final long targetedInterval;
+  private final DatagramBufferPool buffers;
+  private final int receiveBufferSize;
   private final ScheduledExecutorService schedulerGroup;
   private final ExecutorService workerGroup;
+  private final ExecutorService readerGroup;
+  // last targeted discovery attempt (nano time) by sid, evicted after 'targetedInterval'
+  private final ConcurrentMap<String, Long> attempts;
+  // whether a scan triggered by targeted discovery is waiting to be executed
+  private final AtomicBoolean scanPending;
+  // next full scan (nano time)
+  private volatile long nextFullScan;
 
   /***
    * Constructor
@@ -58,149 +96,360 @@ public class GatewayDiscoveryService {
    * @param schemas {@link SchemaRepository}
    * @param period between successive executions in milliseconds
    * @param duration of each execution in milliseconds
-   * @param timeout socket timeout in milliseconds
+   * @param rtts {@link RttTable} for socket timeouts and retries
+   * @param concurrency maximum outstanding reads per gateway
+   * @param deadline of each gateway enumeration in milliseconds
+   * @param fullScanPeriod between successive full scans in milliseconds
+   * @param targetedInterval minimum interval between targeted discoveries of the same sid in
+   * milliseconds
+   * @param buffers {@link DatagramBufferPool}
+   * @param receiveBufferSize socket receive buffer (SO_RCVBUF) size in bytes, 0 for system default
    */
   public GatewayDiscoveryService(SQLiteStorage storage, MiStorage miStorage,
-      SchemaRepository schemas, long period, int duration, int timeout) {
+      SchemaRepository schemas, long period, int duration, RttTable rtts, int concurrency,
+      long deadline, long fullScanPeriod, long targetedInterval, DatagramBufferPool buffers,
+      int receiveBufferSize) {
     this.storage = storage;
     this.miStorage = miStorage;
     this.schemas = schemas;
     this.idGen = new IdGenerator(new SecureRandom());
     this.period = period;
     this.duration = duration;
-    this.timeout = timeout;
+    this.rtts = rtts;
+    this.concurrency = Math.max(1, concurrency);
+    this.deadline = deadline;
+    this.fullScanPeriod = fullScanPeriod;
+    this.targetedInterval = targetedInterval;
+    this.buffers = buffers;
+    this.receiveBufferSize = receiveBufferSize;
     this.schedulerGroup = Executors.newScheduledThreadPool(1);
-    this.workerGroup = Executors.newFixedThreadPool(4);
+    this.workerGroup = Executors.newFixedThreadPool(WORKER_THREADS);
+    this.readerGroup = Executors.newFixedThreadPool(WORKER_THREADS * this.concurrency);
+    this.attempts = new ConcurrentHashMap<>();
+    this.scanPending = new AtomicBoolean();
   }
 
   /**
-   * Initialize
+   * Initialize, the first execution is a full scan
    */
-  @SuppressWarnings("unchecked")
   public void init() {
-    this.schedulerGroup.scheduleAtFixedRate(() -> {
-      try (DatagramSocket socket = new DatagramSocket()) {
-        // Create whois message
-        Map<String, Object> whois = new LinkedHashMap<>();
-        whois.put("cmd", "whois");
-
-        // Socket options setting
-        // Use socket timeout to stop the infinite loop
-        socket.setSoTimeout(this.duration);
-        SocketAddress remote = new InetSocketAddress(InetAddress.getByName("224.0.0.50"), 4321);
-
-        // Encode and send the whois message
-        byte[] input = encodeRequest(whois);
-        socket.send(new DatagramPacket(input, input.length, remote));
-        logger.debug("Sent 'whois' message to 224.0.0.50");
-
-        // Reused response message buffer
-        byte[] buf = new byte[1024];
-
-        // noinspection InfiniteLoopStatement
-        while (true) {
-          // Receive the iam message, this will block
-          DatagramPacket packet = new DatagramPacket(buf, buf.length);
-          socket.receive(packet);
-          Map<String, Object> iam = decodeResponse(packet.getData());
-          logger.debug("Received 'iam' message from {}", getIPAddress(packet.getAddress()));
-
-          // Dispatch a new worker thread to handle future discovery.
-          // Worker thread will list(discovery) gateway and loop each associated zigbee thing,
-          // then inert or update to extension storage and core storage, emit events if necessary.
-          this.workerGroup.submit(() -> {
-            try {
-              Gateway gateway;
-              List<String> sids;
-              InetAddress address = InetAddress.getByName((String) iam.get("ip"));
-              Integer port = (Integer) iam.get("port");
-
-              // List gateway, protocol 1.x
-              if ("gateway".equals(iam.get("model"))) {
-                Map<String, Object> listAck = list(address, port, this.timeout);
-                gateway = new Gateway((String) listAck.get("sid"), (String) iam.get("model"),
-                    (String) iam.get("proto_version"), null,
-                    (String) listAck.get("token"), address, port);
-                sids = (List<String>) listAck.get("data");
-                sids.add(gateway.getGid());
-              }
+    this.nextFullScan = System.nanoTime();
+    this.schedulerGroup.scheduleAtFixedRate(this::scan, 0, this.period, TimeUnit.MILLISECONDS);
+  }
 
-              // Discovery gateway, protocol 2.x
-              // To retrieve protocol version, read gateway after discovery
-              else if ("gateway.aq1".equals(iam.get("model"))) {
-                Map<String, Object> discoveryRsp = discovery(address, port, this.timeout);
-                Map<String, Object> readRsp = read((String) discoveryRsp.get("sid"),
-                    address, port, this.timeout);
-                gateway = new Gateway((String) discoveryRsp.get("sid"),
-                    (String) iam.get("model"),
-                    (String) ((Map<String, Object>) readRsp.get("params")).get("proto_version"),
-                    null, (String) discoveryRsp.get("token"), address, port);
-                sids = new ArrayList<>(
-                    ((Map<String, Object>) discoveryRsp.get("params")).keySet());
-                sids.add(gateway.getGid());
-              }
+  /**
+   * Targeted discovery of an unknown sid, usually seen in 'report' or 'heartbeat' messages.
+   * Attempts for the same sid are limited to one per 'targetedInterval'.
+   *
+   * The sid is read from the known {@link Gateway} at the source address, or a gateway scan is
+   * executed immediately if the source is not a known gateway. Sids seen before the scan starts
+   * share the same pending scan.
+   *
+   * @param sid Zigbee thing id
+   * @param source Source address of the message
+   */
+  public void discover(String sid, InetAddress source) {
+    long now = System.nanoTime();
+    long interval = TimeUnit.MILLISECONDS.toNanos(this.targetedInterval);
+    this.attempts.values().removeIf(last -> now - last >= interval);
+    if (this.attempts.compute(sid, (k, last) ->
+        last == null || now - last >= interval ? now : last) != now) {
+      return;
+    }
+    Optional<Gateway> gateway = this.miStorage.listGateway().stream()
+        .filter(g -> g.getAddress().equals(source))
+        .findFirst();
+    if (gateway.isPresent()) {
+      logger.debug("Targeted discovery of zigbee thing {} from gateway {}", sid,
+          gateway.get().getGid());
+      this.workerGroup.submit(() -> {
+        try {
+          enumerate(gateway.get(), List.of(sid), true);
+        } catch (Exception e) {
+          // Catch and logging top level exception here because it isn't the main thread
+          logger.error("Error happened when trying to communicate with zigbee things:", e);
+        }
+      });
+    } else {
+      logger.debug("Targeted discovery of unknown gateway {} at {}", sid, getIPAddress(source));
+      if (this.scanPending.compareAndSet(false, true)) {
+        this.schedulerGroup.execute(() -> {
+          this.scanPending.set(false);
+          scan();
+        });
+      }
+    }
+  }
 
-              // Unsupported gateway model
-              else {
-                logger.debug("Unsupported gateway model {}", iam.get("model"));
-                return;
-              }
+  /**
+   * Send 'whois' and enumerate each responded gateway
+   */
+  @SuppressWarnings("unchecked")
+  protected void scan() {
+    // Decide whether this execution is a full scan
+    boolean full = System.nanoTime() - this.nextFullScan >= 0;
+    if (full) {
+      this.nextFullScan = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.fullScanPeriod);
+    }
 
-              // Insert or update gateway
-              if (this.miStorage.insetGateway(gateway)) {
-                logger.debug("Gateway {} has been inserted", gateway);
-                // TODO: Send extension event
-              } else if (this.miStorage.updateGateway(gateway)) {
-                logger.debug("Gateway {} has been updated", gateway);
-              } else {
-                logger.warn("Failed to insert or update gateway {}", gateway);
-                return;
-              }
+    byte[] buf = this.buffers.acquire();
+    try (DatagramSocket socket = new DatagramSocket()) {
+
+      // Socket options setting
+      // Use socket timeout to stop the infinite loop
+      socket.setSoTimeout(this.duration);
+      if (this.receiveBufferSize > 0) {
+        socket.setReceiveBufferSize(this.receiveBufferSize);
+      }
+      SocketAddress remote = new InetSocketAddress(InetAddress.getByName("224.0.0.50"), 4321);
+
+      // Encode and send the whois message
+      int length = GatewayMessageEncoder.encode(GatewayRequest.whois(), buf);
+      socket.send(new DatagramPacket(buf, 0, length, remote));
+      logger.debug("Sent 'whois' message to 224.0.0.50");
+
+      // noinspection InfiniteLoopStatement
+      while (true) {
+        // Receive the iam message into the reused buffer, this will block
+        DatagramPacket packet = this.buffers.receive(socket, buf);
+        Map<String, Object> iam = decodeResponse(packet.getData(), packet.getOffset(),
+            packet.getLength());
+        logger.debug("Received 'iam' message from {}", getIPAddress(packet.getAddress()));
+
+        // Dispatch a new worker thread to handle future discovery.
+        // Worker thread will list(discovery) gateway and loop each associated zigbee thing,
+        // then inert or update to extension storage and core storage, emit events if necessary.
+        this.workerGroup.submit(() -> {
+          try {
+            Gateway gateway;
+            List<String> sids;
+            InetAddress address = InetAddress.getByName((String) iam.get("ip"));
+            Integer port = (Integer) iam.get("port");
+
+            // List gateway, protocol 1.x
+            if ("gateway".equals(iam.get("model"))) {
+              Map<String, Object> listAck = list(address, port, this.rtts, this.buffers);
+              gateway = new Gateway((String) listAck.get("sid"), (String) iam.get("model"),
+                  (String) iam.get("proto_version"), null,
+                  (String) listAck.get("token"), address, port);
+              sids = (List<String>) listAck.get("data");
+              sids.add(gateway.getGid());
+            }
+
+            // Discovery gateway, protocol 2.x
+            // To retrieve protocol version, read gateway after discovery
+            else if ("gateway.aq1".equals(iam.get("model"))) {
+              Map<String, Object> discoveryRsp = discovery(address, port, this.rtts, this.buffers);
+              Map<String, Object> readRsp = read((String) discoveryRsp.get("sid"),
+                  address, port, this.rtts, this.buffers);
+              gateway = new Gateway((String) discoveryRsp.get("sid"),
+                  (String) iam.get("model"),
+                  (String) ((Map<String, Object>) readRsp.get("params")).get("proto_version"),
+                  null, (String) discoveryRsp.get("token"), address, port);
+              sids = new ArrayList<>(
+                  ((Map<String, Object>) discoveryRsp.get("dev_list")).keySet());
+              sids.add(gateway.getGid());
+            }
+
+            // Unsupported gateway model
+            else {
+              logger.debug("Unsupported gateway model {}", iam.get("model"));
+              return;
+            }
 
-              // Loop and read zigbee things associated with gateway
-              // Insert or each zigbee thing and thing, emit events if necessary
-              for (String sid : sids) {
-                Map<String, Object> readRsp = read(sid, address, port, this.timeout);
-                String tid = this.idGen.nextId();
-                String model = (String) readRsp.get("model");
-                ZigbeeThing zigbeeThing = new ZigbeeThing(sid, gateway.getGid(), tid, model,
-                    readRsp.containsKey("short_id") ? (Integer) readRsp.get("short_id") : null);
-                // If ZigbeeThing is new, Thing will be inserted and event will be emitted
-                if (this.miStorage.insetZigbeeThing(zigbeeThing)) {
-                  logger.debug("ZigbeeThing {} has been inserted", zigbeeThing);
-                  Thing t = zigbeeThing.toThing(this.schemas.getSchemaByModel(model), readRsp);
-                  if (this.storage.insertThingWithProperties(t)) {
-                    logger.debug("Thing {} and its properties has been inserted", t);
-                    // TODO: Send thing event
-                  } else {
-                    logger.error("Failed to insert Thing {}, data maybe corrupted", t);
-                  }
-                }
-                // If ZigbeeThing already exists, Thing will not be updated or touched,
-                // which leaves to the 'report' and 'heartbeat' operations
-                else if (this.miStorage.updateZigbeeThing(zigbeeThing).isPresent()) {
-                  logger.debug("ZigbeeThing {} has been updated", zigbeeThing);
-                } else {
-                  logger.warn("Failed to insert or update zigbee thing {}", zigbeeThing);
-                }
+            // Insert or update gateway
+            if (this.miStorage.getGatewayById(gateway.getGid()).isPresent()) {
+              if (!this.miStorage.updateGateway(gateway)) {
+                logger.warn("Failed to update gateway {}", gateway);
+                return;
               }
-            } catch (IOException e) {
-              logger.warn("Exception happened when trying to communicate with zigbee things:", e);
-            } catch (Exception e) {
-              // Catch and logging top level exception here because it isn't the main thread
-              logger.error("Error happened when trying to communicate with zigbee things:", e);
+            } else if (this.miStorage.insetGateway(gateway)) {
+              logger.debug("Gateway {} has been inserted", gateway);
+              // TODO: Send extension event
+            } else {
+              logger.warn("Failed to insert gateway {}", gateway);
+              return;
             }
-          });
+
+            // Read zigbee things associated with gateway in parallel
+            enumerate(gateway, sids, full);
+          } catch (IOException e) {
+            logger.warn("Exception happened when trying to communicate with zigbee things:", e);
+          } catch (Exception e) {
+            // Catch and logging top level exception here because it isn't the main thread
+            logger.error("Error happened when trying to communicate with zigbee things:", e);
+          }
+        });
+      }
+    } catch (SocketTimeoutException ignore) {
+      // Timeout is the expected behavior, when there is no more iam response, the loop will end
+    } catch (IOException e) {
+      logger.warn("Exception happened when trying to discover zigbee things:", e);
+    } catch (Exception e) {
+      // Catch and logging top level exception here because it isn't the main thread
+      logger.error("Error happened when trying to discover zigbee things:", e);
+    } finally {
+      this.buffers.release(buf);
+    }
+  }
+
+  /**
+   * Read zigbee things associated with the {@link Gateway} in parallel, insert or update each
+   * zigbee thing and thing, emit events if necessary. Things not read before the deadline are
+   * skipped and left to the next execution, each read is bounded by the time left to the deadline
+   * so no read outlives the enumeration.
+   *
+   * Unless it is a full scan, things already in the directory are not read, things moved from
+   * another gateway are re-associated without reading.
+   *
+   * @param gateway {@link Gateway}
+   * @param listed Zigbee thing ids listed by the gateway
+   * @param full Whether to read every listed zigbee thing
+   * @return Number of zigbee things skipped by the deadline
+   * @throws InterruptedException when the worker is interrupted
+   */
+  protected int enumerate(Gateway gateway, List<String> listed, boolean full)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    List<String> sids = full ? listed : diff(gateway, listed);
+    long end = start + TimeUnit.MILLISECONDS.toNanos(this.deadline);
+    Semaphore permits = new Semaphore(this.concurrency);
+    CompletionService<SidRead> reads = new ExecutorCompletionService<>(this.readerGroup);
+    List<Future<SidRead>> futures = new ArrayList<>(sids.size());
+
+    // Submit reads, at most 'concurrency' outstanding at the same time
+    for (String sid : sids) {
+      if (!permits.tryAcquire(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+        break;
+      }
+      futures.add(reads.submit(() -> {
+        long begin = System.nanoTime();
+        try {
+          return new SidRead(sid, read(sid, gateway.getAddress(), gateway.getPort(), this.rtts,
+              this.buffers, TimeUnit.NANOSECONDS.toMillis(end - begin)), System.nanoTime() - begin,
+              null);
+        } catch (IOException e) {
+          return new SidRead(sid, null, System.nanoTime() - begin, e);
+        } finally {
+          permits.release();
         }
-      } catch (SocketTimeoutException ignore) {
-        // Timeout is the expected behavior, when there is no more iam response, the loop will end
-      } catch (IOException e) {
-        logger.warn("Exception happened when trying to discover zigbee things:", e);
-      } catch (Exception e) {
-        // Catch and logging top level exception here because it isn't the main thread
-        logger.error("Error happened when trying to discover zigbee things:", e);
+      }));
+    }
+
+    // Handle results in completion order until the deadline
+    int succeeded = 0, failed = 0;
+    long minLatency = Long.MAX_VALUE, maxLatency = 0, totalLatency = 0;
+    for (int i = 0; i < futures.size(); i++) {
+      Future<SidRead> future = reads.poll(Math.max(0, end - System.nanoTime()),
+          TimeUnit.NANOSECONDS);
+      if (future == null) {
+        break;
       }
-    }, 0, this.period, TimeUnit.MILLISECONDS);
+      SidRead r;
+      try {
+        r = future.get();
+      } catch (ExecutionException e) {
+        logger.error("Error happened when trying to read zigbee thing:", e.getCause());
+        failed++;
+        continue;
+      }
+      long latency = TimeUnit.NANOSECONDS.toMillis(r.nanos);
+      minLatency = Math.min(minLatency, latency);
+      maxLatency = Math.max(maxLatency, latency);
+      totalLatency += latency;
+      if (r.error != null) {
+        logger.debug("Read zigbee thing {} failed in {} ms: {}", r.sid, latency,
+            r.error.getMessage());
+        failed++;
+      } else {
+        logger.debug("Read zigbee thing {} in {} ms", r.sid, latency);
+        succeeded++;
+        try {
+          saveZigbeeThing(gateway, r.sid, r.rsp);
+        } catch (IOException e) {
+          logger.warn("Exception happened when trying to save zigbee thing {}:", r.sid, e);
+        }
+      }
+    }
+    futures.forEach(f -> f.cancel(true));
+
+    if (sids.isEmpty() && !full) {
+      logger.debug("Gateway {} has no unknown zigbee things", gateway.getGid());
+      return 0;
+    }
+    int skipped = sids.size() - succeeded - failed;
+    logger.info("Enumerated gateway {} ({} scan) in {} ms: {} of {} zigbee things read, "
+            + "{} failed, {} skipped by deadline, read latency min/avg/max {}/{}/{} ms",
+        gateway.getGid(), full ? "full" : "incremental",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), succeeded, sids.size(), failed,
+        skipped, succeeded + failed > 0 ? minLatency : 0,
+        succeeded + failed > 0 ? totalLatency / (succeeded + failed) : 0, maxLatency);
+    return skipped;
+  }
+
+  /**
+   * Diff the listed sids against the directory
+   *
+   * @return Unknown sids which should be read
+   */
+  private List<String> diff(Gateway gateway, List<String> listed) {
+    List<String> unknown = new ArrayList<>();
+    Set<String> known = new HashSet<>();
+    for (String sid : listed) {
+      Optional<ZigbeeThing> z = this.miStorage.getZigbeeThingById(sid);
+      if (z.isEmpty()) {
+        unknown.add(sid);
+      } else if (!gateway.getGid().equals(z.get().getGid())) {
+        // Moved from another gateway, re-associate without reading
+        ZigbeeThing moved = new ZigbeeThing(sid, gateway.getGid(), z.get().getTid(),
+            z.get().getModel(), z.get().getShortId());
+        if (this.miStorage.updateZigbeeThing(moved).isPresent()) {
+          logger.debug("ZigbeeThing {} has been moved to gateway {}", sid, gateway.getGid());
+        }
+      }
+      known.add(sid);
+    }
+    for (ZigbeeThing z : this.miStorage.listZigbeeThingByGid(gateway.getGid())) {
+      if (!known.contains(z.getSid())) {
+        logger.info("ZigbeeThing {} is no longer listed by gateway {}", z.getSid(),
+            gateway.getGid());
+      }
+    }
+    return unknown;
+  }
+
+  /**
+   * Insert or update zigbee thing and thing from the read response
+   */
+  @SuppressWarnings("unchecked")
+  private void saveZigbeeThing(Gateway gateway, String sid, Map<String, Object> readRsp)
+      throws IOException {
+    this.attempts.remove(sid);
+    Optional<ZigbeeThing> existing = this.miStorage.getZigbeeThingById(sid);
+    String tid = existing.isPresent() ? existing.get().getTid() : this.idGen.nextId();
+    String model = (String) readRsp.get("model");
+    ZigbeeThing zigbeeThing = new ZigbeeThing(sid, gateway.getGid(), tid, model,
+        readRsp.containsKey("short_id") ? (Integer) readRsp.get("short_id") : null);
+    // If ZigbeeThing is new, Thing will be inserted and event will be emitted
+    if (existing.isEmpty() && this.miStorage.insetZigbeeThing(zigbeeThing)) {
+      logger.debug("ZigbeeThing {} has been inserted", zigbeeThing);
+      Map<String, Object> params = (Map<String, Object>) readRsp.getOrDefault("data",
+          readRsp.getOrDefault("params", Map.of()));
+      Thing t = zigbeeThing.toThing(this.schemas.getMappingByModel(model), params);
+      if (this.storage.insertThingWithProperties(t)) {
+        logger.debug("Thing {} and its properties has been inserted", t);
+        // TODO: Send thing event
+      } else {
+        logger.error("Failed to insert Thing {}, data maybe corrupted", t);
+      }
+    }
+    // If ZigbeeThing already exists, Thing will not be updated or touched,
+    // which leaves to the 'report' and 'heartbeat' operations
+    else if (this.miStorage.updateZigbeeThing(zigbeeThing).isPresent()) {
+      logger.debug("ZigbeeThing {} has been updated", zigbeeThing);
+    } else {
+      logger.warn("Failed to insert or update zigbee thing {}", zigbeeThing);
+    }
   }
 
   /**
@@ -208,6 +457,25 @@ public class GatewayDiscoveryService {
    */
   public void destroy() {
     this.workerGroup.shutdown();
+    this.readerGroup.shutdownNow();
     this.schedulerGroup.shutdown();
   }
+
+  /**
+   * Result of a single zigbee thing read
+   */
+  private static class SidRead {
+
+    private final String sid;
+    private final Map<String, Object> rsp;
+    private final long nanos;
+    private final IOException error;
+
+    private SidRead(String sid, Map<String, Object> rsp, long nanos, IOException error) {
+      this.sid = sid;
+      this.rsp = rsp;
+      this.nanos = nanos;
+      this.error = error;
+    }
+  }
 }
@@ -1,25 +1,39 @@
 package com.github.longkerdandy.viki.home.mi.service;
 
-import static com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec.decodeResponse;
 import static com.github.longkerdandy.viki.home.util.Networks.getIPAddress;
 
 import com.github.longkerdandy.viki.home.mi.model.Gateway;
 import com.github.longkerdandy.viki.home.mi.model.ZigbeeThing;
+import com.github.longkerdandy.viki.home.mi.schema.SchemaMapping;
 import com.github.longkerdandy.viki.home.mi.schema.SchemaRepository;
 import com.github.longkerdandy.viki.home.mi.storage.MiStorage;
+import com.github.longkerdandy.viki.home.mi.udp.DatagramBufferPool;
+import com.github.longkerdandy.viki.home.mi.udp.DuplicatePacketFilter;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayKeyring;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessage;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessageDecoder;
+import com.github.longkerdandy.viki.home.mi.udp.PacketCaptureWriter;
 import com.github.longkerdandy.viki.home.model.Thing;
-import com.github.longkerdandy.viki.home.schema.ThingSchema;
 import com.github.longkerdandy.viki.home.storage.SQLiteStorage;
 import com.github.longkerdandy.viki.home.util.Networks;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,15 +41,42 @@ import org.slf4j.LoggerFactory;
  * {@link Gateway} multicast service
  *
  * Handles multicast messages like 'report' 'heartbeat'
+ *
+ * The multicast group is joined on each configured network interface with its own socket and
+ * receive loop. Received packets are recorded as is, with their receive time, then feed a single
+ * processing stage through a bounded queue. Copies of the same packet received on multiple
+ * interfaces are suppressed by {@link DuplicatePacketFilter}.
+ *
+ * The sockets are bound to the wildcard address, as a socket bound to the group address is not
+ * portable. On Linux such a socket receives the group traffic joined on every interface
+ * (IP_MULTICAST_ALL), so with N interfaces each packet is received and recorded N times and only
+ * processed once.
  */
 public class GatewayMulticastService {
 
   private static final Logger logger = LoggerFactory.getLogger(GatewayMulticastService.class);
 
+  private static final String GROUP = "224.0.0.50";
+  private static final int PORT = 9898;
+
   private final SQLiteStorage storage;
   private final MiStorage miStorage;
   private final SchemaRepository schemas;
+  private final GatewayDiscoveryService discovery;
+  private final GatewayKeyring keyring;
+  private final DatagramBufferPool buffers;
+  private final int receiveBufferSize;
+  private final GatewayMessageDecoder decoder;
+  private final ReportStateCache states;
+  private final Path capture;
+  private final List<String> interfaces;
+  private final BlockingQueue<ReceivedPacket> queue;
+  private final DuplicatePacketFilter duplicates;
+  private final List<MulticastSocket> sockets;
+  private final AtomicLong dropped;
   private final ExecutorService workerGroup;
+  private ExecutorService receiverGroup;
+  private volatile PacketCaptureWriter recorder;
 
   /***
    * Constructor
@@ -43,100 +84,274 @@ public class GatewayMulticastService {
    * @param storage {@link SQLiteStorage}
    * @param miStorage {@link MiStorage}
    * @param schemas {@link SchemaRepository}
+   * @param discovery {@link GatewayDiscoveryService} for unknown sids
+   * @param keyring {@link GatewayKeyring}
+   * @param states {@link ReportStateCache}
+   * @param buffers {@link DatagramBufferPool}
+   * @param receiveBufferSize socket receive buffer (SO_RCVBUF) size in bytes, 0 for system default
+   * @param capture file to record received packets with {@link PacketCaptureWriter}, null to
+   * disable recording
+   * @param interfaces names of the network interfaces to join the group on, empty for the
+   * interface in use
+   * @param queueSize maximum received packets waiting to be processed, more are dropped
+   * @param duplicateWindow window of cross interface duplicate suppression in milliseconds
    */
   public GatewayMulticastService(SQLiteStorage storage, MiStorage miStorage,
-      SchemaRepository schemas) {
+      SchemaRepository schemas, GatewayDiscoveryService discovery, GatewayKeyring keyring,
+      ReportStateCache states, DatagramBufferPool buffers, int receiveBufferSize, Path capture,
+      List<String> interfaces, int queueSize, long duplicateWindow) {
     this.storage = storage;
     this.miStorage = miStorage;
     this.schemas = schemas;
+    this.discovery = discovery;
+    this.keyring = keyring;
+    this.buffers = buffers;
+    this.receiveBufferSize = receiveBufferSize;
+    this.decoder = new GatewayMessageDecoder();
+    this.states = states;
+    this.capture = capture;
+    this.interfaces = interfaces;
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    this.duplicates = new DuplicatePacketFilter(duplicateWindow);
+    this.sockets = new CopyOnWriteArrayList<>();
+    this.dropped = new AtomicLong();
     this.workerGroup = Executors.newFixedThreadPool(1);
   }
 
   /**
    * Initialize
+   *
+   * @throws IOException when the network interfaces can not be resolved or the capture file can
+   * not be opened
+   */
+  public void init() throws IOException {
+    // Resolve network interfaces, default to the one in use
+    List<NetworkInterface> nifs = new ArrayList<>();
+    for (String name : this.interfaces) {
+      NetworkInterface nif = NetworkInterface.getByName(name);
+      if (nif == null) {
+        throw new IOException("Network interface " + name + " not exist");
+      }
+      nifs.add(nif);
+    }
+    if (nifs.isEmpty()) {
+      nifs.add(NetworkInterface.getByInetAddress(Networks.getLocalInetAddress()));
+    }
+    if (nifs.size() > 64) {
+      throw new IOException("Multicast is limited to 64 network interfaces");
+    }
+
+    // Record received packets if enabled
+    if (this.capture != null) {
+      this.recorder = new PacketCaptureWriter(this.capture);
+      logger.info("Recording multicast packets to {}", this.capture);
+    }
+
+    // One receive loop per network interface, and the shared processing stage
+    this.receiverGroup = Executors.newFixedThreadPool(nifs.size());
+    for (int i = 0; i < nifs.size(); i++) {
+      NetworkInterface nif = nifs.get(i);
+      int receiver = i;
+      this.receiverGroup.submit(() -> receive(nif, receiver));
+    }
+    this.workerGroup.submit(this::process);
+  }
+
+  /**
+   * Join the group on the network interface and queue received packets until closed
+   */
+  private void receive(NetworkInterface nif, int receiver) {
+    try (MulticastSocket socket = new MulticastSocket(PORT)) {
+      this.sockets.add(socket);
+      // Create MulticastSocket and join the group
+      socket.setNetworkInterface(nif);
+      socket.joinGroup(new InetSocketAddress(InetAddress.getByName(GROUP), PORT), nif);
+      if (this.receiveBufferSize > 0) {
+        socket.setReceiveBufferSize(this.receiveBufferSize);
+        logger.debug("Multicast socket receive buffer size is {}",
+            socket.getReceiveBufferSize());
+      }
+      logger.info("Joined multicast group {} on network interface {}", GROUP, nif.getName());
+
+      // Loop and receive incoming messages, each packet takes its own buffer which is released
+      // after processing
+      while (!socket.isClosed()) {
+        // Receive packet, this will block
+        byte[] buf = this.buffers.acquire();
+        DatagramPacket packet = this.buffers.receive(socket, buf);
+        long time = System.nanoTime();
+        record(packet);
+        if (!this.queue.offer(new ReceivedPacket(packet, receiver, time))) {
+          this.buffers.release(buf);
+          long count = this.dropped.incrementAndGet();
+          logger.warn("Dropped multicast message from {}, processing is behind, {} dropped so "
+              + "far", getIPAddress(packet.getAddress()), count);
+        }
+      }
+    } catch (IOException e) {
+      logger.warn("Exception happened when trying to receive multicast messages on {}: ",
+          nif.getName(), e);
+    } catch (Exception e) {
+      // Catch and logging top level exception here because it isn't the main thread
+      logger.error("Error happened when trying to receive multicast messages:", e);
+    }
+  }
+
+  /**
+   * Record the packet as received, a recording failure never stops the processing
    */
-  public void init() {
-    this.workerGroup.submit(() -> {
+  private void record(DatagramPacket packet) {
+    PacketCaptureWriter recorder = this.recorder;
+    if (recorder != null) {
       try {
-        // Create MulticastSocket and join the group
-        MulticastSocket socket = new MulticastSocket(9898);
-        socket.setInterface(Networks.getLocalInetAddress());
-        socket.joinGroup(InetAddress.getByName("224.0.0.50"));
-
-        // Reused response message buffer
-        byte[] buf = new byte[1024];
-
-        // Loop and receive incoming messages
-        // noinspection InfiniteLoopStatement
-        while (true) {
-          // Receive packet, this will block
-          DatagramPacket packet = new DatagramPacket(buf, buf.length);
-          socket.receive(packet);
-          Map<String, Object> msg = decodeResponse(packet.getData());
-
-          String cmd = (String) msg.get("cmd");
-          switch (cmd) {
-            // When 'report' is received, we assume the thing's status has changed.
-            // Thing and its properties will be updated, event will be emitted.
-            case "report":
-              logger.debug("Received report message from {}", getIPAddress(packet.getAddress()));
-              Optional<ZigbeeThing> r1 = this.miStorage.getZigbeeThingById((String) msg.get("sid"));
-              if (r1.isPresent()) {
-                ZigbeeThing zigbeeThing = r1.get();
-                zigbeeThing = new ZigbeeThing(zigbeeThing.getSid(), zigbeeThing.getGid(),
-                    zigbeeThing.getTid(), (String) msg.get("model"),
-                    msg.containsKey("short_id") ? (Integer) msg.get("short_id") : null);
-                if (this.miStorage.updateZigbeeThing(zigbeeThing).isPresent()) {
-                  logger.debug("ZigbeeThing {} has been updated", zigbeeThing);
-                  ThingSchema schema = this.schemas.getSchemaByModel(zigbeeThing.getModel());
-                  Thing t = zigbeeThing.toThing(schema, msg);
-                  if (this.storage.updateThingWithProperties(t)) {
-                    logger.debug("Thing {} and its properties has been updated", t);
-                    // TODO: Send thing event
-                  } else {
-                    logger.error("Failed to update Thing {}, data maybe corrupted", t);
-                  }
-                }
-              }
-              break;
-            // When 'heartbeat' is received, we assume the thing is still alive.
-            // Thing's timestamp will be updated, event will not be emitted
-            case "heartbeat":
-              logger.debug("Received heartbeat message from {}", getIPAddress(packet.getAddress()));
-              Optional<ZigbeeThing> r2 = this.miStorage.getZigbeeThingById((String) msg.get("sid"));
-              if (r2.isPresent()) {
-                ZigbeeThing zigbeeThing = r2.get();
-                String tid = zigbeeThing.getTid();
-                if (this.storage.touchThing(tid, LocalDateTime.now())) {
-                  logger.debug("Thing {} has been touched", tid);
-                } else {
-                  logger.error("Failed to touch Thing {}, data maybe corrupted", tid);
-                }
-              }
-              if ("gateway".equals(msg.get("model")) || "gateway.aq1".equals(msg.get("model"))) {
-                String gid = (String) msg.get("sid");
-                if (this.miStorage.updateGatewayToken(gid, (String) msg.get("token"))) {
-                  logger.debug("Gateway {} token has been updated", gid);
-                }
-              }
-              break;
-            default:
-              logger.warn("Unsupported {} message from {}", cmd, getIPAddress(packet.getAddress()));
-          }
+        recorder.write(packet);
+      } catch (IOException e) {
+        logger.warn("Exception happened when trying to record multicast message from {}: {}",
+            getIPAddress(packet.getAddress()), e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Process queued packets until interrupted
+   */
+  private void process() {
+    // Reused decoded message
+    GatewayMessage msg = new GatewayMessage();
+    while (!Thread.currentThread().isInterrupted()) {
+      ReceivedPacket r;
+      try {
+        r = this.queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        if (this.duplicates.isDuplicate(r.packet, r.receiver, r.time)) {
+          logger.debug("Duplicate multicast message from {} is suppressed",
+              getIPAddress(r.packet.getAddress()));
+          continue;
         }
+        handle(r.packet, msg);
       } catch (IOException e) {
-        logger.warn("Exception happened when trying to receive multicast messages: ", e);
+        logger.warn("Exception happened when trying to handle multicast message from {}: {}",
+            getIPAddress(r.packet.getAddress()), e.getMessage());
       } catch (Exception e) {
         // Catch and logging top level exception here because it isn't the main thread
-        logger.error("Error happened when trying to discover zigbee things:", e);
+        logger.error("Error happened when trying to handle multicast message:", e);
+      } finally {
+        this.buffers.release(r.packet.getData());
       }
-    });
+    }
+  }
+
+  /**
+   * Decode and handle a received multicast packet, safe to be called by multiple threads
+   *
+   * @param packet Received packet
+   * @param msg Reused {@link GatewayMessage}
+   * @throws IOException when the packet can not be decoded or stored
+   */
+  protected void handle(DatagramPacket packet, GatewayMessage msg) throws IOException {
+    this.decoder.decode(packet.getData(), packet.getOffset(), packet.getLength(), msg);
+
+    switch (msg.getCmd()) {
+      // When 'report' is received, we assume the thing's status has changed.
+      // Thing and its properties will be updated, event will be emitted.
+      case REPORT:
+        logger.debug("Received report message from {}", getIPAddress(packet.getAddress()));
+        Optional<ZigbeeThing> r1 = this.miStorage.getZigbeeThingById(msg.getSid());
+        if (r1.isPresent()) {
+          // Only changed parameters are stored, duplicate report is skipped entirely
+          Map<String, Object> changed = this.states.diff(msg);
+          if (changed.isEmpty()) {
+            this.states.touch(msg.getSid());
+            logger.debug("Duplicate report from ZigbeeThing {} is skipped", msg.getSid());
+            break;
+          }
+          ZigbeeThing zigbeeThing = r1.get();
+          zigbeeThing = new ZigbeeThing(zigbeeThing.getSid(), zigbeeThing.getGid(),
+              zigbeeThing.getTid(), msg.getModel(),
+              msg.hasShortId() ? msg.getShortId() : null);
+          if (this.miStorage.updateZigbeeThing(zigbeeThing).isPresent()) {
+            SchemaMapping mapping = this.schemas.getMappingByModel(zigbeeThing.getModel());
+            Thing t = zigbeeThing.toThing(mapping, changed, false);
+            if (this.storage.updateThingWithProperties(t)) {
+              this.states.update(zigbeeThing.getSid(), changed);
+              logger.debug("Thing {} and its changed properties has been updated", t);
+              // TODO: Send thing event with changed properties
+            } else {
+              logger.error("Failed to update Thing {}, data maybe corrupted", t);
+            }
+          }
+        } else {
+          this.discovery.discover(msg.getSid(), packet.getAddress());
+        }
+        break;
+      // When 'heartbeat' is received, we assume the thing is still alive.
+      // Thing's timestamp will be updated, event will not be emitted
+      case HEARTBEAT:
+        logger.debug("Received heartbeat message from {}", getIPAddress(packet.getAddress()));
+        Optional<ZigbeeThing> r2 = this.miStorage.getZigbeeThingById(msg.getSid());
+        if (r2.isPresent()) {
+          ZigbeeThing zigbeeThing = r2.get();
+          String tid = zigbeeThing.getTid();
+          if (this.storage.touchThing(tid, LocalDateTime.now())) {
+            logger.debug("Thing {} has been touched", tid);
+          } else {
+            logger.error("Failed to touch Thing {}, data maybe corrupted", tid);
+          }
+        } else {
+          this.discovery.discover(msg.getSid(), packet.getAddress());
+        }
+        if ("gateway".equals(msg.getModel()) || "gateway.aq1".equals(msg.getModel())) {
+          String gid = msg.getSid();
+          if (this.miStorage.updateGatewayToken(gid, msg.getToken())) {
+            logger.debug("Gateway {} token has been updated", gid);
+            // Precompute the write key once per token
+            this.miStorage.getGatewayById(gid).ifPresent(this.keyring::rotate);
+          }
+        }
+        break;
+      default:
+        logger.warn("Unsupported {} message from {}", msg.getCmd().value(),
+            getIPAddress(packet.getAddress()));
+    }
   }
 
   /**
    * Destroy
    */
   public void destroy() {
-    this.workerGroup.shutdown();
+    // Closing the sockets stops the blocking receive loops
+    this.sockets.forEach(MulticastSocket::close);
+    if (this.receiverGroup != null) {
+      this.receiverGroup.shutdownNow();
+    }
+    this.workerGroup.shutdownNow();
+    if (this.recorder != null) {
+      try {
+        this.recorder.close();
+        logger.info("Recorded {} multicast packets to {}", this.recorder.getCount(), this.capture);
+      } catch (IOException e) {
+        logger.warn("Exception happened when trying to close capture file: ", e);
+      }
+    }
+  }
+
+  /**
+   * Packet waiting to be processed, with the index of the receiving network interface and the
+   * receive time from {@link System#nanoTime()}
+   */
+  private static class ReceivedPacket {
+
+    private final DatagramPacket packet;
+    private final int receiver;
+    private final long time;
+
+    private ReceivedPacket(DatagramPacket packet, int receiver, long time) {
+      this.packet = packet;
+      this.receiver = receiver;
+      this.time = time;
+    }
   }
 }
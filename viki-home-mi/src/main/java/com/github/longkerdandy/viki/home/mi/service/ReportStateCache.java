@@ -0,0 +1,159 @@
+package com.github.longkerdandy.viki.home.mi.service;
+
+import com.github.longkerdandy.viki.home.mi.model.ZigbeeThing;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessage;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Last reported parameters of each {@link ZigbeeThing}
+ *
+ * Gateways re-announce unchanged state frequently. Incoming parameters are compared with the last
+ * reported ones directly on the typed {@link GatewayMessage} slots, so a duplicate report is
+ * detected without boxing and without touching the schema or database.
+ *
+ * The cached state is complete once a thing has been read from its gateway, from then on every
+ * report or read refreshes its age, so it can serve reads with bounded staleness. Reports alone
+ * may only carry part of the parameters and never make the state complete.
+ *
+ * The cache is thread-safe.
+ */
+public class ReportStateCache {
+
+  private final ConcurrentMap<String, Map<String, Object>> states;
+  private final ConcurrentMap<String, Long> refreshedAt;    // System.nanoTime() of complete states
+
+  /**
+   * Constructor
+   */
+  public ReportStateCache() {
+    this.states = new ConcurrentHashMap<>();
+    this.refreshedAt = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Collect the message's parameters which differ from the last reported state
+   *
+   * @param msg {@link GatewayMessage}
+   * @return Changed parameters, empty if the message is a duplicate
+   */
+  public Map<String, Object> diff(GatewayMessage msg) {
+    Map<String, Object> last = this.states.getOrDefault(msg.getSid(), Collections.emptyMap());
+    Map<String, Object> changed = null;
+    for (int i = 0; i < msg.getParamCount(); i++) {
+      if (!same(last.get(msg.getParamName(i)), msg, i)) {
+        if (changed == null) {
+          changed = new LinkedHashMap<>();
+        }
+        changed.put(msg.getParamName(i), msg.getValue(i));
+      }
+    }
+    return changed != null ? changed : Collections.emptyMap();
+  }
+
+  /**
+   * Collect the parameters which differ from the last reported state
+   *
+   * @param sid Zigbee thing id
+   * @param params Parameters, usually from a read response
+   * @return Changed parameters, empty if nothing changed
+   */
+  public Map<String, Object> diff(String sid, Map<String, Object> params) {
+    Map<String, Object> last = this.states.getOrDefault(sid, Collections.emptyMap());
+    Map<String, Object> changed = new LinkedHashMap<>();
+    params.forEach((k, v) -> {
+      if (!v.equals(last.get(k))) {
+        changed.put(k, v);
+      }
+    });
+    return changed;
+  }
+
+  /**
+   * Record the parameters as the last reported state, usually after they have been stored
+   *
+   * @param sid Zigbee thing id
+   * @param params Changed parameters
+   */
+  public void update(String sid, Map<String, Object> params) {
+    update(sid, params, false);
+  }
+
+  /**
+   * Record the parameters as the last reported state, usually after they have been stored
+   *
+   * @param sid Zigbee thing id
+   * @param params Changed parameters
+   * @param complete Whether the parameters were read from the gateway as a whole
+   */
+  public void update(String sid, Map<String, Object> params, boolean complete) {
+    this.states.computeIfAbsent(sid, k -> new ConcurrentHashMap<>()).putAll(params);
+    if (complete) {
+      this.refreshedAt.put(sid, System.nanoTime());
+    } else {
+      touch(sid);
+    }
+  }
+
+  /**
+   * Refresh the age of a complete state, when a duplicate report confirms it
+   *
+   * @param sid Zigbee thing id
+   */
+  public void touch(String sid) {
+    this.refreshedAt.computeIfPresent(sid, (k, v) -> System.nanoTime());
+  }
+
+  /**
+   * Whether the state is complete and not older than the max staleness
+   *
+   * @param sid Zigbee thing id
+   * @param maxStaleness Max staleness
+   * @return True if the state can be served without reading the gateway
+   */
+  public boolean isFresh(String sid, Duration maxStaleness) {
+    Long t = this.refreshedAt.get(sid);
+    return t != null && System.nanoTime() - t <= maxStaleness.toNanos();
+  }
+
+  /**
+   * Get the last reported parameters
+   *
+   * @param sid Zigbee thing id
+   * @return Unmodifiable parameters, empty if nothing has been reported
+   */
+  public Map<String, Object> get(String sid) {
+    return Collections.unmodifiableMap(this.states.getOrDefault(sid, Collections.emptyMap()));
+  }
+
+  /**
+   * Forget the last reported state, the next report will be stored entirely
+   *
+   * @param sid Zigbee thing id
+   */
+  public void remove(String sid) {
+    this.refreshedAt.remove(sid);
+    this.states.remove(sid);
+  }
+
+  private static boolean same(Object last, GatewayMessage msg, int index) {
+    if (last == null) {
+      return false;
+    }
+    switch (msg.getParamType(index)) {
+      case INTEGER:
+        return last instanceof Long && (Long) last == msg.getLong(index);
+      case NUMBER:
+        return last instanceof Double
+            && Double.compare((Double) last, msg.getDouble(index)) == 0;
+      case BOOLEAN:
+        return last instanceof Boolean && (Boolean) last == msg.getBoolean(index);
+      default:
+        return last.equals(msg.getString(index));
+    }
+  }
+}
@@ -6,8 +6,14 @@ import com.github.longkerdandy.viki.home.mi.model.Gateway;
 import com.github.longkerdandy.viki.home.mi.model.ZigbeeThing;
 import com.github.longkerdandy.viki.home.mi.storage.mapper.GatewayMapper;
 import com.github.longkerdandy.viki.home.mi.storage.mapper.ZigbeeThingMapper;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.sql.DataSource;
 import org.apache.commons.configuration2.AbstractConfiguration;
 import org.jdbi.v3.core.Jdbi;
@@ -17,6 +23,10 @@ import org.sqlite.SQLiteDataSource;
 
 /**
  * Storage for Mi Extension
+ *
+ * Gateways and zigbee things are few and rarely change, so they are kept in an in-memory
+ * directory indexed by gid, sid and tid. The directory is loaded by {@link #init()} and kept in
+ * sync by the insert and update methods, lookups never touch the database.
  */
 public class MiStorage {
 
@@ -24,6 +34,14 @@ public class MiStorage {
   private final Jdbi jdbi;
   // DataSource
   private final SQLiteDataSource ds;
+  // Gateway directory indexed by gid
+  private final ConcurrentMap<String, Gateway> gateways;
+  // ZigbeeThing directory indexed by sid
+  private final ConcurrentMap<String, ZigbeeThing> thingsBySid;
+  // ZigbeeThing directory indexed by tid
+  private final ConcurrentMap<String, ZigbeeThing> thingsByTid;
+  // ZigbeeThing sids indexed by gid
+  private final ConcurrentMap<String, Set<String>> sidsByGid;
 
   /**
    * Constructor
@@ -37,6 +55,10 @@ public class MiStorage {
     this.jdbi = Jdbi.create(this.ds).installPlugin(new SQLitePlugin());
     this.jdbi.registerRowMapper(new GatewayMapper());
     this.jdbi.registerRowMapper(new ZigbeeThingMapper());
+    this.gateways = new ConcurrentHashMap<>();
+    this.thingsBySid = new ConcurrentHashMap<>();
+    this.thingsByTid = new ConcurrentHashMap<>();
+    this.sidsByGid = new ConcurrentHashMap<>();
   }
 
   /**
@@ -60,9 +82,21 @@ public class MiStorage {
   }
 
   /**
-   * Initialize {@link MiStorage}
+   * Initialize {@link MiStorage}, load the in-memory directory from database
    */
   public void init() {
+    this.gateways.clear();
+    this.thingsBySid.clear();
+    this.thingsByTid.clear();
+    this.sidsByGid.clear();
+    this.jdbi.useHandle(handle -> {
+      handle.createQuery("SELECT * FROM ext_mi_gateway")
+          .mapTo(Gateway.class)
+          .forEach(gateway -> this.gateways.put(gateway.getGid(), gateway));
+      handle.createQuery("SELECT * FROM ext_mi_zigbee_thing")
+          .mapTo(ZigbeeThing.class)
+          .forEach(this::cacheZigbeeThing);
+    });
   }
 
   /**
@@ -72,12 +106,7 @@ public class MiStorage {
    * @return Optional {@link Gateway}
    */
   public Optional<Gateway> getGatewayById(String gid) {
-    return this.jdbi.withHandle(handle ->
-        handle.createQuery("SELECT * FROM ext_mi_gateway WHERE gid = :gid")
-            .bind("gid", gid)
-            .mapTo(Gateway.class)
-            .findFirst()
-    );
+    return Optional.ofNullable(this.gateways.get(gid));
   }
 
   /**
@@ -86,11 +115,7 @@ public class MiStorage {
    * @return List of {@link Gateway}
    */
   public List<Gateway> listGateway() {
-    return this.jdbi.withHandle(handle ->
-        handle.createQuery("SELECT * FROM ext_mi_gateway")
-            .mapTo(Gateway.class)
-            .list()
-    );
+    return new ArrayList<>(this.gateways.values());
   }
 
   /**
@@ -100,7 +125,7 @@ public class MiStorage {
    * @return True if successful
    */
   public boolean insetGateway(Gateway gateway) {
-    return this.jdbi.withHandle(handle ->
+    boolean inserted = this.jdbi.withHandle(handle ->
         handle.createUpdate(
             "INSERT OR IGNORE INTO ext_mi_gateway(gid, model, protocol_version, token, address, port) "
                 + "VALUES(:gid, :model, :protocol_version, :token, :address, :port)")
@@ -112,19 +137,32 @@ public class MiStorage {
             .bind("port", gateway.getPort())
             .execute() == 1
     );
+    if (inserted) {
+      this.gateways.put(gateway.getGid(), withoutPassword(gateway));
+    }
+    return inserted;
   }
 
   /**
-   * Update the {@link Gateway} if exists
+   * Update the {@link Gateway} if exists, the password is not changed. Database is not touched if
+   * nothing is changed.
    *
    * @param gateway {@link Gateway}
    * @return True if successful
    */
   public boolean updateGateway(Gateway gateway) {
-    return this.jdbi.withHandle(handle ->
+    Gateway cached = this.gateways.get(gateway.getGid());
+    if (cached != null && Objects.equals(cached.getModel(), gateway.getModel())
+        && Objects.equals(cached.getProtocolVersion(), gateway.getProtocolVersion())
+        && Objects.equals(cached.getToken(), gateway.getToken())
+        && Objects.equals(cached.getAddress(), gateway.getAddress())
+        && Objects.equals(cached.getPort(), gateway.getPort())) {
+      return true;
+    }
+    boolean updated = this.jdbi.withHandle(handle ->
         handle.createUpdate(
             "UPDATE ext_mi_gateway "
-                + "SET model = :model, protocol_version = :protocol_version, token = :token, address = address, port = :port "
+                + "SET model = :model, protocol_version = :protocol_version, token = :token, address = :address, port = :port "
                 + "WHERE gid = :gid")
             .bind("gid", gateway.getGid())
             .bind("model", gateway.getModel())
@@ -134,6 +172,13 @@ public class MiStorage {
             .bind("port", gateway.getPort())
             .execute() == 1
     );
+    if (updated) {
+      this.gateways.compute(gateway.getGid(), (gid, c) ->
+          new Gateway(gid, gateway.getModel(), gateway.getProtocolVersion(),
+              c != null ? c.getPassword() : null, gateway.getToken(),
+              gateway.getAddress(), gateway.getPort()));
+    }
+    return updated;
   }
 
   /**
@@ -144,28 +189,44 @@ public class MiStorage {
    * @return True if successful
    */
   public boolean updateGatewayPassword(String gid, String password) {
-    return this.jdbi.withHandle(handle ->
+    boolean updated = this.jdbi.withHandle(handle ->
         handle.createUpdate("UPDATE ext_mi_gateway SET password = :password WHERE gid = :gid")
             .bind("gid", gid)
             .bind("password", password)
             .execute() == 1
     );
+    if (updated) {
+      this.gateways.computeIfPresent(gid, (key, cached) ->
+          new Gateway(gid, cached.getModel(), cached.getProtocolVersion(), password,
+              cached.getToken(), cached.getAddress(), cached.getPort()));
+    }
+    return updated;
   }
 
   /**
-   * Update Gateway's token
+   * Update Gateway's token, database is not touched if the token is unchanged
    *
    * @param gid Gateway id
    * @param token Token
-   * @return True if successful
+   * @return True if the token has been changed
    */
   public boolean updateGatewayToken(String gid, String token) {
-    return this.jdbi.withHandle(handle ->
+    Gateway cached = this.gateways.get(gid);
+    if (cached == null || Objects.equals(cached.getToken(), token)) {
+      return false;
+    }
+    boolean updated = this.jdbi.withHandle(handle ->
         handle.createUpdate("UPDATE ext_mi_gateway SET token = :token WHERE gid = :gid")
             .bind("gid", gid)
             .bind("token", token)
             .execute() == 1
     );
+    if (updated) {
+      this.gateways.computeIfPresent(gid, (key, c) ->
+          new Gateway(gid, c.getModel(), c.getProtocolVersion(), c.getPassword(), token,
+              c.getAddress(), c.getPort()));
+    }
+    return updated;
   }
 
   /**
@@ -174,11 +235,24 @@ public class MiStorage {
    * @return List of {@link ZigbeeThing}
    */
   public List<ZigbeeThing> listZigbeeThing() {
-    return this.jdbi.withHandle(handle ->
-        handle.createQuery("SELECT * FROM ext_mi_zigbee_thing")
-            .mapTo(ZigbeeThing.class)
-            .list()
-    );
+    return new ArrayList<>(this.thingsBySid.values());
+  }
+
+  /**
+   * List all the {@link ZigbeeThing} associated with the {@link Gateway}
+   *
+   * @param gid Gateway id
+   * @return List of {@link ZigbeeThing}
+   */
+  public List<ZigbeeThing> listZigbeeThingByGid(String gid) {
+    List<ZigbeeThing> things = new ArrayList<>();
+    for (String sid : this.sidsByGid.getOrDefault(gid, Collections.emptySet())) {
+      ZigbeeThing thing = this.thingsBySid.get(sid);
+      if (thing != null) {
+        things.add(thing);
+      }
+    }
+    return things;
   }
 
   /**
@@ -188,12 +262,7 @@ public class MiStorage {
    * @return Optional {@link ZigbeeThing}
    */
   public Optional<ZigbeeThing> getZigbeeThingById(String sid) {
-    return this.jdbi.withHandle(handle ->
-        handle.createQuery("SELECT * FROM ext_mi_zigbee_thing WHERE sid = :sid")
-            .bind("sid", sid)
-            .mapTo(ZigbeeThing.class)
-            .findFirst()
-    );
+    return Optional.ofNullable(this.thingsBySid.get(sid));
   }
 
   /**
@@ -203,12 +272,7 @@ public class MiStorage {
    * @return Optional {@link ZigbeeThing}
    */
   public Optional<ZigbeeThing> getZigbeeThingByTid(String tid) {
-    return this.jdbi.withHandle(handle ->
-        handle.createQuery("SELECT * FROM ext_mi_zigbee_thing WHERE tid = :tid")
-            .bind("tid", tid)
-            .mapTo(ZigbeeThing.class)
-            .findFirst()
-    );
+    return Optional.ofNullable(this.thingsByTid.get(tid));
   }
 
   /**
@@ -218,7 +282,7 @@ public class MiStorage {
    * @return True if successful
    */
   public boolean insetZigbeeThing(ZigbeeThing thing) {
-    return this.jdbi.withHandle(handle ->
+    boolean inserted = this.jdbi.withHandle(handle ->
         handle.createUpdate(
             "INSERT OR IGNORE INTO ext_mi_zigbee_thing(sid, gid, tid, model, short_id) "
                 + "VALUES(:sid, :gid, :tid, :model, :short_id)")
@@ -229,16 +293,27 @@ public class MiStorage {
             .bind("short_id", thing.getShortId())
             .execute() == 1
     );
+    if (inserted) {
+      cacheZigbeeThing(thing);
+    }
+    return inserted;
   }
 
   /**
-   * Update the {@link ZigbeeThing} if exists
+   * Update the {@link ZigbeeThing} if exists, the tid is not changed. Database is not touched if
+   * gid, model and short id are unchanged.
    *
    * @param thing {@link ZigbeeThing}
    * @return Optional tid
    */
   public Optional<String> updateZigbeeThing(ZigbeeThing thing) {
-    return this.jdbi.inTransaction(handle -> {
+    ZigbeeThing cached = this.thingsBySid.get(thing.getSid());
+    if (cached != null && Objects.equals(cached.getGid(), thing.getGid())
+        && Objects.equals(cached.getModel(), thing.getModel())
+        && Objects.equals(cached.getShortId(), thing.getShortId())) {
+      return Optional.of(cached.getTid());
+    }
+    Optional<String> tid = this.jdbi.inTransaction(handle -> {
       int rows = handle.createUpdate(
           "UPDATE ext_mi_zigbee_thing "
               + "SET gid = :gid, model = :model, short_id = :short_id "
@@ -256,5 +331,40 @@ public class MiStorage {
       }
       return Optional.empty();
     });
+    tid.ifPresent(t -> cacheZigbeeThing(new ZigbeeThing(thing.getSid(), thing.getGid(), t,
+        thing.getModel(), thing.getShortId())));
+    return tid;
+  }
+
+  /**
+   * Put {@link ZigbeeThing} into the in-memory directory, replacing the previous entry
+   */
+  private void cacheZigbeeThing(ZigbeeThing thing) {
+    ZigbeeThing previous = this.thingsBySid.put(thing.getSid(), thing);
+    if (previous != null) {
+      if (!previous.getTid().equals(thing.getTid())) {
+        this.thingsByTid.remove(previous.getTid(), previous);
+      }
+      if (!previous.getGid().equals(thing.getGid())) {
+        Set<String> sids = this.sidsByGid.get(previous.getGid());
+        if (sids != null) {
+          sids.remove(thing.getSid());
+        }
+      }
+    }
+    this.thingsByTid.put(thing.getTid(), thing);
+    this.sidsByGid.computeIfAbsent(thing.getGid(), gid -> ConcurrentHashMap.newKeySet())
+        .add(thing.getSid());
+  }
+
+  /**
+   * The password column is not written by insert, keep the directory consistent with database
+   */
+  private static Gateway withoutPassword(Gateway gateway) {
+    if (gateway.getPassword() == null) {
+      return gateway;
+    }
+    return new Gateway(gateway.getGid(), gateway.getModel(), gateway.getProtocolVersion(), null,
+        gateway.getToken(), gateway.getAddress(), gateway.getPort());
   }
 }
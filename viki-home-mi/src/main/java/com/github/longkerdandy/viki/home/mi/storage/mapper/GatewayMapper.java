@@ -23,7 +23,7 @@ public class GatewayMapper implements RowMapper<Gateway> {
       String gid = ResultSets.getString(rs, "gid");
       String model = ResultSets.getString(rs, "model");
       String protocolVersion = ResultSets.getString(rs, "protocol_version");
-      String password = ResultSets.getString(rs, "gid");
+      String password = ResultSets.getString(rs, "password");
       String token = ResultSets.getString(rs, "token");
       String address = ResultSets.getString(rs, "address");
       Integer port = ResultSets.getInt(rs, "port");
@@ -0,0 +1,105 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import static com.github.longkerdandy.viki.home.util.Networks.getIPAddress;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of reusable UDP receive buffers
+ *
+ * Each buffer is one byte larger than the configured datagram size, so a datagram which fills the
+ * whole buffer is known to be truncated by the socket. Truncated datagrams are counted and dropped
+ * instead of being handed to the decoder.
+ */
+public class DatagramBufferPool {
+
+  private static final Logger logger = LoggerFactory.getLogger(DatagramBufferPool.class);
+
+  private final int bufferSize;
+  private final Queue<byte[]> buffers;
+  private final AtomicLong truncated;
+
+  /**
+   * Constructor
+   *
+   * @param bufferSize Maximum datagram size in bytes
+   * @param capacity Maximum number of idle buffers kept in the pool
+   */
+  public DatagramBufferPool(int bufferSize, int capacity) {
+    if (bufferSize <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("Buffer size and capacity must be positive");
+    }
+    this.bufferSize = bufferSize;
+    this.buffers = new ArrayBlockingQueue<>(capacity);
+    this.truncated = new AtomicLong();
+  }
+
+  /**
+   * Get the maximum datagram size in bytes
+   *
+   * @return Maximum datagram size
+   */
+  public int getBufferSize() {
+    return this.bufferSize;
+  }
+
+  /**
+   * Get the number of datagrams dropped because they exceeded the buffer size
+   *
+   * @return Truncated datagram count
+   */
+  public long getTruncatedCount() {
+    return this.truncated.get();
+  }
+
+  /**
+   * Take a buffer from the pool, or allocate a new one if the pool is empty
+   *
+   * @return Receive buffer
+   */
+  public byte[] acquire() {
+    byte[] buf = this.buffers.poll();
+    return buf != null ? buf : new byte[this.bufferSize + 1];
+  }
+
+  /**
+   * Return a buffer to the pool, the buffer is discarded if the pool is full
+   *
+   * @param buf Receive buffer previously returned by {@link #acquire()}
+   */
+  public void release(byte[] buf) {
+    if (buf != null && buf.length == this.bufferSize + 1) {
+      this.buffers.offer(buf);
+    }
+  }
+
+  /**
+   * Receive a datagram into the given buffer, skipping truncated datagrams
+   *
+   * @param socket {@link DatagramSocket}
+   * @param buf Receive buffer previously returned by {@link #acquire()}
+   * @return {@link DatagramPacket} whose offset and length describe the received data
+   * @throws IOException when communication failed or timeout
+   */
+  public DatagramPacket receive(DatagramSocket socket, byte[] buf) throws IOException {
+    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+    while (true) {
+      // Packet length is shrunk by each receive, reset before reuse
+      packet.setData(buf, 0, buf.length);
+      socket.receive(packet);
+      if (packet.getLength() < buf.length) {
+        return packet;
+      }
+      long count = this.truncated.incrementAndGet();
+      logger.warn("Dropped datagram from {} larger than {} bytes, {} truncated so far",
+          getIPAddress(packet.getAddress()), this.bufferSize, count);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.net.DatagramPacket;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suppress copies of the same datagram received by multiple receivers, usually sockets joined to
+ * the multicast group on different network interfaces
+ *
+ * Packets are identified by a 64 bits FNV-1a hash of the source address, port and payload. A
+ * packet is a duplicate if the same packet was received by another receiver within the window,
+ * but not by this one yet. A packet received again by the same receiver is a new transmission, so
+ * a thing toggled back and forth is never suppressed.
+ *
+ * The filter is not thread-safe, it is used by the single processing stage.
+ */
+public class DuplicatePacketFilter {
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final long window;                              // nanoseconds
+  private final LinkedHashMap<Long, long[]> seen;         // hash -> {time, receivers mask}
+
+  /**
+   * Constructor
+   *
+   * @param window Duplicate window in milliseconds
+   */
+  public DuplicatePacketFilter(long window) {
+    this.window = TimeUnit.MILLISECONDS.toNanos(window);
+    this.seen = new LinkedHashMap<>();
+  }
+
+  /**
+   * Check and remember the packet
+   *
+   * @param packet Received {@link DatagramPacket}
+   * @param receiver Index of the receiver, 0 to 63
+   * @param now Receive time from {@link System#nanoTime()}
+   * @return True if the packet is a copy of one received by another receiver
+   */
+  public boolean isDuplicate(DatagramPacket packet, int receiver, long now) {
+    expire(now);
+    long bit = 1L << receiver;
+    Long hash = hash(packet);
+    long[] entry = this.seen.get(hash);
+    if (entry != null && now - entry[0] <= this.window && (entry[1] & bit) == 0) {
+      // keep the entry in place, it is still ordered by the time first received
+      entry[1] |= bit;
+      return true;
+    }
+    // a new transmission, re-insert so entries stay ordered by time
+    this.seen.remove(hash);
+    this.seen.put(hash, new long[]{now, bit});
+    return false;
+  }
+
+  /**
+   * Get the number of remembered packets
+   *
+   * @return Packet count
+   */
+  public int size() {
+    return this.seen.size();
+  }
+
+  private void expire(long now) {
+    Iterator<long[]> iterator = this.seen.values().iterator();
+    while (iterator.hasNext() && now - iterator.next()[0] > this.window) {
+      iterator.remove();
+    }
+  }
+
+  private static long hash(DatagramPacket packet) {
+    long h = FNV_OFFSET;
+    for (byte b : packet.getAddress().getAddress()) {
+      h = (h ^ (b & 0xff)) * FNV_PRIME;
+    }
+    h = (h ^ (packet.getPort() & 0xff)) * FNV_PRIME;
+    h = (h ^ (packet.getPort() >>> 8)) * FNV_PRIME;
+    byte[] data = packet.getData();
+    for (int i = packet.getOffset(), end = i + packet.getLength(); i < end; i++) {
+      h = (h ^ (data[i] & 0xff)) * FNV_PRIME;
+    }
+    return h;
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+/**
+ * {@link com.github.longkerdandy.viki.home.mi.model.Gateway} response command
+ *
+ * Each command carries the fields it requires, so decoders validate a message with a single table
+ * lookup instead of a chain of string comparisons.
+ */
+public enum GatewayCommand {
+
+  IAM("iam", true, false, false, true),
+  GET_ID_LIST_ACK("get_id_list_ack", false, true, true, false),
+  DISCOVERY_RSP("discovery_rsp", false, true, true, false),
+  REPORT("report", true, true, false, false),
+  HEARTBEAT("heartbeat", true, true, false, false),
+  READ_ACK("read_ack", true, true, false, false),
+  WRITE_ACK("write_ack", true, true, false, false),
+  READ_RSP("read_rsp", true, true, false, false),
+  WRITE_RSP("write_rsp", true, true, false, false);
+
+  // Commands indexed by the length of their value, used for allocation free lookup
+  private static final GatewayCommand[][] TABLE;
+
+  static {
+    int max = 0;
+    for (GatewayCommand c : values()) {
+      max = Math.max(max, c.chars.length);
+    }
+    TABLE = new GatewayCommand[max + 1][];
+    for (GatewayCommand c : values()) {
+      GatewayCommand[] row = TABLE[c.chars.length];
+      if (row == null) {
+        row = new GatewayCommand[]{c};
+      } else {
+        GatewayCommand[] grown = new GatewayCommand[row.length + 1];
+        System.arraycopy(row, 0, grown, 0, row.length);
+        grown[row.length] = c;
+        row = grown;
+      }
+      TABLE[c.chars.length] = row;
+    }
+  }
+
+  private final String value;
+  private final char[] chars;
+  private final boolean requireModel;         // model field is required
+  private final boolean requireSid;           // sid field is required
+  private final boolean requireToken;         // token field is required
+  private final boolean requireAddress;       // ip and port fields are required
+
+  GatewayCommand(String value, boolean requireModel, boolean requireSid, boolean requireToken,
+      boolean requireAddress) {
+    this.value = value;
+    this.chars = value.toCharArray();
+    this.requireModel = requireModel;
+    this.requireSid = requireSid;
+    this.requireToken = requireToken;
+    this.requireAddress = requireAddress;
+  }
+
+  /**
+   * Find the command matching the given characters
+   *
+   * @param buf Character buffer
+   * @param offset Offset of the first character
+   * @param length Number of characters
+   * @return {@link GatewayCommand} or null if unknown
+   */
+  public static GatewayCommand lookup(char[] buf, int offset, int length) {
+    if (length >= TABLE.length || TABLE[length] == null) {
+      return null;
+    }
+    for (GatewayCommand c : TABLE[length]) {
+      int i = 0;
+      while (i < length && c.chars[i] == buf[offset + i]) {
+        i++;
+      }
+      if (i == length) {
+        return c;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find the command matching the given value
+   *
+   * @param value Command value
+   * @return {@link GatewayCommand} or null if unknown
+   */
+  public static GatewayCommand lookup(String value) {
+    return lookup(value.toCharArray(), 0, value.length());
+  }
+
+  public String value() {
+    return this.value;
+  }
+
+  public boolean isModelRequired() {
+    return this.requireModel;
+  }
+
+  public boolean isSidRequired() {
+    return this.requireSid;
+  }
+
+  public boolean isTokenRequired() {
+    return this.requireToken;
+  }
+
+  public boolean isAddressRequired() {
+    return this.requireAddress;
+  }
+}
@@ -0,0 +1,135 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.github.longkerdandy.viki.home.mi.model.Gateway;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Precomputed {@link Gateway} write keys
+ *
+ * The write key is the gateway token encrypted with the gateway password, see {@link
+ * GatewayUDPCodec#encryptKey(String, String)}. The token only changes on gateway heartbeats, so the
+ * key is computed once per token with a per-gateway {@link Cipher} and then served as a ready-made
+ * string to the write path.
+ *
+ * The keyring is thread-safe.
+ */
+public class GatewayKeyring {
+
+  private final ConcurrentMap<String, KeyState> keys;
+
+  /**
+   * Constructor
+   */
+  public GatewayKeyring() {
+    this.keys = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Get the encrypted key for the {@link Gateway}'s current password and token, the key is only
+   * computed if it is not precomputed by {@link #rotate(Gateway)}
+   *
+   * @param gateway {@link Gateway} with password and token
+   * @return Encrypted key
+   */
+  public String getKey(Gateway gateway) {
+    KeyState state = this.keys.get(gateway.getGid());
+    if (state != null) {
+      String key = state.getKey(gateway.getPassword(), gateway.getToken());
+      if (key != null) {
+        return key;
+      }
+    }
+    return rotate(gateway);
+  }
+
+  /**
+   * Recompute the encrypted key when the {@link Gateway}'s password or token has changed
+   *
+   * @param gateway {@link Gateway} with password and token
+   * @return Encrypted key, null if the password is not configured
+   */
+  public String rotate(Gateway gateway) {
+    if (gateway.getPassword() == null) {
+      this.keys.remove(gateway.getGid());
+      return null;
+    }
+    KeyState state = this.keys.compute(gateway.getGid(), (gid, previous) ->
+        previous != null && previous.password.equals(gateway.getPassword())
+            ? previous : new KeyState(gateway.getPassword()));
+    return state.rotate(gateway.getToken());
+  }
+
+  /**
+   * Remove the {@link Gateway}'s key
+   *
+   * @param gid Gateway id
+   */
+  public void remove(String gid) {
+    this.keys.remove(gid);
+  }
+
+  /**
+   * Cipher state of a single gateway password
+   */
+  private static class KeyState {
+
+    private final String password;
+    private final Cipher cipher;
+    // token and its encrypted key, replaced together
+    private volatile TokenKey current;
+
+    private KeyState(String password) {
+      try {
+        this.password = password;
+        this.cipher = Cipher.getInstance("AES/CBC/NoPADDING");
+        this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(password.getBytes(UTF_8), "AES"),
+            new IvParameterSpec(GatewayUDPCodec.IV));
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Exception during AES CBC initialization", e);
+      }
+    }
+
+    private String getKey(String password, String token) {
+      TokenKey c = this.current;
+      if (c != null && this.password.equals(password) && c.token.equals(token)) {
+        return c.key;
+      }
+      return null;
+    }
+
+    private synchronized String rotate(String token) {
+      TokenKey c = this.current;
+      if (c != null && c.token.equals(token)) {
+        return c.key;
+      }
+      try {
+        // doFinal resets the cipher to its initialized state, ready for the next token
+        byte[] encrypted = this.cipher.doFinal(token.getBytes(UTF_8));
+        String key = Hex.encodeHexString(encrypted, false);
+        this.current = new TokenKey(token, key);
+        return key;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Exception during AES CBC encryption", e);
+      }
+    }
+  }
+
+  private static class TokenKey {
+
+    private final String token;
+    private final String key;
+
+    private TokenKey(String token, String key) {
+      this.token = token;
+      this.key = key;
+    }
+  }
+}
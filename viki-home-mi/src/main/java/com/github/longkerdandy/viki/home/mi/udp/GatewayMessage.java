@@ -0,0 +1,303 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import com.github.longkerdandy.viki.home.model.DataType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed {@link com.github.longkerdandy.viki.home.mi.model.Gateway} response message
+ *
+ * Instances are mutable and meant to be reused by a single thread, call {@link #reset()} (or let
+ * {@link GatewayMessageDecoder} do it) before decoding the next packet. Protocol 1.x 'data' and
+ * protocol 2.x 'params' fields are both flattened into the same parameter slots, whose values are
+ * kept unboxed and typed as {@link DataType#INTEGER}, {@link DataType#NUMBER}, {@link
+ * DataType#STRING} or {@link DataType#BOOLEAN}.
+ */
+public class GatewayMessage {
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  private GatewayCommand cmd;                 // command
+  private String model;                       // model
+  private String sid;                         // sid
+  private int shortId;                        // short id, protocol 1.x only
+  private boolean hasShortId;                 // whether short id exists
+  private String token;                       // token
+  private String ip;                          // ip address, iam only
+  private int port;                           // port, iam only
+  private String protocolVersion;             // proto_version, protocol 1.x iam only
+  private String protocol;                    // protocol, protocol 2.x iam only
+  private boolean hasParams;                  // whether data or params field exists
+  private final List<String> sids;            // get_id_list_ack data or discovery_rsp dev_list sid
+  private final List<String> models;          // discovery_rsp dev_list model
+
+  // parameter slots
+  private int paramCount;
+  private String[] paramNames;
+  private DataType[] paramTypes;
+  private long[] longValues;
+  private double[] doubleValues;
+  private String[] stringValues;
+
+  /**
+   * Constructor
+   */
+  public GatewayMessage() {
+    this.sids = new ArrayList<>();
+    this.models = new ArrayList<>();
+    this.paramNames = new String[INITIAL_CAPACITY];
+    this.paramTypes = new DataType[INITIAL_CAPACITY];
+    this.longValues = new long[INITIAL_CAPACITY];
+    this.doubleValues = new double[INITIAL_CAPACITY];
+    this.stringValues = new String[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Clear all the fields so the instance can be reused
+   */
+  public void reset() {
+    this.cmd = null;
+    this.model = null;
+    this.sid = null;
+    this.shortId = 0;
+    this.hasShortId = false;
+    this.token = null;
+    this.ip = null;
+    this.port = 0;
+    this.protocolVersion = null;
+    this.protocol = null;
+    this.hasParams = false;
+    this.sids.clear();
+    this.models.clear();
+    Arrays.fill(this.stringValues, 0, this.paramCount, null);
+    this.paramCount = 0;
+  }
+
+  public GatewayCommand getCmd() {
+    return cmd;
+  }
+
+  void setCmd(GatewayCommand cmd) {
+    this.cmd = cmd;
+  }
+
+  public String getModel() {
+    return model;
+  }
+
+  void setModel(String model) {
+    this.model = model;
+  }
+
+  public String getSid() {
+    return sid;
+  }
+
+  void setSid(String sid) {
+    this.sid = sid;
+  }
+
+  public boolean hasShortId() {
+    return hasShortId;
+  }
+
+  public int getShortId() {
+    return shortId;
+  }
+
+  void setShortId(int shortId) {
+    this.shortId = shortId;
+    this.hasShortId = true;
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  void setToken(String token) {
+    this.token = token;
+  }
+
+  public String getIp() {
+    return ip;
+  }
+
+  void setIp(String ip) {
+    this.ip = ip;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  void setPort(int port) {
+    this.port = port;
+  }
+
+  public String getProtocolVersion() {
+    return protocolVersion;
+  }
+
+  void setProtocolVersion(String protocolVersion) {
+    this.protocolVersion = protocolVersion;
+  }
+
+  public String getProtocol() {
+    return protocol;
+  }
+
+  void setProtocol(String protocol) {
+    this.protocol = protocol;
+  }
+
+  /**
+   * Whether the message contains a 'data' (protocol 1.x) or 'params' (protocol 2.x) field
+   */
+  public boolean hasParams() {
+    return hasParams;
+  }
+
+  void markParams() {
+    this.hasParams = true;
+  }
+
+  /**
+   * Get sub device sids from get_id_list_ack 'data' or discovery_rsp 'dev_list' field
+   */
+  public List<String> getSids() {
+    return sids;
+  }
+
+  /**
+   * Get sub device models from discovery_rsp 'dev_list' field, in the same order as {@link
+   * #getSids()}
+   */
+  public List<String> getModels() {
+    return models;
+  }
+
+  public int getParamCount() {
+    return paramCount;
+  }
+
+  public String getParamName(int index) {
+    return paramNames[index];
+  }
+
+  public DataType getParamType(int index) {
+    return paramTypes[index];
+  }
+
+  public long getLong(int index) {
+    return longValues[index];
+  }
+
+  public double getDouble(int index) {
+    return doubleValues[index];
+  }
+
+  public String getString(int index) {
+    return stringValues[index];
+  }
+
+  public boolean getBoolean(int index) {
+    return longValues[index] != 0;
+  }
+
+  /**
+   * Find parameter index by its name
+   *
+   * @param name Parameter name
+   * @return Index or -1 if not found
+   */
+  public int indexOf(String name) {
+    for (int i = 0; i < this.paramCount; i++) {
+      if (this.paramNames[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  void addLong(String name, long value) {
+    int i = nextSlot(name, DataType.INTEGER);
+    this.longValues[i] = value;
+  }
+
+  void addDouble(String name, double value) {
+    int i = nextSlot(name, DataType.NUMBER);
+    this.doubleValues[i] = value;
+  }
+
+  void addString(String name, String value) {
+    int i = nextSlot(name, DataType.STRING);
+    this.stringValues[i] = value;
+  }
+
+  void addBoolean(String name, boolean value) {
+    int i = nextSlot(name, DataType.BOOLEAN);
+    this.longValues[i] = value ? 1 : 0;
+  }
+
+  private int nextSlot(String name, DataType type) {
+    if (this.paramCount == this.paramNames.length) {
+      int capacity = this.paramNames.length * 2;
+      this.paramNames = Arrays.copyOf(this.paramNames, capacity);
+      this.paramTypes = Arrays.copyOf(this.paramTypes, capacity);
+      this.longValues = Arrays.copyOf(this.longValues, capacity);
+      this.doubleValues = Arrays.copyOf(this.doubleValues, capacity);
+      this.stringValues = Arrays.copyOf(this.stringValues, capacity);
+    }
+    int i = this.paramCount++;
+    this.paramNames[i] = name;
+    this.paramTypes[i] = type;
+    return i;
+  }
+
+  /**
+   * Get parameter value boxed as Long, Double, String or Boolean
+   *
+   * @param index Parameter index
+   * @return Boxed value
+   */
+  public Object getValue(int index) {
+    switch (this.paramTypes[index]) {
+      case INTEGER:
+        return this.longValues[index];
+      case NUMBER:
+        return this.doubleValues[index];
+      case BOOLEAN:
+        return this.longValues[index] != 0;
+      default:
+        return this.stringValues[index];
+    }
+  }
+
+  /**
+   * Copy parameters into a name value {@link Map}, in the same format as the 'data' or 'params'
+   * entry produced by {@link GatewayUDPCodec#decodeResponse(byte[])}
+   *
+   * @return Parameters
+   */
+  public Map<String, Object> toParams() {
+    Map<String, Object> params = new LinkedHashMap<>();
+    for (int i = 0; i < this.paramCount; i++) {
+      params.put(this.paramNames[i], getValue(i));
+    }
+    return params;
+  }
+
+  @Override
+  public String toString() {
+    return "GatewayMessage{" +
+        "cmd=" + (cmd != null ? cmd.value() : null) +
+        ", model='" + model + '\'' +
+        ", sid='" + sid + '\'' +
+        (hasShortId ? ", shortId=" + shortId : "") +
+        ", params=" + toParams() +
+        '}';
+  }
+}
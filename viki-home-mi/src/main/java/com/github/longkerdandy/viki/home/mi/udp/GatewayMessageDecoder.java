@@ -0,0 +1,238 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.longkerdandy.viki.home.util.Jacksons;
+import java.io.IOException;
+
+/**
+ * Streaming decoder for {@link com.github.longkerdandy.viki.home.mi.model.Gateway} response
+ * messages
+ *
+ * Unlike {@link GatewayUDPCodec#decodeResponse(byte[])}, this decoder does not build a {@link
+ * com.fasterxml.jackson.databind.JsonNode} tree. Fields are read in a single pass from a {@link
+ * JsonParser} into a reusable {@link GatewayMessage}, the string embedded protocol 1.x 'data' field
+ * is parsed directly from the parser's character buffer. The decoder is stateless and thread-safe,
+ * the {@link GatewayMessage} is not.
+ */
+public class GatewayMessageDecoder {
+
+  private final JsonFactory factory;
+
+  /**
+   * Constructor
+   */
+  public GatewayMessageDecoder() {
+    this.factory = Jacksons.getMapper().getFactory();
+  }
+
+  /**
+   * Decode json to response message
+   *
+   * @param json JSON byte[]
+   * @param offset Offset of the first byte of the message
+   * @param length Length of the message in bytes
+   * @param msg {@link GatewayMessage} to be reset and filled
+   * @return The given {@link GatewayMessage}
+   * @throws IOException when decoding failed
+   */
+  public GatewayMessage decode(byte[] json, int offset, int length, GatewayMessage msg)
+      throws IOException {
+    msg.reset();
+
+    try (JsonParser parser = this.factory.createParser(json, offset, length)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Message is not a json object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        switch (field) {
+          case "cmd":
+            GatewayCommand cmd = GatewayCommand.lookup(parser.getTextCharacters(),
+                parser.getTextOffset(), parser.getTextLength());
+            if (cmd == null) {
+              throw new IOException("Unknown command type " + parser.getText());
+            }
+            msg.setCmd(cmd);
+            break;
+          case "model":
+            msg.setModel(parser.getValueAsString());
+            break;
+          case "sid":
+            msg.setSid(parser.getValueAsString());
+            break;
+          case "short_id":
+            msg.setShortId(parser.getValueAsInt());
+            break;
+          case "token":
+            msg.setToken(parser.getValueAsString());
+            break;
+          case "ip":
+            msg.setIp(parser.getValueAsString());
+            break;
+          case "port":
+            msg.setPort(parser.getValueAsInt());
+            break;
+          case "proto_version":
+            msg.setProtocolVersion(parser.getValueAsString());
+            break;
+          case "protocol":
+            msg.setProtocol(parser.getValueAsString());
+            break;
+          case "data":
+            // protocol v1.x only
+            decodeData(parser, msg);
+            break;
+          case "params":
+            // protocol v2.x only
+            decodeParams(parser, msg);
+            break;
+          case "dev_list":
+            // protocol v2.x only
+            decodeDevices(parser, msg);
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+    }
+
+    validate(msg);
+    return msg;
+  }
+
+  /**
+   * Decode protocol 1.x 'data' field, which is a json object or array embedded in a string
+   */
+  protected void decodeData(JsonParser parser, GatewayMessage msg) throws IOException {
+    if (parser.currentToken() != JsonToken.VALUE_STRING) {
+      parser.skipChildren();
+      return;
+    }
+    msg.markParams();
+    // The embedded parser reads the outer parser's buffer, which stays valid until nextToken()
+    try (JsonParser embedded = this.factory.createParser(parser.getTextCharacters(),
+        parser.getTextOffset(), parser.getTextLength())) {
+      JsonToken token = embedded.nextToken();
+      if (token == JsonToken.START_OBJECT) {
+        decodeFields(embedded, msg);
+      } else if (token == JsonToken.START_ARRAY) {
+        while ((token = embedded.nextToken()) != JsonToken.END_ARRAY && token != null) {
+          if (token.isScalarValue()) {
+            msg.getSids().add(embedded.getValueAsString());
+          } else {
+            embedded.skipChildren();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Decode protocol 2.x 'params' field, which is an array of single field json objects
+   */
+  protected void decodeParams(JsonParser parser, GatewayMessage msg) throws IOException {
+    msg.markParams();
+    if (parser.currentToken() != JsonToken.START_ARRAY) {
+      parser.skipChildren();
+      return;
+    }
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+      if (token == JsonToken.START_OBJECT) {
+        decodeFields(parser, msg);
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  /**
+   * Decode protocol 2.x 'dev_list' field, which is an array of sid and model json objects
+   */
+  protected void decodeDevices(JsonParser parser, GatewayMessage msg) throws IOException {
+    if (parser.currentToken() != JsonToken.START_ARRAY) {
+      parser.skipChildren();
+      return;
+    }
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+      if (token != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+      String sid = null;
+      String model = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+        if ("sid".equals(field)) {
+          sid = parser.getValueAsString();
+        } else if ("model".equals(field)) {
+          model = parser.getValueAsString();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      if (sid != null && model != null) {
+        msg.getSids().add(sid);
+        msg.getModels().add(model);
+      }
+    }
+  }
+
+  /**
+   * Decode fields of the current json object into parameter slots
+   */
+  protected void decodeFields(JsonParser parser, GatewayMessage msg) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      switch (parser.nextToken()) {
+        case VALUE_NUMBER_INT:
+          msg.addLong(name, parser.getLongValue());
+          break;
+        case VALUE_NUMBER_FLOAT:
+          msg.addDouble(name, parser.getDoubleValue());
+          break;
+        case VALUE_STRING:
+          msg.addString(name, parser.getText());
+          break;
+        case VALUE_TRUE:
+          msg.addBoolean(name, true);
+          break;
+        case VALUE_FALSE:
+          msg.addBoolean(name, false);
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+  }
+
+  /**
+   * Validate required fields based on the command
+   */
+  protected void validate(GatewayMessage msg) throws IOException {
+    GatewayCommand cmd = msg.getCmd();
+    if (cmd == null) {
+      throw new IOException("Message missing cmd field");
+    }
+    if (cmd.isModelRequired() && msg.getModel() == null) {
+      throw new IOException("Message missing model field");
+    }
+    if (cmd.isSidRequired() && msg.getSid() == null) {
+      throw new IOException("Message missing sid field");
+    }
+    if (cmd.isTokenRequired() && msg.getToken() == null) {
+      throw new IOException("Message missing token field");
+    }
+    if (cmd.isAddressRequired() && (msg.getIp() == null || msg.getPort() == 0)) {
+      throw new IOException("Message missing ip or port field");
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.io.IOException;
+
+/**
+ * Direct to bytes encoder for {@link GatewayRequest}
+ *
+ * Writes the json wire format straight into a caller supplied (usually pooled) buffer without
+ * building intermediate {@link java.util.Map}s or strings. The protocol 1.x 'data' object is
+ * written as an escaped json string in place, by escaping each character once per nesting level.
+ * Output is byte-for-byte identical to {@link GatewayUDPCodec#encodeRequest(java.util.Map)} for
+ * the same fields in the same order.
+ *
+ * The encoder is stateless and thread-safe.
+ */
+public class GatewayMessageEncoder {
+
+  private static final byte[] DIGITS = "0123456789ABCDEF".getBytes();
+
+  private GatewayMessageEncoder() {
+  }
+
+  /**
+   * Encode request message to json
+   *
+   * @param request {@link GatewayRequest}
+   * @param buf Output buffer
+   * @return Number of bytes written from the start of the buffer
+   * @throws IOException when message exceeds the buffer size
+   */
+  public static int encode(GatewayRequest request, byte[] buf) throws IOException {
+    int pos = 0;
+    pos = writeRaw(buf, pos, '{');
+    pos = writeField(buf, pos, "cmd", 0);
+    pos = writeString(buf, pos, request.getCmd(), 0);
+    if (request.getModel() != null) {
+      pos = writeRaw(buf, pos, ',');
+      pos = writeField(buf, pos, "model", 0);
+      pos = writeString(buf, pos, request.getModel(), 0);
+    }
+    if (request.getSid() != null) {
+      pos = writeRaw(buf, pos, ',');
+      pos = writeField(buf, pos, "sid", 0);
+      pos = writeString(buf, pos, request.getSid(), 0);
+    }
+    if (request.getShortId() != null) {
+      pos = writeRaw(buf, pos, ',');
+      pos = writeField(buf, pos, "short_id", 0);
+      pos = writeLong(buf, pos, request.getShortId());
+    }
+    if (request.hasParams()) {
+      pos = writeRaw(buf, pos, ',');
+      if (request.isProtocolV1()) {
+        // protocol v1.x, json object embedded in a string
+        pos = writeField(buf, pos, "data", 0);
+        pos = writeRaw(buf, pos, '"');
+        pos = writeRaw(buf, pos, '{');
+        for (int i = 0; i < request.getParamCount(); i++) {
+          if (i > 0) {
+            pos = writeRaw(buf, pos, ',');
+          }
+          pos = writeParam(buf, pos, request, i, 1);
+        }
+        if (request.getKey() != null) {
+          if (request.getParamCount() > 0) {
+            pos = writeRaw(buf, pos, ',');
+          }
+          pos = writeField(buf, pos, "key", 1);
+          pos = writeString(buf, pos, request.getKey(), 1);
+        }
+        pos = writeRaw(buf, pos, '}');
+        pos = writeRaw(buf, pos, '"');
+      } else {
+        // protocol v2.x, array of single field objects
+        pos = writeField(buf, pos, "params", 0);
+        pos = writeRaw(buf, pos, '[');
+        for (int i = 0; i < request.getParamCount(); i++) {
+          if (i > 0) {
+            pos = writeRaw(buf, pos, ',');
+          }
+          pos = writeRaw(buf, pos, '{');
+          pos = writeParam(buf, pos, request, i, 0);
+          pos = writeRaw(buf, pos, '}');
+        }
+        if (request.getKey() != null) {
+          if (request.getParamCount() > 0) {
+            pos = writeRaw(buf, pos, ',');
+          }
+          pos = writeRaw(buf, pos, '{');
+          pos = writeField(buf, pos, "key", 0);
+          pos = writeString(buf, pos, request.getKey(), 0);
+          pos = writeRaw(buf, pos, '}');
+        }
+        pos = writeRaw(buf, pos, ']');
+      }
+    }
+    pos = writeRaw(buf, pos, '}');
+    return pos;
+  }
+
+  /**
+   * Write parameter name and value, level is the number of enclosing json strings
+   */
+  private static int writeParam(byte[] buf, int pos, GatewayRequest request, int index,
+      int level) throws IOException {
+    pos = writeField(buf, pos, request.getParamName(index), level);
+    switch (request.getParamType(index)) {
+      case INTEGER:
+        return writeLong(buf, pos, request.getLong(index));
+      case NUMBER:
+        return writeAscii(buf, pos, Double.toString(request.getDouble(index)));
+      case BOOLEAN:
+        return writeAscii(buf, pos, request.getBoolean(index) ? "true" : "false");
+      default:
+        return writeString(buf, pos, request.getString(index), level);
+    }
+  }
+
+  private static int writeField(byte[] buf, int pos, String name, int level)
+      throws IOException {
+    pos = writeString(buf, pos, name, level);
+    return writeRaw(buf, pos, ':');
+  }
+
+  /**
+   * Write json string, its quotes are escaped 'level' times and its content 'level + 1' times
+   */
+  private static int writeString(byte[] buf, int pos, String value, int level)
+      throws IOException {
+    pos = writeChar(buf, pos, '"', level);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (Character.isSurrogate(c)) {
+        // Same as Jackson's UTF-8 generator, surrogates are escaped once whatever the level
+        pos = writeRaw(buf, pos, '\\');
+        pos = writeRaw(buf, pos, 'u');
+        pos = writeRaw(buf, pos, DIGITS[c >> 12]);
+        pos = writeRaw(buf, pos, DIGITS[(c >> 8) & 0xF]);
+        pos = writeRaw(buf, pos, DIGITS[(c >> 4) & 0xF]);
+        pos = writeRaw(buf, pos, DIGITS[c & 0xF]);
+      } else {
+        pos = writeChar(buf, pos, c, level + 1);
+      }
+    }
+    return writeChar(buf, pos, '"', level);
+  }
+
+  /**
+   * Write a character escaped 'level' times
+   */
+  private static int writeChar(byte[] buf, int pos, int c, int level) throws IOException {
+    if (level == 0 || (c >= 0x20 && c != '"' && c != '\\')) {
+      return c < 0x80 ? writeRaw(buf, pos, c) : writeUtf8(buf, pos, c);
+    }
+    pos = writeChar(buf, pos, '\\', level - 1);
+    switch (c) {
+      case '"':
+      case '\\':
+        return writeChar(buf, pos, c, level - 1);
+      case '\b':
+        return writeChar(buf, pos, 'b', level - 1);
+      case '\t':
+        return writeChar(buf, pos, 't', level - 1);
+      case '\n':
+        return writeChar(buf, pos, 'n', level - 1);
+      case '\f':
+        return writeChar(buf, pos, 'f', level - 1);
+      case '\r':
+        return writeChar(buf, pos, 'r', level - 1);
+      default:
+        pos = writeChar(buf, pos, 'u', level - 1);
+        pos = writeChar(buf, pos, '0', level - 1);
+        pos = writeChar(buf, pos, '0', level - 1);
+        pos = writeChar(buf, pos, DIGITS[c >> 4], level - 1);
+        return writeChar(buf, pos, DIGITS[c & 0xF], level - 1);
+    }
+  }
+
+  private static int writeUtf8(byte[] buf, int pos, int c) throws IOException {
+    if (c < 0x800) {
+      pos = writeRaw(buf, pos, 0xC0 | (c >> 6));
+    } else {
+      pos = writeRaw(buf, pos, 0xE0 | (c >> 12));
+      pos = writeRaw(buf, pos, 0x80 | ((c >> 6) & 0x3F));
+    }
+    return writeRaw(buf, pos, 0x80 | (c & 0x3F));
+  }
+
+  private static int writeLong(byte[] buf, int pos, long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      return writeAscii(buf, pos, Long.toString(value));
+    }
+    if (value < 0) {
+      pos = writeRaw(buf, pos, '-');
+      value = -value;
+    }
+    int digits = 1;
+    for (long v = value / 10; v > 0; v /= 10) {
+      digits++;
+    }
+    if (pos + digits > buf.length) {
+      throw new IOException("Message exceeds buffer size " + buf.length);
+    }
+    for (int i = pos + digits - 1; i >= pos; i--) {
+      buf[i] = DIGITS[(int) (value % 10)];
+      value /= 10;
+    }
+    return pos + digits;
+  }
+
+  private static int writeAscii(byte[] buf, int pos, String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      pos = writeRaw(buf, pos, value.charAt(i));
+    }
+    return pos;
+  }
+
+  private static int writeRaw(byte[] buf, int pos, int b) throws IOException {
+    if (pos >= buf.length) {
+      throw new IOException("Message exceeds buffer size " + buf.length);
+    }
+    buf[pos] = (byte) b;
+    return pos + 1;
+  }
+}
@@ -0,0 +1,281 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import com.github.longkerdandy.viki.home.model.DataType;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Typed {@link com.github.longkerdandy.viki.home.mi.model.Gateway} request message builder
+ *
+ * Parameters are kept in unboxed, typed slots and written by {@link GatewayMessageEncoder} either
+ * as the string embedded 'data' object (protocol 1.x) or as the 'params' array of single field
+ * objects (protocol 2.x). The api key is always written as the last parameter. Instances are
+ * mutable and may be reused by a single thread after {@link #reset()}.
+ */
+public class GatewayRequest {
+
+  private static final int INITIAL_CAPACITY = 4;
+
+  private String cmd;                         // command
+  private String model;                       // model
+  private String sid;                         // sid
+  private Integer shortId;                    // short id, protocol 1.x only
+  private String key;                         // encrypted api key
+  private boolean protocolV1;                 // parameters shape, 'data' if true, 'params' if false
+
+  // parameter slots
+  private int paramCount;
+  private String[] paramNames;
+  private DataType[] paramTypes;
+  private long[] longValues;
+  private double[] doubleValues;
+  private String[] stringValues;
+
+  /**
+   * Constructor
+   */
+  public GatewayRequest() {
+    this.paramNames = new String[INITIAL_CAPACITY];
+    this.paramTypes = new DataType[INITIAL_CAPACITY];
+    this.longValues = new long[INITIAL_CAPACITY];
+    this.doubleValues = new double[INITIAL_CAPACITY];
+    this.stringValues = new String[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Create whois request
+   */
+  public static GatewayRequest whois() {
+    return new GatewayRequest().command("whois");
+  }
+
+  /**
+   * Create get_id_list request (Protocol 1.x)
+   */
+  public static GatewayRequest list() {
+    return new GatewayRequest().command("get_id_list");
+  }
+
+  /**
+   * Create discovery request (Protocol 2.x)
+   */
+  public static GatewayRequest discovery() {
+    return new GatewayRequest().command("discovery");
+  }
+
+  /**
+   * Create read request (Protocol 1.x & 2.x)
+   *
+   * @param sid Sid
+   */
+  public static GatewayRequest read(String sid) {
+    return new GatewayRequest().command("read").sid(sid);
+  }
+
+  /**
+   * Create write request with string embedded 'data' (Protocol 1.x)
+   *
+   * @param model Model
+   * @param sid Sid
+   * @param shortId Short id
+   */
+  public static GatewayRequest write(String model, String sid, int shortId) {
+    return new GatewayRequest().command("write").model(model).sid(sid).shortId(shortId)
+        .protocolV1(true);
+  }
+
+  /**
+   * Create write request with 'params' array (Protocol 2.x)
+   *
+   * @param model Model
+   * @param sid Sid
+   */
+  public static GatewayRequest write(String model, String sid) {
+    return new GatewayRequest().command("write").model(model).sid(sid);
+  }
+
+  /**
+   * Clear all the fields so the instance can be reused
+   */
+  public GatewayRequest reset() {
+    this.cmd = null;
+    this.model = null;
+    this.sid = null;
+    this.shortId = null;
+    this.key = null;
+    this.protocolV1 = false;
+    Arrays.fill(this.stringValues, 0, this.paramCount, null);
+    this.paramCount = 0;
+    return this;
+  }
+
+  public GatewayRequest command(String cmd) {
+    this.cmd = cmd;
+    return this;
+  }
+
+  public GatewayRequest model(String model) {
+    this.model = model;
+    return this;
+  }
+
+  public GatewayRequest sid(String sid) {
+    this.sid = sid;
+    return this;
+  }
+
+  public GatewayRequest shortId(Integer shortId) {
+    this.shortId = shortId;
+    return this;
+  }
+
+  public GatewayRequest key(String key) {
+    this.key = key;
+    return this;
+  }
+
+  public GatewayRequest protocolV1(boolean protocolV1) {
+    this.protocolV1 = protocolV1;
+    return this;
+  }
+
+  public GatewayRequest param(String name, long value) {
+    this.longValues[nextSlot(name, DataType.INTEGER)] = value;
+    return this;
+  }
+
+  public GatewayRequest param(String name, double value) {
+    this.doubleValues[nextSlot(name, DataType.NUMBER)] = value;
+    return this;
+  }
+
+  public GatewayRequest param(String name, String value) {
+    this.stringValues[nextSlot(name, DataType.STRING)] = value;
+    return this;
+  }
+
+  public GatewayRequest param(String name, boolean value) {
+    this.longValues[nextSlot(name, DataType.BOOLEAN)] = value ? 1 : 0;
+    return this;
+  }
+
+  /**
+   * Add boxed parameter value
+   *
+   * @param name Parameter name
+   * @param value Long, Integer, Double, Float, String or Boolean
+   * @return This request
+   */
+  public GatewayRequest param(String name, Object value) {
+    if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      return param(name, ((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      return param(name, ((Number) value).doubleValue());
+    } else if (value instanceof String) {
+      return param(name, (String) value);
+    } else if (value instanceof Boolean) {
+      return param(name, ((Boolean) value).booleanValue());
+    }
+    throw new IllegalArgumentException("Unsupported parameter " + name + " value " + value);
+  }
+
+  /**
+   * Add all the parameters in the {@link Map}, the {@link Map} is not modified
+   *
+   * @param params Parameters
+   * @return This request
+   */
+  public GatewayRequest params(Map<String, Object> params) {
+    for (Entry<String, Object> entry : params.entrySet()) {
+      param(entry.getKey(), entry.getValue());
+    }
+    return this;
+  }
+
+  private int nextSlot(String name, DataType type) {
+    if (this.paramCount == this.paramNames.length) {
+      int capacity = this.paramNames.length * 2;
+      this.paramNames = Arrays.copyOf(this.paramNames, capacity);
+      this.paramTypes = Arrays.copyOf(this.paramTypes, capacity);
+      this.longValues = Arrays.copyOf(this.longValues, capacity);
+      this.doubleValues = Arrays.copyOf(this.doubleValues, capacity);
+      this.stringValues = Arrays.copyOf(this.stringValues, capacity);
+    }
+    int i = this.paramCount++;
+    this.paramNames[i] = name;
+    this.paramTypes[i] = type;
+    return i;
+  }
+
+  public String getCmd() {
+    return cmd;
+  }
+
+  public String getModel() {
+    return model;
+  }
+
+  public String getSid() {
+    return sid;
+  }
+
+  public Integer getShortId() {
+    return shortId;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public boolean isProtocolV1() {
+    return protocolV1;
+  }
+
+  public int getParamCount() {
+    return paramCount;
+  }
+
+  public String getParamName(int index) {
+    return paramNames[index];
+  }
+
+  public DataType getParamType(int index) {
+    return paramTypes[index];
+  }
+
+  public long getLong(int index) {
+    return longValues[index];
+  }
+
+  public double getDouble(int index) {
+    return doubleValues[index];
+  }
+
+  public String getString(int index) {
+    return stringValues[index];
+  }
+
+  public boolean getBoolean(int index) {
+    return longValues[index] != 0;
+  }
+
+  /**
+   * Whether 'data' or 'params' field should be written
+   */
+  public boolean hasParams() {
+    return this.paramCount > 0 || this.key != null;
+  }
+
+  @Override
+  public String toString() {
+    return "GatewayRequest{" +
+        "cmd='" + cmd + '\'' +
+        ", model='" + model + '\'' +
+        ", sid='" + sid + '\'' +
+        ", shortId=" + shortId +
+        ", params=" + Arrays.toString(Arrays.copyOf(paramNames, paramCount)) +
+        '}';
+  }
+}
@@ -17,13 +17,17 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -38,7 +42,8 @@ public class GatewayUDPCodec {
 
   private static final Logger logger = LoggerFactory.getLogger(GatewayUDPCodec.class);
 
-  private static final byte[] IV = new byte[]{0x17, (byte) 0x99, 0x6d, 0x09, 0x3d, 0x28,
+  // AES CBC initialization vector for the write key
+  static final byte[] IV = new byte[]{0x17, (byte) 0x99, 0x6d, 0x09, 0x3d, 0x28,
       (byte) 0xdd, (byte) 0xb3, (byte) 0xba, 0x69, 0x5a, 0x2e, 0x6f, 0x58, 0x56, 0x2e};
 
   private GatewayUDPCodec() {
@@ -49,16 +54,15 @@ public class GatewayUDPCodec {
    *
    * @param address Remote address
    * @param port Port
-   * @param timeout Socket timeout in milliseconds
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
    * @return get_id_list_ack message
    * @throws IOException when communication failed or timeout
    */
-  public static Map<String, Object> list(InetAddress address, int port, int timeout)
-      throws IOException {
-    Map<String, Object> message = new LinkedHashMap<>();
-    message.put("cmd", "get_id_list");
+  public static Map<String, Object> list(InetAddress address, int port, RttTable rtts,
+      DatagramBufferPool buffers) throws IOException {
     SocketAddress remote = new InetSocketAddress(address, port);
-    return unicast(message, remote, timeout);
+    return unicast(GatewayRequest.list(), remote, rtts, buffers);
   }
 
   /**
@@ -66,16 +70,15 @@ public class GatewayUDPCodec {
    *
    * @param address Remote address
    * @param port Port
-   * @param timeout Socket timeout in milliseconds
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
    * @return discovery_rsp message
    * @throws IOException when communication failed or timeout
    */
-  public static Map<String, Object> discovery(InetAddress address, int port, int timeout)
-      throws IOException {
-    Map<String, Object> message = new LinkedHashMap<>();
-    message.put("cmd", "discovery");
+  public static Map<String, Object> discovery(InetAddress address, int port, RttTable rtts,
+      DatagramBufferPool buffers) throws IOException {
     SocketAddress remote = new InetSocketAddress(address, port);
-    return unicast(message, remote, timeout);
+    return unicast(GatewayRequest.discovery(), remote, rtts, buffers);
   }
 
   /**
@@ -84,17 +87,34 @@ public class GatewayUDPCodec {
    * @param sid Sid
    * @param address Remote address
    * @param port Port
-   * @param timeout Socket timeout in milliseconds
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
    * @return read_ack or read_rsp message
    * @throws IOException when communication failed or timeout
    */
-  public static Map<String, Object> read(String sid, InetAddress address, int port, int timeout)
-      throws IOException {
-    Map<String, Object> message = new LinkedHashMap<>();
-    message.put("cmd", "read");
-    message.put("sid", sid);
+  public static Map<String, Object> read(String sid, InetAddress address, int port,
+      RttTable rtts, DatagramBufferPool buffers) throws IOException {
     SocketAddress remote = new InetSocketAddress(address, port);
-    return unicast(message, remote, timeout);
+    return unicast(GatewayRequest.read(sid), remote, rtts, buffers);
+  }
+
+  /**
+   * Send read message and receive read_ack or read_rsp message within the budget. (Protocol 1.x &
+   * 2.x)
+   *
+   * @param sid Sid
+   * @param address Remote address
+   * @param port Port
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
+   * @param budget Overall time of all the transmissions in milliseconds
+   * @return read_ack or read_rsp message
+   * @throws IOException when communication failed or timeout
+   */
+  public static Map<String, Object> read(String sid, InetAddress address, int port,
+      RttTable rtts, DatagramBufferPool buffers, long budget) throws IOException {
+    SocketAddress remote = new InetSocketAddress(address, port);
+    return unicast(GatewayRequest.read(sid), remote, rtts, buffers, budget);
   }
 
   /**
@@ -104,24 +124,20 @@ public class GatewayUDPCodec {
    * @param sid Sid
    * @param shortId Short id
    * @param key Api key
-   * @param data Data
+   * @param data Data, will not be modified
    * @param address Remote address
    * @param port Port
-   * @param timeout Socket timeout in milliseconds
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
    * @return write_ack message
    * @throws IOException when communication failed or timeout
    */
   public static Map<String, Object> write(String model, String sid, int shortId, String key,
-      Map<String, Object> data, InetAddress address, int port, int timeout) throws IOException {
-    Map<String, Object> message = new LinkedHashMap<>();
-    message.put("cmd", "write");
-    message.put("model", model);
-    message.put("sid", sid);
-    message.put("short_id", shortId);
-    data.put("key", key);
-    message.put("data", data);
+      Map<String, Object> data, InetAddress address, int port, RttTable rtts,
+      DatagramBufferPool buffers) throws IOException {
+    GatewayRequest request = GatewayRequest.write(model, sid, shortId).params(data).key(key);
     SocketAddress remote = new InetSocketAddress(address, port);
-    return unicast(message, remote, timeout);
+    return unicast(request, remote, rtts, buffers);
   }
 
   /**
@@ -130,57 +146,192 @@ public class GatewayUDPCodec {
    * @param model Model
    * @param sid Sid
    * @param key Api key
-   * @param params Parameters
+   * @param params Parameters, will not be modified
    * @param address Remote address
    * @param port Port
-   * @param timeout Socket timeout in milliseconds
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
    * @return write_ack message
    * @throws IOException when communication failed or timeout
    */
   public static Map<String, Object> write(String model, String sid, String key,
-      Map<String, Object> params, InetAddress address, int port, int timeout) throws IOException {
-    Map<String, Object> message = new LinkedHashMap<>();
-    message.put("cmd", "write");
-    message.put("model", model);
-    message.put("sid", sid);
-    params.put("key", key);
-    message.put("params", params);
+      Map<String, Object> params, InetAddress address, int port, RttTable rtts,
+      DatagramBufferPool buffers) throws IOException {
+    GatewayRequest request = GatewayRequest.write(model, sid).params(params).key(key);
     SocketAddress remote = new InetSocketAddress(address, port);
-    return unicast(message, remote, timeout);
+    return unicast(request, remote, rtts, buffers);
   }
 
   /**
-   * Send unicast request message and receive response
+   * Send unicast request message and receive response within the maximum timeout of the {@link
+   * RttTable}
    *
-   * @param message Message
+   * @param request {@link GatewayRequest}
    * @param remote Remote address
-   * @param timeout Socket timeout in milliseconds
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
    * @return Response message
-   * @throws IOException when communication failed or timeout
+   * @throws IOException when communication failed or timeout after all the retries
    */
-  public static Map<String, Object> unicast(Map<String, Object> message, SocketAddress remote,
-      int timeout) throws IOException {
+  public static Map<String, Object> unicast(GatewayRequest request, SocketAddress remote,
+      RttTable rtts, DatagramBufferPool buffers) throws IOException {
+    return unicast(request, remote, rtts, buffers, Long.MAX_VALUE);
+  }
+
+  /**
+   * Send unicast request message and receive response within the budget
+   *
+   * The request is retransmitted when no response is received within the remote's adaptive
+   * timeout, which is doubled after every timeout up to its maximum. Requests are idempotent, a
+   * late response to an earlier transmission is accepted. The budget is capped at the maximum
+   * timeout of the {@link RttTable}, so an unreachable remote costs at most the maximum timeout
+   * whatever the retries. The last wait is shortened to end with the budget, and no more
+   * retransmission is sent once the budget is exhausted.
+   *
+   * @param request {@link GatewayRequest}
+   * @param remote Remote address
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
+   * @param budget Overall time of all the transmissions in milliseconds
+   * @return Response message
+   * @throws IOException when communication failed or timeout after all the retries
+   */
+  public static Map<String, Object> unicast(GatewayRequest request, SocketAddress remote,
+      RttTable rtts, DatagramBufferPool buffers, long budget) throws IOException {
+    RttEstimator rtt = rtts.get(remote);
+    long limit = Math.min(budget, rtts.getMaxTimeout());
+    long start = System.nanoTime();
+    byte[] buf = buffers.acquire();
     try (DatagramSocket socket = new DatagramSocket()) {
-      // socket options
-      socket.setSoTimeout(timeout);
-
-      // encode and send the message
-      byte[] input = encodeRequest(message);
-      socket.send(new DatagramPacket(input, input.length, remote));
-      logger.debug("Sent {} message to {}", message.get("cmd"), getIPAddress(remote));
-
-      // receive the acknowledge message, this will block
-      byte[] output = new byte[1024];  // magic number
-      DatagramPacket p = new DatagramPacket(output, output.length);
-      socket.receive(p);
-
-      // decode the received message and return
-      Map<String, Object> rsp = decodeResponse(p.getData());
-      logger.debug("Received {} message to {}", rsp.get("cmd"), getIPAddress(remote));
-      return rsp;
+      for (int attempt = 0; ; attempt++) {
+        long remaining = limit - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (remaining <= 0) {
+          throw new SocketTimeoutException("No response within " + limit + " ms");
+        }
+        int rto = rtt.getTimeout();
+        int timeout = (int) Math.min(rto, remaining);
+
+        // encode and send the message, the buffer is reused for the acknowledge message so the
+        // message is encoded again for every transmission
+        int length = GatewayMessageEncoder.encode(request, buf);
+        socket.setSoTimeout(timeout);
+        socket.send(new DatagramPacket(buf, 0, length, remote));
+        long sent = System.nanoTime();
+        logger.debug("Sent {} message to {}, attempt {}", request.getCmd(), getIPAddress(remote),
+            attempt);
+
+        // receive the acknowledge message, this will block
+        DatagramPacket p;
+        try {
+          p = buffers.receive(socket, buf);
+        } catch (SocketTimeoutException e) {
+          // a wait shortened by the budget is not a retransmission timeout
+          if (timeout == rto) {
+            rtt.backoff();
+          }
+          if (attempt >= rtts.getRetries()) {
+            throw e;
+          }
+          continue;
+        }
+        // only sample the round trip time when the response is not ambiguous
+        if (attempt == 0) {
+          rtt.sample(System.nanoTime() - sent);
+        }
+
+        // decode the received message and return
+        Map<String, Object> rsp = decodeResponse(p.getData(), p.getOffset(), p.getLength());
+        logger.debug("Received {} message to {}", rsp.get("cmd"), getIPAddress(remote));
+        return rsp;
+      }
+    } finally {
+      buffers.release(buf);
     }
   }
 
+  /**
+   * Send multiple unicast request messages to the same remote and receive their responses
+   *
+   * All the requests are sent back to back through a single socket, responses are matched to the
+   * requests by sid in the order they were sent. A round ends when no response is received within
+   * the remote's adaptive timeout, the requests still without a response are then retransmitted
+   * until the retries are exhausted. Only the first response of the first round is sampled, later
+   * responses include the gateway's queueing delay.
+   *
+   * @param requests List of {@link GatewayRequest}
+   * @param remote Remote address
+   * @param rtts {@link RttTable} for timeouts and retries
+   * @param buffers {@link DatagramBufferPool}
+   * @return Response messages in the same order of the requests, null if no response received
+   * @throws IOException when communication failed
+   */
+  public static List<Map<String, Object>> pipeline(List<GatewayRequest> requests,
+      SocketAddress remote, RttTable rtts, DatagramBufferPool buffers) throws IOException {
+    RttEstimator rtt = rtts.get(remote);
+    List<Map<String, Object>> responses = new ArrayList<>(
+        Collections.nCopies(requests.size(), null));
+    int remaining = requests.size();
+    byte[] buf = buffers.acquire();
+    try (DatagramSocket socket = new DatagramSocket()) {
+      for (int attempt = 0; remaining > 0; attempt++) {
+        // send all the requests without a response
+        for (int i = 0; i < requests.size(); i++) {
+          if (responses.get(i) == null) {
+            int length = GatewayMessageEncoder.encode(requests.get(i), buf);
+            socket.send(new DatagramPacket(buf, 0, length, remote));
+          }
+        }
+        long sent = System.nanoTime();
+        logger.debug("Sent {} messages to {}, attempt {}", remaining, getIPAddress(remote),
+            attempt);
+
+        // receive the acknowledge messages until timeout, this will block
+        boolean sampled = attempt > 0;
+        while (remaining > 0) {
+          socket.setSoTimeout(rtt.getTimeout());
+          DatagramPacket p;
+          try {
+            p = buffers.receive(socket, buf);
+          } catch (SocketTimeoutException e) {
+            break;
+          }
+          if (!sampled) {
+            rtt.sample(System.nanoTime() - sent);
+            sampled = true;
+          }
+          Map<String, Object> rsp;
+          try {
+            rsp = decodeResponse(p.getData(), p.getOffset(), p.getLength());
+          } catch (IOException e) {
+            logger.warn("Received invalid message from {}: {}", getIPAddress(remote),
+                e.getMessage());
+            continue;
+          }
+          for (int i = 0; i < requests.size(); i++) {
+            if (responses.get(i) == null && requests.get(i).getSid() != null
+                && requests.get(i).getSid().equals(rsp.get("sid"))) {
+              responses.set(i, rsp);
+              remaining--;
+              break;
+            }
+          }
+        }
+
+        if (remaining > 0) {
+          rtt.backoff();
+          if (attempt >= rtts.getRetries()) {
+            logger.debug("{} messages to {} are not acknowledged", remaining,
+                getIPAddress(remote));
+            break;
+          }
+        }
+      }
+    } finally {
+      buffers.release(buf);
+    }
+    return responses;
+  }
+
   /**
    * Generate encrypted key with AES CBC
    *
@@ -230,11 +381,28 @@ public class GatewayUDPCodec {
    * @throws IOException when decoding failed
    */
   public static Map<String, Object> decodeResponse(byte[] json) throws IOException {
+    return decodeResponse(json, 0, json.length);
+  }
+
+  /**
+   * Decode json to response message
+   *
+   * @param json JSON byte[]
+   * @param offset Offset of the first byte of the message
+   * @param length Length of the message in bytes
+   * @return Response message in the format of {@link Map}
+   * @throws IOException when decoding failed
+   */
+  public static Map<String, Object> decodeResponse(byte[] json, int offset, int length)
+      throws IOException {
     // ordered map
     Map<String, Object> result = new LinkedHashMap<>();
 
     // read into JsonNode
-    JsonNode node = Jacksons.getMapper().readTree(json);
+    JsonNode node = Jacksons.getReader(JsonNode.class).readValue(json, offset, length);
+    if (node == null) {
+      throw new IOException("Empty message");
+    }
 
     // parse command field
     String cmd = checkString(node, "cmd");
@@ -0,0 +1,106 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sequential reader of a capture file written by {@link PacketCaptureWriter}
+ *
+ * A partially written last record, left by a crash, is treated as the end of the capture.
+ */
+public class PacketCaptureReader implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(PacketCaptureReader.class);
+
+  private final DataInputStream in;
+  private final byte[] address4 = new byte[4];
+  private final byte[] address16 = new byte[16];
+  private long timestamp;
+
+  /**
+   * Constructor
+   *
+   * @param file Capture file
+   * @throws IOException when the file can not be opened or is not a capture file
+   */
+  public PacketCaptureReader(Path file) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+    byte[] magic = new byte[PacketCaptureWriter.MAGIC.length];
+    try {
+      this.in.readFully(magic);
+      if (!Arrays.equals(magic, PacketCaptureWriter.MAGIC)) {
+        throw new IOException("Invalid capture file " + file);
+      }
+      int version = this.in.readUnsignedByte();
+      if (version != PacketCaptureWriter.VERSION) {
+        throw new IOException("Unsupported capture file version " + version);
+      }
+    } catch (IOException e) {
+      this.in.close();
+      throw e instanceof EOFException ? new IOException("Invalid capture file " + file) : e;
+    }
+  }
+
+  /**
+   * Read the next packet into the buffer
+   *
+   * @param buf Buffer, should be large enough for the captured payloads
+   * @return {@link DatagramPacket} with the source address and payload, null at the end
+   * @throws IOException when reading failed or a record is invalid
+   */
+  public DatagramPacket next(byte[] buf) throws IOException {
+    long ts;
+    try {
+      ts = this.in.readLong();
+    } catch (EOFException e) {
+      return null;
+    }
+    try {
+      int addressLength = this.in.readUnsignedByte();
+      byte[] address;
+      if (addressLength == 4) {
+        address = this.address4;
+      } else if (addressLength == 16) {
+        address = this.address16;
+      } else {
+        throw new IOException("Invalid address length " + addressLength);
+      }
+      this.in.readFully(address);
+      int port = this.in.readUnsignedShort();
+      int length = this.in.readUnsignedShort();
+      if (length > buf.length) {
+        throw new IOException("Packet length " + length + " exceeds buffer size " + buf.length);
+      }
+      this.in.readFully(buf, 0, length);
+      this.timestamp = ts;
+      return new DatagramPacket(buf, 0, length, InetAddress.getByAddress(address), port);
+    } catch (EOFException e) {
+      logger.warn("Capture ends with a partial record, ignored");
+      return null;
+    }
+  }
+
+  /**
+   * Get the receive timestamp of the last packet returned by {@link #next(byte[])}
+   *
+   * @return Timestamp in microseconds since epoch
+   */
+  public long getTimestamp() {
+    return this.timestamp;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.in.close();
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only capture file writer of received UDP packets
+ *
+ * The file starts with the magic 'VKPC' and a version byte, followed by one record per packet:
+ * <pre>
+ *   long      receive timestamp in microseconds since epoch
+ *   byte      source address length, 4 or 16
+ *   byte[]    source address
+ *   short     source port, unsigned
+ *   short     payload length, unsigned
+ *   byte[]    payload
+ * </pre>
+ * Records are buffered and flushed at most once per second, so a crash loses at most the last
+ * second of capture. Capturing to an existing file appends to it. The writer is thread-safe.
+ */
+public class PacketCaptureWriter implements Closeable {
+
+  static final byte[] MAGIC = new byte[]{'V', 'K', 'P', 'C'};
+  static final int VERSION = 1;
+
+  private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+  private final DataOutputStream out;
+  private long lastFlush;
+  private long count;
+
+  /**
+   * Constructor, the file is created if not exist
+   *
+   * @param file Capture file
+   * @throws IOException when the file can not be opened
+   */
+  public PacketCaptureWriter(Path file) throws IOException {
+    boolean empty = Files.notExists(file) || Files.size(file) == 0;
+    this.out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(file, CREATE, APPEND)));
+    if (empty) {
+      this.out.write(MAGIC);
+      this.out.writeByte(VERSION);
+    }
+    this.lastFlush = System.nanoTime();
+  }
+
+  /**
+   * Append the packet with the current time as its receive timestamp
+   *
+   * @param packet Received {@link DatagramPacket}
+   * @throws IOException when writing failed
+   */
+  public void write(DatagramPacket packet) throws IOException {
+    Instant now = Instant.now();
+    write(packet, TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000);
+  }
+
+  /**
+   * Append the packet
+   *
+   * @param packet Received {@link DatagramPacket}
+   * @param timestamp Receive timestamp in microseconds since epoch
+   * @throws IOException when writing failed
+   */
+  public synchronized void write(DatagramPacket packet, long timestamp) throws IOException {
+    byte[] address = packet.getAddress().getAddress();
+    this.out.writeLong(timestamp);
+    this.out.writeByte(address.length);
+    this.out.write(address);
+    this.out.writeShort(packet.getPort());
+    this.out.writeShort(packet.getLength());
+    this.out.write(packet.getData(), packet.getOffset(), packet.getLength());
+    this.count++;
+    if (System.nanoTime() - this.lastFlush >= FLUSH_INTERVAL) {
+      flush();
+    }
+  }
+
+  /**
+   * Flush the buffered records to the file
+   *
+   * @throws IOException when writing failed
+   */
+  public synchronized void flush() throws IOException {
+    this.out.flush();
+    this.lastFlush = System.nanoTime();
+  }
+
+  /**
+   * Get the number of packets written by this writer
+   *
+   * @return Packet count
+   */
+  public synchronized long getCount() {
+    return this.count;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    this.out.close();
+  }
+}
@@ -0,0 +1,89 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+/**
+ * Round trip time estimator of a single {@link com.github.longkerdandy.viki.home.mi.model.Gateway}
+ *
+ * Same as TCP's retransmission timer (RFC 6298): the timeout is the smoothed RTT plus four times
+ * the RTT variance, clamped to [min, max]. A timeout doubles the current value until the next
+ * valid sample. Only replies to requests which were not retransmitted should be sampled (Karn's
+ * algorithm), as a reply to a retransmitted request is ambiguous.
+ *
+ * The estimator is thread-safe.
+ */
+public class RttEstimator {
+
+  private final long minTimeout;              // microseconds
+  private final long maxTimeout;              // microseconds
+  private long srtt;                          // smoothed rtt in microseconds, 0 if no sample
+  private long rttvar;                        // rtt variance in microseconds
+  private long timeout;                       // current timeout in microseconds
+
+  /**
+   * Constructor
+   *
+   * @param initialTimeout Timeout before the first sample in milliseconds
+   * @param minTimeout Minimum timeout in milliseconds
+   * @param maxTimeout Maximum timeout in milliseconds
+   */
+  public RttEstimator(int initialTimeout, int minTimeout, int maxTimeout) {
+    this.minTimeout = minTimeout * 1000L;
+    this.maxTimeout = maxTimeout * 1000L;
+    this.timeout = clamp(initialTimeout * 1000L);
+  }
+
+  /**
+   * Update the estimation with a measured round trip time
+   *
+   * @param nanos Round trip time in nanoseconds
+   */
+  public synchronized void sample(long nanos) {
+    long rtt = Math.max(1, nanos / 1000);
+    if (this.srtt == 0) {
+      this.srtt = rtt;
+      this.rttvar = rtt / 2;
+    } else {
+      // beta = 1/4, alpha = 1/8
+      this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - rtt)) / 4;
+      this.srtt = (7 * this.srtt + rtt) / 8;
+    }
+    this.timeout = clamp(this.srtt + 4 * this.rttvar);
+  }
+
+  /**
+   * Double the timeout after a request timed out, up to the maximum
+   */
+  public synchronized void backoff() {
+    this.timeout = clamp(this.timeout * 2);
+  }
+
+  /**
+   * Get the current timeout
+   *
+   * @return Timeout in milliseconds, at least 1
+   */
+  public synchronized int getTimeout() {
+    return (int) Math.max(1, this.timeout / 1000);
+  }
+
+  /**
+   * Get the smoothed round trip time
+   *
+   * @return Smoothed round trip time in microseconds, 0 if there is no sample yet
+   */
+  public synchronized long getSmoothedRtt() {
+    return this.srtt;
+  }
+
+  private long clamp(long value) {
+    return Math.min(this.maxTimeout, Math.max(this.minTimeout, value));
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "RttEstimator{" +
+        "srtt=" + srtt +
+        ", rttvar=" + rttvar +
+        ", timeout=" + timeout +
+        '}';
+  }
+}
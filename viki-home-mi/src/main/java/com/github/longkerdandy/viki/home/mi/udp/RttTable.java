@@ -0,0 +1,55 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link RttEstimator}s indexed by remote address, together with the retry policy of unicast
+ * requests
+ *
+ * The table is thread-safe.
+ */
+public class RttTable {
+
+  private final int initialTimeout;
+  private final int minTimeout;
+  private final int maxTimeout;
+  private final int retries;
+  private final ConcurrentMap<SocketAddress, RttEstimator> estimators;
+
+  /**
+   * Constructor
+   *
+   * @param initialTimeout Timeout before the first sample in milliseconds
+   * @param minTimeout Minimum timeout in milliseconds
+   * @param maxTimeout Maximum timeout in milliseconds, also the overall time of a unicast request
+   * @param retries Maximum number of retransmissions after the first attempt
+   */
+  public RttTable(int initialTimeout, int minTimeout, int maxTimeout, int retries) {
+    this.initialTimeout = initialTimeout;
+    this.minTimeout = minTimeout;
+    this.maxTimeout = maxTimeout;
+    this.retries = Math.max(0, retries);
+    this.estimators = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Get the {@link RttEstimator} of the remote address, created if not exist
+   *
+   * @param remote Remote address
+   * @return {@link RttEstimator}
+   */
+  public RttEstimator get(SocketAddress remote) {
+    return this.estimators.computeIfAbsent(remote,
+        k -> new RttEstimator(this.initialTimeout, this.minTimeout, this.maxTimeout));
+  }
+
+  public int getMaxTimeout() {
+    return maxTimeout;
+  }
+
+  public int getRetries() {
+    return retries;
+  }
+}
@@ -6,7 +6,6 @@ module com.github.longkerdandy.viki.home.mi {
   requires org.flywaydb.core;
 
   // apache commons
-  requires org.apache.commons.collections4;
   requires org.apache.commons.codec;
 
   // service
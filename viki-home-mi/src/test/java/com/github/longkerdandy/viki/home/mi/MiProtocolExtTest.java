@@ -0,0 +1,164 @@
+package com.github.longkerdandy.viki.home.mi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.longkerdandy.viki.home.mi.model.Gateway;
+import com.github.longkerdandy.viki.home.mi.model.ZigbeeThing;
+import com.github.longkerdandy.viki.home.mi.udp.GatewaySimulator;
+import com.github.longkerdandy.viki.home.model.Thing;
+import com.github.longkerdandy.viki.home.storage.SQLiteStorage;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.apache.commons.configuration2.MapConfiguration;
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.jdbi.v3.core.Jdbi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MiProtocolExtTest {
+
+  private static final String SCHEMA = "aqara:zigbee:2_button_wall_switch";
+
+  private SQLiteStorage storage;
+  private MiProtocolExt ext;
+  private SlowGateway gateway;
+  private String tid;
+
+  private static File database(String prefix) throws IOException {
+    File db = File.createTempFile(prefix, ".db");
+    db.deleteOnExit();
+    return db;
+  }
+
+  // run the migration scripts of viki-home-core
+  private static void migrate(Jdbi jdbi, String script) throws IOException {
+    String sql = Files.readString(Paths.get("../viki-home-core/db/migration", script));
+    jdbi.useHandle(handle -> handle.createScript(sql).execute());
+  }
+
+  @Before
+  public void init() throws IOException {
+    this.storage = new SQLiteStorage(new MapConfiguration(Map.of(
+        "storage.jdbc.url", "jdbc:sqlite:" + database("viki-home-").getAbsolutePath())));
+    migrate(this.storage.getJdbi(), "core/V1.0.0__Core_initialization.sql");
+
+    // fixed 200 ms timeout without retransmission
+    PropertiesConfiguration config = new PropertiesConfiguration();
+    config.addProperty("storage.jdbc.url",
+        "jdbc:sqlite:" + database("viki-home-mi-").getAbsolutePath());
+    config.addProperty("storage.sqlite.pragma.foreign_keys", "true");
+    config.addProperty("path.schema", "src/test/schema/");
+    config.addProperty("path.i18n", "src/test/i18n/");
+    config.addProperty("udp.timeout.initial", 200);
+    config.addProperty("udp.timeout.min", 200);
+    config.addProperty("udp.timeout", 200);
+    config.addProperty("udp.retries", 0);
+    this.ext = new MiProtocolExt(Locale.CHINESE, this.storage, config);
+    migrate(this.ext.miStorage.getJdbi(), "mi/V1.0.0__Extension_Mi_initialization.sql");
+    this.ext.miStorage.init();
+    this.ext.schemas.load();
+
+    // a gateway with a single wall switch, known to the storage
+    this.gateway = new SlowGateway();
+    this.gateway.addDevices(1, "ctrl_neutral2", Map.of("channel_0", "on", "channel_1", "off"));
+    this.gateway.start();
+    assert this.ext.miStorage.insetGateway(new Gateway(this.gateway.getGid(),
+        this.gateway.getModel(), this.gateway.getProtocolVersion(), null,
+        this.gateway.getToken(), this.gateway.getAddress(), this.gateway.getPort()));
+    this.tid = "tid0";
+    ZigbeeThing z = new ZigbeeThing(this.gateway.getSids().get(0), this.gateway.getGid(),
+        this.tid, "ctrl_neutral2", 1);
+    assert this.ext.miStorage.insetZigbeeThing(z);
+    assert this.storage.insertThingWithProperties(z.toThing(
+        this.ext.schemas.getMappingByModel("ctrl_neutral2"),
+        Map.of("channel_0", "off", "channel_1", "off")));
+  }
+
+  @After
+  public void destroy() {
+    this.gateway.close();
+    this.ext.destroy();
+  }
+
+  @Test
+  public void readThingTest() throws Exception {
+    // concurrent reads share one gateway read
+    List<CompletableFuture<Optional<Thing>>> futures = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      futures.add(this.ext.readThing(this.tid, SCHEMA, Duration.ZERO));
+    }
+    for (CompletableFuture<Optional<Thing>> f : futures) {
+      assert f.get().isPresent();
+    }
+    assert this.gateway.getReadCount() == 1;
+    assert this.ext.reads.isEmpty();
+
+    // the state read is fresh enough
+    assert this.ext.readThing(this.tid, SCHEMA, Duration.ofMinutes(1)).get().isPresent();
+    assert this.gateway.getReadCount() == 1;
+
+    // a stale state is read again
+    Thread.sleep(10);
+    assert this.ext.readThing(this.tid, SCHEMA, Duration.ofMillis(1)).get().isPresent();
+    assert this.gateway.getReadCount() == 2;
+  }
+
+  @Test
+  public void readThingFailureTest() throws Exception {
+    // the failed read is not shared with the next call
+    this.gateway.silent = true;
+    try {
+      this.ext.readThing(this.tid, SCHEMA, Duration.ZERO).get();
+      assert false;
+    } catch (ExecutionException e) {
+      assert e.getCause() instanceof IOException;
+    }
+    assert this.ext.reads.isEmpty();
+    assert this.gateway.getReadCount() == 1;
+
+    this.gateway.silent = false;
+    assert this.ext.readThing(this.tid, SCHEMA, Duration.ZERO).get().isPresent();
+    assert this.gateway.getReadCount() == 2;
+  }
+
+  /**
+   * {@link GatewaySimulator} answering reads after a delay, or not at all when silent
+   */
+  private static class SlowGateway extends GatewaySimulator {
+
+    private volatile boolean silent;
+
+    private SlowGateway() throws SocketException {
+      super("gw0", true, "0987654321qwerty");
+    }
+
+    @Override
+    protected ObjectNode answer(JsonNode request) throws IOException {
+      ObjectNode response = super.answer(request);
+      if (!"read".equals(request.path("cmd").asText())) {
+        return response;
+      }
+      if (this.silent) {
+        return null;
+      }
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      return response;
+    }
+  }
+}
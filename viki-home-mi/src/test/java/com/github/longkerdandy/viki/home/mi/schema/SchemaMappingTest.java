@@ -1,34 +1,80 @@
 package com.github.longkerdandy.viki.home.mi.schema;
 
+import com.github.longkerdandy.viki.home.model.DataType;
+import com.github.longkerdandy.viki.home.model.Property;
+import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 public class SchemaMappingTest {
 
+  private static SchemaRepository schemas;
+
+  @BeforeClass
+  public static void init() throws IOException {
+    System.setProperty("java.util.PropertyResourceBundle.encoding", "UTF-8");
+    schemas = new SchemaRepository(Locale.CHINESE, "src/test/schema/", "src/test/i18n/");
+    schemas.load();
+  }
+
   @Test
   public void decodeMiJiaGatewayTest() {
-    Map<String, Object> properties = SchemaMapping.decodeMiJiaGateway(
-        "gateway", Map.of("rgb", 4278255360L));
-    assert properties != null;
-    assert Arrays.equals(new long[]{0L, 255L, 0L}, (long[]) properties.get("rgb"));
-
-    properties = SchemaMapping.decodeMiJiaGateway(
-        "gateway", Map.of("rgb", 0L));
-    assert properties != null;
-    assert Arrays.equals(new long[]{0L, 0L, 0L}, (long[]) properties.get("rgb"));
+    SchemaMapping mapping = schemas.getMappingByModel("gateway");
+    List<Property> properties = mapping.paramToProp(Map.of("rgb", 4278255360L),
+        LocalDateTime.now());
+    assert properties.size() == 1;
+    assert properties.get(0).getType() == DataType.ARRAY_INTEGER;
+    assert Arrays.equals(new long[]{0L, 255L, 0L}, (long[]) properties.get(0).getValue());
+
+    properties = mapping.paramToProp(Map.of("rgb", 0L), LocalDateTime.now());
+    assert Arrays.equals(new long[]{0L, 0L, 0L}, (long[]) properties.get(0).getValue());
+
+    // not mapped
+    assert mapping.paramToProp(Map.of("illumination", 503L), LocalDateTime.now()).isEmpty();
   }
 
   @Test
   public void encodeMiJiaGatewayTest() {
-    Map<String, Object> params = SchemaMapping.encodeMiJiaGateway(
-        "gateway", Map.of("rgb", new long[]{0L, 255L, 0L}));
-    assert params != null;
+    SchemaMapping mapping = schemas.getMappingByModel("gateway");
+    Map<String, Object> params = mapping.propToParam(Map.of("rgb", new long[]{0L, 255L, 0L}));
     assert (long) params.get("rgb") == 4278255360L;
 
-    params = SchemaMapping.encodeMiJiaGateway(
-        "gateway", Map.of("rgb", new long[]{0L, 0L, 0L}));
-    assert params != null;
+    params = mapping.propToParam(Map.of("rgb", new long[]{0L, 0L, 0L}));
     assert (long) params.get("rgb") == 0L;
+
+    params = mapping.propToParam(Map.of("channel", 10001L));
+    assert (long) params.get("mid") == 10001L;
+  }
+
+  @Test
+  public void aqaraWallSwitchTest() {
+    SchemaMapping mapping = schemas.getMappingByModel("ctrl_ln2.aq1");
+    assert mapping == schemas.getMappingByModel("ctrl_neutral2");
+    assert mapping.getSchema().getName().equals("aqara:zigbee:2_button_wall_switch");
+
+    Map<String, Object> params = new LinkedHashMap<>();
+    params.put("channel_0", "on");
+    params.put("channel_1", "off");
+    params.put("load_power", 3.21);
+    List<Property> properties = mapping.paramToProp(params, LocalDateTime.now());
+    assert properties.size() == 2;
+    assert properties.get(0).getName().equals("status_left");
+    assert properties.get(0).getValue().equals("on");
+    assert properties.get(1).getName().equals("status_right");
+
+    Map<String, Object> encoded = mapping.propToParam(Map.of("status_right", "on"));
+    assert encoded.equals(Map.of("channel_1", "on"));
+  }
+
+  @Test
+  public void unknownModelTest() {
+    assert schemas.getMappingByModel("unknown") == null;
+    assert schemas.getSchemaByModel("unknown") == null;
   }
 }
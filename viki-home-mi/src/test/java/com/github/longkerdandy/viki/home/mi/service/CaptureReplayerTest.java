@@ -0,0 +1,68 @@
+package com.github.longkerdandy.viki.home.mi.service;
+
+import com.github.longkerdandy.viki.home.mi.udp.DatagramBufferPool;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessage;
+import com.github.longkerdandy.viki.home.mi.udp.PacketCaptureWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CaptureReplayerTest {
+
+  private static Path capture;
+
+  @BeforeClass
+  public static void init() throws IOException {
+    // 5 reports recorded 50ms apart
+    capture = File.createTempFile("viki-home-mi-", ".cap").toPath();
+    try (PacketCaptureWriter writer = new PacketCaptureWriter(capture)) {
+      for (int i = 0; i < 5; i++) {
+        byte[] bytes = ("{\"cmd\":\"report\",\"model\":\"plug\",\"sid\":\"s" + i
+            + "\",\"params\":[{\"status\":\"on\"}]}").getBytes();
+        writer.write(new DatagramPacket(bytes, bytes.length,
+            InetAddress.getByName("192.168.1.10"), 4321), 1000000L + i * 50000L);
+      }
+    }
+  }
+
+  private static class RecordingService extends GatewayMulticastService {
+
+    private final List<String> sids = new ArrayList<>();
+
+    private RecordingService() {
+      super(null, null, null, null, null, null, null, 0, null, List.of(), 1, 0);
+    }
+
+    @Override
+    protected void handle(DatagramPacket packet, GatewayMessage msg) {
+      this.sids.add(new String(packet.getData(), packet.getOffset(), packet.getLength())
+          .replaceAll(".*\"sid\":\"(\\w+)\".*", "$1"));
+    }
+  }
+
+  @Test
+  public void maxSpeedTest() throws Exception {
+    RecordingService service = new RecordingService();
+    long count = new CaptureReplayer(service, new DatagramBufferPool(1024, 1))
+        .replay(capture, 0);
+    assert count == 5;
+    assert service.sids.equals(List.of("s0", "s1", "s2", "s3", "s4"));
+  }
+
+  @Test
+  public void pacedTest() throws Exception {
+    RecordingService service = new RecordingService();
+    long start = System.nanoTime();
+    new CaptureReplayer(service, new DatagramBufferPool(1024, 1)).replay(capture, 2);
+    // 200ms recorded at 2x speed
+    assert TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100;
+    assert service.sids.size() == 5;
+  }
+}
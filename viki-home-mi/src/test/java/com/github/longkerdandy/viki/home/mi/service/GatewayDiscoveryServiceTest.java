@@ -0,0 +1,231 @@
+package com.github.longkerdandy.viki.home.mi.service;
+
+import com.github.longkerdandy.viki.home.mi.model.Gateway;
+import com.github.longkerdandy.viki.home.mi.schema.SchemaRepository;
+import com.github.longkerdandy.viki.home.mi.storage.MiStorage;
+import com.github.longkerdandy.viki.home.mi.udp.DatagramBufferPool;
+import com.github.longkerdandy.viki.home.mi.udp.GatewaySimulator;
+import com.github.longkerdandy.viki.home.mi.udp.RttTable;
+import com.github.longkerdandy.viki.home.storage.SQLiteStorage;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.apache.commons.configuration2.MapConfiguration;
+import org.jdbi.v3.core.Jdbi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GatewayDiscoveryServiceTest {
+
+  private final DatagramBufferPool buffers = new DatagramBufferPool(8192, 16);
+  private SQLiteStorage storage;
+  private MiStorage miStorage;
+  private SchemaRepository schemas;
+  private GatewayDiscoveryService discovery;
+
+  private static MapConfiguration config(String prefix) throws IOException {
+    File db = File.createTempFile(prefix, ".db");
+    db.deleteOnExit();
+    return new MapConfiguration(Map.of("storage.jdbc.url", "jdbc:sqlite:" + db.getAbsolutePath(),
+        "storage.sqlite.pragma.foreign_keys", "true"));
+  }
+
+  // run the migration scripts of viki-home-core
+  private static void migrate(Jdbi jdbi, String script) throws IOException {
+    String sql = Files.readString(Paths.get("../viki-home-core/db/migration", script));
+    jdbi.useHandle(handle -> handle.createScript(sql).execute());
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      assert System.currentTimeMillis() < end;
+      Thread.sleep(10);
+    }
+  }
+
+  @Before
+  public void init() throws IOException {
+    this.storage = new SQLiteStorage(config("viki-home-"));
+    migrate(this.storage.getJdbi(), "core/V1.0.0__Core_initialization.sql");
+    this.miStorage = new MiStorage(config("viki-home-mi-"));
+    migrate(this.miStorage.getJdbi(), "mi/V1.0.0__Extension_Mi_initialization.sql");
+    this.miStorage.init();
+    this.schemas = new SchemaRepository(Locale.CHINESE, "src/test/schema/", "src/test/i18n/");
+    this.schemas.load();
+  }
+
+  @After
+  public void destroy() {
+    if (this.discovery != null) {
+      this.discovery.destroy();
+    }
+  }
+
+  private GatewayDiscoveryService service(RttTable rtts, int concurrency, long deadline,
+      long targetedInterval) {
+    this.discovery = new GatewayDiscoveryService(this.storage, this.miStorage, this.schemas,
+        300 * 1000, 1000, rtts, concurrency, deadline, 24 * 3600 * 1000, targetedInterval,
+        this.buffers, 0);
+    return this.discovery;
+  }
+
+  private Gateway insertGateway(GatewaySimulator s) {
+    Gateway gateway = new Gateway(s.getGid(), s.getModel(), s.getProtocolVersion(), null,
+        s.getToken(), s.getAddress(), s.getPort());
+    assert this.miStorage.insetGateway(gateway);
+    return gateway;
+  }
+
+  @Test
+  public void incrementalTest() throws Exception {
+    GatewayDiscoveryService service = service(new RttTable(1000, 50, 2000, 1), 2, 60 * 1000,
+        60 * 1000);
+    try (GatewaySimulator a = new GatewaySimulator("gwa", true, "0987654321qwerty");
+        GatewaySimulator b = new GatewaySimulator("gwb", true, "0987654321qwerty")) {
+      a.addDevices(4, "ctrl_neutral2", Map.of("channel_0", "on", "channel_1", "off"));
+      a.start();
+      b.start();
+      Gateway ga = insertGateway(a);
+      Gateway gb = insertGateway(b);
+      List<String> sids = a.getSids();
+
+      // only the unknown sids are read
+      service.enumerate(ga, sids.subList(0, 2), true);
+      assert a.getReadCount() == 2;
+      service.enumerate(ga, sids, false);
+      assert a.getReadCount() == 4;
+      for (String sid : sids) {
+        assert this.miStorage.getZigbeeThingById(sid).get().getGid().equals("gwa");
+      }
+      service.enumerate(ga, sids, false);
+      assert a.getReadCount() == 4;
+
+      // moved to another gateway, re-associated without a read
+      String tid = this.miStorage.getZigbeeThingById(sids.get(0)).get().getTid();
+      service.enumerate(gb, List.of(sids.get(0)), false);
+      assert b.getReadCount() == 0;
+      assert this.miStorage.getZigbeeThingById(sids.get(0)).get().getGid().equals("gwb");
+      assert this.miStorage.getZigbeeThingById(sids.get(0)).get().getTid().equals(tid);
+      assert this.miStorage.listZigbeeThingByGid("gwa").size() == 3;
+    }
+  }
+
+  @Test
+  public void concurrencyTest() throws Exception {
+    // fixed 200 ms timeout without retransmission
+    GatewayDiscoveryService service = service(new RttTable(200, 200, 200, 0), 2, 60 * 1000,
+        60 * 1000);
+    try (GatewaySimulator gateway = new GatewaySimulator("gwd", true, "0987654321qwerty")) {
+      gateway.start();
+      Gateway g = insertGateway(gateway);
+
+      // 6 silent sids, read 2 at a time
+      List<String> silent = List.of("s0", "s1", "s2", "s3", "s4", "s5");
+      long start = System.nanoTime();
+      assert service.enumerate(g, silent, true) == 0;
+      assert TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 3 * 200 - 50;
+      assert gateway.getReadCount() == 6;
+    }
+  }
+
+  @Test
+  public void deadlineTest() throws Exception {
+    // a silent read would retransmit for 5 seconds
+    GatewayDiscoveryService service = service(new RttTable(300, 300, 5000, 10), 1, 500,
+        60 * 1000);
+    try (GatewaySimulator gateway = new GatewaySimulator("gwe", true, "0987654321qwerty")) {
+      gateway.addDevices(3, "ctrl_neutral2", Map.of("channel_0", "on", "channel_1", "off"));
+      gateway.start();
+      Gateway g = insertGateway(gateway);
+
+      // the things read before the silent sid are stored, the silent sid is outstanding at the
+      // deadline and the rest are never read
+      List<String> sids = new ArrayList<>(gateway.getSids());
+      sids.addAll(List.of("s0", "s1", "s2"));
+      long start = System.nanoTime();
+      int skipped = service.enumerate(g, sids, true);
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assert elapsed >= 500 && elapsed < 500 + 300;
+      assert skipped == 2 || skipped == 3;
+      assert this.miStorage.listZigbeeThingByGid("gwe").size() == 3;
+
+      // the outstanding read stops at the deadline
+      long reads = gateway.getReadCount();
+      assert reads > 3;
+      Thread.sleep(700);
+      assert gateway.getReadCount() == reads;
+    }
+  }
+
+  @Test
+  public void targetedTest() throws Exception {
+    GatewayDiscoveryService service = service(new RttTable(200, 50, 200, 0), 2, 60 * 1000, 1000);
+    try (GatewaySimulator gateway = new GatewaySimulator("gwc", true, "0987654321qwerty")) {
+      gateway.addDevices(1, "ctrl_neutral2", Map.of("channel_0", "on", "channel_1", "off"));
+      gateway.start();
+      insertGateway(gateway);
+
+      // read from the gateway at the source address
+      String sid = gateway.getSids().get(0);
+      service.discover(sid, gateway.getAddress());
+      await(() -> this.miStorage.getZigbeeThingById(sid).isPresent());
+      assert gateway.getReadCount() == 1;
+
+      // the gateway doesn't answer, attempts are limited to one per interval
+      long start = System.currentTimeMillis();
+      service.discover("silent", gateway.getAddress());
+      service.discover("silent", gateway.getAddress());
+      await(() -> gateway.getReadCount() == 2);
+      Thread.sleep(400);
+      service.discover("silent", gateway.getAddress());
+      Thread.sleep(Math.max(0, start + 1100 - System.currentTimeMillis()));
+      assert gateway.getReadCount() == 2;
+      service.discover("silent", gateway.getAddress());
+      await(() -> gateway.getReadCount() == 3);
+      assert this.miStorage.getZigbeeThingById("silent").isEmpty();
+    }
+  }
+
+  @Test
+  public void scanTest() throws Exception {
+    AtomicInteger scans = new AtomicInteger();
+    CountDownLatch latch = new CountDownLatch(1);
+    this.discovery = new GatewayDiscoveryService(this.storage, this.miStorage, this.schemas,
+        300 * 1000, 1000, new RttTable(200, 50, 200, 0), 2, 60 * 1000, 24 * 3600 * 1000,
+        60 * 1000, this.buffers, 0) {
+      @Override
+      protected void scan() {
+        scans.incrementAndGet();
+        try {
+          latch.await();
+        } catch (InterruptedException ignore) {
+          // destroyed
+        }
+      }
+    };
+
+    // unknown sids from an unknown gateway share the pending scan
+    InetAddress source = InetAddress.getByName("192.168.1.10");
+    this.discovery.discover("sid0", source);
+    await(() -> scans.get() == 1);
+    for (int i = 1; i < 5; i++) {
+      this.discovery.discover("sid" + i, source);
+    }
+    latch.countDown();
+    await(() -> scans.get() == 2);
+    Thread.sleep(200);
+    assert scans.get() == 2;
+  }
+}
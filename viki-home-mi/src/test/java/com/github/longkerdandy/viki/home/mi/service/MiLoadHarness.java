@@ -0,0 +1,226 @@
+package com.github.longkerdandy.viki.home.mi.service;
+
+import com.github.longkerdandy.viki.home.mi.model.Gateway;
+import com.github.longkerdandy.viki.home.mi.model.ZigbeeThing;
+import com.github.longkerdandy.viki.home.mi.schema.SchemaRepository;
+import com.github.longkerdandy.viki.home.mi.storage.MiStorage;
+import com.github.longkerdandy.viki.home.mi.udp.DatagramBufferPool;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayKeyring;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessage;
+import com.github.longkerdandy.viki.home.mi.udp.GatewaySimulator;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayUDPCodec;
+import com.github.longkerdandy.viki.home.mi.udp.RttTable;
+import com.github.longkerdandy.viki.home.storage.SQLiteStorage;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.configuration2.MapConfiguration;
+import org.flywaydb.core.Flyway;
+
+/**
+ * Load harness of the Mi extension against {@link GatewaySimulator}s, no hardware is needed
+ *
+ * Discovers every simulated gateway with {@link GatewayDiscoveryService}, then feeds the emitted
+ * 'report' and 'heartbeat' messages through {@link GatewayMulticastService} while writers toggle
+ * random devices. Prints discovery time, end-to-end ingest throughput and write latency
+ * percentiles. Storage is a pair of temporary SQLite databases migrated with the scripts of
+ * viki-home-core.
+ *
+ * Run with main method from the test classpath in the module directory, tuned with system
+ * properties:
+ * <pre>
+ *   harness.gateways          simulated gateways, half of them speak protocol 1.x (10)
+ *   harness.devices           devices per gateway (100)
+ *   harness.reports           reports per second per gateway (500)
+ *   harness.heartbeats        device heartbeats per second per gateway (50)
+ *   harness.writers           concurrent writers (4)
+ *   harness.seconds           duration of the ingest phase (10)
+ * </pre>
+ */
+public class MiLoadHarness {
+
+  public static void main(String[] args) throws Exception {
+    int gateways = Integer.getInteger("harness.gateways", 10);
+    int devices = Integer.getInteger("harness.devices", 100);
+    int reportRate = Integer.getInteger("harness.reports", 500);
+    int heartbeatRate = Integer.getInteger("harness.heartbeats", 50);
+    int writers = Integer.getInteger("harness.writers", 4);
+    int seconds = Integer.getInteger("harness.seconds", 10);
+    System.setProperty("java.util.PropertyResourceBundle.encoding", "UTF-8");
+
+    // storage and services, without the background schedulers
+    SQLiteStorage storage = new SQLiteStorage(config("viki-home-"));
+    migrate(storage.getDataSource(), "core");
+    MiStorage miStorage = new MiStorage(config("viki-home-mi-"));
+    migrate(miStorage.getDataSource(), "mi");
+    miStorage.init();
+    SchemaRepository schemas = new SchemaRepository(Locale.CHINESE, "src/test/schema/",
+        "src/test/i18n/");
+    schemas.load();
+    RttTable rtts = new RttTable(1000, 50, 5000, 3);
+    DatagramBufferPool buffers = new DatagramBufferPool(8192, 64);
+    GatewayKeyring keyring = new GatewayKeyring();
+    GatewayDiscoveryService discovery = new GatewayDiscoveryService(storage, miStorage, schemas,
+        300 * 1000, 5000, rtts, 4, 60 * 1000, 24 * 3600 * 1000, 60 * 1000, buffers, 0);
+    GatewayMulticastService multicast = new GatewayMulticastService(storage, miStorage, schemas,
+        discovery, keyring, new ReportStateCache(), buffers, 0, null, List.of(), 1024, 1000);
+
+    // simulated gateways
+    List<GatewaySimulator> simulators = new ArrayList<>();
+    for (int i = 0; i < gateways; i++) {
+      boolean v1 = i % 2 == 0;
+      GatewaySimulator simulator = new GatewaySimulator(String.format("gw%04d", i), v1,
+          String.format("passw0rd%08d", i));
+      simulator.addDevices(devices, v1 ? "ctrl_neutral2" : "ctrl_ln2.aq1",
+          Map.of("channel_0", "on", "channel_1", "off"));
+      simulator.start();
+      simulators.add(simulator);
+    }
+
+    // discovery
+    long start = System.nanoTime();
+    for (GatewaySimulator s : simulators) {
+      Gateway gateway = new Gateway(s.getGid(), s.getModel(), s.getProtocolVersion(), null,
+          s.getToken(), s.getAddress(), s.getPort());
+      miStorage.insetGateway(gateway);
+      miStorage.updateGatewayPassword(s.getGid(), s.getPassword());
+      List<String> sids = s.getSids();
+      if (gateway.isProtocolV1()) {
+        sids.add(gateway.getGid());
+      }
+      discovery.enumerate(gateway, sids, true);
+    }
+    System.out.printf("Discovered %d gateways with %d things in %d ms%n", gateways,
+        miStorage.listZigbeeThing().size(), millis(System.nanoTime() - start));
+
+    // ingest and write concurrently
+    try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      socket.setReceiveBufferSize(4 * 1024 * 1024);
+      socket.setSoTimeout(1000);
+      simulators.forEach(s -> s.emit(socket.getLocalSocketAddress(), reportRate, heartbeatRate));
+      long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+      ExecutorService writerGroup = Executors.newFixedThreadPool(writers);
+      AtomicLong writeErrors = new AtomicLong();
+      List<Future<long[]>> latencies = new ArrayList<>();
+      for (int i = 0; i < writers; i++) {
+        latencies.add(writerGroup.submit(() -> write(simulators, miStorage, keyring, rtts,
+            buffers, end, writeErrors)));
+      }
+
+      byte[] buf = buffers.acquire();
+      GatewayMessage msg = new GatewayMessage();
+      long processed = 0, failed = 0;
+      start = System.nanoTime();
+      while (System.nanoTime() < end) {
+        try {
+          multicast.handle(buffers.receive(socket, buf), msg);
+          processed++;
+        } catch (SocketTimeoutException e) {
+          break;
+        } catch (IOException e) {
+          failed++;
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+
+      long sent = simulators.stream()
+          .mapToLong(s -> s.getReportCount() + s.getHeartbeatCount()).sum();
+      System.out.printf("Ingested %d of %d messages in %d ms, %.0f messages/s, %d failed, "
+              + "%d dropped or left unprocessed%n", processed, sent, millis(elapsed),
+          processed * 1e9 / elapsed, failed, sent - processed - failed);
+
+      List<Long> all = new ArrayList<>();
+      for (Future<long[]> f : latencies) {
+        Arrays.stream(f.get()).forEach(all::add);
+      }
+      writerGroup.shutdown();
+      long[] sorted = all.stream().mapToLong(Long::longValue).sorted().toArray();
+      System.out.printf("Wrote %d times, %d failed, latency p50/p90/p99/max "
+              + "%.2f/%.2f/%.2f/%.2f ms%n", sorted.length, writeErrors.get(),
+          percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+          percentile(sorted, 1.0));
+    }
+    simulators.forEach(GatewaySimulator::close);
+    discovery.destroy();
+    multicast.destroy();
+  }
+
+  /**
+   * Toggle random devices until the end
+   *
+   * @return Latencies of the succeeded writes in nanoseconds
+   */
+  @SuppressWarnings("unchecked")
+  private static long[] write(List<GatewaySimulator> simulators, MiStorage miStorage,
+      GatewayKeyring keyring, RttTable rtts, DatagramBufferPool buffers, long end,
+      AtomicLong errors) {
+    Random random = new Random();
+    List<Long> latencies = new ArrayList<>();
+    while (System.nanoTime() < end) {
+      GatewaySimulator s = simulators.get(random.nextInt(simulators.size()));
+      String sid = s.getSids().get(random.nextInt(s.getSids().size()));
+      ZigbeeThing z = miStorage.getZigbeeThingById(sid).orElseThrow();
+      Gateway g = miStorage.getGatewayById(z.getGid()).orElseThrow();
+      Map<String, Object> params = Map.of("channel_0", random.nextBoolean() ? "on" : "off");
+      long begin = System.nanoTime();
+      try {
+        Map<String, Object> r = g.isProtocolV1()
+            ? GatewayUDPCodec.write(z.getModel(), sid, z.getShortId(), keyring.getKey(g), params,
+            g.getAddress(), g.getPort(), rtts, buffers)
+            : GatewayUDPCodec.write(z.getModel(), sid, keyring.getKey(g), params, g.getAddress(),
+                g.getPort(), rtts, buffers);
+        Map<String, Object> data = (Map<String, Object>) r.getOrDefault("data",
+            r.getOrDefault("params", Map.of()));
+        if (data.containsKey("error")) {
+          errors.incrementAndGet();
+        } else {
+          latencies.add(System.nanoTime() - begin);
+        }
+      } catch (IOException e) {
+        errors.incrementAndGet();
+      }
+    }
+    return latencies.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  private static MapConfiguration config(String prefix) throws IOException {
+    File db = File.createTempFile(prefix, ".db");
+    db.deleteOnExit();
+    return new MapConfiguration(Map.of("storage.jdbc.url", "jdbc:sqlite:" + db.getAbsolutePath(),
+        "storage.sqlite.pragma.foreign_keys", "true"));
+  }
+
+  private static void migrate(javax.sql.DataSource ds, String name) {
+    Flyway.configure()
+        .dataSource(ds)
+        .locations("filesystem:../viki-home-core/db/migration/" + name)
+        .load()
+        .migrate();
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+
+  private static long millis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+}
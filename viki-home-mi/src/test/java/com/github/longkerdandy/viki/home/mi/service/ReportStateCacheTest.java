@@ -0,0 +1,81 @@
+package com.github.longkerdandy.viki.home.mi.service;
+
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessage;
+import com.github.longkerdandy.viki.home.mi.udp.GatewayMessageDecoder;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import org.junit.Test;
+
+public class ReportStateCacheTest {
+
+  private final GatewayMessageDecoder decoder = new GatewayMessageDecoder();
+
+  private GatewayMessage decode(String json) throws IOException {
+    byte[] bytes = json.getBytes();
+    return this.decoder.decode(bytes, 0, bytes.length, new GatewayMessage());
+  }
+
+  @Test
+  public void diffTest() throws IOException {
+    ReportStateCache states = new ReportStateCache();
+    GatewayMessage msg = decode("{\"cmd\":\"report\",\"model\":\"gateway\",\"sid\":\"a\","
+        + "\"params\":[{\"rgb\":4278255360},{\"illumination\":503.5},{\"channel_0\":\"on\"}]}");
+
+    // nothing reported yet
+    Map<String, Object> changed = states.diff(msg);
+    assert changed.size() == 3;
+    states.update("a", changed);
+
+    // duplicate
+    assert states.diff(msg).isEmpty();
+
+    // partially changed
+    msg = decode("{\"cmd\":\"report\",\"model\":\"gateway\",\"sid\":\"a\","
+        + "\"params\":[{\"rgb\":4278255360},{\"illumination\":504},{\"channel_0\":\"off\"}]}");
+    changed = states.diff(msg);
+    assert changed.size() == 2;
+    assert changed.get("illumination").equals(504L);
+    assert changed.get("channel_0").equals("off");
+    states.update("a", changed);
+    assert states.get("a").get("channel_0").equals("off");
+    assert states.get("a").get("rgb").equals(4278255360L);
+  }
+
+  @Test
+  public void removeTest() throws IOException {
+    ReportStateCache states = new ReportStateCache();
+    GatewayMessage msg = decode("{\"cmd\":\"report\",\"model\":\"ctrl_neutral1\",\"sid\":\"b\","
+        + "\"short_id\":1,\"data\":\"{\\\"channel_0\\\":\\\"on\\\"}\"}");
+    states.update("b", states.diff(msg));
+    assert states.diff(msg).isEmpty();
+
+    states.remove("b");
+    assert states.get("b").isEmpty();
+    assert states.diff(msg).size() == 1;
+  }
+
+  @Test
+  public void freshTest() throws IOException {
+    ReportStateCache states = new ReportStateCache();
+    GatewayMessage msg = decode("{\"cmd\":\"report\",\"model\":\"ctrl_neutral2\",\"sid\":\"c\","
+        + "\"short_id\":1,\"data\":\"{\\\"channel_0\\\":\\\"on\\\"}\"}");
+
+    // reports alone never make the state complete
+    states.update("c", states.diff(msg));
+    assert !states.isFresh("c", Duration.ofHours(1));
+    states.touch("c");
+    assert !states.isFresh("c", Duration.ofHours(1));
+
+    // read from the gateway
+    Map<String, Object> read = Map.of("channel_0", "on", "channel_1", "off");
+    Map<String, Object> changed = states.diff("c", read);
+    assert changed.equals(Map.of("channel_1", "off"));
+    states.update("c", changed, true);
+    assert states.isFresh("c", Duration.ofHours(1));
+    assert states.get("c").equals(read);
+
+    states.remove("c");
+    assert !states.isFresh("c", Duration.ofHours(1));
+  }
+}
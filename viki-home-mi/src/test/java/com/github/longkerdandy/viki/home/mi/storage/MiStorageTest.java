@@ -0,0 +1,138 @@
+package com.github.longkerdandy.viki.home.mi.storage;
+
+import com.github.longkerdandy.viki.home.mi.model.Gateway;
+import com.github.longkerdandy.viki.home.mi.model.ZigbeeThing;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.commons.configuration2.MapConfiguration;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MiStorageTest {
+
+  private static MiStorage storage;
+
+  @BeforeClass
+  public static void init() throws IOException {
+    String path = File.createTempFile("viki-home-mi-", ".db").getAbsolutePath();
+    storage = new MiStorage(new MapConfiguration(
+        Map.of("storage.jdbc.url", "jdbc:sqlite:" + path,
+            "storage.sqlite.pragma.foreign_keys", "true")));
+
+    storage.getJdbi().useHandle(handle -> {
+      handle.execute("DROP TABLE IF EXISTS ext_mi_gateway");
+      handle.execute("CREATE TABLE ext_mi_gateway(\n"
+          + "  gid TEXT NOT NULL,\n"
+          + "  model TEXT NOT NULL,\n"
+          + "  protocol_version TEXT NOT NULL,\n"
+          + "  password TEXT,\n"
+          + "  token TEXT NOT NULL,\n"
+          + "  address TEXT NOT NULL,\n"
+          + "  port INTEGER NOT NULL,\n"
+          + "  PRIMARY KEY (gid ASC)\n"
+          + ")");
+    });
+
+    storage.getJdbi().useHandle(handle -> {
+      handle.execute("DROP TABLE IF EXISTS ext_mi_zigbee_thing");
+      handle.execute("CREATE TABLE ext_mi_zigbee_thing(\n"
+          + "  sid TEXT NOT NULL,\n"
+          + "  gid TEXT NOT NULL,\n"
+          + "  tid TEXT NOT NULL UNIQUE,\n"
+          + "  model TEXT NOT NULL,\n"
+          + "  short_id TEXT,\n"
+          + "  PRIMARY KEY (sid ASC),\n"
+          + "  FOREIGN KEY (gid) REFERENCES ext_mi_gateway(gid) ON DELETE CASCADE ON UPDATE NO ACTION\n"
+          + ")");
+    });
+
+    // rows written before the directory is loaded
+    storage.getJdbi().useHandle(handle -> {
+      handle.execute("INSERT INTO ext_mi_gateway VALUES"
+          + "('gw0', 'gateway', '1.1.2', 'passw0rd', 'token0', '192.168.1.10', 9898)");
+      handle.execute("INSERT INTO ext_mi_zigbee_thing VALUES"
+          + "('sid0', 'gw0', 'tid0', 'ctrl_neutral1', '4343')");
+    });
+    storage.init();
+  }
+
+  @Test
+  public void loadTest() {
+    Optional<Gateway> gateway = storage.getGatewayById("gw0");
+    assert gateway.isPresent();
+    assert gateway.get().getPassword().equals("passw0rd");
+    assert gateway.get().getToken().equals("token0");
+
+    Optional<ZigbeeThing> thing = storage.getZigbeeThingById("sid0");
+    assert thing.isPresent();
+    assert thing.get().getTid().equals("tid0");
+    assert thing.get().getShortId() == 4343;
+    assert storage.getZigbeeThingByTid("tid0").isPresent();
+    assert storage.listZigbeeThingByGid("gw0").size() == 1;
+  }
+
+  @Test
+  public void gatewayTest() throws IOException {
+    InetAddress address = InetAddress.getByName("192.168.1.11");
+    Gateway gateway = new Gateway("gw1", "gateway", "1.1.2", null, "token1", address, 9898);
+    assert storage.insetGateway(gateway);
+    assert !storage.insetGateway(gateway);
+    assert storage.getGatewayById("gw1").get().getPassword() == null;
+
+    assert storage.updateGatewayPassword("gw1", "secret");
+    assert storage.getGatewayById("gw1").get().getPassword().equals("secret");
+
+    // address change is persisted, cached password is kept
+    InetAddress moved = InetAddress.getByName("192.168.1.12");
+    assert storage.updateGateway(
+        new Gateway("gw1", "gateway", "1.1.2", null, "token1", moved, 9898));
+    assert storage.getGatewayById("gw1").get().getAddress().equals(moved);
+    assert storage.getGatewayById("gw1").get().getPassword().equals("secret");
+    // unchanged update
+    assert storage.updateGateway(
+        new Gateway("gw1", "gateway", "1.1.2", null, "token1", moved, 9898));
+
+    assert !storage.updateGatewayToken("gw1", "token1");
+    assert storage.updateGatewayToken("gw1", "token2");
+    assert storage.getGatewayById("gw1").get().getToken().equals("token2");
+
+    // database is consistent with the directory
+    storage.init();
+    Gateway reloaded = storage.getGatewayById("gw1").get();
+    assert reloaded.getAddress().equals(moved);
+    assert reloaded.getPassword().equals("secret");
+    assert reloaded.getToken().equals("token2");
+  }
+
+  @Test
+  public void zigbeeThingTest() throws IOException {
+    InetAddress address = InetAddress.getByName("192.168.1.13");
+    storage.insetGateway(new Gateway("gw2", "gateway", "2.0.1", null, "t", address, 9898));
+    storage.insetGateway(new Gateway("gw3", "gateway", "2.0.1", null, "t", address, 9898));
+
+    assert storage.insetZigbeeThing(new ZigbeeThing("sid2", "gw2", "tid2", "plug", null));
+    assert storage.getZigbeeThingByTid("tid2").get().getSid().equals("sid2");
+    assert storage.listZigbeeThingByGid("gw2").size() == 1;
+
+    // unchanged update returns the tid
+    Optional<String> tid = storage.updateZigbeeThing(
+        new ZigbeeThing("sid2", "gw2", null, "plug", null));
+    assert tid.isPresent() && tid.get().equals("tid2");
+
+    // thing moved to another gateway
+    tid = storage.updateZigbeeThing(new ZigbeeThing("sid2", "gw3", null, "plug", null));
+    assert tid.isPresent() && tid.get().equals("tid2");
+    assert storage.listZigbeeThingByGid("gw2").isEmpty();
+    List<ZigbeeThing> things = storage.listZigbeeThingByGid("gw3");
+    assert things.size() == 1 && things.get(0).getTid().equals("tid2");
+    assert storage.getZigbeeThingByTid("tid2").get().getGid().equals("gw3");
+
+    assert !storage.updateZigbeeThing(new ZigbeeThing("sid9", "gw3", null, "plug", null))
+        .isPresent();
+    assert !storage.getZigbeeThingById("sid9").isPresent();
+  }
+}
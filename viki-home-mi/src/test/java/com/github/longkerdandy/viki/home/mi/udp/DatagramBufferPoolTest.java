@@ -0,0 +1,39 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import org.junit.Test;
+
+public class DatagramBufferPoolTest {
+
+  @Test
+  public void acquireReleaseTest() {
+    DatagramBufferPool pool = new DatagramBufferPool(16, 1);
+    byte[] buf = pool.acquire();
+    assert buf.length == 17;
+    pool.release(buf);
+    assert pool.acquire() == buf;
+    assert pool.acquire() != buf;
+  }
+
+  @Test
+  public void receiveTruncatedTest() throws IOException {
+    DatagramBufferPool pool = new DatagramBufferPool(32, 1);
+    try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket sender = new DatagramSocket()) {
+      receiver.setSoTimeout(5000);
+      byte[] large = new byte[64];
+      byte[] small = "{\"cmd\":\"iam\"}".getBytes();
+      sender.send(new DatagramPacket(large, large.length, receiver.getLocalSocketAddress()));
+      sender.send(new DatagramPacket(small, small.length, receiver.getLocalSocketAddress()));
+
+      byte[] buf = pool.acquire();
+      DatagramPacket packet = pool.receive(receiver, buf);
+      assert packet.getLength() == small.length;
+      assert pool.getTruncatedCount() == 1;
+      pool.release(buf);
+    }
+  }
+}
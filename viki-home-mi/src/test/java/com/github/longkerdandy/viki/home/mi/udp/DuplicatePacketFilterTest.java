@@ -0,0 +1,68 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class DuplicatePacketFilterTest {
+
+  private static DatagramPacket packet(String address, String payload)
+      throws UnknownHostException {
+    byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+    return new DatagramPacket(data, data.length, InetAddress.getByName(address), 4321);
+  }
+
+  @Test
+  public void duplicateTest() throws UnknownHostException {
+    DuplicatePacketFilter filter = new DuplicatePacketFilter(1000);
+    String on = "{\"cmd\":\"report\",\"sid\":\"158d0001\",\"params\":[{\"status\":\"on\"}]}";
+    String off = "{\"cmd\":\"report\",\"sid\":\"158d0001\",\"params\":[{\"status\":\"off\"}]}";
+
+    // the same packet received on two interfaces
+    assert !filter.isDuplicate(packet("192.168.1.10", on), 0, 0);
+    assert filter.isDuplicate(packet("192.168.1.10", on), 1, 1);
+    // from another gateway
+    assert !filter.isDuplicate(packet("192.168.1.11", on), 1, 2);
+
+    // toggled off and on again, the same payload on the same interface is a new report
+    assert !filter.isDuplicate(packet("192.168.1.10", off), 0, 3);
+    assert !filter.isDuplicate(packet("192.168.1.10", on), 0, 4);
+    assert filter.isDuplicate(packet("192.168.1.10", off), 1, 5);
+    assert filter.isDuplicate(packet("192.168.1.10", on), 1, 6);
+  }
+
+  @Test
+  public void expireTest() throws UnknownHostException {
+    DuplicatePacketFilter filter = new DuplicatePacketFilter(1000);
+    long second = TimeUnit.SECONDS.toNanos(1);
+
+    assert !filter.isDuplicate(packet("192.168.1.10", "heartbeat"), 0, 0);
+    assert !filter.isDuplicate(packet("192.168.1.11", "heartbeat"), 0, second / 2);
+    assert filter.size() == 2;
+
+    // the first copy expired
+    assert !filter.isDuplicate(packet("192.168.1.10", "heartbeat"), 1, second + 1);
+    assert filter.size() == 2;
+    assert !filter.isDuplicate(packet("192.168.1.12", "heartbeat"), 0, 3 * second);
+    assert filter.size() == 1;
+  }
+
+  @Test
+  public void orderTest() throws UnknownHostException {
+    DuplicatePacketFilter filter = new DuplicatePacketFilter(1000);
+    long millisecond = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // a copy received later does not move its entry behind newer ones
+    assert !filter.isDuplicate(packet("192.168.1.10", "a"), 0, 0);
+    assert !filter.isDuplicate(packet("192.168.1.10", "b"), 0, 600 * millisecond);
+    assert filter.isDuplicate(packet("192.168.1.10", "a"), 1, 700 * millisecond);
+
+    // "a" expired even though "b" is still in the window
+    assert !filter.isDuplicate(packet("192.168.1.10", "a"), 2, 1100 * millisecond);
+    assert filter.isDuplicate(packet("192.168.1.10", "b"), 2, 1200 * millisecond);
+    assert filter.size() == 2;
+  }
+}
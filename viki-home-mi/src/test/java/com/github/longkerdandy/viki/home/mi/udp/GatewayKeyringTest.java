@@ -0,0 +1,41 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import com.github.longkerdandy.viki.home.mi.model.Gateway;
+import java.io.IOException;
+import java.net.InetAddress;
+import org.junit.Test;
+
+public class GatewayKeyringTest {
+
+  private static Gateway gateway(String password, String token) throws IOException {
+    return new Gateway("gw0", "gateway", "1.1.2", password, token,
+        InetAddress.getByName("192.168.1.10"), 9898);
+  }
+
+  @Test
+  public void getKeyTest() throws IOException {
+    GatewayKeyring keyring = new GatewayKeyring();
+    String key = keyring.getKey(gateway("0987654321qwerty", "1234567890abcdef"));
+    assert key.equals("3EB43E37C20AFF4C5872CC0D04D81314");
+    // served from the precomputed state
+    assert keyring.getKey(gateway("0987654321qwerty", "1234567890abcdef")) == key;
+  }
+
+  @Test
+  public void rotateTest() throws IOException {
+    GatewayKeyring keyring = new GatewayKeyring();
+    keyring.rotate(gateway("0987654321qwerty", "1234567890abcdef"));
+
+    // token changed
+    String key = keyring.rotate(gateway("0987654321qwerty", "fedcba0987654321"));
+    assert key.equals(GatewayUDPCodec.encryptKey("0987654321qwerty", "fedcba0987654321"));
+    assert keyring.getKey(gateway("0987654321qwerty", "fedcba0987654321")) == key;
+
+    // password changed, stale key is never served
+    key = keyring.getKey(gateway("qwerty0987654321", "fedcba0987654321"));
+    assert key.equals(GatewayUDPCodec.encryptKey("qwerty0987654321", "fedcba0987654321"));
+
+    // password removed
+    assert keyring.rotate(gateway(null, "fedcba0987654321")) == null;
+  }
+}
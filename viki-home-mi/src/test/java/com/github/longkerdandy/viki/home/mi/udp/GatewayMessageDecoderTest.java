@@ -0,0 +1,121 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import com.github.longkerdandy.viki.home.model.DataType;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.Test;
+
+public class GatewayMessageDecoderTest {
+
+  private final GatewayMessageDecoder decoder = new GatewayMessageDecoder();
+
+  private GatewayMessage decode(String json, GatewayMessage msg) throws IOException {
+    byte[] bytes = json.getBytes();
+    return this.decoder.decode(bytes, 0, bytes.length, msg);
+  }
+
+  @Test
+  public void decodeIamTest() throws IOException {
+    String json = "{\"cmd\":\"iam\",\"port\":\"9898\",\"sid\":\"1022780\",\"model\":\"gateway\",\"proto_version\":\"1.1.2\",\"ip\":\"192.168.1.10\"}";
+    GatewayMessage msg = decode(json, new GatewayMessage());
+
+    assert msg.getCmd() == GatewayCommand.IAM;
+    assert msg.getIp().equals("192.168.1.10");
+    assert msg.getPort() == 9898;
+    assert msg.getModel().equals("gateway");
+    assert msg.getProtocolVersion().equals("1.1.2");
+  }
+
+  @Test
+  public void decodeMessageV1Test1() throws IOException {
+    String json = "{\"cmd\":\"get_id_list_ack\",\"sid\":\"1022780\",\"token\":\"passw0rd\",\"data\":\"[\\\"sid1\\\",\\\"sid2\\\",\\\"sid3\\\"]\"}";
+    GatewayMessage msg = decode(json, new GatewayMessage());
+
+    assert msg.getCmd() == GatewayCommand.GET_ID_LIST_ACK;
+    assert msg.getSid().equals("1022780");
+    assert msg.getToken().equals("passw0rd");
+    assert msg.getSids().size() == 3;
+    assert msg.getSids().get(0).equals("sid1");
+    assert msg.getSids().get(2).equals("sid3");
+  }
+
+  @Test
+  public void decodeMessageV1Test2() throws IOException {
+    String json = "{\"cmd\":\"write_ack\",\"model\":\"ctrl_neutral2\",\"sid\":\"158d0000123456\",\"short_id\":4343,\"data\":\"{\\\"channel_0\\\":\\\"on\\\",\\\"channel_1\\\":\\\"off\\\"}\"}";
+    GatewayMessage msg = decode(json, new GatewayMessage());
+
+    assert msg.getCmd() == GatewayCommand.WRITE_ACK;
+    assert msg.getModel().equals("ctrl_neutral2");
+    assert msg.getSid().equals("158d0000123456");
+    assert msg.hasShortId() && msg.getShortId() == 4343;
+    assert msg.hasParams();
+    assert msg.getParamCount() == 2;
+    assert msg.getString(msg.indexOf("channel_0")).equals("on");
+    assert msg.getString(msg.indexOf("channel_1")).equals("off");
+  }
+
+  @Test
+  public void decodeMessageV2Test1() throws IOException {
+    String json = "{\n"
+        + "   \"cmd\":\"discovery_rsp\",\n"
+        + "   \"sid\":\"158d323123c9d9\",\n"
+        + "   \"token\":\"TahkC7dalbIhXG22\",\n"
+        + "   \"dev_list\":[{\"sid\":\"xxxxxxxx1\",\"model\":\"plug\"},\n"
+        + "               {\"sid\":\"xxxxxxxx2\",\"model\":\"sensor_switch.aq2\"}]\n"
+        + "}";
+    GatewayMessage msg = decode(json, new GatewayMessage());
+
+    assert msg.getCmd() == GatewayCommand.DISCOVERY_RSP;
+    assert msg.getSid().equals("158d323123c9d9");
+    assert msg.getToken().equals("TahkC7dalbIhXG22");
+    assert msg.getSids().get(0).equals("xxxxxxxx1");
+    assert msg.getModels().get(0).equals("plug");
+    assert msg.getSids().get(1).equals("xxxxxxxx2");
+    assert msg.getModels().get(1).equals("sensor_switch.aq2");
+  }
+
+  @Test
+  public void decodeMessageV2Test2() throws IOException {
+    String json = "{\n"
+        + "   \"cmd\":\"report\",\n"
+        + "   \"model\":\"gateway\",\n"
+        + "   \"sid\":\"xxxxxxxx\",\n"
+        + "   \"params\":[{\"rgb\":4278255360},{\"illumination\":503.5},{\"channel_0\":\"on\"}]\n"
+        + "}";
+    GatewayMessage msg = decode(json, new GatewayMessage());
+
+    assert msg.getCmd() == GatewayCommand.REPORT;
+    assert msg.getParamType(0) == DataType.INTEGER && msg.getLong(0) == 4278255360L;
+    assert msg.getParamType(1) == DataType.NUMBER && msg.getDouble(1) == 503.5;
+    assert msg.getParamType(2) == DataType.STRING && msg.getString(2).equals("on");
+
+    Map<String, Object> params = msg.toParams();
+    assert params.get("rgb").equals(4278255360L);
+    assert params.get("channel_0").equals("on");
+  }
+
+  @Test
+  public void reuseTest() throws IOException {
+    GatewayMessage msg = new GatewayMessage();
+    decode("{\"cmd\":\"report\",\"model\":\"ctrl_neutral1\",\"sid\":\"a\",\"short_id\":1,"
+        + "\"data\":\"{\\\"channel_0\\\":\\\"on\\\"}\"}", msg);
+    decode("{\"cmd\":\"heartbeat\",\"model\":\"gateway\",\"sid\":\"b\",\"token\":\"t\"}", msg);
+
+    assert msg.getCmd() == GatewayCommand.HEARTBEAT;
+    assert msg.getSid().equals("b");
+    assert !msg.hasShortId();
+    assert !msg.hasParams();
+    assert msg.getParamCount() == 0;
+    assert msg.getToken().equals("t");
+  }
+
+  @Test(expected = IOException.class)
+  public void unknownCommandTest() throws IOException {
+    decode("{\"cmd\":\"unknown\",\"sid\":\"a\"}", new GatewayMessage());
+  }
+
+  @Test(expected = IOException.class)
+  public void missingFieldTest() throws IOException {
+    decode("{\"cmd\":\"report\",\"model\":\"gateway\"}", new GatewayMessage());
+  }
+}
@@ -0,0 +1,107 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class GatewayMessageEncoderTest {
+
+  private static final String KEY = "3EB43E37C20AFF4C5872CC0D04D81314";
+
+  private static byte[] encode(GatewayRequest request) throws IOException {
+    byte[] buf = new byte[1024];
+    int length = GatewayMessageEncoder.encode(request, buf);
+    return Arrays.copyOf(buf, length);
+  }
+
+  private static void assertGolden(Map<String, Object> golden, GatewayRequest request)
+      throws IOException {
+    byte[] expected = GatewayUDPCodec.encodeRequest(golden);
+    byte[] actual = encode(request);
+    assert Arrays.equals(expected, actual) : new String(expected) + " != " + new String(actual);
+  }
+
+  @Test
+  public void encodeWhoisTest() throws IOException {
+    Map<String, Object> golden = new LinkedHashMap<>();
+    golden.put("cmd", "whois");
+    assertGolden(golden, GatewayRequest.whois());
+  }
+
+  @Test
+  public void encodeReadTest() throws IOException {
+    Map<String, Object> golden = new LinkedHashMap<>();
+    golden.put("cmd", "read");
+    golden.put("sid", "158d0000123456");
+    assertGolden(golden, GatewayRequest.read("158d0000123456"));
+  }
+
+  @Test
+  public void encodeWriteV1Test() throws IOException {
+    Map<String, Object> data = new LinkedHashMap<>();
+    data.put("channel_0", "on");
+    data.put("rgb", 4278255360L);
+    data.put("key", KEY);
+    Map<String, Object> golden = new LinkedHashMap<>();
+    golden.put("cmd", "write");
+    golden.put("model", "gateway");
+    golden.put("sid", "158d0000123456");
+    golden.put("short_id", 4343);
+    golden.put("data", data);
+
+    assertGolden(golden, GatewayRequest.write("gateway", "158d0000123456", 4343)
+        .param("channel_0", "on").param("rgb", 4278255360L).key(KEY));
+  }
+
+  @Test
+  public void encodeWriteV2Test() throws IOException {
+    Map<String, Object> params = new LinkedHashMap<>();
+    params.put("channel_0", "on");
+    params.put("illumination", 503.5);
+    params.put("enabled", true);
+    params.put("key", KEY);
+    Map<String, Object> golden = new LinkedHashMap<>();
+    golden.put("cmd", "write");
+    golden.put("model", "ctrl_neutral1");
+    golden.put("sid", "xxxxxxxx");
+    golden.put("params", params);
+
+    assertGolden(golden, GatewayRequest.write("ctrl_neutral1", "xxxxxxxx")
+        .param("channel_0", "on").param("illumination", 503.5).param("enabled", true).key(KEY));
+  }
+
+  @Test
+  public void encodeEscapeTest() throws IOException {
+    String text = "quote\" slash\\ tab\t bell\u0007 unicode开😀";
+    Map<String, Object> data = new LinkedHashMap<>();
+    data.put("text", text);
+    Map<String, Object> golden = new LinkedHashMap<>();
+    golden.put("cmd", "write");
+    golden.put("sid", "a\"b");
+    golden.put("short_id", -1);
+    golden.put("data", data);
+    assertGolden(golden, GatewayRequest.write(null, "a\"b", -1).param("text", text));
+
+    Map<String, Object> params = new LinkedHashMap<>();
+    params.put("text", text);
+    golden = new LinkedHashMap<>();
+    golden.put("cmd", "write");
+    golden.put("sid", "a\"b");
+    golden.put("params", params);
+    assertGolden(golden, GatewayRequest.write(null, "a\"b").param("text", text));
+  }
+
+  @Test
+  public void encodeDoesNotModifyParamsTest() throws IOException {
+    Map<String, Object> params = new LinkedHashMap<>(Map.of("channel_0", "on"));
+    encode(GatewayRequest.write("ctrl_neutral1", "xxxxxxxx").params(params).key(KEY));
+    assert params.size() == 1;
+  }
+
+  @Test(expected = IOException.class)
+  public void encodeOverflowTest() throws IOException {
+    GatewayMessageEncoder.encode(GatewayRequest.read("158d0000123456"), new byte[16]);
+  }
+}
@@ -0,0 +1,398 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.longkerdandy.viki.home.util.Jacksons;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.RandomStringUtils;
+
+/**
+ * Simulated {@link com.github.longkerdandy.viki.home.mi.model.Gateway} with virtual sub-devices
+ *
+ * Speaks protocol 1.x or 2.x over a loopback UDP socket, answers 'whois', 'get_id_list',
+ * 'discovery', 'read' and 'write' requests, and emits 'report' and 'heartbeat' messages at
+ * configurable rates. Multicast messages are sent from the same socket to any target, the real
+ * multicast group or a loopback port, so no physical hardware or multicast routing is needed.
+ */
+public class GatewaySimulator implements Closeable {
+
+  private static final int TICK = 10;         // emission tick in milliseconds
+
+  private final String gid;
+  private final boolean protocolV1;
+  private final String password;
+  private final DatagramSocket socket;
+  private final Thread responder;
+  private final Map<String, VirtualDevice> devices;
+  private final List<String> sids;
+  private final ScheduledExecutorService emitter;
+  private volatile String token;
+  private volatile SocketAddress target;      // multicast target, null if not emitting
+  private int cursor;                         // next device to report, emitter thread only
+
+  // counters
+  private final AtomicLong reads = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong reports = new AtomicLong();
+  private final AtomicLong heartbeats = new AtomicLong();
+
+  /**
+   * Constructor, the socket is bound to an ephemeral loopback port
+   *
+   * @param gid Gateway id
+   * @param protocolV1 Speak protocol 1.x if true, 2.x if false
+   * @param password Password used to validate the write key, 16 characters
+   */
+  public GatewaySimulator(String gid, boolean protocolV1, String password)
+      throws SocketException {
+    this.gid = gid;
+    this.protocolV1 = protocolV1;
+    this.password = password;
+    this.token = RandomStringUtils.randomAlphanumeric(16);
+    this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    this.devices = new ConcurrentHashMap<>();
+    this.sids = new CopyOnWriteArrayList<>();
+    this.responder = new Thread(this::respond, "gateway-simulator-" + gid);
+    this.responder.setDaemon(true);
+    this.emitter = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  /**
+   * Add virtual devices with the same model, sids are prefixed with the gateway id
+   *
+   * @param count Number of devices
+   * @param model Model
+   * @param state Initial parameters, the first parameter is changed by every report
+   */
+  public void addDevices(int count, String model, Map<String, Object> state) {
+    for (int i = 0; i < count; i++) {
+      String sid = this.gid + String.format("%04x", this.sids.size());
+      this.devices.put(sid, new VirtualDevice(sid, model, this.sids.size() + 1, state));
+      this.sids.add(sid);
+    }
+  }
+
+  /**
+   * Start answering requests
+   */
+  public void start() {
+    this.responder.start();
+  }
+
+  /**
+   * Start emitting 'report' and 'heartbeat' messages
+   *
+   * Reports go to the devices in turn, each report changes the device's first parameter.
+   * Heartbeats carry the full device state, the gateway's own heartbeat carries a new token every
+   * second.
+   *
+   * @param target Multicast group or any address to send to
+   * @param reportRate Reports per second
+   * @param heartbeatRate Device heartbeats per second, excluding the gateway's own heartbeat
+   */
+  public void emit(SocketAddress target, int reportRate, int heartbeatRate) {
+    this.target = target;
+    long start = System.nanoTime();
+    long[] sent = new long[3];                // reports, heartbeats, gateway heartbeats
+    this.emitter.scheduleAtFixedRate(() -> {
+      double elapsed = (System.nanoTime() - start) / 1e9;
+      try {
+        for (; sent[0] < (long) (elapsed * reportRate); sent[0]++) {
+          VirtualDevice d = this.devices.get(this.sids.get(this.cursor++ % this.sids.size()));
+          send(message(d, "report", d.change()), target);
+          this.reports.incrementAndGet();
+        }
+        for (; sent[1] < (long) (elapsed * heartbeatRate); sent[1]++) {
+          VirtualDevice d = this.devices.get(this.sids.get((int) (sent[1] % this.sids.size())));
+          send(message(d, "heartbeat", d.snapshot()), target);
+          this.heartbeats.incrementAndGet();
+        }
+        for (; sent[2] < (long) elapsed + 1; sent[2]++) {
+          this.token = RandomStringUtils.randomAlphanumeric(16);
+          send(gatewayHeartbeat(), target);
+          this.heartbeats.incrementAndGet();
+        }
+      } catch (IOException ignore) {
+        // socket closed
+      }
+    }, 0, TICK, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Receive requests and answer them until closed
+   */
+  private void respond() {
+    byte[] buf = new byte[65507];
+    DatagramPacket p = new DatagramPacket(buf, buf.length);
+    while (!this.socket.isClosed()) {
+      try {
+        p.setLength(buf.length);
+        this.socket.receive(p);
+        JsonNode request = Jacksons.getMapper().readTree(new String(buf, 0, p.getLength()));
+        ObjectNode response = answer(request);
+        if (response != null) {
+          send(response, p.getSocketAddress());
+        }
+      } catch (IOException ignore) {
+        // socket closed or invalid request
+      }
+    }
+  }
+
+  /**
+   * Build the response of a request
+   *
+   * @param request Request message
+   * @return Response message, null if the request is not supported
+   */
+  protected ObjectNode answer(JsonNode request) throws IOException {
+    String cmd = request.path("cmd").asText();
+    String sid = request.path("sid").asText();
+    ObjectNode rsp = Jacksons.getMapper().createObjectNode();
+    switch (cmd) {
+      case "whois":
+        rsp.put("cmd", "iam");
+        rsp.put("ip", getAddress().getHostAddress());
+        rsp.put("port", getPort());
+        rsp.put("model", getModel());
+        if (this.protocolV1) {
+          rsp.put("sid", this.gid);
+          rsp.put("proto_version", getProtocolVersion());
+        } else {
+          rsp.put("protocol", "UDP");
+        }
+        return rsp;
+      case "get_id_list":
+        rsp.put("cmd", "get_id_list_ack");
+        rsp.put("sid", this.gid);
+        rsp.put("token", this.token);
+        rsp.put("data", Jacksons.getWriter().writeValueAsString(this.sids));
+        return rsp;
+      case "discovery":
+        rsp.put("cmd", "discovery_rsp");
+        rsp.put("sid", this.gid);
+        rsp.put("token", this.token);
+        ArrayNode list = rsp.putArray("dev_list");
+        for (String s : this.sids) {
+          list.addObject().put("sid", s).put("model", this.devices.get(s).model);
+        }
+        return rsp;
+      case "read":
+        this.reads.incrementAndGet();
+        if (this.gid.equals(sid)) {
+          return message(this.gid, getModel(), null, this.protocolV1 ? "read_ack" : "read_rsp",
+              Map.of("proto_version", getProtocolVersion()));
+        }
+        VirtualDevice r = this.devices.get(sid);
+        return r == null ? null
+            : message(r, this.protocolV1 ? "read_ack" : "read_rsp", r.snapshot());
+      case "write":
+        this.writes.incrementAndGet();
+        VirtualDevice w = this.devices.get(sid);
+        if (w == null) {
+          return null;
+        }
+        Map<String, Object> params = params(request);
+        String ack = this.protocolV1 ? "write_ack" : "write_rsp";
+        if (!GatewayUDPCodec.encryptKey(this.password, this.token).equals(params.remove("key"))) {
+          return message(w, ack, Map.of("error", "Invalid key"));
+        }
+        w.apply(params);
+        SocketAddress t = this.target;
+        if (t != null) {
+          send(message(w, "report", params), t);
+          this.reports.incrementAndGet();
+        }
+        return message(w, ack, w.snapshot());
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Read the 'data' (protocol 1.x) or 'params' (protocol 2.x) parameters of a request
+   */
+  private static Map<String, Object> params(JsonNode request) throws IOException {
+    Map<String, Object> params = new LinkedHashMap<>();
+    if (request.path("data").isTextual()) {
+      putFields(Jacksons.getMapper().readTree(request.path("data").asText()), params);
+    }
+    for (JsonNode node : request.path("params")) {
+      putFields(node, params);
+    }
+    return params;
+  }
+
+  private static void putFields(JsonNode node, Map<String, Object> params) {
+    Iterator<Entry<String, JsonNode>> iterator = node.fields();
+    while (iterator.hasNext()) {
+      Entry<String, JsonNode> entry = iterator.next();
+      JsonNode v = entry.getValue();
+      params.put(entry.getKey(), v.isIntegralNumber() ? (Object) v.asLong()
+          : v.isFloatingPointNumber() ? (Object) v.asDouble()
+              : v.isBoolean() ? (Object) v.asBoolean() : v.asText());
+    }
+  }
+
+  private ObjectNode message(VirtualDevice d, String cmd, Map<String, Object> params)
+      throws IOException {
+    return message(d.sid, d.model, d.shortId, cmd, params);
+  }
+
+  private ObjectNode message(String sid, String model, Integer shortId, String cmd,
+      Map<String, Object> params) throws IOException {
+    ObjectNode msg = Jacksons.getMapper().createObjectNode();
+    msg.put("cmd", cmd);
+    msg.put("model", model);
+    msg.put("sid", sid);
+    if (this.protocolV1) {
+      if (shortId != null) {
+        msg.put("short_id", shortId);
+      }
+      msg.put("data", Jacksons.getWriter().writeValueAsString(params));
+    } else {
+      ArrayNode array = msg.putArray("params");
+      params.forEach((k, v) -> array.addObject().putPOJO(k, v));
+    }
+    return msg;
+  }
+
+  private ObjectNode gatewayHeartbeat() throws IOException {
+    ObjectNode msg = message(this.gid, getModel(), null, "heartbeat",
+        Map.of("ip", getAddress().getHostAddress()));
+    msg.put("token", this.token);
+    return msg;
+  }
+
+  private void send(ObjectNode msg, SocketAddress remote) throws IOException {
+    byte[] bytes = Jacksons.getWriter().writeValueAsBytes(msg);
+    this.socket.send(new DatagramPacket(bytes, bytes.length, remote));
+  }
+
+  public String getGid() {
+    return gid;
+  }
+
+  public String getModel() {
+    return this.protocolV1 ? "gateway" : "gateway.aq1";
+  }
+
+  public String getProtocolVersion() {
+    return this.protocolV1 ? "1.1.2" : "2.0.1";
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  public InetAddress getAddress() {
+    return this.socket.getLocalAddress();
+  }
+
+  public int getPort() {
+    return this.socket.getLocalPort();
+  }
+
+  public List<String> getSids() {
+    return new ArrayList<>(this.sids);
+  }
+
+  /**
+   * Get the current parameters of a virtual device
+   */
+  public Map<String, Object> getState(String sid) {
+    return this.devices.get(sid).snapshot();
+  }
+
+  public long getReadCount() {
+    return reads.get();
+  }
+
+  public long getWriteCount() {
+    return writes.get();
+  }
+
+  public long getReportCount() {
+    return reports.get();
+  }
+
+  public long getHeartbeatCount() {
+    return heartbeats.get();
+  }
+
+  @Override
+  public void close() {
+    this.emitter.shutdownNow();
+    this.socket.close();
+  }
+
+  /**
+   * Virtual sub-device
+   */
+  private static class VirtualDevice {
+
+    private final String sid;
+    private final String model;
+    private final Integer shortId;
+    private final Map<String, Object> state;
+
+    private VirtualDevice(String sid, String model, Integer shortId, Map<String, Object> state) {
+      this.sid = sid;
+      this.model = model;
+      this.shortId = shortId;
+      this.state = new LinkedHashMap<>(state);
+    }
+
+    private synchronized Map<String, Object> snapshot() {
+      return new LinkedHashMap<>(this.state);
+    }
+
+    private synchronized void apply(Map<String, Object> params) {
+      this.state.putAll(params);
+    }
+
+    /**
+     * Change the first parameter, on/off is toggled, numbers are increased, booleans are negated
+     *
+     * @return Changed parameter
+     */
+    private synchronized Map<String, Object> change() {
+      Entry<String, Object> first = this.state.entrySet().iterator().next();
+      Object v = first.getValue();
+      if ("on".equals(v) || "off".equals(v)) {
+        v = "on".equals(v) ? "off" : "on";
+      } else if (v instanceof Long) {
+        v = (Long) v + 1;
+      } else if (v instanceof Double) {
+        v = (Double) v + 1;
+      } else if (v instanceof Boolean) {
+        v = !(Boolean) v;
+      }
+      first.setValue(v);
+      return Map.of(first.getKey(), v);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class GatewaySimulatorTest {
+
+  private final DatagramBufferPool buffers = new DatagramBufferPool(8192, 4);
+  private final RttTable rtts = new RttTable(1000, 50, 2000, 1);
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void protocolV1Test() throws IOException {
+    try (GatewaySimulator gateway = new GatewaySimulator("gw1", true, "0987654321qwerty")) {
+      gateway.addDevices(3, "ctrl_neutral2", Map.of("channel_0", "on", "channel_1", "off"));
+      gateway.start();
+
+      Map<String, Object> ack = GatewayUDPCodec.list(gateway.getAddress(), gateway.getPort(),
+          this.rtts, this.buffers);
+      assert ack.get("sid").equals("gw1");
+      assert ack.get("token").equals(gateway.getToken());
+      assert ((List<String>) ack.get("data")).equals(gateway.getSids());
+
+      String sid = gateway.getSids().get(1);
+      Map<String, Object> read = GatewayUDPCodec.read(sid, gateway.getAddress(),
+          gateway.getPort(), this.rtts, this.buffers);
+      assert read.get("cmd").equals("read_ack");
+      assert read.get("model").equals("ctrl_neutral2");
+      assert (int) read.get("short_id") == 2;
+      assert ((Map<String, Object>) read.get("data")).get("channel_1").equals("off");
+
+      String key = GatewayUDPCodec.encryptKey("0987654321qwerty", gateway.getToken());
+      Map<String, Object> write = GatewayUDPCodec.write("ctrl_neutral2", sid, 2, key,
+          Map.of("channel_1", "on"), gateway.getAddress(), gateway.getPort(), this.rtts,
+          this.buffers);
+      assert write.get("cmd").equals("write_ack");
+      assert gateway.getState(sid).get("channel_1").equals("on");
+
+      // invalid key
+      write = GatewayUDPCodec.write("ctrl_neutral2", sid, 2, "invalid",
+          Map.of("channel_1", "off"), gateway.getAddress(), gateway.getPort(), this.rtts,
+          this.buffers);
+      assert ((Map<String, Object>) write.get("data")).containsKey("error");
+      assert gateway.getState(sid).get("channel_1").equals("on");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void protocolV2Test() throws IOException {
+    try (GatewaySimulator gateway = new GatewaySimulator("gw2", false, "0987654321qwerty")) {
+      gateway.addDevices(2, "ctrl_ln2.aq1", Map.of("channel_0", "on", "channel_1", "off"));
+      gateway.start();
+
+      Map<String, Object> rsp = GatewayUDPCodec.discovery(gateway.getAddress(),
+          gateway.getPort(), this.rtts, this.buffers);
+      assert rsp.get("sid").equals("gw2");
+      assert ((Map<String, String>) rsp.get("dev_list")).keySet().containsAll(gateway.getSids());
+
+      rsp = GatewayUDPCodec.read("gw2", gateway.getAddress(), gateway.getPort(), this.rtts,
+          this.buffers);
+      assert rsp.get("cmd").equals("read_rsp");
+      assert ((Map<String, Object>) rsp.get("params")).get("proto_version").equals("2.0.1");
+
+      String sid = gateway.getSids().get(0);
+      String key = GatewayUDPCodec.encryptKey("0987654321qwerty", gateway.getToken());
+      rsp = GatewayUDPCodec.write("ctrl_ln2.aq1", sid, key, Map.of("channel_0", "off"),
+          gateway.getAddress(), gateway.getPort(), this.rtts, this.buffers);
+      assert rsp.get("cmd").equals("write_rsp");
+      assert ((Map<String, Object>) rsp.get("params")).get("channel_0").equals("off");
+      assert gateway.getWriteCount() == 1;
+    }
+  }
+
+  @Test
+  public void emitTest() throws Exception {
+    try (GatewaySimulator gateway = new GatewaySimulator("gw3", true, "0987654321qwerty");
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      gateway.addDevices(2, "ctrl_neutral1", Map.of("channel_0", "on"));
+      socket.setSoTimeout(2000);
+      gateway.emit(socket.getLocalSocketAddress(), 100, 0);
+
+      // gateway heartbeat first, then reports toggling the devices in turn
+      GatewayMessageDecoder decoder = new GatewayMessageDecoder();
+      GatewayMessage msg = new GatewayMessage();
+      byte[] buf = new byte[1024];
+      int reports = 0;
+      while (reports < 4) {
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        socket.receive(p);
+        decoder.decode(p.getData(), p.getOffset(), p.getLength(), msg);
+        if (msg.getCmd() == GatewayCommand.HEARTBEAT) {
+          assert msg.getSid().equals("gw3");
+          assert msg.getToken() != null;
+        } else {
+          assert msg.getCmd() == GatewayCommand.REPORT;
+          assert msg.getSid().equals(gateway.getSids().get(reports % 2));
+          assert msg.getValue(0).equals(reports < 2 ? "off" : "on");
+          reports++;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compare {@link GatewayUDPCodec#decodeResponse(byte[], int, int)} with {@link
+ * GatewayMessageDecoder} on sample gateway packets
+ *
+ * Run with main method from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GatewayUDPCodecBenchmark {
+
+  // Handwritten samples in the shape of protocol 1.x and 2.x messages, not a capture from real
+  // gateways. Padded into a larger receive buffer like the multicast service does
+  private static final Map<String, String> PACKETS = Map.of(
+      "report_v1", "{\"cmd\":\"report\",\"model\":\"ctrl_neutral2\",\"sid\":\"158d0001a2b3c4\","
+          + "\"short_id\":4343,"
+          + "\"data\":\"{\\\"channel_0\\\":\\\"on\\\",\\\"channel_1\\\":\\\"off\\\"}\"}",
+      "heartbeat_v1", "{\"cmd\":\"heartbeat\",\"model\":\"gateway\",\"sid\":\"7811dcb07917\","
+          + "\"short_id\":\"0\",\"token\":\"4Kh8uw3FaTj0u8Ky\","
+          + "\"data\":\"{\\\"ip\\\":\\\"192.168.1.10\\\"}\"}",
+      "report_v2", "{\"cmd\":\"report\",\"model\":\"gateway.aq1\",\"sid\":\"7811dcb07917\","
+          + "\"params\":[{\"rgb\":4278255360},{\"illumination\":503}]}",
+      "read_rsp_v2", "{\"cmd\":\"read_rsp\",\"model\":\"ctrl_ln2.aq1\",\"sid\":\"158d0001a2b3c4\","
+          + "\"params\":[{\"channel_0\":\"on\"},{\"channel_1\":\"off\"},{\"load_power\":3.21}]}"
+  );
+
+  @Param({"report_v1", "heartbeat_v1", "report_v2", "read_rsp_v2"})
+  public String packet;
+
+  private byte[] buf;
+  private int length;
+  private GatewayMessageDecoder decoder;
+  private GatewayMessage msg;
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(GatewayUDPCodecBenchmark.class.getSimpleName())
+        .addProfiler("gc")
+        .build();
+    new Runner(options).run();
+  }
+
+  @Setup
+  public void setup() {
+    byte[] bytes = PACKETS.get(this.packet).getBytes();
+    this.buf = new byte[8193];
+    this.length = bytes.length;
+    System.arraycopy(bytes, 0, this.buf, 0, this.length);
+    this.decoder = new GatewayMessageDecoder();
+    this.msg = new GatewayMessage();
+  }
+
+  @Benchmark
+  public Map<String, Object> treeDecoder() throws IOException {
+    return GatewayUDPCodec.decodeResponse(this.buf, 0, this.length);
+  }
+
+  @Benchmark
+  public GatewayMessage streamingDecoder() throws IOException {
+    return this.decoder.decode(this.buf, 0, this.length, this.msg);
+  }
+}
@@ -1,9 +1,14 @@
 package com.github.longkerdandy.viki.home.mi.udp;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
 public class GatewayUDPCodecTest {
@@ -113,4 +118,104 @@ public class GatewayUDPCodecTest {
     assert ((Map<String, Object>) map.get("params")).get("channel_0").equals("on");
     assert ((Map<String, Object>) map.get("params")).get("channel_1").equals("off");
   }
+
+  @Test
+  public void decodeWithLengthTest() throws IOException {
+    byte[] buf = new byte[256];
+    byte[] json = "{\"cmd\":\"heartbeat\",\"model\":\"gateway\",\"sid\":\"1022780\"}".getBytes();
+    System.arraycopy(json, 0, buf, 0, json.length);
+    buf[json.length] = '}';
+    Map<String, Object> map = GatewayUDPCodec.decodeResponse(buf, 0, json.length);
+    assert map.get("cmd").equals("heartbeat");
+    assert map.get("sid").equals("1022780");
+  }
+
+  @Test
+  public void unicastTimeoutTest() throws IOException {
+    DatagramBufferPool buffers = new DatagramBufferPool(1024, 2);
+    // 10 retransmissions would take 100 + 200 + 9 * 300 ms without the overall limit
+    RttTable rtts = new RttTable(100, 50, 300, 10);
+    try (DatagramSocket gateway = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      long start = System.nanoTime();
+      try {
+        GatewayUDPCodec.unicast(GatewayRequest.read("a"), gateway.getLocalSocketAddress(), rtts,
+            buffers);
+        assert false;
+      } catch (SocketTimeoutException ignore) {
+        // expected
+      }
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assert elapsed >= 300 && elapsed < 300 + 200;
+
+      // a smaller budget
+      start = System.nanoTime();
+      try {
+        GatewayUDPCodec.read("a", InetAddress.getLoopbackAddress(), gateway.getLocalPort(), rtts,
+            buffers, 150);
+        assert false;
+      } catch (SocketTimeoutException ignore) {
+        // expected
+      }
+      elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assert elapsed >= 150 && elapsed < 150 + 100;
+    }
+  }
+
+  @Test
+  public void pipelineTest() throws Exception {
+    DatagramBufferPool buffers = new DatagramBufferPool(1024, 2);
+    RttTable rtts = new RttTable(100, 50, 1000, 3);
+    try (DatagramSocket gateway = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      gateway.setSoTimeout(5000);
+      // answer out of order and drop the response of 'b' until it is retransmitted
+      Thread responder = new Thread(() -> {
+        try {
+          byte[] buf = new byte[1024];
+          DatagramPacket p = new DatagramPacket(buf, buf.length);
+          for (int i = 0; i < 3; i++) {
+            gateway.receive(p);
+          }
+          for (String sid : List.of("c", "a")) {
+            byte[] rsp = ("{\"cmd\":\"write_rsp\",\"model\":\"plug\",\"sid\":\"" + sid
+                + "\",\"params\":[{\"channel_0\":\"on\"}]}").getBytes();
+            gateway.send(new DatagramPacket(rsp, rsp.length, p.getSocketAddress()));
+          }
+          gateway.receive(p);
+          assert new String(p.getData(), 0, p.getLength()).contains("\"sid\":\"b\"");
+          byte[] rsp = ("{\"cmd\":\"write_rsp\",\"model\":\"plug\",\"sid\":\"b\","
+              + "\"params\":[{\"channel_0\":\"on\"}]}").getBytes();
+          gateway.send(new DatagramPacket(rsp, rsp.length, p.getSocketAddress()));
+        } catch (IOException ignore) {
+        }
+      });
+      responder.start();
+
+      List<GatewayRequest> requests = List.of(
+          GatewayRequest.write("plug", "a").param("channel_0", "on").key("k"),
+          GatewayRequest.write("plug", "b").param("channel_0", "on").key("k"),
+          GatewayRequest.write("plug", "c").param("channel_0", "on").key("k"));
+      List<Map<String, Object>> rsp = GatewayUDPCodec.pipeline(requests,
+          gateway.getLocalSocketAddress(), rtts, buffers);
+      assert rsp.size() == 3;
+      assert rsp.get(0).get("sid").equals("a");
+      assert rsp.get(1).get("sid").equals("b");
+      assert rsp.get(2).get("sid").equals("c");
+      // first response of the first round is sampled
+      assert rtts.get(gateway.getLocalSocketAddress()).getSmoothedRtt() > 0;
+      responder.join();
+    }
+  }
+
+  @Test
+  public void pipelineNoResponseTest() throws IOException {
+    DatagramBufferPool buffers = new DatagramBufferPool(1024, 2);
+    RttTable rtts = new RttTable(50, 50, 100, 1);
+    try (DatagramSocket gateway = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      List<Map<String, Object>> rsp = GatewayUDPCodec.pipeline(
+          List.of(GatewayRequest.read("a"), GatewayRequest.read("b")),
+          gateway.getLocalSocketAddress(), rtts, buffers);
+      assert rsp.size() == 2;
+      assert rsp.get(0) == null && rsp.get(1) == null;
+    }
+  }
 }
@@ -0,0 +1,74 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import org.junit.Test;
+
+public class PacketCaptureTest {
+
+  private static DatagramPacket packet(String payload, String address, int port)
+      throws IOException {
+    byte[] bytes = ("padding" + payload).getBytes();
+    return new DatagramPacket(bytes, 7, payload.length(), InetAddress.getByName(address), port);
+  }
+
+  @Test
+  public void writeReadTest() throws IOException {
+    Path file = File.createTempFile("viki-home-mi-", ".cap").toPath();
+    try (PacketCaptureWriter writer = new PacketCaptureWriter(file)) {
+      writer.write(packet("{\"cmd\":\"report\"}", "192.168.1.10", 4321), 1000L);
+      writer.write(packet("{\"cmd\":\"heartbeat\"}", "fe80::1", 9898), 2500L);
+      assert writer.getCount() == 2;
+    }
+    // appended to the existing capture
+    try (PacketCaptureWriter writer = new PacketCaptureWriter(file)) {
+      writer.write(packet("{}", "192.168.1.11", 4321), 3000L);
+    }
+
+    byte[] buf = new byte[1024];
+    try (PacketCaptureReader reader = new PacketCaptureReader(file)) {
+      DatagramPacket p = reader.next(buf);
+      assert reader.getTimestamp() == 1000L;
+      assert p.getAddress().equals(InetAddress.getByName("192.168.1.10"));
+      assert p.getPort() == 4321;
+      assert new String(p.getData(), p.getOffset(), p.getLength()).equals("{\"cmd\":\"report\"}");
+
+      p = reader.next(buf);
+      assert reader.getTimestamp() == 2500L;
+      assert p.getAddress().equals(InetAddress.getByName("fe80::1"));
+      assert new String(p.getData(), p.getOffset(), p.getLength())
+          .equals("{\"cmd\":\"heartbeat\"}");
+
+      p = reader.next(buf);
+      assert reader.getTimestamp() == 3000L;
+      assert p.getPort() == 4321;
+      assert reader.next(buf) == null;
+    }
+  }
+
+  @Test
+  public void partialRecordTest() throws IOException {
+    Path file = File.createTempFile("viki-home-mi-", ".cap").toPath();
+    try (PacketCaptureWriter writer = new PacketCaptureWriter(file)) {
+      writer.write(packet("{\"cmd\":\"report\"}", "192.168.1.10", 4321), 1000L);
+      writer.write(packet("{\"cmd\":\"report\"}", "192.168.1.10", 4321), 2000L);
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.setLength(raf.length() - 5);
+    }
+    try (PacketCaptureReader reader = new PacketCaptureReader(file)) {
+      assert reader.next(new byte[1024]) != null;
+      assert reader.next(new byte[1024]) == null;
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidFileTest() throws IOException {
+    Path file = File.createTempFile("viki-home-mi-", ".cap").toPath();
+    new PacketCaptureReader(file).close();
+  }
+}
@@ -0,0 +1,87 @@
+package com.github.longkerdandy.viki.home.mi.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RttEstimatorTest {
+
+  @Test
+  public void sampleTest() {
+    RttEstimator rtt = new RttEstimator(1000, 50, 5000);
+    assert rtt.getTimeout() == 1000;
+
+    // first sample, srtt = 20ms, rttvar = 10ms, clamped to the minimum
+    rtt.sample(TimeUnit.MILLISECONDS.toNanos(20));
+    assert rtt.getSmoothedRtt() == 20000;
+    assert rtt.getTimeout() == 60;
+
+    // stable samples converge to the minimum
+    for (int i = 0; i < 20; i++) {
+      rtt.sample(TimeUnit.MILLISECONDS.toNanos(4));
+    }
+    assert rtt.getTimeout() == 50;
+  }
+
+  @Test
+  public void backoffTest() {
+    RttEstimator rtt = new RttEstimator(1000, 50, 5000);
+    rtt.backoff();
+    assert rtt.getTimeout() == 2000;
+    rtt.backoff();
+    rtt.backoff();
+    assert rtt.getTimeout() == 5000;
+
+    // valid sample resets the backoff
+    rtt.sample(TimeUnit.MILLISECONDS.toNanos(100));
+    assert rtt.getTimeout() == 300;
+  }
+
+  @Test
+  public void retransmitTest() throws Exception {
+    DatagramBufferPool buffers = new DatagramBufferPool(1024, 2);
+    RttTable rtts = new RttTable(100, 50, 1000, 3);
+    try (DatagramSocket gateway = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      gateway.setSoTimeout(5000);
+      // drop the first request, answer the second one
+      Thread responder = new Thread(() -> {
+        try {
+          byte[] buf = new byte[1024];
+          DatagramPacket p = new DatagramPacket(buf, buf.length);
+          gateway.receive(p);
+          gateway.receive(p);
+          byte[] rsp = ("{\"cmd\":\"read_ack\",\"model\":\"plug\",\"sid\":\"a\","
+              + "\"data\":\"{\\\"status\\\":\\\"on\\\"}\"}").getBytes();
+          gateway.send(new DatagramPacket(rsp, rsp.length, p.getSocketAddress()));
+        } catch (IOException ignore) {
+        }
+      });
+      responder.start();
+
+      long start = System.nanoTime();
+      Map<String, Object> rsp = GatewayUDPCodec.read("a", InetAddress.getLoopbackAddress(),
+          gateway.getLocalPort(), rtts, buffers);
+      assert rsp.get("cmd").equals("read_ack");
+      assert TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000;
+      // retransmitted response is not sampled, timeout is backed off
+      assert rtts.get(gateway.getLocalSocketAddress()).getSmoothedRtt() == 0;
+      assert rtts.get(gateway.getLocalSocketAddress()).getTimeout() == 200;
+      responder.join();
+    }
+  }
+
+  @Test(expected = SocketTimeoutException.class)
+  public void retriesExhaustedTest() throws IOException {
+    DatagramBufferPool buffers = new DatagramBufferPool(1024, 2);
+    RttTable rtts = new RttTable(50, 50, 100, 2);
+    try (DatagramSocket gateway = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      GatewayUDPCodec.read("a", InetAddress.getLoopbackAddress(), gateway.getLocalPort(), rtts,
+          buffers);
+    }
+  }
+}